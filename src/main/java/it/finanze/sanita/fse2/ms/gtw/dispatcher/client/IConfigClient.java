@@ -23,6 +23,11 @@ public interface IConfigClient {
 
 	ConfigItemDTO getConfigurationItems(ConfigItemTypeEnum type);
 	
+	/**
+	 * Restituisce il valore della proprieta' specifica del microservizio o, se assente, quello generico.
+	 * 
+	 * @throws it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException se gtw-config non e' raggiungibile
+	 */
 	String getProps(String props, String previous, ConfigItemTypeEnum ms);
 	
 }
@@ -10,11 +10,10 @@ import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.ResponseErrorHandler;
 
-import com.google.gson.Gson;
-
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.response.ErrorResponseDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.NoRecordFoundException;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.JsonUtility;
 
 
 @Component
@@ -29,7 +28,7 @@ public class RestTemplateResponseErrorHandler implements ResponseErrorHandler {
 	@Override
 	public void handleError(ClientHttpResponse httpResponse) throws IOException {
 		String result = IOUtils.toString(httpResponse.getBody(), StandardCharsets.UTF_8);
-		ErrorResponseDTO error = new Gson().fromJson(result, ErrorResponseDTO.class);
+		ErrorResponseDTO error = JsonUtility.getGson().fromJson(result, ErrorResponseDTO.class);
 		if (httpResponse.getStatusCode() == HttpStatus.INTERNAL_SERVER_ERROR) {
 			throw new BusinessException(error);
 		} else if(httpResponse.getStatusCode() == HttpStatus.NOT_FOUND){
@@ -104,19 +104,19 @@ public class ConfigClient extends AbstractClient implements IConfigClient {
 
 	@Override
 	public String getProps(String props, String previous, ConfigItemTypeEnum ms) {
-		String out = previous;
 		ConfigItemTypeEnum src = ms;
-		// Check if gtw-config is available and get props
-		if (isReachable()) {
-			// Try to get the specific one
-			out = client.getForObject(routes.getConfigItem(ms, props), String.class);
-			// If the props don't exist
-			if (out == null) {
-				// Retrieve the generic one
-				out = client.getForObject(routes.getConfigItem(GENERIC, props), String.class);
-				// Set where has been retrieved from
-				src = GENERIC;
-			}
+		// Check if gtw-config is available, the caller keeps its current value otherwise
+		if (!isReachable()) {
+			throw new BusinessException("gtw-config is not reachable, unable to retrieve " + props);
+		}
+		// Try to get the specific one
+		String out = client.getForObject(routes.getConfigItem(ms, props), String.class);
+		// If the props don't exist
+		if (out == null) {
+			// Retrieve the generic one
+			out = client.getForObject(routes.getConfigItem(GENERIC, props), String.class);
+			// Set where has been retrieved from
+			src = GENERIC;
 		}
 		if(out == null || !out.equals(previous)) {
 			log.info("[GTW-CFG] {} set as {} (previously: {}) from {}", props, out, previous, src);
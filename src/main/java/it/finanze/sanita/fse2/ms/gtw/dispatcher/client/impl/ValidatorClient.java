@@ -21,7 +21,6 @@ import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.github.resilience4j.circuitbreaker.annotation.CircuitBreaker;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.client.IValidatorClient;
@@ -36,6 +35,7 @@ import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.RestExecutionResultEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.SystemTypeEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.ConnectionRefusedException;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.ValidationException;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.JsonUtility;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -96,7 +96,7 @@ public class ValidatorClient extends AbstractClient implements IValidatorClient
     private static String fromErrorObject(String message) {
         String out;
         try {
-            out = new ObjectMapper().readValue(message, ValidatorErrorDTO.class).getError().getMessage();
+            out = JsonUtility.readerFor(ValidatorErrorDTO.class).<ValidatorErrorDTO>readValue(message).getError().getMessage();
         } catch (JsonProcessingException e) {
             out = "Impossibile deserializzare l'errore verificatosi sul gtw-validator";
         }
@@ -101,6 +101,7 @@ public final class Constants {
 		public static final String MISSING_DOC_TYPE_PLACEHOLDER = "UNKNOWN_DOCUMENT_TYPE";
 		
 		public static final String LOG_TYPE_CONTROL = "control-structured-log";
+		public static final String LOG_TYPE_CONTROL_SUMMARY = "control-log-summary";
 		public static final int MAX_SIZE_WARNING = 200000;
 		public static final String BENCHMARK_ISSUER = "TEST-BENCHMARK";
 
@@ -0,0 +1,56 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import lombok.Data;
+
+/**
+ *	Control log sampling configuration.
+ */
+@Data
+@Component
+public class ControlLogSamplingCFG {
+
+	/**
+	 * Campionamento e limite di frequenza dei log di controllo con esito positivo; errori e warning sono sempre scritti.
+	 */
+	@Value("${log.control.sampling.enabled:false}")
+	private boolean enabled;
+
+	/**
+	 * Viene scritto un log con esito positivo ogni success-one-in, per operazione e issuer.
+	 */
+	@Value("${log.control.sampling.success-one-in:1}")
+	private int successOneIn;
+
+	/**
+	 * Log con esito positivo al secondo per operazione (token bucket), 0 per nessun limite.
+	 */
+	@Value("${log.control.sampling.rate-limit.per-second:0}")
+	private double rateLimitPerSecond;
+
+	/**
+	 * Capacita' del token bucket, 0 per usare per-second.
+	 */
+	@Value("${log.control.sampling.rate-limit.burst:0}")
+	private int rateLimitBurst;
+
+	/**
+	 * Intervallo di scrittura del riepilogo dei log soppressi.
+	 */
+	@Value("${log.control.sampling.report-interval-ms:60000}")
+	private long reportIntervalMs;
+
+}
@@ -0,0 +1,92 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import lombok.Getter;
+
+/**
+ *  Configuration PDF parsing.
+ */
+@Configuration
+@Getter
+public class PdfCFG {
+
+	/**
+	 *  Dimensione oltre la quale il pdf viene caricato con buffer misti memoria/file temporaneo.
+	 */
+	@Value("${pdf.parse.memory-threshold-bytes}")
+	private long memoryThresholdBytes;
+
+	/**
+	 *  Heap massimo utilizzabile da un singolo pdf in modalita' mista.
+	 */
+	@Value("${pdf.parse.max-main-memory-bytes}")
+	private long maxMainMemoryBytes;
+
+	/**
+	 *  Heap massimo occupato complessivamente dal parsing dei pdf in corso.
+	 */
+	@Value("${pdf.parse.global-max-bytes}")
+	private long globalMaxBytes;
+
+	/**
+	 *  Directory dei file temporanei, se vuota viene usata java.io.tmpdir.
+	 */
+	@Value("${pdf.parse.temp-dir:}")
+	private String tempDir;
+
+	/**
+	 *  Numero massimo di pagine analizzate per cercare il bundle FHIR nel testo.
+	 */
+	@Value("${pdf.fhir.max-text-pages}")
+	private int fhirMaxTextPages;
+
+	/**
+	 *  Numero massimo di voci (issuer e contenuto) nella tabella dell'ordine di estrazione.
+	 */
+	@Value("${pdf.extraction.order.max-entries}")
+	private int extractionOrderMaxEntries;
+
+	/**
+	 *  Fattore di decadimento dei punteggi dell'ordine di estrazione ad ogni successo.
+	 */
+	@Value("${pdf.extraction.order.decay}")
+	private double extractionOrderDecay;
+
+	/**
+	 *  Thread dedicati alla verifica in parallelo dei campi firma, 0 per la verifica sequenziale.
+	 */
+	@Value("${pdf.sign.verify.threads}")
+	private int signVerifyThreads;
+
+	/**
+	 *  Verifiche in attesa oltre le quali il campo firma viene verificato dal thread della richiesta.
+	 */
+	@Value("${pdf.sign.verify.queue-size}")
+	private int signVerifyQueueSize;
+
+	/**
+	 *  Durata degli esiti di verifica firma in cache, 0 per disabilitare la cache.
+	 */
+	@Value("${pdf.sign.cache.ttl-seconds}")
+	private long signCacheTtlSeconds;
+
+	/**
+	 *  Dimensione massima stimata della cache degli esiti di verifica firma.
+	 */
+	@Value("${pdf.sign.cache.max-bytes}")
+	private long signCacheMaxBytes;
+
+}
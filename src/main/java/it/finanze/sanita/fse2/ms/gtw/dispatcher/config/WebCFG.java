@@ -16,6 +16,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.interceptor.KafkaUnitOfWorkInterceptor;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.interceptor.LogInterceptor;
 
 @Configuration
@@ -23,10 +24,14 @@ public class WebCFG implements WebMvcConfigurer {
     
     @Autowired
     private LogInterceptor logInterceptor;
+
+    @Autowired
+    private KafkaUnitOfWorkInterceptor kafkaUnitOfWorkInterceptor;
     
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(logInterceptor);
+        registry.addInterceptor(kafkaUnitOfWorkInterceptor);
     }
 
 } 
@@ -0,0 +1,92 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.KafkaDeliveryProfileDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
+import jakarta.annotation.PostConstruct;
+import lombok.Data;
+
+/**
+ *	Kafka delivery profiles configuration.
+ *	I profili elencati in kafka.producer.profiles sono letti dalle proprieta' kafka.producer.profile.&lt;nome&gt;.*
+ */
+@Data
+@Component
+public class KafkaDeliveryProfileCFG {
+
+	private static final String PROFILE_PREFIX = "kafka.producer.profile.";
+
+	@Autowired
+	private Environment environment;
+
+	/**
+	 * Nomi dei profili definiti.
+	 */
+	@Value("${kafka.producer.profiles:}")
+	private String[] names;
+
+	/**
+	 * Profili per nome.
+	 */
+	private Map<String, KafkaDeliveryProfileDTO> profiles;
+
+	@PostConstruct
+	public void afterInit() {
+		profiles = new LinkedHashMap<>();
+		if (names == null) {
+			return;
+		}
+		for (String name : names) {
+			if (!StringUtility.isNullOrEmpty(name.trim())) {
+				profiles.put(name.trim(), read(name.trim()));
+			}
+		}
+	}
+
+	/**
+	 * @param name Nome del profilo
+	 * @return Profilo, {@code null} se il nome e' vuoto
+	 */
+	public KafkaDeliveryProfileDTO getProfile(final String name) {
+		if (StringUtility.isNullOrEmpty(name)) {
+			return null;
+		}
+		KafkaDeliveryProfileDTO profile = profiles.get(name);
+		if (profile == null) {
+			throw new IllegalStateException("Profilo kafka non definito: " + name);
+		}
+		return profile;
+	}
+
+	private KafkaDeliveryProfileDTO read(final String name) {
+		final String prefix = PROFILE_PREFIX + name + ".";
+		return KafkaDeliveryProfileDTO.builder()
+			.name(name)
+			.transactional(environment.getProperty(prefix + "transactional", Boolean.class, false))
+			.acks(environment.getProperty(prefix + "acks"))
+			.lingerMs(environment.getProperty(prefix + "linger-ms", Integer.class))
+			.batchSize(environment.getProperty(prefix + "batch-size", Integer.class))
+			.compressionType(environment.getProperty(prefix + "compression-type"))
+			.idempotence(environment.getProperty(prefix + "idempotence", Boolean.class))
+			.build();
+	}
+
+}
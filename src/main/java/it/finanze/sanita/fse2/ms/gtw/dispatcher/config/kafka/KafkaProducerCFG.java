@@ -15,19 +15,28 @@ package it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.DefaultTransactionIdSuffixStrategy;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.MicrometerProducerListener;
 import org.springframework.kafka.core.ProducerFactory;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
 import io.opentelemetry.instrumentation.kafkaclients.v2_6.TracingProducerInterceptor;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.oauth2.CustomAuthenticateCallbackHandler;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.KafkaDeliveryProfileDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PriorityTypeEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
 import lombok.extern.slf4j.Slf4j;
 
@@ -38,6 +47,10 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class KafkaProducerCFG {
 
+	private static final String PROFILE_TAG = "profile";
+
+	private static final String DEFAULT_PROFILE = "default";
+
 
 	/**
 	 *	Kafka properties.
@@ -51,6 +64,12 @@ public class KafkaProducerCFG {
 	@Autowired
 	private KafkaProducerPropertiesCFG kafkaProducerPropCFG;
 
+	@Autowired
+	private KafkaDeliveryProfileCFG kafkaDeliveryProfileCFG;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
 
 	/** 
 	 *  Kafka producer configurazione.
@@ -65,8 +84,8 @@ public class KafkaProducerCFG {
 		props.put(ProducerConfig.RETRIES_CONFIG, kafkaProducerPropCFG.getRetries());
 		props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaProducerPropCFG.getProducerBootstrapServers());
 		props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, kafkaProducerPropCFG.getKeySerializer());
-		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, kafkaProducerPropCFG.getValueSerializer());
-		props.put(ProducerConfig.TRANSACTIONAL_ID_CONFIG, id + "-" + kafkaProducerPropCFG.getTransactionalId());
+		// I valori sono serializzati dal chiamante (UTF-8)
+		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
 		props.put(ProducerConfig.ACKS_CONFIG,kafkaProducerPropCFG.getAck());
 		props.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG,kafkaProducerPropCFG.getIdempotence());
 
@@ -122,22 +141,72 @@ public class KafkaProducerCFG {
 	}
 
 	/**
-	 * Transactional producer.
+	 * Transactional producer del pool, configurato con il profilo kafka.producer.transactional.profile.
+	 * Il transactional id (prefisso, indice, host) e' stabile tra i riavvii: alla ripartenza il nuovo producer
+	 * esclude (fencing) l'eventuale istanza precedente con lo stesso id e ne annulla le transazioni aperte.
+	 *
+	 * @param index Indice del producer nel pool
+	 * @return Factory del producer
 	 */
-	@Bean
-	@Qualifier("txkafkatemplateFactory") 
-	public ProducerFactory<String, String> producerFactory() {
-		log.info("Initialization of transactional Factory");
-		return new DefaultKafkaProducerFactory<>(producerConfigs());
+	public DefaultKafkaProducerFactory<String, byte[]> producerFactory(final int index) {
+		return producerFactory(null, index);
 	}
 
 	/**
-	 *  Kafka template.
+	 * Transactional producer riservato a una coda di priorita indexer: il nome della coda entra nel transactional id,
+	 * cosi' i producer delle code non si escludono con quelli del pool condiviso.
+	 *
+	 * @param lane  Priorita della coda, {@code null} per il pool condiviso
+	 * @param index Indice del producer nella coda
+	 * @return Factory del producer
 	 */
-	@Bean
-	@Qualifier("txkafkatemplate") 
-	public KafkaTemplate<String, String> txKafkaTemplate() {
-		return new KafkaTemplate<>(producerFactory());
+	public DefaultKafkaProducerFactory<String, byte[]> producerFactory(final PriorityTypeEnum lane, final int index) {
+		final String name = (lane != null ? lane.name().toLowerCase(Locale.ROOT) + "-" : "") + index;
+		log.info("Initialization of transactional Factory {}", name);
+		Map<String, Object> props = new HashMap<>(producerConfigs());
+		props.put(ProducerConfig.CLIENT_ID_CONFIG, props.get(ProducerConfig.CLIENT_ID_CONFIG) + "-" + name);
+		props.put(ProducerConfig.TRANSACTIONAL_ID_CONFIG, transactionalIdPrefix() + "-" + name + "-" + getHostName());
+		KafkaDeliveryProfileDTO profile = kafkaDeliveryProfileCFG.getProfile(kafkaProducerPropCFG.getTransactionalProfile());
+		if (profile != null) {
+			applyProfile(props, profile);
+		}
+		DefaultKafkaProducerFactory<String, byte[]> factory = new DefaultKafkaProducerFactory<>(props);
+		// Un solo producer per factory: il suffisso del transactional id resta sempre lo stesso
+		factory.setTransactionIdSuffixStrategy(new DefaultTransactionIdSuffixStrategy(1));
+		factory.addListener(new MicrometerProducerListener<>(meterRegistry,
+				List.of(Tag.of(PROFILE_TAG, profile != null ? profile.getName() : DEFAULT_PROFILE))));
+		return factory;
+	}
+
+	/**
+	 *  Kafka template transazionale del pool.
+	 *
+	 * @param index Indice del producer nel pool
+	 * @return Kafka template
+	 */
+	public KafkaTemplate<String, byte[]> txKafkaTemplate(final int index) {
+		return new KafkaTemplate<>(producerFactory(index));
+	}
+
+	/**
+	 *  Kafka template transazionale riservato a una coda di priorita indexer.
+	 *
+	 * @param lane  Priorita della coda
+	 * @param index Indice del producer nella coda
+	 * @return Kafka template
+	 */
+	public KafkaTemplate<String, byte[]> txKafkaTemplate(final PriorityTypeEnum lane, final int index) {
+		return new KafkaTemplate<>(producerFactory(lane, index));
+	}
+
+	private String transactionalIdPrefix() {
+		String prefix = kafkaProducerPropCFG.getTransactionalId();
+		return StringUtility.isNullOrEmpty(prefix) ? kafkaProducerPropCFG.getClientId() : prefix;
+	}
+
+	private String getHostName() {
+		InetAddress id = getLocalHost();
+		return id != null ? id.getHostName() : "localhost";
 	}
 
 	/**
@@ -151,7 +220,8 @@ public class KafkaProducerCFG {
 		props.put(ProducerConfig.RETRIES_CONFIG, kafkaProducerPropCFG.getRetries());
 		props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaProducerPropCFG.getProducerBootstrapServers());
 		props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, kafkaProducerPropCFG.getKeySerializer());
-		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, kafkaProducerPropCFG.getValueSerializer());
+		// I valori sono serializzati dal chiamante (UTF-8)
+		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
 
 		if (!StringUtility.isNullOrEmpty(kafkaPropCFG.getProtocol())) {
 			props.put("security.protocol", kafkaPropCFG.getProtocol());
@@ -194,9 +264,11 @@ public class KafkaProducerCFG {
 	 */ 
 	@Bean
 	@Qualifier("notxkafkatemplateFactory") 
-	public ProducerFactory<String, String> producerFactoryWithoutTransaction() {
+	public ProducerFactory<String, byte[]> producerFactoryWithoutTransaction() {
 		log.info("Initialization of non transactional Factory");
-		return new DefaultKafkaProducerFactory<>(producerWithoutTransactionConfigs());
+		DefaultKafkaProducerFactory<String, byte[]> factory = new DefaultKafkaProducerFactory<>(producerWithoutTransactionConfigs());
+		factory.addListener(new MicrometerProducerListener<>(meterRegistry, List.of(Tag.of(PROFILE_TAG, DEFAULT_PROFILE))));
+		return factory;
 	}
 
 	/**
@@ -204,9 +276,47 @@ public class KafkaProducerCFG {
 	 */ 
 	@Bean
 	@Qualifier("notxkafkatemplate") 
-	public KafkaTemplate<String, String> notxKafkaTemplate() {
+	public KafkaTemplate<String, byte[]> notxKafkaTemplate() {
 		return new KafkaTemplate<>(producerFactoryWithoutTransaction());
 	}
 
+	/**
+	 * Non transactional producer di un profilo di invio. Le metriche del producer sono esportate con il tag profile.
+	 *
+	 * @param profile Profilo di invio
+	 * @return Kafka template
+	 */
+	public KafkaTemplate<String, byte[]> notxKafkaTemplate(final KafkaDeliveryProfileDTO profile) {
+		log.info("Initialization of non transactional Factory for profile {}", profile.getName());
+		Map<String, Object> props = new HashMap<>(producerWithoutTransactionConfigs());
+		props.put(ProducerConfig.CLIENT_ID_CONFIG, props.get(ProducerConfig.CLIENT_ID_CONFIG) + "-" + profile.getName());
+		applyProfile(props, profile);
+
+		DefaultKafkaProducerFactory<String, byte[]> factory = new DefaultKafkaProducerFactory<>(props);
+		factory.addListener(new MicrometerProducerListener<>(meterRegistry, List.of(Tag.of(PROFILE_TAG, profile.getName()))));
+		return new KafkaTemplate<>(factory);
+	}
+
+	/**
+	 * Impostazioni del profilo di invio, se valorizzate, sulle proprieta' del producer.
+	 */
+	private static void applyProfile(final Map<String, Object> props, final KafkaDeliveryProfileDTO profile) {
+		if (!StringUtility.isNullOrEmpty(profile.getAcks())) {
+			props.put(ProducerConfig.ACKS_CONFIG, profile.getAcks());
+		}
+		if (profile.getLingerMs() != null) {
+			props.put(ProducerConfig.LINGER_MS_CONFIG, profile.getLingerMs());
+		}
+		if (profile.getBatchSize() != null) {
+			props.put(ProducerConfig.BATCH_SIZE_CONFIG, profile.getBatchSize());
+		}
+		if (!StringUtility.isNullOrEmpty(profile.getCompressionType())) {
+			props.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, profile.getCompressionType());
+		}
+		if (profile.getIdempotence() != null) {
+			props.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, profile.getIdempotence());
+		}
+	}
+
 
 }
\ No newline at end of file
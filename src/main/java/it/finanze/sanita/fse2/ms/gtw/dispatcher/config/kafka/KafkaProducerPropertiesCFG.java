@@ -47,12 +47,6 @@ public class KafkaProducerPropertiesCFG {
 	@Value("${kafka.producer.key-serializer}")
 	private String keySerializer;
 	
-	/**
-	 * Value serializer.
-	 */
-	@Value("${kafka.producer.value-serializer}")
-	private String valueSerializer;
-	
 	/**
 	 * Transactional id.
 	 */
@@ -77,6 +71,67 @@ public class KafkaProducerPropertiesCFG {
 	@Value("${kafka.producer.max.request.size:1048576}")
 	private Integer maxRequestSize; 
 
+	/**
+	 * Producer transazionali disponibili per transazioni concorrenti.
+	 * Ridurre il valore lascia inutilizzati i transactional id piu' alti: le loro transazioni aperte scadono dopo transaction.timeout.ms.
+	 */
+	@Value("${kafka.producer.transactional.pool-size}")
+	private int transactionalPoolSize;
+
+	/**
+	 * Producer transazionali riservati a ciascuna coda di priorita indexer, con i topic per priorita abilitati.
+	 */
+	@Value("${kafka.producer.transactional.lane-pool-size:1}")
+	private int transactionalLanePoolSize;
+
+	/**
+	 * Profilo di invio applicato ai producer transazionali del pool (acks, linger, batch, compressione, idempotenza).
+	 */
+	@Value("${kafka.producer.transactional.profile:}")
+	private String transactionalProfile;
+
+	/**
+	 * Attesa massima di un producer transazionale libero.
+	 */
+	@Value("${kafka.producer.transactional.lease-timeout-ms}")
+	private long transactionalLeaseTimeoutMs;
+
+	/**
+	 * Invio dei record transazionali di una richiesta in un'unica transazione.
+	 */
+	@Value("${kafka.producer.unit-of-work.enabled}")
+	private boolean unitOfWorkEnabled;
+
+	/**
+	 * Commit di gruppo: i record transazionali di richieste concorrenti sono confermati nella stessa transazione.
+	 */
+	@Value("${kafka.producer.group-commit.enabled}")
+	private boolean groupCommitEnabled;
+
+	/**
+	 * Record oltre i quali la transazione di gruppo viene confermata.
+	 */
+	@Value("${kafka.producer.group-commit.batch-size}")
+	private int groupCommitBatchSize;
+
+	/**
+	 * Attesa massima di altre richieste dopo la prima, prima del commit.
+	 */
+	@Value("${kafka.producer.group-commit.linger-ms}")
+	private long groupCommitLingerMs;
+
+	/**
+	 * Attesa massima del chiamante, per l'accodamento e per il commit.
+	 */
+	@Value("${kafka.producer.group-commit.max-wait-ms}")
+	private long groupCommitMaxWaitMs;
+
+	/**
+	 * Richieste in attesa di commit, per ciascun producer del pool.
+	 */
+	@Value("${kafka.producer.group-commit.queue-size}")
+	private int groupCommitQueueSize;
+
 	
 	 
 }
@@ -0,0 +1,74 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import lombok.Data;
+
+/**
+ *	Kafka spill journal configuration.
+ */
+@Data
+@Component
+public class KafkaSpillJournalCFG {
+
+	/**
+	 * Salvataggio su disco dei record non consegnati, reinviati quando il broker torna disponibile.
+	 */
+	@Value("${kafka.spill-journal.enabled}")
+	private boolean enabled;
+
+	/**
+	 * Directory dei segmenti del journal.
+	 */
+	@Value("${kafka.spill-journal.directory}")
+	private String directory;
+
+	/**
+	 * Dimensione in byte di ciascun segmento.
+	 */
+	@Value("${kafka.spill-journal.segment-size}")
+	private int segmentSize;
+
+	/**
+	 * Dimensione massima in byte del journal; oltre questa soglia i record non vengono piu' salvati.
+	 */
+	@Value("${kafka.spill-journal.max-size}")
+	private long maxSize;
+
+	/**
+	 * Attesa massima di un invio transazionale prima del salvataggio nel journal.
+	 */
+	@Value("${kafka.spill-journal.send-deadline-ms}")
+	private long sendDeadlineMs;
+
+	/**
+	 * Attesa tra due tentativi di reinvio falliti.
+	 */
+	@Value("${kafka.spill-journal.retry-interval-ms}")
+	private long retryIntervalMs;
+
+	/**
+	 * Elementi consecutivi dello stesso tipo reinviati insieme.
+	 */
+	@Value("${kafka.spill-journal.replay-batch-size:100}")
+	private int replayBatchSize;
+
+	/**
+	 * Intervallo minimo tra due scritture su disco dei segmenti, 0 per scrivere a ogni salvataggio.
+	 */
+	@Value("${kafka.spill-journal.force-interval-ms:0}")
+	private long forceIntervalMs;
+
+}
@@ -0,0 +1,62 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import lombok.Data;
+
+/**
+ *	Kafka status publisher configuration.
+ */
+@Data
+@Component
+public class KafkaStatusCFG {
+
+	/**
+	 * Invio dei messaggi di stato fuori dal thread della richiesta.
+	 */
+	@Value("${kafka.status.async.enabled}")
+	private boolean asyncEnabled;
+
+	/**
+	 * Code di invio indipendenti: i messaggi di uno stesso workflowInstanceId usano sempre la stessa coda.
+	 */
+	@Value("${kafka.status.async.lanes}")
+	private int lanes;
+
+	/**
+	 * Messaggi in attesa per coda.
+	 */
+	@Value("${kafka.status.async.queue-size}")
+	private int queueSize;
+
+	/**
+	 * Attesa massima del chiamante a coda piena, prima di scartare il messaggio.
+	 */
+	@Value("${kafka.status.async.enqueue-timeout-ms}")
+	private long enqueueTimeoutMs;
+
+	/**
+	 * Attesa massima della consegna per i tipi di evento critici.
+	 */
+	@Value("${kafka.status.async.await-timeout-ms}")
+	private long awaitTimeoutMs;
+
+	/**
+	 * Tipi di evento per cui il chiamante attende la consegna del messaggio di stato, * per tutti. Nessuno per default.
+	 */
+	@Value("${kafka.status.async.await-event-types:}")
+	private String[] awaitEventTypes;
+
+}
@@ -12,7 +12,14 @@
 package it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka;
 
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PriorityTypeEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.ProfileUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
@@ -60,7 +67,34 @@ public class KafkaTopicCFG {
 	 */
 	@Value("${kafka.dispatcher-indexer.update-retry-topic}")
 	private String dispatcherIndexerRetryUpdateTopic;
-	
+
+	/**
+	 * Profilo di invio del topic status manager.
+	 */
+	@Value("${kafka.statusmanager.profile:}")
+	private String statusManagerProfile;
+
+	/**
+	 * Profilo di invio dei topic indexer (base e retry).
+	 */
+	@Value("${kafka.dispatcher-indexer.profile:}")
+	private String dispatcherIndexerProfile;
+
+	/**
+	 * Abilita l'invio delle notifiche indexer sui topic per priorita (topic base con suffisso _HIGH, _MEDIUM, _LOW).
+	 */
+	@Value("${kafka.dispatcher-indexer.priority.enabled:false}")
+	private boolean dispatcherIndexerPriorityEnabled;
+
+	/**
+	 * Topic indexer per priorita.
+	 */
+	private Map<PriorityTypeEnum, String> dispatcherIndexerPriorityTopics;
+
+	/**
+	 * Profilo di invio per topic; i topic senza profilo usano il producer di default.
+	 */
+	private Map<String, String> profileByTopic;
 
 	@PostConstruct
 	public void afterInit() {
@@ -71,5 +105,72 @@ public class KafkaTopicCFG {
 			logTopic = Constants.Profile.TEST_PREFIX + logTopic;
 			dispatcherIndexerRetryUpdateTopic = Constants.Profile.TEST_PREFIX + dispatcherIndexerRetryUpdateTopic;
 		}
+
+		dispatcherIndexerPriorityTopics = new EnumMap<>(PriorityTypeEnum.class);
+		for (PriorityTypeEnum priority : PriorityTypeEnum.values()) {
+			dispatcherIndexerPriorityTopics.put(priority, dispatcherIndexerPriorityEnabled ? dispatcherIndexerTopic + suffix(priority) : dispatcherIndexerTopic);
+		}
+
+		profileByTopic = new HashMap<>();
+		putProfile(statusManagerTopic, statusManagerProfile);
+		putProfile(dispatcherIndexerTopic, dispatcherIndexerProfile);
+		for (String topic : dispatcherIndexerPriorityTopics.values()) {
+			putProfile(topic, dispatcherIndexerProfile);
+		}
+		putProfile(dispatcherIndexerRetryDeleteTopic, dispatcherIndexerProfile);
+		putProfile(dispatcherIndexerRetryUpdateTopic, dispatcherIndexerProfile);
+	}
+
+	/**
+	 * @param topic Topic
+	 * @return Nome del profilo di invio del topic, {@code null} se non definito
+	 */
+	public String getProfile(final String topic) {
+		return profileByTopic != null ? profileByTopic.get(topic) : null;
+	}
+
+	/**
+	 * @param priority Priorita della pubblicazione, {@code null} equivale a NULL
+	 * @return Topic indexer della priorita, il topic base se i topic per priorita non sono abilitati
+	 */
+	public String getDispatcherIndexerTopic(final PriorityTypeEnum priority) {
+		if (dispatcherIndexerPriorityTopics == null) {
+			return dispatcherIndexerTopic;
+		}
+		return dispatcherIndexerPriorityTopics.get(priority != null ? priority : PriorityTypeEnum.NULL);
+	}
+
+	/**
+	 * @param topic Topic
+	 * @return Priorita del topic indexer, {@code null} se il topic non e' un topic per priorita o i topic per
+	 *         priorita non sono abilitati
+	 */
+	public PriorityTypeEnum getDispatcherIndexerPriority(final String topic) {
+		if (!dispatcherIndexerPriorityEnabled || dispatcherIndexerPriorityTopics == null) {
+			return null;
+		}
+		for (Map.Entry<PriorityTypeEnum, String> entry : dispatcherIndexerPriorityTopics.entrySet()) {
+			if (entry.getValue().equals(topic)) {
+				return entry.getKey();
+			}
+		}
+		return null;
+	}
+
+	private static String suffix(final PriorityTypeEnum priority) {
+		switch (priority) {
+		case HIGH:
+			return Constants.Misc.HIGH_PRIORITY;
+		case LOW:
+			return Constants.Misc.LOW_PRIORITY;
+		default:
+			return Constants.Misc.MEDIUM_PRIORITY;
+		}
+	}
+
+	private void putProfile(final String topic, final String profile) {
+		if (topic != null && !StringUtility.isNullOrEmpty(profile)) {
+			profileByTopic.put(topic, profile.trim());
+		}
 	}
 }
@@ -36,10 +36,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.parser.Parser;
 import org.jsoup.select.Elements;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -55,17 +52,16 @@ import it.finanze.sanita.fse2.ms.gtw.dispatcher.client.IFhirValidatorClient;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.client.IIniClient;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.client.IValidatorClient;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.BenchmarkCFG;
-import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.CDACFG;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants.App;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants.Headers;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants.Misc;
-import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.FHIRCFG;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.MicroservicesURLCFG;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.DirectFhirDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.DocumentReferenceDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.JWTPayloadDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.JWTTokenDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.ParsedCdaDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.ValidationDataDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.ValidationFhirResponseDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.ValidationInfoDTO;
@@ -77,6 +73,7 @@ import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.PublicationCreateRep
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.PublicationCreationReqDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.PublicationMetadataReqDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.PublicationUpdateReqDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.TSPublicationCreationReqDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.UpdateDocumentReferenceRequestDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.ValidationCDAReqDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.ValidationFHIRReqDTO;
@@ -98,6 +95,7 @@ import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.EventTypeEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.InjectionModeEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.IssueSeverityEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.OperationLogEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PriorityTypeEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.RawValidationEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.RestExecutionResultEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.ResultLogEnum;
@@ -113,9 +111,11 @@ import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IConfigSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IErrorHandlerSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IJwtSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IKafkaSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IPdfSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.facade.ICdaFacadeSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.CdaUtility;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.FhirUtility;
-import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PDFUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PdfEnvelope;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
 import jakarta.annotation.Nullable;
 import jakarta.servlet.http.HttpServletRequest;
@@ -142,12 +142,6 @@ public abstract class AbstractCTL {
     @Autowired
 	private ICdaFacadeSRV cdaFacadeSRV;
 	
-	@Autowired
-	private CDACFG cdaCfg;
-
-	@Autowired
-	private FHIRCFG fhirCfg;
-
 	@Autowired
 	protected MicroservicesURLCFG msCfg;
 	
@@ -178,6 +172,9 @@ public abstract class AbstractCTL {
 	@Autowired
 	private IFhirMappingClient fhirClient;
 
+	@Autowired
+	protected IPdfSRV pdfSRV;
+
 
 	protected LogTraceInfoDTO getLogTraceInfo() {
 		LogTraceInfoDTO out = new LogTraceInfoDTO(null, null);
@@ -209,6 +206,23 @@ public abstract class AbstractCTL {
 		return out;
 	}
 
+	/**
+	 * Priorita della notifica indexer: solo le richieste di pubblicazione valorizzano il flag priorita.
+	 */
+	protected PriorityTypeEnum getPriority(final PublicationCreateReplaceWiiDTO jsonObj) {
+		if (jsonObj instanceof PublicationCreationReqDTO creation) {
+			return PriorityTypeEnum.fromPriorita(creation.getPriorita());
+		}
+		return PriorityTypeEnum.NULL;
+	}
+
+	/**
+	 * Priorita della notifica indexer per la pubblicazione TS.
+	 */
+	protected PriorityTypeEnum getPriority(final TSPublicationCreationReqDTO jsonObj) {
+		return jsonObj != null ? PriorityTypeEnum.fromPriorita(jsonObj.getPriorita()) : PriorityTypeEnum.NULL;
+	}
+
 	protected PublicationCreateReplaceWiiDTO getAndValidatePublicationReq(final String jsonREQ, final boolean isReplace) {
 
 		PublicationCreateReplaceWiiDTO out;
@@ -472,8 +486,8 @@ public abstract class AbstractCTL {
 		return jwtToken;
 	}
 	
-	protected void validateJWT(final JWTPayloadDTO jwtPayloadToken, final String cda) {
-		Document docT = Jsoup.parse(cda);
+	protected void validateJWT(final JWTPayloadDTO jwtPayloadToken, final ParsedCdaDTO parsedCda) {
+		Document docT = parsedCda.getDocument();
 		validateResourceHl7Type(jwtPayloadToken, docT);
 		validatePersonId(jwtPayloadToken, docT);
 	}
@@ -585,16 +599,20 @@ public abstract class AbstractCTL {
 				.build();
 		throw new ValidationException(error);
 	}
-	protected byte[] getAndValidateFile(final MultipartFile file) {
-		byte[] out = null;
+	/**
+	 * Apre il pdf caricato senza copiarlo in heap oltre la soglia di memoria.
+	 * L'envelope restituito deve essere chiuso dal chiamante.
+	 */
+	protected PdfEnvelope getAndValidateFile(final MultipartFile file) {
+		PdfEnvelope out = null;
 		
 		try {
 			RestExecutionResultEnum result = RestExecutionResultEnum.EMPTY_FILE_ERROR;
-			if (file != null && file.getBytes().length > 0) {
-				out = file.getBytes();
+			if (file != null && !file.isEmpty()) {
+				out = pdfSRV.open(file);
 
 				result = RestExecutionResultEnum.DOCUMENT_TYPE_ERROR;
-				if (PDFUtility.isPdf(out)) {
+				if (out.isPdf()) {
 					result = null;
 				}
 			}
@@ -610,27 +628,25 @@ public abstract class AbstractCTL {
 				throw new ValidationException(error);
 			}
 		} catch (final ValidationException validationE) {
+			close(out);
 			throw validationE;
 		} catch (final Exception e) {
+			close(out);
 			log.error("Generic error io in cda :", e);
 			throw new BusinessException(e);
 		}
 		return out;
 	}
+
+	private static void close(final PdfEnvelope pdf) {
+		if (pdf != null) {
+			pdf.close();
+		}
+	}
 	
 	
-	protected String extractCDA(final byte[] bytesPDF, final InjectionModeEnum mode) {
-		String out = null;
-		if (InjectionModeEnum.RESOURCE.equals(mode)) {
-			out = PDFUtility.unenvelopeA2(bytesPDF);
-		} else if (InjectionModeEnum.ATTACHMENT.equals(mode)) {
-			out = PDFUtility.extractContentFromAttachments(bytesPDF, cdaCfg.getCdaAttachmentName());
-		} else {
-			out = PDFUtility.unenvelopeA2(bytesPDF);
-			if (StringUtility.isNullOrEmpty(out)) {
-				out = PDFUtility.extractContentFromAttachments(bytesPDF, cdaCfg.getCdaAttachmentName());
-			}
-		}
+	protected String extractCDA(final PdfEnvelope pdf, final InjectionModeEnum mode, final String issuer) {
+		final String out = pdfSRV.extractCda(pdf, mode, issuer);
 
 		if (StringUtility.isNullOrEmpty(out)) {
 			final ErrorResponseDTO error = ErrorResponseDTO.builder()
@@ -644,18 +660,8 @@ public abstract class AbstractCTL {
 		return out;
 	}
 
-	protected String extractFHIR(final byte[] bytesPDF, final InjectionModeEnum mode) {
-		String out = null;
-		if (InjectionModeEnum.RESOURCE.equals(mode)) {
-			out = FhirUtility.extractJsonFromPdf(bytesPDF);
-		} else if (InjectionModeEnum.ATTACHMENT.equals(mode)) {
-			out = PDFUtility.extractContentFromAttachments(bytesPDF, fhirCfg.getFhirAttachmentName());
-		} else {
-			out = FhirUtility.extractJsonFromPdf(bytesPDF);
-			if (StringUtility.isNullOrEmpty(out)) {
-				out = PDFUtility.extractContentFromAttachments(bytesPDF, fhirCfg.getFhirAttachmentName());
-			}
-		}
+	protected String extractFHIR(final PdfEnvelope pdf, final InjectionModeEnum mode, final String issuer) {
+		final String out = pdfSRV.extractFhir(pdf, mode, issuer);
 
 		if (StringUtility.isNullOrEmpty(out)) {
 			final ErrorResponseDTO error = ErrorResponseDTO.builder()
@@ -669,29 +675,6 @@ public abstract class AbstractCTL {
 		return out;
 	}
   
-	protected static String cdaWithoutLegalAuthenticator(final String cda) {
-	    Document doc = Jsoup.parse(cda, "", Parser.xmlParser());
-	    Element authenticator = doc.selectFirst("LegalAuthenticator");
-	    
-	    if (authenticator != null) {
-	        Element signature = authenticator.selectFirst("Signature");
-	        if (signature != null) {
-	            signature.remove();
-	        }
-	        
-	        authenticator.forEach(e -> {
-	            e.attributes().forEach(a -> a.setValue("PLACEHOLDER"));
-	            if (e.children().isEmpty() && !e.text().isEmpty()) {
-	                e.text("PLACEHOLDER");
-	            }
-	        });
-	    } else {
-	        log.warn("Unable to calculate cda-hash correctly because LegalAuthenticator doesn't exists");
-	    }
-	    
-	    return doc.toString();
-	}
-
 	protected String validate(final String cda, final ActivityEnum activity, final String workflowInstanceId, final String issuer) {
 		String errorDetail = "";
 		try {
@@ -701,11 +684,11 @@ public abstract class AbstractCTL {
 					&& Arrays.asList(RawValidationEnum.OK, RawValidationEnum.SEMANTIC_WARNING).contains(rawValRes.getResult())) {
  
 				if(!benchmarkCfg.isBenchmarkEnable()){
-					final String hashedCDA = StringUtility.encodeSHA256B64(cdaWithoutLegalAuthenticator(cda));
+					final String hashedCDA = CdaUtility.hashWithoutLegalAuthenticator(cda, true);
 					cdaFacadeSRV.create(hashedCDA, workflowInstanceId, rawValRes.getTransformID(), rawValRes.getEngineID());
 				} else {
 					if(!cda.startsWith("<!--CDA_BENCHMARK_TEST-->")){
-						final String hashedCDA = StringUtility.encodeSHA256B64(cdaWithoutLegalAuthenticator(cda));
+						final String hashedCDA = CdaUtility.hashWithoutLegalAuthenticator(cda, true);
 						cdaFacadeSRV.create(hashedCDA, workflowInstanceId, rawValRes.getTransformID(), rawValRes.getEngineID());	
 					} else {
 						final String hashedWII = StringUtility.encodeSHA256B64(workflowInstanceId);
@@ -766,7 +749,7 @@ public abstract class AbstractCTL {
     protected ValidationDataDTO getValidationInfo(final String cda, @Nullable String wii) {
     	String hashedCDA = "";
 		if(!cda.startsWith("<!--CDA_BENCHMARK_TEST-->")){
-			hashedCDA = StringUtility.encodeSHA256B64(cdaWithoutLegalAuthenticator(cda));
+			hashedCDA = CdaUtility.hashWithoutLegalAuthenticator(cda, true);
 		} else {
 			hashedCDA = StringUtility.encodeSHA256B64(wii);
 		}
@@ -947,11 +930,11 @@ public abstract class AbstractCTL {
 		}
 	}
 
-	protected DirectFhirDTO getAndValidateFhirFile(final MultipartFile file, InjectionModeEnum mode) throws IOException {
+	protected DirectFhirDTO getAndValidateFhirFile(final MultipartFile file, InjectionModeEnum mode, String issuer) throws IOException {
 
 		try {
 			RestExecutionResultEnum result = RestExecutionResultEnum.EMPTY_FILE_ERROR;
-			if (file != null && file.getBytes().length > 0) {
+			if (file != null && !file.isEmpty()) {
 				result = null;
 			}
 
@@ -963,16 +946,17 @@ public abstract class AbstractCTL {
 				throw new ValidationException(error);
 			}
 
-			byte[] inputBytes = file.getBytes();
 			String filename = file.getOriginalFilename();
 
 			DirectFhirDTO directFhirDTO = new DirectFhirDTO();
-			if (PDFUtility.isPdf(inputBytes)) {
-				String extractedBundle = extractFHIR(inputBytes, mode);
-				directFhirDTO.setFhir(extractedBundle);
-				directFhirDTO.setSourceType(DirectFhirSourceEnum.PDF.getSource());
-				directFhirDTO.setWii(FhirUtility.getWorkflowInstanceId(extractedBundle));
-				directFhirDTO.setFilename(filename);
+			try (PdfEnvelope pdf = pdfSRV.open(file)) {
+				if (pdf.isPdf()) {
+					String extractedBundle = extractFHIR(pdf, mode, issuer);
+					directFhirDTO.setFhir(extractedBundle);
+					directFhirDTO.setSourceType(DirectFhirSourceEnum.PDF.getSource());
+					directFhirDTO.setWii(FhirUtility.getWorkflowInstanceId(extractedBundle));
+					directFhirDTO.setFilename(filename);
+				}
 			} 
 			
 //			else if (FhirUtility.isJson(inputBytes, filename)) {
@@ -27,7 +27,6 @@ import static it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.CdaUtility.create
 import static it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.CdaUtility.createWorkflowInstanceId;
 import static it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.CdaUtility.getDocumentType;
 import static it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.CdaUtility.isValidMasterId;
-import static it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility.encodeSHA256;
 import static it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility.isNullOrEmpty;
 
 import java.io.IOException;
@@ -42,14 +41,13 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 
-import com.google.gson.Gson;
-
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.client.IEdsClient;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.client.IIniClient;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants.Misc;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.ValidationCFG;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.controller.IFhirPublicationCTL;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.DocumentDigestDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.IndexerValueDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.JWTPayloadDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.PersonDto;
@@ -92,6 +90,8 @@ import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IFhirSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IKafkaSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.facade.ICdaFacadeSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.IniEdsInvocationSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.JsonUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PdfEnvelope;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.ValidationUtility;
 import jakarta.servlet.http.HttpServletRequest;
@@ -155,9 +155,9 @@ public class FhirPublicationCTL extends AbstractCTL implements IFhirPublicationC
             validationInfo.setFhirResource(transactionResourceDTO);
             postExecutionCreate(startDateOperation, traceInfoDTO, validationInfo);
 		} catch (ConnectionRefusedException ce) {
-			errorHandlerSRV.connectionRefusedExceptionHandler(startDateOperation, validationInfo.getValidationData(), validationInfo.getJwtPayloadToken(), validationInfo.getJsonObj(), traceInfoDTO, ce, true, getDocumentType(validationInfo.getDocument()));
+			errorHandlerSRV.connectionRefusedExceptionHandler(startDateOperation, validationInfo.getValidationData(), validationInfo.getJwtPayloadToken(), validationInfo.getJsonObj(), traceInfoDTO, ce, true, getDocumentType(validationInfo.getParsedCda()));
 		} catch (final ValidationException e) {
-			errorHandlerSRV.publicationValidationExceptionHandler(startDateOperation, validationInfo.getValidationData(), validationInfo.getJwtPayloadToken(), validationInfo.getJsonObj(), traceInfoDTO, e, true, getDocumentType(validationInfo.getDocument()));
+			errorHandlerSRV.publicationValidationExceptionHandler(startDateOperation, validationInfo.getValidationData(), validationInfo.getJwtPayloadToken(), validationInfo.getJsonObj(), traceInfoDTO, e, true, getDocumentType(validationInfo.getParsedCda()));
 		} catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -184,10 +184,10 @@ public class FhirPublicationCTL extends AbstractCTL implements IFhirPublicationC
 		kafkaValue.setIdDoc(idDoc);
 		kafkaValue.setEdsDPOperation(ProcessorOperationEnum.PUBLISH);
 
-		kafkaSRV.notifyChannel(idDoc, new Gson().toJson(kafkaValue), validationInfo.getJsonObj().getTipoDocumentoLivAlto(), DestinationTypeEnum.INDEXER);
+		kafkaSRV.notifyChannel(idDoc, JsonUtility.getGson().toJson(kafkaValue), getPriority(validationInfo.getJsonObj()), validationInfo.getJsonObj().getTipoDocumentoLivAlto(), DestinationTypeEnum.INDEXER);
 		kafkaSRV.sendPublicationStatus(traceInfoDTO.getTraceID(), validationInfo.getValidationData().getWorkflowInstanceId(), SUCCESS, null, validationInfo.getJsonObj(), validationInfo.getJwtPayloadToken());
 
-		logger.info(Constants.App.LOG_TYPE_CONTROL,validationInfo.getValidationData().getWorkflowInstanceId(),String.format("Publication CDA completed for workflow instance id %s", validationInfo.getValidationData().getWorkflowInstanceId()), OperationLogEnum.PUB_CDA2, ResultLogEnum.OK, startDateOperation, getDocumentType(validationInfo.getDocument()), validationInfo.getJwtPayloadToken(),null);
+		logger.info(Constants.App.LOG_TYPE_CONTROL,validationInfo.getValidationData().getWorkflowInstanceId(),String.format("Publication CDA completed for workflow instance id %s", validationInfo.getValidationData().getWorkflowInstanceId()), OperationLogEnum.PUB_CDA2, ResultLogEnum.OK, startDateOperation, getDocumentType(validationInfo.getParsedCda()), validationInfo.getJwtPayloadToken(),null);
 	}
 
 	@Override
@@ -229,15 +229,15 @@ public class FhirPublicationCTL extends AbstractCTL implements IFhirPublicationC
 			kafkaValue.setIdDoc(idDoc);
 			kafkaValue.setEdsDPOperation(ProcessorOperationEnum.REPLACE);
 
-			kafkaSRV.notifyChannel(idDoc, new Gson().toJson(kafkaValue), validationInfo.getJsonObj().getTipoDocumentoLivAlto(), DestinationTypeEnum.INDEXER);
+			kafkaSRV.notifyChannel(idDoc, JsonUtility.getGson().toJson(kafkaValue), getPriority(validationInfo.getJsonObj()), validationInfo.getJsonObj().getTipoDocumentoLivAlto(), DestinationTypeEnum.INDEXER);
 			kafkaSRV.sendReplaceStatus(traceInfoDTO.getTraceID(), validationInfo.getValidationData().getWorkflowInstanceId(), SUCCESS, null, validationInfo.getJsonObj(), validationInfo.getJwtPayloadToken());
 
 			logger.info(Constants.App.LOG_TYPE_CONTROL,validationInfo.getValidationData().getWorkflowInstanceId(),String.format("Replace CDA completed for workflow instance id %s", validationInfo.getValidationData().getWorkflowInstanceId()), OperationLogEnum.REPLACE_CDA2, ResultLogEnum.OK, startDateOperation,
-					getDocumentType(validationInfo.getDocument()), validationInfo.getJwtPayloadToken(),null);
+					getDocumentType(validationInfo.getParsedCda()), validationInfo.getJwtPayloadToken(),null);
 		} catch (ConnectionRefusedException ce) {
-			errorHandlerSRV.connectionRefusedExceptionHandler(startDateOperation, validationInfo.getValidationData(), validationInfo.getJwtPayloadToken(), validationInfo.getJsonObj(), traceInfoDTO, ce, false, getDocumentType(validationInfo.getDocument()));
+			errorHandlerSRV.connectionRefusedExceptionHandler(startDateOperation, validationInfo.getValidationData(), validationInfo.getJwtPayloadToken(), validationInfo.getJsonObj(), traceInfoDTO, ce, false, getDocumentType(validationInfo.getParsedCda()));
 		} catch (final ValidationException e) {
-			errorHandlerSRV.publicationValidationExceptionHandler(startDateOperation, validationInfo.getValidationData(), validationInfo.getJwtPayloadToken(), validationInfo.getJsonObj(), traceInfoDTO, e, false, getDocumentType(validationInfo.getDocument()));
+			errorHandlerSRV.publicationValidationExceptionHandler(startDateOperation, validationInfo.getValidationData(), validationInfo.getJwtPayloadToken(), validationInfo.getJsonObj(), traceInfoDTO, e, false, getDocumentType(validationInfo.getParsedCda()));
 		} catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -254,8 +254,7 @@ public class FhirPublicationCTL extends AbstractCTL implements IFhirPublicationC
  
 
 	private ValidationDataDTO executePublicationReplace(final ValidationCreationInputDTO validation,
-			final JWTPayloadDTO jwtPayloadToken, PublicationCreateReplaceWiiDTO jsonObj, final byte[] bytePDF,
-			final String bundle) {
+			final JWTPayloadDTO jwtPayloadToken, PublicationCreateReplaceWiiDTO jsonObj, final String bundle) {
 		ValidationDataDTO validationInfo = null;
 		
 		validationInfo = getValidationInfoFhirBundle(bundle, jsonObj.getWorkflowInstanceId());
@@ -266,24 +265,24 @@ public class FhirPublicationCTL extends AbstractCTL implements IFhirPublicationC
 		
 		ValidationUtility.checkDayAfterValidation(validationInfo.getInsertionDate(), validationCFG.getDaysAllowToPublishAfterValidation());
 		
-		final String documentSha256 = encodeSHA256(bytePDF);
+		final DocumentDigestDTO documentDigest = validation.getDocumentDigest();
+		final String documentSha256 = documentDigest.getSha256();
 		validation.setDocumentSha(documentSha256);
 
 		validateDocumentHash(documentSha256, validation.getJwtPayloadToken());
 
-		ResourceDTO fhirMappingResult = buildMetadata(validationInfo.getTransformID(), validationInfo.getEngineID(), jwtPayloadToken, jsonObj, bytePDF, bundle,documentSha256);
+		ResourceDTO fhirMappingResult = buildMetadata(validationInfo.getTransformID(), validationInfo.getEngineID(), jwtPayloadToken, jsonObj, validation.getFileSize(), bundle,documentSha256, documentDigest.getSha1());
 		validation.setFhirResource(fhirMappingResult);
 		return validationInfo;
 	}
 
 	private ResourceDTO buildMetadata(String transformId, String engineId,
-			final JWTPayloadDTO jwtPayloadToken, PublicationCreateReplaceMetadataDTO jsonObj, final byte[] bytePDF,
-			final String bundle, final String documentSha256) {
-		String sha1 = StringUtility.encodeSHA1(bytePDF);
+			final JWTPayloadDTO jwtPayloadToken, PublicationCreateReplaceMetadataDTO jsonObj, final long fileSize,
+			final String bundle, final String documentSha256, final String sha1) {
 		
 		ResourceDTO fhirResourcesDTO = null;
 		try {
-			fhirResourcesDTO = documentReferenceSRV.createFhirResourcesFromBundle(bundle, jwtPayloadToken.getSubject_role(), jsonObj, bytePDF.length, documentSha256, 
+			fhirResourcesDTO = documentReferenceSRV.createFhirResourcesFromBundle(bundle, jwtPayloadToken.getSubject_role(), jsonObj, (int) fileSize, documentSha256, 
 					jwtPayloadToken.getSubject_organization_id(), jwtPayloadToken.getLocality(), sha1);
 			
 			if(!StringUtility.isNullOrEmpty(fhirResourcesDTO.getErrorMessage())){
@@ -378,7 +377,7 @@ public class FhirPublicationCTL extends AbstractCTL implements IFhirPublicationC
 
 		String bundleJson = validationResult.getFhirResource()!=null ? validationResult.getFhirResource().getBundleJson() : "";
 		validationResult.setValidationData(executePublicationReplace(validationResult,
-				validationResult.getJwtPayloadToken(), validationResult.getJsonObj(), validationResult.getFile(), bundleJson));
+				validationResult.getJwtPayloadToken(), validationResult.getJsonObj(), bundleJson));
 
 		return validationResult;
 
@@ -403,10 +402,12 @@ public class FhirPublicationCTL extends AbstractCTL implements IFhirPublicationC
 
 			if(!isValidMasterId(idDoc)) throw new ValidationException(createMasterIdError());
 
-			final byte[] bytePDF = getAndValidateFile(file);
-			validation.setFile(bytePDF);
-
-			final String fhirBundle = extractFHIR(bytePDF, jsonObj.getMode());
+			final String fhirBundle;
+			try (PdfEnvelope pdf = getAndValidateFile(file)) {
+				validation.setFileSize(pdf.getSize());
+				fhirBundle = extractFHIR(pdf, jsonObj.getMode(), jwtPayloadToken.getIss());
+				validation.setDocumentDigest(pdf.getDigest());
+			}
 			if (validation.getFhirResource() == null) {
 			    validation.setFhirResource(new ResourceDTO());
 			}
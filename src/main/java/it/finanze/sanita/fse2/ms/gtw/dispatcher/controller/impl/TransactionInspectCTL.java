@@ -20,7 +20,6 @@ import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.controller.ITransactionInspectCTL;
@@ -36,6 +35,7 @@ import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.UnauthorizedException
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.ValidationException;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IKafkaSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.ITransactionInspectSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.JsonUtility;
 import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
 
@@ -157,8 +157,7 @@ public class TransactionInspectCTL extends AbstractCTL implements ITransactionIn
 	    try {
 	        String payloadJson = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
 
-	        ObjectMapper mapper = new ObjectMapper();
-	        JsonNode payload = mapper.readTree(payloadJson);
+	        JsonNode payload = JsonUtility.getReader().readTree(payloadJson);
 
 	        JsonNode subNode = payload.get("sub");
 	        return subNode != null ? subNode.asText() : null;
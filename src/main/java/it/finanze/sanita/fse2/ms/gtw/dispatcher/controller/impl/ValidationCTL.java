@@ -14,8 +14,6 @@ package it.finanze.sanita.fse2.ms.gtw.dispatcher.controller.impl;
 import java.io.IOException;
 import java.util.Date;
 
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
@@ -27,6 +25,7 @@ import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.controller.IValidationCTL;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.DirectFhirDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.JWTPayloadDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.ParsedCdaDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.ValidationCDAReqDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.ValidationFHIRReqDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.response.LogTraceInfoDTO;
@@ -41,6 +40,7 @@ import it.finanze.sanita.fse2.ms.gtw.dispatcher.logging.LoggerHelper;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IErrorHandlerSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IKafkaSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.CdaUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PdfEnvelope;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.SignerUtility;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
 import jakarta.servlet.http.HttpServletRequest;
@@ -74,20 +74,22 @@ public class ValidationCTL extends AbstractCTL implements IValidationCTL {
 		JWTPayloadDTO jwtPayloadToken = null;
 		ValidationCDAReqDTO jsonObj = null;
 		String warning = null;
-		Document docT = null;
+		ParsedCdaDTO parsedCda = null;
 
 		try {
 			jwtPayloadToken = extractAndValidateJWT(request,EventTypeEnum.VALIDATION);
 			jsonObj = getAndValidateValidationReq(request.getParameter("requestBody"));
-			final byte[] bytes = getAndValidateFile(file);
-			final String cda = extractCDA(bytes, jsonObj.getMode());
-			warning = SignerUtility.isSigned(bytes) ? "[SIGN_WARN - Attenzione il documento risulta firmato in validazione]" : "";
-			docT = Jsoup.parse(cda);
-			workflowInstanceId = CdaUtility.getWorkflowInstanceId(docT);
+			final String cda;
+			try (PdfEnvelope pdf = getAndValidateFile(file)) {
+				cda = extractCDA(pdf, jsonObj.getMode(), jwtPayloadToken.getIss());
+				warning = SignerUtility.isSigned(pdf) ? "[SIGN_WARN - Attenzione il documento risulta firmato in validazione]" : "";
+			}
+			parsedCda = CdaUtility.parse(cda);
+			workflowInstanceId = CdaUtility.getWorkflowInstanceId(parsedCda);
 
 			log.info("[START] {}() with arguments {}={}, {}={}","validate","traceId", traceInfoDTO.getTraceID(),"wif", workflowInstanceId);
 
-			validateJWT(jwtPayloadToken, cda);
+			validateJWT(jwtPayloadToken, parsedCda);
 
 			String issuer = jwtPayloadToken.getIss();
 
@@ -99,14 +101,14 @@ public class ValidationCTL extends AbstractCTL implements IValidationCTL {
 
 			if (!issuer.equals(issuerSonde)) {
 				kafkaSRV.sendValidationStatus(traceInfoDTO.getTraceID(), workflowInstanceId, EventStatusEnum.SUCCESS, message, jwtPayloadToken);
-				String typeIdExtension = docT.select("typeId").get(0).attr("extension");
-				logger.info(Constants.App.LOG_TYPE_CONTROL, workflowInstanceId, "Validation CDA completed for workflow instance Id " + workflowInstanceId, OperationLogEnum.VAL_CDA2, ResultLogEnum.OK, startDateOperation, CdaUtility.getDocumentType(docT),
+				String typeIdExtension = parsedCda.getDocument().select("typeId").get(0).attr("extension");
+				logger.info(Constants.App.LOG_TYPE_CONTROL, workflowInstanceId, "Validation CDA completed for workflow instance Id " + workflowInstanceId, OperationLogEnum.VAL_CDA2, ResultLogEnum.OK, startDateOperation, CdaUtility.getDocumentType(parsedCda),
 						jwtPayloadToken, typeIdExtension);
 			}
 
 			request.setAttribute("JWT_ISSUER", jwtPayloadToken.getIss());
 		} catch (final ValidationException e) {
-			errorHandlerSRV.validationExceptionHandler(startDateOperation, traceInfoDTO, workflowInstanceId, jwtPayloadToken, e, CdaUtility.getDocumentType(docT));
+			errorHandlerSRV.validationExceptionHandler(startDateOperation, traceInfoDTO, workflowInstanceId, jwtPayloadToken, e, CdaUtility.getDocumentType(parsedCda));
 		}
 
 		if (jsonObj != null && jsonObj.getMode() == null) {
@@ -143,7 +145,7 @@ public class ValidationCTL extends AbstractCTL implements IValidationCTL {
 			jwtPayloadToken = extractAndValidateJWT(request, EventTypeEnum.FHIR_VALIDATION);
 			jsonObj = getAndValidateValidationFhirReq(request.getParameter("requestBody"));
 
-			DirectFhirDTO directFhirDTO = getAndValidateFhirFile(file, jsonObj.getMode());
+			DirectFhirDTO directFhirDTO = getAndValidateFhirFile(file, jsonObj.getMode(), jwtPayloadToken.getIss());
 			workflowInstanceId = directFhirDTO.getWii();
 
 			log.info("[START] {}() with arguments {}={}, {}={}","validate","traceId", traceInfoDTO.getTraceID(),"wif", workflowInstanceId);
@@ -0,0 +1,82 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ *
+ * Copyright (C) 2023 Ministero della Salute
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.dto;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Metadati letti dall'header del CDA (tutto cio' che precede il body).
+ * I campi valgono {@code null} quando il relativo elemento non e' presente nel documento.
+ */
+@Getter
+@Builder
+public class CdaHeaderDTO {
+
+	/**
+	 * ClinicalDocument/recordTarget/patientRole/id (primo).
+	 */
+	private Identifier patientId;
+
+	/**
+	 * ClinicalDocument/author/assignedAuthor/id (primo).
+	 */
+	private Identifier authorId;
+
+	/**
+	 * ClinicalDocument/inFulfillmentOf/order/id (tutti).
+	 */
+	private List<Identifier> orderIds;
+
+	/**
+	 * Attributo code di ClinicalDocument/confidentialityCode.
+	 */
+	private String confidentialityCode;
+
+	/**
+	 * ClinicalDocument/code.
+	 */
+	private Code code;
+
+	/**
+	 * Attributo root del primo ClinicalDocument/templateId.
+	 */
+	private String templateId;
+
+	/**
+	 * Attributo value di ClinicalDocument/effectiveTime, stringa vuota se assente.
+	 */
+	private String effectiveTime;
+
+	/**
+	 * Testo di ClinicalDocument/title con spazi normalizzati.
+	 */
+	private String title;
+
+	@Getter
+	@AllArgsConstructor
+	public static class Identifier {
+		private String root;
+		private String extension;
+	}
+
+	@Getter
+	@AllArgsConstructor
+	public static class Code {
+		private String code;
+		private String displayName;
+	}
+
+}
@@ -0,0 +1,59 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.dto;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Profilo di invio di un topic. I valori {@code null} lasciano la configurazione di default del producer.
+ */
+@Getter
+@Builder(toBuilder = true)
+public class KafkaDeliveryProfileDTO {
+
+	/**
+	 * Nome del profilo, usato come tag delle metriche.
+	 */
+	private String name;
+
+	/**
+	 * Invio tramite i producer transazionali (solo se e' configurato un transactional id).
+	 */
+	private boolean transactional;
+
+	/**
+	 * acks.
+	 */
+	private String acks;
+
+	/**
+	 * linger.ms.
+	 */
+	private Integer lingerMs;
+
+	/**
+	 * batch.size in byte.
+	 */
+	private Integer batchSize;
+
+	/**
+	 * compression.type (none, gzip, snappy, lz4, zstd).
+	 */
+	private String compressionType;
+
+	/**
+	 * enable.idempotence.
+	 */
+	private Boolean idempotence;
+
+}
@@ -0,0 +1,48 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ *
+ * Copyright (C) 2023 Ministero della Salute
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.dto;
+
+import org.jsoup.nodes.Document;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * CDA estratto dal PDF e parsato una sola volta per richiesta.
+ * Viene condiviso tra controller, servizi e utility per evitare parse ripetuti dello stesso documento.
+ */
+@Getter
+@AllArgsConstructor
+public class ParsedCdaDTO {
+
+	/**
+	 * CDA in formato stringa, cosi' come estratto dal PDF.
+	 */
+	private final String cda;
+
+	/**
+	 * Documento Jsoup ottenuto dal parse del CDA.
+	 */
+	private final Document document;
+
+	/**
+	 * Tipologia documento, valorizzata alla prima richiesta.
+	 */
+	@Setter
+	private String documentType;
+
+	public ParsedCdaDTO(final String cda, final Document document) {
+		this(cda, document, null);
+	}
+
+}
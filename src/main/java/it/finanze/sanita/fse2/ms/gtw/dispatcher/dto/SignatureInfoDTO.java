@@ -34,5 +34,9 @@ public class SignatureInfoDTO {
 	private Boolean valid;
 	private String digestAlgOID;
 	private String encrypAlgOID;
+	/**
+	 * Tempo impiegato per leggere e verificare la firma.
+	 */
+	private Long verificationNanos;
 	
 }
\ No newline at end of file
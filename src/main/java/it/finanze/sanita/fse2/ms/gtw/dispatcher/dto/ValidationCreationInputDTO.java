@@ -13,7 +13,6 @@ package it.finanze.sanita.fse2.ms.gtw.dispatcher.dto;
 
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.PublicationCreateReplaceWiiDTO;
 import lombok.Data;
-import org.jsoup.nodes.Document;
 
 @Data
 public class ValidationCreationInputDTO {
@@ -26,9 +25,11 @@ public class ValidationCreationInputDTO {
 
     private PublicationCreateReplaceWiiDTO jsonObj;
     
-    private byte[] file;
+    private DocumentDigestDTO documentDigest;
+
+    private long fileSize;
     
-    private Document document;
+    private ParsedCdaDTO parsedCda;
 
     private String documentSha;
 
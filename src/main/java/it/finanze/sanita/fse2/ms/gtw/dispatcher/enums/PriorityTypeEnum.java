@@ -14,5 +14,16 @@ package it.finanze.sanita.fse2.ms.gtw.dispatcher.enums;
 public enum PriorityTypeEnum {
     NULL,
     LOW,
-    HIGH
+    HIGH;
+
+    /**
+     * @param priorita Flag priorita della richiesta di pubblicazione
+     * @return HIGH se {@code true}, LOW se {@code false}, NULL se non valorizzato
+     */
+    public static PriorityTypeEnum fromPriorita(final Boolean priorita) {
+        if (priorita == null) {
+            return NULL;
+        }
+        return priorita ? HIGH : LOW;
+    }
 }
@@ -0,0 +1,68 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.interceptor;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IKafkaSRV;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Unita' di lavoro Kafka della richiesta: aperta prima del controller e confermata prima della scrittura della
+ * risposta, cosi' un errore di commit viene restituito al client. Se la risposta non ha body la conferma avviene
+ * a fine richiesta.
+ */
+@Slf4j
+@ControllerAdvice
+public class KafkaUnitOfWorkInterceptor implements HandlerInterceptor, ResponseBodyAdvice<Object> {
+
+	@Autowired
+	private IKafkaSRV kafkaSRV;
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+		kafkaSRV.beginUnitOfWork();
+		return true;
+	}
+
+	@Override
+	public boolean supports(MethodParameter param, Class<? extends HttpMessageConverter<?>> clazz) {
+		return true;
+	}
+
+	@Override
+	public Object beforeBodyWrite(Object body, MethodParameter param, MediaType type,
+			Class<? extends HttpMessageConverter<?>> clazz, ServerHttpRequest req, ServerHttpResponse res) {
+		kafkaSRV.commitUnitOfWork();
+		return body;
+	}
+
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+		try {
+			kafkaSRV.commitUnitOfWork();
+		} catch (Exception e) {
+			log.error("Error while committing kafka records after completion", e);
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.logging;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.ControlLogSamplingCFG;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Campionamento dei log di controllo con esito positivo: uno ogni success-one-in per operazione e issuer, poi un
+ * token bucket per operazione. Gli errori non passano dal campionatore. I log soppressi sono conteggiati per
+ * operazione e motivo, sia come metriche sia per il riepilogo periodico.
+ */
+public class ControlLogSampler {
+
+	private static final String SUPPRESSED_METRIC = "logger.control.suppressed";
+
+	/**
+	 * Numero massimo di coppie operazione/issuer tracciate; oltre, gli issuer nuovi condividono un unico contatore.
+	 */
+	private static final int MAX_KEYS = 10_000;
+
+	private static final String OTHER_ISSUERS = "*";
+
+	private final int successOneIn;
+
+	private final double tokensPerNano;
+
+	private final double burst;
+
+	private final MeterRegistry meterRegistry;
+
+	private final Map<String, AtomicLong> successes = new ConcurrentHashMap<>();
+
+	private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+	private final Map<String, Suppressed> suppressed = new ConcurrentHashMap<>();
+
+	public ControlLogSampler(final ControlLogSamplingCFG cfg, final MeterRegistry meterRegistry) {
+		this.successOneIn = Math.max(1, cfg.getSuccessOneIn());
+		this.tokensPerNano = cfg.getRateLimitPerSecond() > 0 ? cfg.getRateLimitPerSecond() / TimeUnit.SECONDS.toNanos(1) : 0;
+		this.burst = cfg.getRateLimitBurst() > 0 ? cfg.getRateLimitBurst() : Math.max(1, cfg.getRateLimitPerSecond());
+		this.meterRegistry = meterRegistry;
+	}
+
+	/**
+	 * @param operation Codice dell'operazione
+	 * @param issuer    Issuer del token, {@code null} se assente
+	 * @return {@code true} se il log con esito positivo deve essere scritto
+	 */
+	public boolean accept(final String operation, final String issuer) {
+		if (successOneIn > 1 && counter(operation, issuer).getAndIncrement() % successOneIn != 0) {
+			suppressed(operation).sampled();
+			return false;
+		}
+		if (tokensPerNano > 0 && !buckets.computeIfAbsent(operation, k -> new TokenBucket(burst)).tryAcquire(tokensPerNano, burst)) {
+			suppressed(operation).rateLimited();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Restituisce e azzera i conteggi dei log soppressi dall'ultima chiamata, per operazione.
+	 */
+	public Map<String, SuppressedCount> drainSuppressed() {
+		final Map<String, SuppressedCount> out = new TreeMap<>();
+		for (Map.Entry<String, Suppressed> entry : suppressed.entrySet()) {
+			final long sampled = entry.getValue().windowSampled.getAndSet(0);
+			final long rateLimited = entry.getValue().windowRateLimited.getAndSet(0);
+			if (sampled + rateLimited > 0) {
+				out.put(entry.getKey(), new SuppressedCount(sampled, rateLimited));
+			}
+		}
+		return out;
+	}
+
+	private AtomicLong counter(final String operation, final String issuer) {
+		final String key = operation + "|" + (issuer != null ? issuer : "");
+		AtomicLong out = successes.get(key);
+		if (out == null) {
+			out = successes.size() < MAX_KEYS ? successes.computeIfAbsent(key, k -> new AtomicLong())
+					: successes.computeIfAbsent(operation + "|" + OTHER_ISSUERS, k -> new AtomicLong());
+		}
+		return out;
+	}
+
+	private Suppressed suppressed(final String operation) {
+		return suppressed.computeIfAbsent(operation, op -> new Suppressed(
+				Counter.builder(SUPPRESSED_METRIC).description("Log di controllo non scritti")
+					.tag("operation", op).tag("reason", "sampled").register(meterRegistry),
+				Counter.builder(SUPPRESSED_METRIC).description("Log di controllo non scritti")
+					.tag("operation", op).tag("reason", "rate-limited").register(meterRegistry)));
+	}
+
+	/**
+	 * Log soppressi di un'operazione in un intervallo di riepilogo.
+	 */
+	@Getter
+	@AllArgsConstructor
+	public static final class SuppressedCount {
+
+		private final long sampled;
+
+		private final long rateLimited;
+
+		public long getTotal() {
+			return sampled + rateLimited;
+		}
+
+	}
+
+	private static final class Suppressed {
+
+		private final Counter sampledCounter;
+
+		private final Counter rateLimitedCounter;
+
+		private final AtomicLong windowSampled = new AtomicLong();
+
+		private final AtomicLong windowRateLimited = new AtomicLong();
+
+		private Suppressed(final Counter sampledCounter, final Counter rateLimitedCounter) {
+			this.sampledCounter = sampledCounter;
+			this.rateLimitedCounter = rateLimitedCounter;
+		}
+
+		private void sampled() {
+			windowSampled.incrementAndGet();
+			sampledCounter.increment();
+		}
+
+		private void rateLimited() {
+			windowRateLimited.incrementAndGet();
+			rateLimitedCounter.increment();
+		}
+
+	}
+
+	private static final class TokenBucket {
+
+		private double tokens;
+
+		private long refilledAt = System.nanoTime();
+
+		private TokenBucket(final double tokens) {
+			this.tokens = tokens;
+		}
+
+		private synchronized boolean tryAcquire(final double tokensPerNano, final double capacity) {
+			final long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+			refilledAt = now;
+			if (tokens < 1) {
+				return false;
+			}
+			tokens--;
+			return true;
+		}
+
+	}
+
+}
@@ -11,10 +11,13 @@
  */
 package it.finanze.sanita.fse2.ms.gtw.dispatcher.logging;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
@@ -23,15 +26,43 @@ import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.serialization.ByteArraySerializer;
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.spi.AppenderAttachableImpl;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Appender that ships log events to kafka.
+ * Events are buffered in a bounded {@link LogEventBuffer} and sent in batches by a dedicated thread, so the logging
+ * threads never wait for the broker (except with {@link OverflowPolicy#BLOCK}, up to the block timeout) and a slow
+ * broker costs at most bufferSize events of heap. Dropped, deferred and failed events are exported as counters.
+ */
 @Slf4j
 public class KafkaAppender<E> extends KafkaAppenderConfig<E> {
 
+    private static final String METRIC_PREFIX = "kafka.log.appender";
+
+    /**
+     * Wait for new events before checking the appender state.
+     */
+    private static final long POLL_MS = 100L;
+
+    /**
+     * Wait before retrying the creation of the producer.
+     */
+    private static final long PRODUCER_RETRY_MS = 1000L;
+
+    /**
+     * Maximum time spent shipping the buffered events on stop.
+     */
+    private static final long STOP_TIMEOUT_MS = 5000L;
+
     /**
      * Kafka clients uses this prefix for its slf4j logging.
      * This appender defers appends of any Kafka logs since it could cause harmful infinite recursion/self feeding effects.
@@ -40,10 +71,19 @@ public class KafkaAppender<E> extends KafkaAppenderConfig<E> {
 
     private LazyProducer lazyProducer = null;
     private final AppenderAttachableImpl<E> aai = new AppenderAttachableImpl<>();
-    private final ConcurrentLinkedQueue<E> queue = new ConcurrentLinkedQueue<>();
+    private LogEventBuffer<E> buffer;
+    private Thread sender;
+    private volatile boolean running;
+    private final List<Meter> meters = new ArrayList<>();
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
     private final FailedDeliveryCallback<E> failedDeliveryCallback = new FailedDeliveryCallback<E>() {
         @Override
         public void onFailedDelivery(E evt, Throwable throwable) {
+            failed.incrementAndGet();
             aai.appendLoopOnAppenders(evt);
         }
     };
@@ -51,16 +91,18 @@ public class KafkaAppender<E> extends KafkaAppenderConfig<E> {
     public KafkaAppender() {
         addProducerConfigValue(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
         addProducerConfigValue(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
-    }
-
-    @Override
-    public void doAppend(E e) {
-        ensureDeferredAppends();
-        if (e instanceof ILoggingEvent && ((ILoggingEvent)e).getLoggerName().startsWith(KAFKA_LOGGER_PREFIX)) {
-            deferAppend(e);
-        } else {
-            super.doAppend(e);
-        }
+        // Dedicated defaults: the log producer must not hold much memory nor block the sender thread for long.
+        // Every value can be overridden by a producerConfig entry.
+        addProducerConfigValue(ProducerConfig.ACKS_CONFIG, "1");
+        addProducerConfigValue(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, false);
+        addProducerConfigValue(ProducerConfig.LINGER_MS_CONFIG, 100);
+        addProducerConfigValue(ProducerConfig.BATCH_SIZE_CONFIG, 65536);
+        addProducerConfigValue(ProducerConfig.COMPRESSION_TYPE_CONFIG, "lz4");
+        addProducerConfigValue(ProducerConfig.BUFFER_MEMORY_CONFIG, 8388608L);
+        addProducerConfigValue(ProducerConfig.MAX_BLOCK_MS_CONFIG, 1000L);
+        // delivery.timeout.ms must be at least linger.ms + request.timeout.ms
+        addProducerConfigValue(ProducerConfig.REQUEST_TIMEOUT_MS_CONFIG, 10000);
+        addProducerConfigValue(ProducerConfig.DELIVERY_TIMEOUT_MS_CONFIG, 30000);
     }
 
     @Override
@@ -72,6 +114,13 @@ public class KafkaAppender<E> extends KafkaAppenderConfig<E> {
         }
 
         lazyProducer = new LazyProducer();
+        buffer = new LogEventBuffer<>(bufferSize, overflowPolicy, blockTimeoutMs, KafkaAppender::isDiscardable);
+        registerMeters();
+
+        running = true;
+        sender = new Thread(this::ship, "kafka-log-appender-" + name);
+        sender.setDaemon(true);
+        sender.start();
 
         super.start();
     }
@@ -79,14 +128,64 @@ public class KafkaAppender<E> extends KafkaAppenderConfig<E> {
     @Override
     public void stop() {
         super.stop();
+        running = false;
+        if (sender != null) {
+            try {
+                sender.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sender.interrupt();
+            sender = null;
+        }
+        if (buffer != null) {
+            dropped.addAndGet(buffer.size());
+        }
         if (lazyProducer != null && lazyProducer.isInitialized()) {
             try {
-                lazyProducer.get().close();
+                lazyProducer.get().close(Duration.ofMillis(STOP_TIMEOUT_MS));
             } catch (KafkaException e) {
             	log.error("Failed to shut down kafka producer: " + e.getMessage(), e);
             }
             lazyProducer = null;
         }
+        for (Meter meter : meters) {
+            Metrics.globalRegistry.remove(meter);
+        }
+        meters.clear();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getDeferredCount() {
+        return deferred.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    private void registerMeters() {
+        final String appender = name != null ? name : "kafka";
+        meters.add(FunctionCounter.builder(METRIC_PREFIX + ".dropped", dropped, AtomicLong::get)
+            .description("Log events dropped because the buffer was full")
+            .tag("appender", appender)
+            .register(Metrics.globalRegistry));
+        meters.add(FunctionCounter.builder(METRIC_PREFIX + ".deferred", deferred, AtomicLong::get)
+            .description("Log events buffered while the producer was not available")
+            .tag("appender", appender)
+            .register(Metrics.globalRegistry));
+        meters.add(FunctionCounter.builder(METRIC_PREFIX + ".failed", failed, AtomicLong::get)
+            .description("Log events rejected by the producer")
+            .tag("appender", appender)
+            .register(Metrics.globalRegistry));
+        final LogEventBuffer<E> events = buffer;
+        meters.add(Gauge.builder(METRIC_PREFIX + ".buffered", events, LogEventBuffer::size)
+            .description("Log events waiting to be shipped")
+            .tag("appender", appender)
+            .register(Metrics.globalRegistry));
     }
 
     @Override
@@ -126,22 +225,71 @@ public class KafkaAppender<E> extends KafkaAppenderConfig<E> {
 
     @Override
     protected void append(E e) {
+        if (e instanceof ILoggingEvent) {
+            // The event is encoded by the sender thread: freeze message, MDC and caller data now
+            ((ILoggingEvent) e).prepareForDeferredProcessing();
+        }
+        if (!lazyProducer.isInitialized()) {
+            deferred.incrementAndGet();
+        }
+        // Kafka client threads and the sender itself must never wait for room in the buffer
+        final boolean canBlock = Thread.currentThread() != sender
+            && !(e instanceof ILoggingEvent && ((ILoggingEvent) e).getLoggerName().startsWith(KAFKA_LOGGER_PREFIX));
+        if (buffer.offer(e, canBlock) != null) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Sender loop: hands the buffered events to the delivery strategy in batches of at most batchSize events.
+     * The producer is created on the first buffered event, not while logback is being configured.
+     */
+    private void ship() {
+        final List<E> batch = new ArrayList<>(batchSize);
+        while (running || !buffer.isEmpty()) {
+            if (!lazyProducer.isInitialized() && buffer.isEmpty()) {
+                pause(POLL_MS);
+                continue;
+            }
+            final Producer<byte[], byte[]> producer = lazyProducer.get();
+            if (producer == null) {
+                if (!running) {
+                    break;
+                }
+                pause(PRODUCER_RETRY_MS);
+                continue;
+            }
+            try {
+                buffer.drainTo(batch, batchSize, POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            for (E event : batch) {
+                deliveryStrategy.send(producer, createRecord(event), event, failedDeliveryCallback);
+            }
+            batch.clear();
+        }
+    }
+
+    private void pause(final long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    private ProducerRecord<byte[], byte[]> createRecord(E e) {
         final byte[] payload = encoder.encode(e);
         final byte[] key = keyingStrategy.createKey(e);
-
         final Long timestamp = isAppendTimestamp() ? getTimestamp(e) : null;
+        return new ProducerRecord<>(topic, partition, timestamp, key, payload);
+    }
 
-        final ProducerRecord<byte[], byte[]> record = new ProducerRecord<>(topic, partition, timestamp, key, payload);
-
-        final Producer<byte[], byte[]> producer = lazyProducer.get();
-        if (producer != null) {
-        	log.debug("Send message log with lazy producer");
-        	log.debug("Delivery strategy : " + deliveryStrategy);
-            deliveryStrategy.send(lazyProducer.get(), record, e, failedDeliveryCallback);
-        } else {
-        	log.warn("Failed send msg");
-            failedDeliveryCallback.onFailedDelivery(e, null);
-        }
+    private static boolean isDiscardable(Object e) {
+        return e instanceof ILoggingEvent && !((ILoggingEvent) e).getLevel().isGreaterOrEqual(Level.INFO);
     }
 
     protected Long getTimestamp(E e) {
@@ -167,19 +315,6 @@ public class KafkaAppender<E> extends KafkaAppenderConfig<E> {
         return out;
     }
 
-    private void deferAppend(E event) {
-        queue.add(event);
-    }
-
-    // drains queue events to super
-    private void ensureDeferredAppends() {
-        E event;
-
-        while ((event = queue.poll()) != null) {
-            super.doAppend(event);
-        }
-    }
- 
     private class LazyProducer {
 
         private volatile Producer<byte[], byte[]> producer;
@@ -205,7 +340,8 @@ public class KafkaAppender<E> extends KafkaAppenderConfig<E> {
                 producer = createProducer();
             } catch (Exception e) {
             	log.error("Error creating producer :", e);
-            	addError("error creating producer", e);
+            	// Not an error status: it would abort the application startup while logback is configured
+            	addWarn("error creating producer", e);
             }
             return producer;
         }
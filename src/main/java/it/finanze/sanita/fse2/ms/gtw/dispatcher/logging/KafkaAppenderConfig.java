@@ -33,6 +33,14 @@ public abstract class KafkaAppenderConfig<E> extends UnsynchronizedAppenderBase<
 
     protected Map<String,Object> producerConfig = new HashMap<>();
 
+    protected int bufferSize = 8192;
+
+    protected OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    protected long blockTimeoutMs = 100L;
+
+    protected int batchSize = 500;
+
     protected boolean checkPrerequisites() {
         boolean errorFree = true;
 
@@ -47,6 +55,11 @@ public abstract class KafkaAppenderConfig<E> extends UnsynchronizedAppenderBase<
             errorFree = false;
         }
 
+        if (bufferSize <= 0 || batchSize <= 0) {
+            addError("bufferSize and batchSize must be positive for the appender named [\"" + name + "\"].");
+            errorFree = false;
+        }
+
         if (encoder == null) {
             addError("No encoder set for the appender named [\"" + name + "\"].");
             errorFree = false;
@@ -107,4 +120,36 @@ public abstract class KafkaAppenderConfig<E> extends UnsynchronizedAppenderBase<
         this.appendTimestamp = appendTimestamp;
     }
 
+    /**
+     * Sets the maximum number of events waiting to be shipped.
+     * @param bufferSize the capacity of the event buffer.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Sets what happens to new events when the buffer is full.
+     * @param overflowPolicy the overflow policy.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Sets the maximum wait for free space with {@link OverflowPolicy#BLOCK}.
+     * @param blockTimeoutMs a timeout in {@link java.util.concurrent.TimeUnit#MILLISECONDS}.
+     */
+    public void setBlockTimeoutMs(long blockTimeoutMs) {
+        this.blockTimeoutMs = blockTimeoutMs;
+    }
+
+    /**
+     * Sets the maximum number of events handed to the producer in one round.
+     * @param batchSize the batch size.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
 }
\ No newline at end of file
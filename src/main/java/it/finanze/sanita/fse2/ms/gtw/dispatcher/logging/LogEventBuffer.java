@@ -0,0 +1,178 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.logging;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Bounded ring buffer of the events waiting to be shipped by the {@link KafkaAppender}.
+ * When the buffer is full the {@link OverflowPolicy} decides which event is lost, so memory never grows with the
+ * backlog of an unreachable broker.
+ * @param <E> the type of the logging event.
+ */
+public class LogEventBuffer<E> {
+
+    private final Object[] ring;
+    private int head;
+    private int size;
+
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMs;
+    private final Predicate<? super E> discardable;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * @param capacity maximum number of buffered events
+     * @param policy behaviour when the buffer is full
+     * @param blockTimeoutMs maximum wait for free space with {@link OverflowPolicy#BLOCK}
+     * @param discardable events evicted first with {@link OverflowPolicy#DROP_DEBUG_FIRST}
+     */
+    public LogEventBuffer(int capacity, OverflowPolicy policy, long blockTimeoutMs, Predicate<? super E> discardable) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.ring = new Object[capacity];
+        this.policy = policy;
+        this.blockTimeoutMs = blockTimeoutMs;
+        this.discardable = discardable;
+    }
+
+    /**
+     * Buffers an event, applying the overflow policy when the buffer is full.
+     *
+     * @param event the event to buffer
+     * @param canBlock {@code false} for threads that must never wait (e.g. the kafka client threads): they fall back to
+     *                 {@link OverflowPolicy#DROP_OLDEST}
+     * @return the event that was dropped to make room (possibly the incoming one), {@code null} if none
+     */
+    public E offer(E event, boolean canBlock) {
+        lock.lock();
+        try {
+            E dropped = null;
+            if (size == ring.length) {
+                dropped = makeRoom(event, canBlock);
+                if (dropped == event) {
+                    return dropped;
+                }
+            }
+            ring[(head + size) % ring.length] = event;
+            size++;
+            notEmpty.signal();
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private E makeRoom(E event, boolean canBlock) {
+        OverflowPolicy effective = !canBlock && policy == OverflowPolicy.BLOCK ? OverflowPolicy.DROP_OLDEST : policy;
+        switch (effective) {
+            case BLOCK:
+                long remaining = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+                try {
+                    while (size == ring.length) {
+                        if (remaining <= 0L) {
+                            return event;
+                        }
+                        remaining = notFull.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return event;
+                }
+                return null;
+            case DROP_DEBUG_FIRST:
+                for (int i = 0; i < size; i++) {
+                    E candidate = get(i);
+                    if (discardable.test(candidate)) {
+                        removeAt(i);
+                        return candidate;
+                    }
+                }
+                if (discardable.test(event)) {
+                    return event;
+                }
+                return removeAt(0);
+            default:
+                return removeAt(0);
+        }
+    }
+
+    /**
+     * Moves up to {@code max} events into {@code out}, waiting up to {@code timeoutMs} for the first one.
+     *
+     * @return number of moved events
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int drainTo(Collection<? super E> out, int max, long timeoutMs) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (size == 0) {
+                if (remaining <= 0L) {
+                    return 0;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            int count = Math.min(max, size);
+            for (int i = 0; i < count; i++) {
+                out.add(removeAt(0));
+            }
+            notFull.signalAll();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E get(int index) {
+        return (E) ring[(head + index) % ring.length];
+    }
+
+    private E removeAt(int index) {
+        E out = get(index);
+        if (index == 0) {
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+        } else {
+            // Shift the following events back, keeping the arrival order
+            for (int i = index; i < size - 1; i++) {
+                ring[(head + i) % ring.length] = ring[(head + i + 1) % ring.length];
+            }
+            ring[(head + size - 1) % ring.length] = null;
+        }
+        size--;
+        return out;
+    }
+
+}
@@ -11,31 +11,76 @@
  */
 package it.finanze.sanita.fse2.ms.gtw.dispatcher.logging;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.event.Level;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.client.IConfigClient;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.ControlLogSamplingCFG;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaProducerPropertiesCFG;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.JWTPayloadDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.LogDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.ILogEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.ResultLogEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.logging.ControlLogSampler.SuppressedCount;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IConfigSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.CfUtility;
-import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.MessageEncoderUtility;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Log di controllo strutturati. Il thread chiamante verifica prima che il livello sia abilitato su almeno una
+ * destinazione e che la persistenza dei log di controllo sia attiva, poi copia i soli valori necessari in un evento
+ * immutabile. Composizione del LogDTO, formattazione delle date, serializzazione e invio al logger kafka sono
+ * eseguiti da un thread dedicato, con il contesto MDC e il contesto OpenTelemetry catturati dal thread chiamante.
+ * Con la coda piena l'evento e' elaborato nel thread chiamante: la scrittura diretta puo' precedere eventi ancora in
+ * coda, per cui in caso di saturazione l'ordine dei log di controllo non e' garantito.
+ * Con il campionamento attivo i log con esito positivo sono filtrati per operazione e issuer e limitati in frequenza;
+ * i log soppressi sono riportati periodicamente in un log di riepilogo per operazione.
+ */
 @Service
 @Slf4j
 public class LoggerHelper {
 
+	private static final String CONTROL_LOG_METRIC = "logger.control";
+
+	/**
+	 * Formato delle date dei log di controllo (thread-safe).
+	 */
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+	private static final int DRAIN_SIZE = 256;
+
+	private static final long POLL_MS = 100;
+
+	private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+
 	Logger kafkaLog = LoggerFactory.getLogger("kafka-logger"); 
 
 	@Autowired
@@ -55,220 +100,257 @@ public class LoggerHelper {
 	@Autowired
 	private KafkaProducerPropertiesCFG kafkaProducerCFG;
 
-	/* 
-	 * Specify here the format for the dates 
+	/**
+	 * Elaborazione dei log di controllo in un thread dedicato; se disabilitata avviene nel thread chiamante.
 	 */
-	private DateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss.SSS"); 
+	@Value("${log.control.async.enabled:true}")
+	private boolean asyncEnabled;
+
+	@Value("${log.control.async.queue-size:10000}")
+	private int queueSize;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private ControlLogSamplingCFG samplingCFG;
+
+	private ControlLogSampler sampler;
 
+	private ScheduledExecutorService samplingReporter;
+
+	private volatile long reportStartMillis;
+
+	private BlockingQueue<ControlLogEvent> queue;
+
+	private Thread writer;
+
+	private volatile boolean running;
+
+	private Counter overflow;
+
+	@PostConstruct
+	public void postConstruct() {
+		overflow = Counter.builder(CONTROL_LOG_METRIC + ".overflow")
+			.description("Log di controllo elaborati nel thread chiamante per coda piena")
+			.register(meterRegistry);
+
+		if (asyncEnabled) {
+			queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+			Gauge.builder(CONTROL_LOG_METRIC + ".queue", queue, BlockingQueue::size)
+				.description("Log di controllo in attesa di elaborazione")
+				.register(meterRegistry);
+			running = true;
+			writer = new Thread(this::run, "control-log-writer");
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		if (samplingCFG != null && samplingCFG.isEnabled()) {
+			sampler = new ControlLogSampler(samplingCFG, meterRegistry);
+			reportStartMillis = System.currentTimeMillis();
+			samplingReporter = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "control-log-sampling");
+				thread.setDaemon(true);
+				return thread;
+			});
+			final long interval = Math.max(1000, samplingCFG.getReportIntervalMs());
+			samplingReporter.scheduleAtFixedRate(this::reportSuppressed, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		if (samplingReporter != null) {
+			samplingReporter.shutdownNow();
+			reportSuppressed();
+		}
+		if (writer == null) {
+			return;
+		}
+		running = false;
+		try {
+			writer.join(SHUTDOWN_TIMEOUT_MS);
+		} catch (InterruptedException e) {
+			log.error("InterruptedException caught. Interrupting thread...");
+			Thread.currentThread().interrupt();
+		}
+	}
 
 	/* 
 	 * Implements structured logs, at all logging levels
 	 */
 	public void trace(String logType,String workflowInstanceId, String message, ILogEnum operation, ResultLogEnum result, Date startDateOperation, JWTPayloadDTO jwtPayloadDTO) {
-		
-		if(configSRV.isControlLogPersistenceEnable()) {
-			if(jwtPayloadDTO==null) {
-				jwtPayloadDTO = new JWTPayloadDTO(); 
-			}
-			LogDTO logDTO = LogDTO.builder().
-					op_locality(jwtPayloadDTO.getLocality()).
-					message(message).
-					operation(operation.getCode()).
-					op_result(result.getCode()).
-					op_timestamp_start(dateFormat.format(startDateOperation)).
-					op_timestamp_end(dateFormat.format(new Date())).
-					op_role(jwtPayloadDTO.getSubject_role()).
-					gateway_name(getGatewayName()).
-					microservice_name(msName).
-					op_application_id(jwtPayloadDTO.getSubject_application_id()).
-					op_application_vendor(jwtPayloadDTO.getSubject_application_vendor()).
-					op_application_version(jwtPayloadDTO.getSubject_application_version()).
-					log_type(logType).
-					workflow_instance_id(workflowInstanceId).
-					build();
-
-			if(!configSRV.isSubjectNotAllowed()) {
-				logDTO.setOp_fiscal_code(CfUtility.extractFiscalCodeFromJwtSub(jwtPayloadDTO.getSub()));
-			}
-			
-			if(!configSRV.isCfOnIssuerNotAllowed()) {
-				logDTO.setOp_issuer(jwtPayloadDTO.getIss());
-			}
-			
-			final String logMessage = StringUtility.toJSON(logDTO);
-			log.trace(logMessage);
-
-			if (Boolean.TRUE.equals(kafkaLogEnable)) {
-				kafkaLog.trace(truncateLogDtoMessageIfNecessary(logDTO));
-			}
+		if (isEnabled(Level.TRACE) && isSampled(Level.TRACE, operation, result, jwtPayloadDTO)) {
+			submit(new ControlLogEvent(Level.TRACE, logType, workflowInstanceId, message, operation.getCode(), result.getCode(),
+					startDateOperation.getTime(), System.currentTimeMillis(), null, null, null, null,
+					new JwtFields(jwtPayloadDTO), MDC.getCopyOfContextMap(), Context.current()));
 		}
-		
-		
 	}
 
 	public void debug(String logType,String workflowInstanceId, String message,  ILogEnum operation, ResultLogEnum result, Date startDateOperation,JWTPayloadDTO jwtPayloadDTO) {
-		
-		if(configSRV.isControlLogPersistenceEnable()) {
-			if(jwtPayloadDTO==null) {
-				jwtPayloadDTO = new JWTPayloadDTO(); 
-			}
-			LogDTO logDTO = LogDTO.builder().
-					op_locality(jwtPayloadDTO.getLocality()).
-					message(message).
-					operation(operation.getCode()).
-					op_result(result.getCode()).
-					op_timestamp_start(dateFormat.format(startDateOperation)).
-					op_timestamp_end(dateFormat.format(new Date())).
-					op_role(jwtPayloadDTO.getSubject_role()).
-					gateway_name(getGatewayName()).
-					microservice_name(msName).
-					op_application_id(jwtPayloadDTO.getSubject_application_id()).
-					op_application_vendor(jwtPayloadDTO.getSubject_application_vendor()).
-					op_application_version(jwtPayloadDTO.getSubject_application_version()).
-					log_type(logType).
-					workflow_instance_id(workflowInstanceId).
-					build();
-			
-			if(!configSRV.isSubjectNotAllowed()) {
-				logDTO.setOp_fiscal_code(CfUtility.extractFiscalCodeFromJwtSub(jwtPayloadDTO.getSub()));
-			}
-			
-			if(!configSRV.isCfOnIssuerNotAllowed()) {
-				logDTO.setOp_issuer(jwtPayloadDTO.getIss());
-			}
-			
-			final String logMessage = StringUtility.toJSON(logDTO);
-			log.debug(logMessage);
-			if (Boolean.TRUE.equals(kafkaLogEnable)) {
-				kafkaLog.debug(truncateLogDtoMessageIfNecessary(logDTO));
-			}
+		if (isEnabled(Level.DEBUG) && isSampled(Level.DEBUG, operation, result, jwtPayloadDTO)) {
+			submit(new ControlLogEvent(Level.DEBUG, logType, workflowInstanceId, message, operation.getCode(), result.getCode(),
+					startDateOperation.getTime(), System.currentTimeMillis(), null, null, null, null,
+					new JwtFields(jwtPayloadDTO), MDC.getCopyOfContextMap(), Context.current()));
 		}
-		
 	} 
 
 	public void info(String logType,String workflowInstanceId, String message, ILogEnum operation, ResultLogEnum result, Date startDateOperation,  
 			String documentType, JWTPayloadDTO jwtPayloadDTO, String typeIdExtension) {
-		
-		if(configSRV.isControlLogPersistenceEnable()) {
-			if(jwtPayloadDTO==null) {
-				jwtPayloadDTO = new JWTPayloadDTO(); 
-			}
-			LogDTO logDTO = LogDTO.builder().
-					op_locality(jwtPayloadDTO.getLocality()).
-					message(message).
-					operation(operation.getCode()).
-					op_result(result.getCode()).
-					op_timestamp_start(dateFormat.format(startDateOperation)).
-					op_timestamp_end(dateFormat.format(new Date())).
-					op_document_type(documentType).
-					op_role(jwtPayloadDTO.getSubject_role()).
-					gateway_name(getGatewayName()).
-					microservice_name(msName).
-					op_application_id(jwtPayloadDTO.getSubject_application_id()).
-					op_application_vendor(jwtPayloadDTO.getSubject_application_vendor()).
-					op_application_version(jwtPayloadDTO.getSubject_application_version()).
-					log_type(logType).
-					workflow_instance_id(workflowInstanceId).
-					typeIdExtension(typeIdExtension).
-					build();
-			
-			if(!configSRV.isSubjectNotAllowed()) {
-				logDTO.setOp_fiscal_code(CfUtility.extractFiscalCodeFromJwtSub(jwtPayloadDTO.getSub()));
-			}
-			
-			if(!configSRV.isCfOnIssuerNotAllowed()) {
-				logDTO.setOp_issuer(jwtPayloadDTO.getIss());
-			}
-			
-			final String logMessage = StringUtility.toJSON(logDTO);
-			log.info(logMessage);
-			
-			if (Boolean.TRUE.equals(kafkaLogEnable)) {
-				kafkaLog.info(truncateLogDtoMessageIfNecessary(logDTO));
-			}
+		if (isEnabled(Level.INFO) && isSampled(Level.INFO, operation, result, jwtPayloadDTO)) {
+			submit(new ControlLogEvent(Level.INFO, logType, workflowInstanceId, message, operation.getCode(), result.getCode(),
+					startDateOperation.getTime(), System.currentTimeMillis(), null, null, documentType, typeIdExtension,
+					new JwtFields(jwtPayloadDTO), MDC.getCopyOfContextMap(), Context.current()));
 		}
-		
 	} 
 
 	public void warn(String logType,String workflowInstanceId, String message, ILogEnum operation, ResultLogEnum result, Date startDateOperation,JWTPayloadDTO jwtPayloadToken) {
-		if(configSRV.isControlLogPersistenceEnable()) {
-			if(jwtPayloadToken==null) {
-				jwtPayloadToken = new JWTPayloadDTO(); 
+		if (isEnabled(Level.WARN) && isSampled(Level.WARN, operation, result, jwtPayloadToken)) {
+			submit(new ControlLogEvent(Level.WARN, logType, workflowInstanceId, message, operation.getCode(), result.getCode(),
+					startDateOperation.getTime(), System.currentTimeMillis(), null, null, null, null,
+					new JwtFields(jwtPayloadToken), MDC.getCopyOfContextMap(), Context.current()));
+		}
+	} 
+
+	public void error(String logType,String workflowInstanceId, String message, ILogEnum operation, ResultLogEnum result, Date startDateOperation,
+			   ILogEnum error,  String documentType, JWTPayloadDTO jwtPayloadToken) {
+		if (isEnabled(Level.ERROR) && isSampled(Level.ERROR, operation, result, jwtPayloadToken)) {
+			submit(new ControlLogEvent(Level.ERROR, logType, workflowInstanceId, message, operation.getCode(), result.getCode(),
+					startDateOperation.getTime(), System.currentTimeMillis(), error.getCode(), error.getDescription(), documentType, null,
+					new JwtFields(jwtPayloadToken), MDC.getCopyOfContextMap(), Context.current()));
+		}
+	}
+
+	/**
+	 * Il livello deve essere abilitato sul logger applicativo o sul logger kafka prima di leggere la configurazione.
+	 */
+	private boolean isEnabled(final Level level) {
+		final boolean enabled = log.isEnabledForLevel(level) || (kafkaLogEnable && kafkaLog.isEnabledForLevel(level));
+		return enabled && Boolean.TRUE.equals(configSRV.isControlLogPersistenceEnable());
+	}
+
+	/**
+	 * Errori, warning e log con esito KO sono sempre scritti; gli altri passano dal campionatore se abilitato.
+	 */
+	private boolean isSampled(final Level level, final ILogEnum operation, final ResultLogEnum result, final JWTPayloadDTO jwt) {
+		if (sampler == null || level == Level.WARN || level == Level.ERROR || result == ResultLogEnum.KO) {
+			return true;
+		}
+		return sampler.accept(operation.getCode(), jwt != null ? jwt.getIss() : null);
+	}
+
+	/**
+	 * Scrive un log di riepilogo per ogni operazione con log soppressi nell'intervallo. Il riepilogo non e' campionato.
+	 */
+	private void reportSuppressed() {
+		try {
+			final long start = reportStartMillis;
+			final long end = System.currentTimeMillis();
+			reportStartMillis = end;
+			final Map<String, SuppressedCount> suppressed = sampler.drainSuppressed();
+			if (suppressed.isEmpty() || !isEnabled(Level.INFO)) {
+				return;
 			}
-			LogDTO logDTO = LogDTO.builder().
-					op_locality(jwtPayloadToken.getLocality()).
-					message(message).
-					operation(operation.getCode()).
-					op_result(result.getCode()).
-					op_timestamp_start(dateFormat.format(startDateOperation)).
-					op_timestamp_end(dateFormat.format(new Date())).
-					op_role(jwtPayloadToken.getSubject_role()).
-					gateway_name(getGatewayName()).
-					microservice_name(msName).
-					op_application_id(jwtPayloadToken.getSubject_application_id()).
-					op_application_vendor(jwtPayloadToken.getSubject_application_vendor()).
-					op_application_version(jwtPayloadToken.getSubject_application_version()).
-					log_type(logType).
-					workflow_instance_id(workflowInstanceId).
-					build();
-			
-			if(!configSRV.isSubjectNotAllowed()) {
-				logDTO.setOp_fiscal_code(CfUtility.extractFiscalCodeFromJwtSub(jwtPayloadToken.getSub()));
+			final JwtFields noJwt = new JwtFields(null);
+			for (Map.Entry<String, SuppressedCount> entry : suppressed.entrySet()) {
+				final SuppressedCount count = entry.getValue();
+				final String message = String.format("suppressed=%d sampled=%d rate_limited=%d",
+						count.getTotal(), count.getSampled(), count.getRateLimited());
+				submit(new ControlLogEvent(Level.INFO, Constants.App.LOG_TYPE_CONTROL_SUMMARY, null, message, entry.getKey(),
+						ResultLogEnum.OK.getCode(), start, end, null, null, null, null, noJwt, null, Context.root()));
 			}
-			
-			if(!configSRV.isCfOnIssuerNotAllowed()) {
-				logDTO.setOp_issuer(jwtPayloadToken.getIss());
+		} catch (Exception e) {
+			log.warn("Error while reporting suppressed control logs", e);
+		}
+	}
+
+	private void submit(final ControlLogEvent event) {
+		if (running) {
+			if (queue.offer(event)) {
+				return;
+			}
+			overflow.increment();
+		}
+		write(event);
+	}
+
+	private void run() {
+		final List<ControlLogEvent> batch = new ArrayList<>(DRAIN_SIZE);
+		while (running || !queue.isEmpty()) {
+			try {
+				ControlLogEvent first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, DRAIN_SIZE - 1);
+			} catch (InterruptedException e) {
+				log.error("InterruptedException caught. Interrupting thread...");
+				Thread.currentThread().interrupt();
+				running = false;
 			}
-			final String logMessage = StringUtility.toJSON(logDTO);
-			log.warn(logMessage);
-			if (Boolean.TRUE.equals(kafkaLogEnable)) {
-				kafkaLog.warn(truncateLogDtoMessageIfNecessary(logDTO));
+			for (ControlLogEvent event : batch) {
+				write(event);
 			}
+			batch.clear();
 		}
-		
- 
-	} 
+	}
 
-	public void error(String logType,String workflowInstanceId, String message, ILogEnum operation, ResultLogEnum result, Date startDateOperation,
-			   ILogEnum error,  String documentType, JWTPayloadDTO jwtPayloadToken) {
-		if(configSRV.isControlLogPersistenceEnable()) {
-			if(jwtPayloadToken==null) {
-				jwtPayloadToken = new JWTPayloadDTO(); 
+	/**
+	 * Composizione, serializzazione e scrittura del log di controllo, con il contesto MDC e il contesto OpenTelemetry
+	 * del thread chiamante: il record kafka del log resta associato alla traccia della richiesta.
+	 */
+	private void write(final ControlLogEvent event) {
+		final Map<String, String> previous = MDC.getCopyOfContextMap();
+		try (Scope scope = event.context.makeCurrent()) {
+			if (event.mdc != null) {
+				MDC.setContextMap(event.mdc);
 			}
+			final JwtFields jwt = event.jwt;
 			LogDTO logDTO = LogDTO.builder().
-					op_locality(jwtPayloadToken.getLocality()).
-					message(message).
-					operation(operation.getCode()).
-					op_result(result.getCode()).
-					op_timestamp_start(dateFormat.format(startDateOperation)).
-					op_timestamp_end(dateFormat.format(new Date())).
-					op_error(error.getCode()).
-					op_error_description(error.getDescription()).
-					op_document_type(documentType).
-					op_role(jwtPayloadToken.getSubject_role()).
+					op_locality(jwt.locality).
+					message(event.message).
+					operation(event.operation).
+					op_result(event.result).
+					op_timestamp_start(DATE_FORMAT.format(Instant.ofEpochMilli(event.startMillis))).
+					op_timestamp_end(DATE_FORMAT.format(Instant.ofEpochMilli(event.endMillis))).
+					op_error(event.error).
+					op_error_description(event.errorDescription).
+					op_document_type(event.documentType).
+					op_role(jwt.role).
 					gateway_name(getGatewayName()).
 					microservice_name(msName).
-					op_application_id(jwtPayloadToken.getSubject_application_id()).
-					op_application_vendor(jwtPayloadToken.getSubject_application_vendor()).
-					op_application_version(jwtPayloadToken.getSubject_application_version()).
-					log_type(logType).
-					workflow_instance_id(workflowInstanceId).
+					op_application_id(jwt.applicationId).
+					op_application_vendor(jwt.applicationVendor).
+					op_application_version(jwt.applicationVersion).
+					log_type(event.logType).
+					workflow_instance_id(event.workflowInstanceId).
+					typeIdExtension(event.typeIdExtension).
 					build();
-			
+
 			if(!configSRV.isSubjectNotAllowed()) {
-				logDTO.setOp_fiscal_code(CfUtility.extractFiscalCodeFromJwtSub(jwtPayloadToken.getSub()));
+				logDTO.setOp_fiscal_code(CfUtility.extractFiscalCodeFromJwtSub(jwt.sub));
 			}
+			
 			if(!configSRV.isCfOnIssuerNotAllowed()) {
-				logDTO.setOp_issuer(jwtPayloadToken.getIss());
+				logDTO.setOp_issuer(jwt.iss);
 			}
-			final String logMessage = StringUtility.toJSON(logDTO);
-			log.error(logMessage);
-			if (Boolean.TRUE.equals(kafkaLogEnable)) {
-				kafkaLog.error(truncateLogDtoMessageIfNecessary(logDTO));
+
+			final String logMessage = MessageEncoderUtility.encode(logDTO, 0);
+			log.atLevel(event.level).log(logMessage);
+			if (kafkaLogEnable) {
+				kafkaLog.atLevel(event.level).log(truncateLogDtoMessageIfNecessary(logDTO, logMessage));
+			}
+		} catch (Exception e) {
+			log.warn("Error while writing control log", e);
+		} finally {
+			if (previous != null) {
+				MDC.setContextMap(previous);
+			} else {
+				MDC.clear();
 			}
 		}
-		
-		
 	}
 
 	/**
@@ -284,23 +366,66 @@ public class LoggerHelper {
 	}
 
 	/**
-	 * tronca il campo message di logDTO se logDTO risulta maggiore di 1 MB (max
-	 * kafka producer request size)
+	 * tronca il campo message di logDTO se il log supera, in byte UTF-8, la dimensione massima
+	 * del valore di un record (max kafka producer request size)
 	 * 
 	 * @param logDTO
+	 * @param logMessage log gia' serializzato senza troncamento
 	 * @return
 	 */
-	private String truncateLogDtoMessageIfNecessary(LogDTO logDTO) {
-
-		String logMessage = StringUtility.toJSON(logDTO);
-		int maxProducerSize = kafkaProducerCFG.getMaxRequestSize();
-		if (logMessage.length() >= maxProducerSize) {
-			int newTruncatedSize = maxProducerSize / 1024;
-			String truncatedMessage = logDTO.getMessage().substring(0, newTruncatedSize);
-			logDTO.setMessage(truncatedMessage);
-			logMessage = StringUtility.toJSON(logDTO);
+	private String truncateLogDtoMessageIfNecessary(LogDTO logDTO, String logMessage) {
+		int maxPayloadSize = MessageEncoderUtility.maxPayloadSize(kafkaProducerCFG.getMaxRequestSize());
+		// Ogni char occupa al massimo 3 byte UTF-8: sotto questa soglia non serve misurare
+		if (logMessage.length() <= maxPayloadSize / 3) {
+			return logMessage;
+		}
+		return MessageEncoderUtility.encode(logDTO, maxPayloadSize);
+	}
+
+	/**
+	 * Valori del log di controllo copiati dal thread chiamante.
+	 */
+	@AllArgsConstructor
+	private static final class ControlLogEvent {
+		private final Level level;
+		private final String logType;
+		private final String workflowInstanceId;
+		private final String message;
+		private final String operation;
+		private final String result;
+		private final long startMillis;
+		private final long endMillis;
+		private final String error;
+		private final String errorDescription;
+		private final String documentType;
+		private final String typeIdExtension;
+		private final JwtFields jwt;
+		private final Map<String, String> mdc;
+		private final Context context;
+	}
+
+	/**
+	 * Campi del token JWT riportati nel log di controllo.
+	 */
+	private static final class JwtFields {
+		private final String locality;
+		private final String role;
+		private final String applicationId;
+		private final String applicationVendor;
+		private final String applicationVersion;
+		private final String sub;
+		private final String iss;
+
+		private JwtFields(final JWTPayloadDTO jwt) {
+			final JWTPayloadDTO token = jwt != null ? jwt : new JWTPayloadDTO();
+			locality = token.getLocality();
+			role = token.getSubject_role();
+			applicationId = token.getSubject_application_id();
+			applicationVendor = token.getSubject_application_vendor();
+			applicationVersion = token.getSubject_application_version();
+			sub = token.getSub();
+			iss = token.getIss();
 		}
-		return logMessage;
 	}
 
 }
@@ -13,8 +13,11 @@ package it.finanze.sanita.fse2.ms.gtw.dispatcher.service;
 
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.AccreditamentoSimulationDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.EventTypeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PdfEnvelope;
 
 public interface IAccreditamentoSimulationSRV {
 
 	AccreditamentoSimulationDTO runSimulation(String idDocumento, byte[] pdf, EventTypeEnum eventType);
+
+	AccreditamentoSimulationDTO runSimulation(String idDocumento, PdfEnvelope pdf, EventTypeEnum eventType);
 }
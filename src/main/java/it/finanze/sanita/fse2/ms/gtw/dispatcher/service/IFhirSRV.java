@@ -11,6 +11,7 @@
  */
 package it.finanze.sanita.fse2.ms.gtw.dispatcher.service;
 
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.ParsedCdaDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.ResourceDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.PublicationCreateReplaceMetadataDTO;
 
@@ -21,6 +22,9 @@ public interface IFhirSRV {
     ResourceDTO createFhirResources(String cda, String authorRole, PublicationCreateReplaceMetadataDTO requestBody, Integer size, String hash,
             String transformId, String engineId, String organizationId, String authorInstitution, String sha1);
 
+    ResourceDTO createFhirResources(ParsedCdaDTO parsedCda, String authorRole, PublicationCreateReplaceMetadataDTO requestBody, Integer size, String hash,
+            String transformId, String engineId, String organizationId, String authorInstitution, String sha1);
+
     ResourceDTO createFhirResourcesFromBundle(String fhirBundleJson, String authorRole, PublicationCreateReplaceMetadataDTO requestBody,
             Integer size, String hash, String organizationId, String authorInstitution, String sha1);
 
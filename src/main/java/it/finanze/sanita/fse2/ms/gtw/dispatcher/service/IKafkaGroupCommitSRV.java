@@ -0,0 +1,46 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.service;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PriorityTypeEnum;
+
+/**
+ * Invio transazionale con commit di gruppo: i record di richieste concorrenti sono confermati nella stessa transazione.
+ */
+public interface IKafkaGroupCommitSRV {
+
+	/**
+	 * Accoda i record, che saranno confermati tutti nella stessa transazione. L'annullamento del risultato
+	 * ({@link CompletableFuture#cancel(boolean)}) riesce solo finche' i record non sono stati presi in carico per la
+	 * transazione: in caso contrario restituisce {@code false} e il chiamante deve attenderne l'esito.
+	 *
+	 * @param records Record da inviare
+	 * @return Metadati dei record nello stesso ordine, disponibili dopo il commit della transazione
+	 */
+	CompletableFuture<List<RecordMetadata>> submit(List<ProducerRecord<String, byte[]>> records);
+
+	/**
+	 * Accoda i record sulla coda di priorita indexer, confermati con i producer riservati alla coda se presenti.
+	 *
+	 * @param lane    Priorita della coda, {@code null} per il pool condiviso
+	 * @param records Record da inviare
+	 * @return Metadati dei record nello stesso ordine, disponibili dopo il commit della transazione
+	 */
+	CompletableFuture<List<RecordMetadata>> submit(PriorityTypeEnum lane, List<ProducerRecord<String, byte[]>> records);
+
+}
@@ -0,0 +1,53 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.service;
+
+import org.springframework.kafka.core.KafkaOperations;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PriorityTypeEnum;
+
+/**
+ * Pool di producer transazionali: ogni transazione usa in esclusiva uno dei producer, cosi' piu' transazioni possono
+ * procedere in parallelo.
+ */
+public interface IKafkaProducerPoolSRV {
+
+	/**
+	 * Esegue il callback in una transazione su un producer del pool, attendendo che se ne liberi uno.
+	 *
+	 * @param callback Operazioni da eseguire nella transazione
+	 * @return Risultato del callback
+	 */
+	<T> T executeInTransaction(KafkaOperations.OperationsCallback<String, byte[], T> callback);
+
+	/**
+	 * Esegue il callback su un producer riservato alla coda di priorita indexer; senza producer riservati usa il pool
+	 * condiviso.
+	 *
+	 * @param lane     Priorita della coda, {@code null} per il pool condiviso
+	 * @param callback Operazioni da eseguire nella transazione
+	 * @return Risultato del callback
+	 */
+	<T> T executeInTransaction(PriorityTypeEnum lane, KafkaOperations.OperationsCallback<String, byte[], T> callback);
+
+	/**
+	 * @return Numero di producer del pool condiviso
+	 */
+	int size();
+
+	/**
+	 * @param lane Priorita della coda
+	 * @return Numero di producer riservati alla coda, 0 se la coda usa il pool condiviso
+	 */
+	int size(PriorityTypeEnum lane);
+
+}
@@ -31,6 +31,27 @@ public interface IKafkaSRV {
 	 */
 	RecordMetadata sendMessage(String topic, String key, String value, boolean trans);
 
+	/**
+	 * Send an already encoded (UTF-8) message over kafka topic
+	 * @param topic
+	 * @param key
+	 * @param value
+	 * @param trans
+	 * @return
+	 */
+	RecordMetadata sendMessage(String topic, String key, byte[] value, boolean trans);
+
+	/**
+	 * Open the unit of work of the current request: transactional records are collected
+	 * and sent in a single transaction by {@link #commitUnitOfWork()}
+	 */
+	void beginUnitOfWork();
+
+	/**
+	 * Send the records collected by the current request in a single transaction and close the unit of work
+	 */
+	void commitUnitOfWork();
+
 	/**
 	 * Send message to either indexer or publisher over kafka topic, choosing priority
 	 * @param key
@@ -39,7 +60,7 @@ public interface IKafkaSRV {
 	 * @param documentType
 	 * @param destinationTypeEnum
 	 */
-	void notifyChannel(String key, String value, TipoDocAltoLivEnum documentType, DestinationTypeEnum destinationTypeEnum);
+	void notifyChannel(String key, String value, PriorityTypeEnum priorityType, TipoDocAltoLivEnum documentType, DestinationTypeEnum destinationTypeEnum);
 	
 	void sendValidationStatus(String traceId, String workflowInstanceId, EventStatusEnum eventStatus, String message,JWTPayloadDTO jwtClaimDTO); 
 	void sendValidationStatus(String traceId,String workflowInstanceId, EventStatusEnum eventStatus, String message,
@@ -0,0 +1,66 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.service;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+/**
+ * Journal locale dei record kafka non consegnati. I record sono reinviati nell'ordine di salvataggio da un thread
+ * dedicato quando il broker torna disponibile.
+ */
+public interface IKafkaSpillJournalSRV {
+
+	/**
+	 * Invio dei record reinviati dal journal.
+	 */
+	@FunctionalInterface
+	interface Replayer {
+
+		/**
+		 * @param records Record salvati insieme
+		 * @param trans   {@code true} se i record vanno inviati in un'unica transazione
+		 * @return Esito dell'invio
+		 */
+		CompletableFuture<?> replay(List<ProducerRecord<String, byte[]>> records, boolean trans);
+
+	}
+
+	/**
+	 * @return {@code true} se il journal e' abilitato
+	 */
+	boolean isEnabled();
+
+	/**
+	 * @return {@code true} se ci sono record in attesa di reinvio: i nuovi record vanno accodati per mantenere l'ordine
+	 */
+	boolean isPending();
+
+	/**
+	 * Salva i record nel journal, in un unico elemento.
+	 *
+	 * @param records Record da salvare
+	 * @param trans   {@code true} se i record vanno reinviati in un'unica transazione
+	 * @return {@code false} se il journal e' disabilitato o pieno
+	 */
+	boolean append(List<ProducerRecord<String, byte[]>> records, boolean trans);
+
+	/**
+	 * Avvia il reinvio dei record salvati.
+	 *
+	 * @param replayer Invio dei record
+	 */
+	void start(Replayer replayer);
+
+}
@@ -0,0 +1,41 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.service;
+
+import java.util.List;
+import java.util.Map;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PdfExtractionStrategyEnum;
+
+/**
+ * Ordine di estrazione dei contenuti dal pdf appreso per issuer.
+ */
+public interface IPdfExtractionOrderSRV {
+
+	/**
+	 * @param issuer     Issuer del token JWT, se {@code null} viene restituito l'ordine di default
+	 * @param content    Tipo di contenuto estratto (cda, fhir)
+	 * @param strategies Strategie ammesse nell'ordine di default
+	 * @return Strategie ordinate dalla piu' probabile per l'issuer
+	 */
+	List<PdfExtractionStrategyEnum> order(String issuer, String content, List<PdfExtractionStrategyEnum> strategies);
+
+	/**
+	 * Registra la strategia che ha estratto il contenuto per l'issuer.
+	 */
+	void success(String issuer, String content, PdfExtractionStrategyEnum strategy);
+
+	/**
+	 * @return Punteggi correnti per issuer e contenuto
+	 */
+	Map<String, Map<String, Double>> snapshot();
+}
@@ -0,0 +1,51 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.service;
+
+import java.io.IOException;
+
+import org.springframework.web.multipart.MultipartFile;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.InjectionModeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PdfEnvelope;
+
+public interface IPdfSRV {
+
+	/**
+	 * Apre il pdf della richiesta scegliendo i buffer di parsing in base alla dimensione
+	 * e al budget di memoria globale. L'envelope restituito deve essere chiuso dal chiamante.
+	 */
+	PdfEnvelope open(byte[] pdf);
+
+	/**
+	 * Apre il pdf caricato come multipart. Oltre la soglia di memoria il contenuto viene spostato su file
+	 * temporaneo, rimosso alla chiusura dell'envelope, e non viene mai copiato in heap.
+	 *
+	 * @throws IOException Se l'upload non puo' essere letto
+	 */
+	PdfEnvelope open(MultipartFile file) throws IOException;
+
+	/**
+	 * Estrae il CDA dal dataset XFA o dagli allegati. Senza modalita' esplicita l'ordine e' quello appreso per l'issuer.
+	 *
+	 * @return CDA estratto, {@code null} se nessuna strategia ha successo
+	 */
+	String extractCda(PdfEnvelope pdf, InjectionModeEnum mode, String issuer);
+
+	/**
+	 * Estrae il Bundle FHIR provando, nell'ordine consentito dalla modalita', allegati, dataset XFA e testo.
+	 * Senza modalita' esplicita l'ordine e' quello appreso per l'issuer.
+	 *
+	 * @return Bundle estratto, {@code null} se nessuna strategia ha successo
+	 */
+	String extractFhir(PdfEnvelope pdf, InjectionModeEnum mode, String issuer);
+}
@@ -12,8 +12,14 @@
 package it.finanze.sanita.fse2.ms.gtw.dispatcher.service;
 
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.EventTypeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PdfEnvelope;
 
 public interface ISignSRV {
 
 	String checkPades(byte[] pdf,EventTypeEnum eventTypeEnum);
+
+	/**
+	 * Verifica la firma PAdES riutilizzando il PDF gia' caricato per la richiesta.
+	 */
+	String checkPades(PdfEnvelope pdf,EventTypeEnum eventTypeEnum);
 }
@@ -0,0 +1,31 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.service;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.SignatureValidationDTO;
+
+/**
+ * Esiti della verifica PAdES indicizzati per SHA-256 del pdf, per rendere economici i tentativi ripetuti.
+ */
+public interface ISignatureCacheSRV {
+
+	/**
+	 * @param sha256 SHA-256 (hex) del pdf
+	 * @return Esito della verifica, {@code null} se assente o scaduto
+	 */
+	SignatureValidationDTO get(String sha256);
+
+	/**
+	 * Memorizza l'esito della verifica, eliminando le voci meno usate oltre la dimensione massima.
+	 */
+	void put(String sha256, SignatureValidationDTO validation);
+}
@@ -0,0 +1,33 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import org.apache.kafka.clients.producer.RecordMetadata;
+
+/**
+ * Invio asincrono dei messaggi di stato. Gli invii con la stessa chiave sono eseguiti nell'ordine di accodamento.
+ */
+public interface IStatusPublisherSRV {
+
+	/**
+	 * Accoda l'invio. A coda piena il chiamante attende fino al timeout configurato, poi l'invio viene scartato.
+	 *
+	 * @param key  Chiave di ordinamento (workflowInstanceId)
+	 * @param send Invio del record, restituisce l'esito della consegna
+	 * @return Esito della consegna, completato in errore se l'invio fallisce o viene scartato
+	 */
+	CompletableFuture<RecordMetadata> submit(String key, Supplier<CompletableFuture<RecordMetadata>> send);
+
+}
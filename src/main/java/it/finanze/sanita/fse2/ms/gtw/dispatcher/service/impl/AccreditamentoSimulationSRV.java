@@ -14,8 +14,6 @@ package it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl;
 import org.apache.commons.lang3.tuple.Pair;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.parser.Parser;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -32,9 +30,10 @@ import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.ValidationException;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IAccreditamentoSimulationSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.ICdaSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IEngineSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IPdfSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.CdaUtility;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PDFUtility;
-import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PdfEnvelope;
 import lombok.extern.slf4j.Slf4j;
 
 @Service
@@ -54,8 +53,18 @@ public class AccreditamentoSimulationSRV implements IAccreditamentoSimulationSRV
 	@Autowired
 	private IStatusCheckClient statusCheckClient;
 
+	@Autowired
+	private IPdfSRV pdfSRV;
+
 	@Override
 	public AccreditamentoSimulationDTO runSimulation(final String idDocumento, final byte[] pdf, final EventTypeEnum eventType) {
+		try (PdfEnvelope envelope = pdfSRV.open(pdf)) {
+			return runSimulation(idDocumento, envelope, eventType);
+		}
+	}
+
+	@Override
+	public AccreditamentoSimulationDTO runSimulation(final String idDocumento, final PdfEnvelope pdf, final EventTypeEnum eventType) {
 		AccreditamentoSimulationDTO output = null;
 		
 		if(EventTypeEnum.REPLACE.equals(eventType) && !idDocumento.equals("TRIAL_ID_SKIP_ACCREDITATIONCHECK")) {
@@ -102,7 +111,7 @@ public class AccreditamentoSimulationSRV implements IAccreditamentoSimulationSRV
 		throw new ConnectionRefusedException(null, "Timeout simulation");
 	}
 
-	private String simulateSkipValidation(byte[] pdf) {
+	private String simulateSkipValidation(PdfEnvelope pdf) {
 		log.info("Skip validation simulation");
 		String cda = PDFUtility.extractContentFromAttachments(pdf, cdaCFG.getCdaAttachmentName());
 		Document docT = Jsoup.parse(cda);
@@ -113,24 +122,8 @@ public class AccreditamentoSimulationSRV implements IAccreditamentoSimulationSRV
 		// emulating the gtw-validator mechanism.
 		// getKey() returns engineID, getValue() returns transformID
 		Pair<String, String> id = engines.getStructureObjectID(templateIdRoot);
-		final String hashedCDA = StringUtility.encodeSHA256B64(cdaWithoutLegalAuthenticator(cda));
+		final String hashedCDA = CdaUtility.hashWithoutLegalAuthenticator(cda, false);
 		cdaSRV.create(hashedCDA, workflowInstanceId,id.getValue() , id.getKey());
 		return workflowInstanceId;
 	}
-
-	private String cdaWithoutLegalAuthenticator(final String cda) {
-		Document doc = Jsoup.parse(cda, "", Parser.xmlParser());
-		Element authenticator = doc.selectFirst("LegalAuthenticator");
-		if(authenticator != null) {
-			authenticator.forEach(e -> {
-				// Reset attributes
-				e.attributes().forEach(a -> a.setValue("PLACEHOLDER"));
-				// Reset values on node without children and with text
-				if(e.children().isEmpty() && !e.text().isEmpty()) e.text("PLACEHOLDER");
-			});
-		} else {
-			log.warn("Unable to calculate cda-hash correctly because LegalAuthenticator doesn't exists");
-		}
-		return doc.toString();
-	}
 }
@@ -5,144 +5,170 @@ import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.ConfigItemDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.ConfigItemTypeEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IConfigSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.ProfileUtility;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import jakarta.annotation.PostConstruct;
-import java.util.Date;
+import jakarta.annotation.PreDestroy;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static it.finanze.sanita.fse2.ms.gtw.dispatcher.client.routes.base.ClientRoutes.Config.*;
 import static it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.ConfigItemTypeEnum.DISPATCHER;
 
+/**
+ * Configurazione da gtw-config mantenuta in uno snapshot immutabile. Le letture accedono al solo campo volatile,
+ * senza lock ne' chiamate remote; un thread dedicato aggiorna le proprieta' ogni refresh-rate e sostituisce lo
+ * snapshot solo se l'aggiornamento va a buon fine, altrimenti resta in uso l'ultimo snapshot valido.
+ */
 @Slf4j
 @Service
 public class ConfigSRV implements IConfigSRV {
 
+    private static final String CONFIG_METRIC = "config.snapshot";
+
+    /**
+     * Proprieta' aggiornate periodicamente.
+     */
+    private static final String[] REFRESHED = new String[]{
+        PROPS_NAME_REMOVE_EDS_ENABLE,
+        PROPS_NAME_AUDIT_ENABLED,
+        PROPS_NAME_CONTROL_LOG_ENABLED,
+        PROPS_NAME_SUBJECT,
+        PROPS_NAME_ISSUER_CF,
+        PROPS_NAME_AUDIT_INI_ENABLED
+    };
+
     @Autowired
     private IConfigClient client;
     
     @Autowired
     private ProfileUtility profiles;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @Value("${ms.config.refresh-rate:900000}")
 	private Long refreshRate;
 
-	private final Map<String, Pair<Long, String>> props;
+	private volatile ConfigSnapshot snapshot = new ConfigSnapshot(Collections.emptyMap(), 0L);
 
-	public ConfigSRV() {
-		this.props = new HashMap<>();
-	}
+	private ScheduledExecutorService refresher;
+
+	private Counter refreshFailures;
+
+	private Timer refreshTimer;
 
-    
     @PostConstruct
     public void postConstruct() {
+        if (refreshTimer == null) {
+            refreshTimer = Timer.builder(CONFIG_METRIC + ".refresh")
+                .description("Durata dell'aggiornamento della configurazione da gtw-config")
+                .register(meterRegistry);
+            refreshFailures = Counter.builder(CONFIG_METRIC + ".refresh.failures")
+                .description("Aggiornamenti della configurazione falliti (resta in uso l'ultimo snapshot valido)")
+                .register(meterRegistry);
+            Gauge.builder(CONFIG_METRIC + ".age", this, ConfigSRV::getSnapshotAgeSeconds)
+                .description("Secondi trascorsi dall'ultimo aggiornamento riuscito della configurazione")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        }
         if(!profiles.isTestProfile()) {
             init();
+            startRefresher();
         } else {
             log.info("Skipping gtw-config initialization due to test profile");
         }
     }
-    
+
+    @PreDestroy
+    public void preDestroy() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
     
 	@Override
 	public Boolean isRemoveEds() {
-		long lastUpdate = props.get(PROPS_NAME_REMOVE_EDS_ENABLE).getKey();
-		if (new Date().getTime() - lastUpdate >= getRefreshRate()) {
-			synchronized(Locks.REMOVE_EDS_ENABLE) {
-				if (new Date().getTime() - lastUpdate >= getRefreshRate()) {
-					refresh(PROPS_NAME_REMOVE_EDS_ENABLE);
-				}
-			}
-		}
-		return Boolean.parseBoolean(props.get(PROPS_NAME_REMOVE_EDS_ENABLE).getValue());
+		return snapshot.removeEds;
 	}
 
     @Override
     public Boolean isAuditEnable() {
-        long lastUpdate = props.get(PROPS_NAME_AUDIT_ENABLED).getKey();
-        if (new Date().getTime() - lastUpdate >= getRefreshRate()) {
-            synchronized(Locks.AUDIT_ENABLED) {
-                if (new Date().getTime() - lastUpdate >= getRefreshRate()) {
-                    refresh(PROPS_NAME_AUDIT_ENABLED);
-                }
-            }
-        }
-        return Boolean.parseBoolean(
-            props.get(PROPS_NAME_AUDIT_ENABLED).getValue()
-        );
+        return snapshot.auditEnabled;
     }
 
     @Override
     public Boolean isControlLogPersistenceEnable() {
-        long lastUpdate = props.get(PROPS_NAME_CONTROL_LOG_ENABLED).getKey();
-        if (new Date().getTime() - lastUpdate >= getRefreshRate()) {
-            synchronized(Locks.CONTROL_LOG_ENABLED) {
-                if (new Date().getTime() - lastUpdate >= getRefreshRate()) {
-                    refresh(PROPS_NAME_CONTROL_LOG_ENABLED);
-                }
-            }
-        }
-        return Boolean.parseBoolean(
-            props.get(PROPS_NAME_CONTROL_LOG_ENABLED).getValue()
-        );
+        return snapshot.controlLogEnabled;
     }
   
     @Override
 	public Boolean isSubjectNotAllowed() {
-		long lastUpdate = props.get(PROPS_NAME_SUBJECT).getKey();
-		if (new Date().getTime() - lastUpdate >= getRefreshRate()) {
-			synchronized (Locks.SUBJECT_CLEANING) {
-				if (new Date().getTime() - lastUpdate >= getRefreshRate()) {
-					refresh(PROPS_NAME_SUBJECT);
-				}
-			}
-		}
-		return Boolean.parseBoolean(
-			props.get(PROPS_NAME_SUBJECT).getValue()
-		);
+		return snapshot.subjectNotAllowed;
 	}
     
     @Override
 	public Boolean isCfOnIssuerNotAllowed() {
-		long lastUpdate = props.get(PROPS_NAME_ISSUER_CF).getKey();
-		if (new Date().getTime() - lastUpdate >= getRefreshRate()) {
-			synchronized(Locks.ISSUER_CF_CLEANING) {
-				if (new Date().getTime() - lastUpdate >= getRefreshRate()) {
-					refresh(PROPS_NAME_ISSUER_CF);
-				}
-			}
-		}
-		return Boolean.parseBoolean(
-			props.get(PROPS_NAME_ISSUER_CF).getValue()
-		);
+		return snapshot.cfOnIssuerNotAllowed;
 	}
     
     @Override
 	public Boolean isAuditIniEnable() {
-		long lastUpdate = props.get(PROPS_NAME_AUDIT_INI_ENABLED).getKey();
-		if (new Date().getTime() - lastUpdate >= getRefreshRate()) {
-			synchronized(Locks.AUDIT_INI_ENABLED) {
-				if (new Date().getTime() - lastUpdate >= getRefreshRate()) {
-					refresh(PROPS_NAME_AUDIT_INI_ENABLED);
-				}
-			}
-		}
-		return Boolean.parseBoolean(props.get(PROPS_NAME_AUDIT_INI_ENABLED).getValue());
+		return snapshot.auditIniEnabled;
 	}
 
-    private void refresh(String name) {
-        String previous = props.getOrDefault(name, Pair.of(0L, null)).getValue();
-        String prop = client.getProps(name, previous, DISPATCHER);
-        props.put(name, Pair.of(new Date().getTime(), prop));
+    /**
+     * Aggiorna le proprieta' da gtw-config e sostituisce lo snapshot. In caso di errore, compreso gtw-config non
+     * raggiungibile, lo snapshot corrente e il relativo istante di caricamento restano invariati.
+     */
+    public synchronized void refresh() {
+        final ConfigSnapshot current = snapshot;
+        final long start = System.nanoTime();
+        try {
+            Map<String, String> props = new HashMap<>(current.props);
+            for (String name : REFRESHED) {
+                props.put(name, client.getProps(name, current.props.get(name), DISPATCHER));
+            }
+            snapshot = new ConfigSnapshot(props, System.currentTimeMillis());
+        } catch (Exception ex) {
+            refreshFailures.increment();
+            log.warn("[GTW-CFG] Unable to refresh properties, keeping snapshot of {} s ago", getSnapshotAgeSeconds(), ex);
+        } finally {
+            refreshTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void startRefresher() {
+        if (refresher != null) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "config-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long rate = Math.max(1000L, getRefreshRate());
+        refresher.scheduleWithFixedDelay(this::refresh, rate, rate, TimeUnit.MILLISECONDS);
+    }
+
+    private double getSnapshotAgeSeconds() {
+        final long loadedAt = snapshot.loadedAt;
+        return loadedAt == 0L ? 0 : (System.currentTimeMillis() - loadedAt) / 1000.0;
     }
 
-    private void integrity() {
+    private static void integrity(Map<String, String> props) {
         String err = "Missing props {} from dispatcher";
         String[] out = new String[]{
             PROPS_NAME_AUDIT_ENABLED,
@@ -156,7 +182,8 @@ public class ConfigSRV implements IConfigSRV {
         }
     }
 
-    private void init() {
+    private synchronized void init() {
+        Map<String, String> props = new HashMap<>();
         for(ConfigItemTypeEnum en : ConfigItemTypeEnum.priority()) {
             log.info("[GTW-CFG] Retrieving {} properties ...", en.name());
             ConfigItemDTO items = client.getConfigurationItems(en);
@@ -164,12 +191,13 @@ public class ConfigSRV implements IConfigSRV {
             for(ConfigItemDTO.ConfigDataItemDTO opt : opts) {
                 opt.getItems().forEach((key, value) -> {
                     log.info("[GTW-CFG] Property {} is set as {}", key, value);
-                    props.put(key, Pair.of(new Date().getTime(), value));
+                    props.put(key, value);
                 });
             }
             if(opts.isEmpty()) log.info("[GTW-CFG] No props were found");
         }
-        integrity();
+        integrity(props);
+        snapshot = new ConfigSnapshot(props, System.currentTimeMillis());
     }
     
     @Override
@@ -177,13 +205,29 @@ public class ConfigSRV implements IConfigSRV {
         return this.refreshRate;
     }
 
-    private static final class Locks {
-        public static final Object REMOVE_EDS_ENABLE = new Object();
-        public static final Object CONTROL_LOG_ENABLED = new Object();
-        public static final Object AUDIT_ENABLED = new Object();
-        public static final Object ISSUER_CF_CLEANING = new Object();
-        public static final Object SUBJECT_CLEANING = new Object();
-        public static final Object AUDIT_INI_ENABLED = new Object();
+    /**
+     * Valori della configurazione in un dato istante, con le proprieta' booleane gia' convertite.
+     */
+    private static final class ConfigSnapshot {
+        private final Map<String, String> props;
+        private final long loadedAt;
+        private final Boolean removeEds;
+        private final Boolean auditEnabled;
+        private final Boolean controlLogEnabled;
+        private final Boolean subjectNotAllowed;
+        private final Boolean cfOnIssuerNotAllowed;
+        private final Boolean auditIniEnabled;
+
+        private ConfigSnapshot(final Map<String, String> props, final long loadedAt) {
+            this.props = Collections.unmodifiableMap(props);
+            this.loadedAt = loadedAt;
+            removeEds = Boolean.parseBoolean(props.get(PROPS_NAME_REMOVE_EDS_ENABLE));
+            auditEnabled = Boolean.parseBoolean(props.get(PROPS_NAME_AUDIT_ENABLED));
+            controlLogEnabled = Boolean.parseBoolean(props.get(PROPS_NAME_CONTROL_LOG_ENABLED));
+            subjectNotAllowed = Boolean.parseBoolean(props.get(PROPS_NAME_SUBJECT));
+            cfOnIssuerNotAllowed = Boolean.parseBoolean(props.get(PROPS_NAME_ISSUER_CF));
+            auditIniEnabled = Boolean.parseBoolean(props.get(PROPS_NAME_AUDIT_INI_ENABLED));
+        }
     }
 
 }
@@ -15,9 +15,6 @@ import java.util.stream.Collectors;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.*;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
@@ -34,6 +31,7 @@ import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.ValidationException;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IConfigSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IFhirSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.CdaHeaderUtility;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.DateUtility;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.FhirUtility;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
@@ -46,8 +44,6 @@ import org.springframework.web.multipart.MultipartFile;
 public class FhirSRV implements IFhirSRV {
 
     private static final String SOURCE_ID_PREFIX = "2.16.840.1.113883.2.9.2.";
-    private static final String PATH_PATIENT_ID = "ClinicalDocument > recordTarget > patientRole> id";
-    private static final String EXTENSION_ATTRIBUTE = "extension";
     private static final String REFERENCE_ID_LIST_SUFFIX = "&ISO^urn:ihe:iti:xds:2013:order";
 
     @Autowired private FhirMappingClient client;
@@ -57,14 +53,21 @@ public class FhirSRV implements IFhirSRV {
     public ResourceDTO createFhirResources(final String cda, String authorRole, final PublicationCreateReplaceMetadataDTO requestBody,
             final Integer size, final String hash, String transformId, String engineId, String organizationId, final String authorInstitution, String sha1) {
 
-        return createBaseResource(cda, authorRole, requestBody, size, hash, transformId, engineId, organizationId, authorInstitution, sha1, true);
+        return createBaseResource(cda, CdaHeaderUtility.extract(cda), authorRole, requestBody, size, hash, transformId, engineId, organizationId, authorInstitution, sha1, true);
+    }
+
+    @Override
+    public ResourceDTO createFhirResources(final ParsedCdaDTO parsedCda, String authorRole, final PublicationCreateReplaceMetadataDTO requestBody,
+            final Integer size, final String hash, String transformId, String engineId, String organizationId, final String authorInstitution, String sha1) {
+
+        return createBaseResource(parsedCda.getCda(), CdaHeaderUtility.extract(parsedCda.getDocument()), authorRole, requestBody, size, hash, transformId, engineId, organizationId, authorInstitution, sha1, true);
     }
 
     @Override
     public ResourceDTO createFhirResourcesFromBundle(final String fhirBundleJson, String authorRole, final PublicationCreateReplaceMetadataDTO requestBody,
             final Integer size, final String hash, String organizationId, final String authorInstitution, String sha1) {
 
-        return createBaseResource(fhirBundleJson, authorRole, requestBody, size, hash, "", "", organizationId, authorInstitution, sha1, false);
+        return createBaseResource(fhirBundleJson, null, authorRole, requestBody, size, hash, "", "", organizationId, authorInstitution, sha1, false);
     }
     @Override
     public ResourceDTO convertDocumentToTransaction(String bundleJson) throws IOException {
@@ -88,7 +91,7 @@ public class FhirSRV implements IFhirSRV {
         return resourceDTO;
     }
 
-    private ResourceDTO createBaseResource(final String inputData, String authorRole, final PublicationCreateReplaceMetadataDTO requestBody,
+    private ResourceDTO createBaseResource(final String inputData, final CdaHeaderDTO cdaHeader, String authorRole, final PublicationCreateReplaceMetadataDTO requestBody,
             final Integer size, final String hash, String transformId, String engineId, String organizationId, final String authorInstitution, String sha1, boolean isCdaInput) {
 
         final ResourceDTO output = new ResourceDTO();
@@ -98,8 +101,8 @@ public class FhirSRV implements IFhirSRV {
             final DocumentReferenceDTO docRef = buildDocumentReferenceDTO(encodedInput, requestBody, size, hash);
             final FhirResourceDTO fhirReq = buildFhirResourceDTO(docRef, inputData, transformId, engineId);
 
-            AuthorSlotDTO authorSlot = buildAuthorSlot(authorInstitution, authorRole, inputData, isCdaInput);
-            Map<DocumentMetadataKeyEnum, Object> metadata = extractMetadata(inputData, isCdaInput);
+            AuthorSlotDTO authorSlot = buildAuthorSlot(authorInstitution, authorRole, inputData, cdaHeader, isCdaInput);
+            Map<DocumentMetadataKeyEnum, Object> metadata = extractMetadata(inputData, cdaHeader, isCdaInput);
 
             if (isCdaInput) {
                 metadata.put(DocumentMetadataKeyEnum.RAW_CDA, inputData);
@@ -108,7 +111,7 @@ public class FhirSRV implements IFhirSRV {
             DocumentEntryDTO docEntry = setDocumentEntryFields(requestBody, size, sha1, authorSlot, metadata);
             output.setDocumentEntryJson(StringUtility.toJSON(docEntry));
 
-            SubmissionSetEntryDTO sse = buildSubmissionSetEntry(requestBody, authorSlot, metadata, organizationId, isCdaInput);
+            SubmissionSetEntryDTO sse = buildSubmissionSetEntry(requestBody, authorSlot, metadata, cdaHeader, organizationId, isCdaInput);
             output.setSubmissionSetEntryJson(StringUtility.toJSON(sse));
 
             if (isCdaInput && !configSrv.isRemoveEds()) {
@@ -167,19 +170,18 @@ public class FhirSRV implements IFhirSRV {
         return req;
     }
 
-    private AuthorSlotDTO buildAuthorSlot(String authorInstitution, String authorRole, String inputData, boolean isCda) {
+    private AuthorSlotDTO buildAuthorSlot(String authorInstitution, String authorRole, String inputData,
+            CdaHeaderDTO cdaHeader, boolean isCda) {
         if (isCda) {
-            org.jsoup.nodes.Document docCDA = Jsoup.parse(inputData);
-            return buildAuthorSlotDTO(authorInstitution, authorRole, docCDA);
+            return buildAuthorSlotDTO(authorInstitution, authorRole, cdaHeader);
         } else {
             return buildAuthorSlotDTOFromFhir(authorInstitution, authorRole, inputData);
         }
     }
 
-    private Map<DocumentMetadataKeyEnum, Object> extractMetadata(String inputData, boolean isCda) {
+    private Map<DocumentMetadataKeyEnum, Object> extractMetadata(String inputData, CdaHeaderDTO cdaHeader, boolean isCda) {
         if (isCda) {
-            org.jsoup.nodes.Document docCDA = Jsoup.parse(inputData);
-            return extractMetadataFromCda(docCDA);
+            return extractMetadataFromCda(cdaHeader);
         } else {
             return extractMetadataFromFhirBundle(inputData);
         }
@@ -187,11 +189,10 @@ public class FhirSRV implements IFhirSRV {
 
     private SubmissionSetEntryDTO buildSubmissionSetEntry(PublicationCreateReplaceMetadataDTO requestBody,
             AuthorSlotDTO authorSlotDTO, Map<DocumentMetadataKeyEnum, Object> metadata,
-            String organizationId, boolean isCda) {
+            CdaHeaderDTO cdaHeader, String organizationId, boolean isCda) {
 
         if (isCda) {
-            org.jsoup.nodes.Document docCDA = Jsoup.parse((String) metadata.get(DocumentMetadataKeyEnum.RAW_CDA));
-            return createSubmissionSetEntry(docCDA,
+            return createSubmissionSetEntry(cdaHeader,
                     requestBody.getTipoAttivitaClinica().getCode(),
                     requestBody.getIdentificativoSottomissione(),
                     authorSlotDTO, organizationId);
@@ -200,43 +201,34 @@ public class FhirSRV implements IFhirSRV {
         }
     }
 
-    private List<String> buildReferenceIdList(final org.jsoup.nodes.Document docCDA, final String path) {
+    private List<String> buildReferenceIdList(final List<CdaHeaderDTO.Identifier> orderIds) {
         List<String> out = new ArrayList<>();
-        Elements elements = docCDA.select(path);
-        if (!elements.isEmpty()) {
-            for (Element el : elements) {
-                String nre = el.attr("root");
-                if ("2.16.840.1.113883.2.9.4.3.9".equals(nre)) {
-                    String extension = el.attr(EXTENSION_ATTRIBUTE);
-                    out.add(extension + "^^^&2.16.840.1.113883.2.9.4.3.8" + REFERENCE_ID_LIST_SUFFIX);
-                }
+        for (CdaHeaderDTO.Identifier id : orderIds) {
+            if ("2.16.840.1.113883.2.9.4.3.9".equals(id.getRoot())) {
+                out.add(id.getExtension() + "^^^&2.16.840.1.113883.2.9.4.3.8" + REFERENCE_ID_LIST_SUFFIX);
             }
         }
         return out;
     }
 
-    private String buildPatient(final org.jsoup.nodes.Document docCDA) {
-        final Element patientIdElement = docCDA.select(PATH_PATIENT_ID).first();
-        if (patientIdElement != null) {
-            String cf = patientIdElement.attr(EXTENSION_ATTRIBUTE);
-            String root = patientIdElement.attr("root");
-            return cf + "^^^&" + root + "&ISO";
+    private String buildPatient(final CdaHeaderDTO cdaHeader) {
+        final CdaHeaderDTO.Identifier patientId = cdaHeader.getPatientId();
+        if (patientId != null) {
+            return patientId.getExtension() + "^^^&" + patientId.getRoot() + "&ISO";
         }
         return "";
     }
 
     private static AuthorSlotDTO buildAuthorSlotDTO(final String authorInstitution,
-            final String authorRole, final org.jsoup.nodes.Document docCDA) {
+            final String authorRole, final CdaHeaderDTO cdaHeader) {
 
         AuthorSlotDTO author = new AuthorSlotDTO();
         author.setAuthorRole(authorRole);
         author.setAuthorInstitution(authorInstitution);
 
-        final Element authorElement = docCDA.select("ClinicalDocument > author > assignedAuthor > id").first();
-        if (authorElement != null) {
-            String cfAuthor = authorElement.attr(EXTENSION_ATTRIBUTE);
-            String rootAuthor = authorElement.attr("root");
-            author.setAuthor(cfAuthor + "^^^^^^^^&" + rootAuthor + "&ISO");
+        final CdaHeaderDTO.Identifier authorId = cdaHeader.getAuthorId();
+        if (authorId != null) {
+            author.setAuthor(authorId.getExtension() + "^^^^^^^^&" + authorId.getRoot() + "&ISO");
         }
 
         return author;
@@ -264,29 +256,25 @@ public class FhirSRV implements IFhirSRV {
         return author;
     }
 
-    private Map<DocumentMetadataKeyEnum, Object> extractMetadataFromCda(final org.jsoup.nodes.Document docCDA) {
+    private Map<DocumentMetadataKeyEnum, Object> extractMetadataFromCda(final CdaHeaderDTO cdaHeader) {
         Map<DocumentMetadataKeyEnum, Object> metadata = new EnumMap<>(DocumentMetadataKeyEnum.class);
 
-        metadata.put(DocumentMetadataKeyEnum.PATIENT_ID, buildPatient(docCDA));
+        metadata.put(DocumentMetadataKeyEnum.PATIENT_ID, buildPatient(cdaHeader));
 
-        Element confidentialityElement = docCDA.selectFirst("ClinicalDocument > confidentialityCode");
-        if (confidentialityElement != null) {
-            String code = confidentialityElement.attr("code");
-            if (!StringUtility.isNullOrEmpty(code)) {
-                metadata.put(DocumentMetadataKeyEnum.CONFIDENTIALITY_CODE, code);
-                metadata.put(DocumentMetadataKeyEnum.CONFIDENTIALITY_DISPLAY, ConfidentialityCodeEnum.getDisplayByCode(code));
-            }
+        String code = cdaHeader.getConfidentialityCode();
+        if (!StringUtility.isNullOrEmpty(code)) {
+            metadata.put(DocumentMetadataKeyEnum.CONFIDENTIALITY_CODE, code);
+            metadata.put(DocumentMetadataKeyEnum.CONFIDENTIALITY_DISPLAY, ConfidentialityCodeEnum.getDisplayByCode(code));
         }
 
-        Element typeCodeElement = docCDA.selectFirst("ClinicalDocument > code");
-        if (typeCodeElement != null) {
-            metadata.put(DocumentMetadataKeyEnum.TYPE_CODE, typeCodeElement.attr("code"));
-            metadata.put(DocumentMetadataKeyEnum.TYPE_DISPLAY, typeCodeElement.attr("displayName"));
+        CdaHeaderDTO.Code typeCode = cdaHeader.getCode();
+        if (typeCode != null) {
+            metadata.put(DocumentMetadataKeyEnum.TYPE_CODE, typeCode.getCode());
+            metadata.put(DocumentMetadataKeyEnum.TYPE_DISPLAY, typeCode.getDisplayName());
         }
 
-        Element formatCodeElement = docCDA.selectFirst("ClinicalDocument > templateId");
-        if (formatCodeElement != null) {
-            String formatCode = formatCodeElement.attr("root");
+        String formatCode = cdaHeader.getTemplateId();
+        if (formatCode != null) {
             metadata.put(DocumentMetadataKeyEnum.FORMAT_CODE, formatCode);
             LowLevelDocEnum formatEnum = Arrays.stream(LowLevelDocEnum.values())
                     .filter(e -> e.getCode().equals(formatCode))
@@ -296,17 +284,15 @@ public class FhirSRV implements IFhirSRV {
                     formatEnum != null ? formatEnum.getDescription() : null);
         }
 
-        String effectiveTime = docCDA.select("ClinicalDocument > effectiveTime").val();
-        metadata.put(DocumentMetadataKeyEnum.CREATION_TIME, DateUtility.convertDateCda(effectiveTime));
+        metadata.put(DocumentMetadataKeyEnum.CREATION_TIME, DateUtility.convertDateCda(cdaHeader.getEffectiveTime()));
 
-        List<String> referenceIdList = buildReferenceIdList(docCDA, "ClinicalDocument > inFulfillmentOf > order > id");
+        List<String> referenceIdList = buildReferenceIdList(cdaHeader.getOrderIds());
         if (!referenceIdList.isEmpty()) {
             metadata.put(DocumentMetadataKeyEnum.REFERENCE_ID_LIST, referenceIdList);
         }
 
-        Element titleElement = docCDA.selectFirst("ClinicalDocument > title");
-        if (titleElement != null) {
-            metadata.put(DocumentMetadataKeyEnum.TITLE, titleElement.text());
+        if (cdaHeader.getTitle() != null) {
+            metadata.put(DocumentMetadataKeyEnum.TITLE, cdaHeader.getTitle());
         }
 
         return metadata;
@@ -437,7 +423,7 @@ public class FhirSRV implements IFhirSRV {
         return de;
     }
 
-    private SubmissionSetEntryDTO createSubmissionSetEntry(final org.jsoup.nodes.Document docCDA,
+    private SubmissionSetEntryDTO createSubmissionSetEntry(final CdaHeaderDTO cdaHeader,
             final String contentTypeCode,
             final String identificativoSottomissione,
             AuthorSlotDTO authorSlotDTO, String organizationId) {
@@ -446,7 +432,7 @@ public class FhirSRV implements IFhirSRV {
         sse.setAuthor(authorSlotDTO.getAuthor());
         sse.setAuthorInstitution(authorSlotDTO.getAuthorInstitution());
         sse.setAuthorRole(authorSlotDTO.getAuthorRole());
-        sse.setPatientId(buildPatient(docCDA));
+        sse.setPatientId(buildPatient(cdaHeader));
 
         String sourceId = StringUtility.sanitizeSourceId(organizationId);
         sse.setSourceId(SOURCE_ID_PREFIX + sourceId);
@@ -0,0 +1,327 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaProducerPropertiesCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PriorityTypeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IKafkaGroupCommitSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IKafkaProducerPoolSRV;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Commit di gruppo sui producer transazionali. Un thread per ogni producer del pool raccoglie le richieste in attesa e
+ * le conferma in un'unica transazione quando si raggiungono batch-size record o sono trascorsi linger-ms dalla prima
+ * richiesta. Le richieste sono assegnate ai thread in base alla chiave del primo record, cosi' i record con la stessa
+ * chiave sono confermati nell'ordine di invio.
+ * Se la transazione di gruppo fallisce ogni richiesta viene ritentata nella propria transazione, cosi' un record
+ * non valido non fa fallire le richieste altrui. Con il commit di gruppo disabilitato la transazione viene eseguita
+ * nel thread del chiamante.
+ * Le code di priorita indexer con producer riservati hanno i propri thread, cosi' non attendono le altre code.
+ * Prima della transazione il thread prende in carico le richieste: una richiesta annullata dal chiamante (ad esempio
+ * per timeout) non viene piu' inviata, mentre una richiesta gia' presa in carico non puo' piu' essere annullata.
+ */
+@Slf4j
+@Service
+public class KafkaGroupCommitSRV implements IKafkaGroupCommitSRV {
+
+	private static final String GROUP_COMMIT_METRIC = "kafka.group-commit";
+
+	/**
+	 * Intervallo di controllo della chiusura del servizio.
+	 */
+	private static final long POLL_MS = 100;
+
+	private static final long SHUTDOWN_TIMEOUT_MS = 10_000;
+
+	@Autowired
+	private IKafkaProducerPoolSRV producerPoolSRV;
+
+	@Autowired
+	private KafkaProducerPropertiesCFG kafkaProducerCFG;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private List<BlockingQueue<Submission>> queues;
+
+	/**
+	 * Richieste in attesa delle code di priorita con producer riservati.
+	 */
+	private Map<PriorityTypeEnum, List<BlockingQueue<Submission>>> laneQueues;
+
+	private List<Thread> committers;
+
+	private volatile boolean running;
+
+	private DistributionSummary commitSize;
+
+	private Timer waitTime;
+
+	@PostConstruct
+	public void postConstruct() {
+		commitSize = DistributionSummary.builder(GROUP_COMMIT_METRIC + ".records")
+			.description("Record confermati per transazione")
+			.register(meterRegistry);
+		waitTime = Timer.builder(GROUP_COMMIT_METRIC + ".wait")
+			.description("Tempo tra accodamento dei record e commit della transazione")
+			.register(meterRegistry);
+
+		if (kafkaProducerCFG.isGroupCommitEnabled()) {
+			running = true;
+			committers = new ArrayList<>();
+			queues = startCommitters(null, producerPoolSRV.size());
+			laneQueues = new EnumMap<>(PriorityTypeEnum.class);
+			for (PriorityTypeEnum lane : PriorityTypeEnum.values()) {
+				if (producerPoolSRV.size(lane) > 0) {
+					laneQueues.put(lane, startCommitters(lane, producerPoolSRV.size(lane)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Un thread di commit per ogni producer della coda.
+	 */
+	private List<BlockingQueue<Submission>> startCommitters(final PriorityTypeEnum lane, final int size) {
+		final List<BlockingQueue<Submission>> out = new ArrayList<>(size);
+		final String name = "kafka-group-commit-" + (lane != null ? lane.name().toLowerCase(Locale.ROOT) + "-" : "");
+		for (int i = 0; i < size; i++) {
+			final BlockingQueue<Submission> queue = new LinkedBlockingQueue<>(Math.max(1, kafkaProducerCFG.getGroupCommitQueueSize()));
+			out.add(queue);
+			Thread committer = new Thread(() -> run(queue, lane), name + i);
+			committer.setDaemon(true);
+			committer.start();
+			committers.add(committer);
+		}
+		return out;
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		if (committers == null) {
+			return;
+		}
+		running = false;
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_TIMEOUT_MS);
+		try {
+			for (Thread committer : committers) {
+				committer.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+			}
+		} catch (InterruptedException e) {
+			log.error("InterruptedException caught. Interrupting thread...");
+			Thread.currentThread().interrupt();
+		}
+		final List<BlockingQueue<Submission>> all = new ArrayList<>(queues);
+		laneQueues.values().forEach(all::addAll);
+		Submission pending;
+		for (BlockingQueue<Submission> queue : all) {
+			while ((pending = queue.poll()) != null) {
+				pending.completeExceptionally(new BusinessException("Servizio di commit kafka chiuso"));
+			}
+		}
+	}
+
+	@Override
+	public CompletableFuture<List<RecordMetadata>> submit(final List<ProducerRecord<String, byte[]>> records) {
+		return submit(null, records);
+	}
+
+	@Override
+	public CompletableFuture<List<RecordMetadata>> submit(final PriorityTypeEnum lane, final List<ProducerRecord<String, byte[]>> records) {
+		final Submission submission = new Submission(records, System.nanoTime());
+		if (!running) {
+			submission.claim();
+			commit(lane, List.of(submission));
+			return submission;
+		}
+
+		try {
+			if (!queue(lane, records).offer(submission, kafkaProducerCFG.getGroupCommitMaxWaitMs(), TimeUnit.MILLISECONDS)) {
+				submission.completeExceptionally(new BusinessException("Coda delle transazioni kafka piena"));
+			}
+		} catch (InterruptedException e) {
+			log.error("InterruptedException caught. Interrupting thread...");
+			Thread.currentThread().interrupt();
+			submission.completeExceptionally(new BusinessException(e));
+		}
+		return submission;
+	}
+
+	private BlockingQueue<Submission> queue(final PriorityTypeEnum lane, final List<ProducerRecord<String, byte[]>> records) {
+		final List<BlockingQueue<Submission>> candidates = lane != null ? laneQueues.getOrDefault(lane, queues) : queues;
+		final String key = records.isEmpty() ? null : records.get(0).key();
+		return candidates.get(key == null ? 0 : Math.floorMod(key.hashCode(), candidates.size()));
+	}
+
+	private void run(final BlockingQueue<Submission> queue, final PriorityTypeEnum lane) {
+		final long lingerNanos = TimeUnit.MILLISECONDS.toNanos(kafkaProducerCFG.getGroupCommitLingerMs());
+		final int batchSize = Math.max(1, kafkaProducerCFG.getGroupCommitBatchSize());
+		final List<Submission> batch = new ArrayList<>();
+
+		while (running || !queue.isEmpty()) {
+			try {
+				Submission first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				int count = first.records.size();
+				final long deadline = System.nanoTime() + lingerNanos;
+				while (count < batchSize) {
+					final long remaining = deadline - System.nanoTime();
+					Submission next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+					count += next.records.size();
+				}
+			} catch (InterruptedException e) {
+				log.error("InterruptedException caught. Interrupting thread...");
+				Thread.currentThread().interrupt();
+				running = false;
+			}
+
+			// Le richieste annullate dal chiamante durante l'attesa non vengono inviate
+			batch.removeIf(submission -> !submission.claim());
+			if (!batch.isEmpty()) {
+				commit(lane, batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private void commit(final PriorityTypeEnum lane, final List<Submission> batch) {
+		final List<List<RecordMetadata>> results;
+		try {
+			results = executeInTransaction(lane, batch);
+		} catch (Exception e) {
+			if (batch.size() == 1) {
+				batch.get(0).completeExceptionally(e);
+			} else {
+				log.warn("Transazione di gruppo fallita, nuovo tentativo per singola richiesta", e);
+				for (Submission submission : batch) {
+					commit(lane, List.of(submission));
+				}
+			}
+			return;
+		}
+
+		// Metriche registrate prima di completare le richieste: il chiamante le trova gia' aggiornate
+		int count = 0;
+		final long now = System.nanoTime();
+		for (Submission submission : batch) {
+			count += submission.records.size();
+			waitTime.record(now - submission.submittedAt, TimeUnit.NANOSECONDS);
+		}
+		commitSize.record(count);
+		for (int i = 0; i < batch.size(); i++) {
+			batch.get(i).complete(results.get(i));
+		}
+	}
+
+	private List<List<RecordMetadata>> executeInTransaction(final PriorityTypeEnum lane, final List<Submission> batch) {
+		return producerPoolSRV.executeInTransaction(lane, t -> {
+			final List<List<CompletableFuture<SendResult<String, byte[]>>>> sent = new ArrayList<>(batch.size());
+			for (Submission submission : batch) {
+				final List<CompletableFuture<SendResult<String, byte[]>>> records = new ArrayList<>(submission.records.size());
+				for (ProducerRecord<String, byte[]> producerRecord : submission.records) {
+					records.add(t.send(producerRecord));
+				}
+				sent.add(records);
+			}
+
+			final List<List<RecordMetadata>> out = new ArrayList<>(batch.size());
+			try {
+				for (List<CompletableFuture<SendResult<String, byte[]>>> records : sent) {
+					final List<RecordMetadata> metadata = new ArrayList<>(records.size());
+					for (CompletableFuture<SendResult<String, byte[]>> result : records) {
+						metadata.add(result.get().getRecordMetadata());
+					}
+					out.add(metadata);
+				}
+			} catch (InterruptedException e) {
+				log.error("InterruptedException caught. Interrupting thread...");
+				Thread.currentThread().interrupt();
+				throw new BusinessException(e);
+			} catch (Exception e) {
+				throw new BusinessException(e);
+			}
+			return out;
+		});
+	}
+
+	/**
+	 * Richiesta in coda, restituita al chiamante come esito della transazione.
+	 */
+	private static final class Submission extends CompletableFuture<List<RecordMetadata>> {
+
+		private static final int QUEUED = 0;
+
+		private static final int CLAIMED = 1;
+
+		private static final int CANCELLED = 2;
+
+		private final List<ProducerRecord<String, byte[]>> records;
+
+		private final long submittedAt;
+
+		private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+		private Submission(final List<ProducerRecord<String, byte[]>> records, final long submittedAt) {
+			this.records = records;
+			this.submittedAt = submittedAt;
+		}
+
+		/**
+		 * Presa in carico da parte del thread di commit.
+		 *
+		 * @return {@code false} se la richiesta e' stata annullata
+		 */
+		private boolean claim() {
+			return state.compareAndSet(QUEUED, CLAIMED);
+		}
+
+		/**
+		 * Annulla la richiesta solo se non e' ancora stata presa in carico: i suoi record non saranno inviati.
+		 */
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			return state.compareAndSet(QUEUED, CANCELLED) && super.cancel(mayInterruptIfRunning);
+		}
+
+	}
+
+}
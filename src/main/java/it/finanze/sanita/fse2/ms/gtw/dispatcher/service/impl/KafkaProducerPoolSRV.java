@@ -0,0 +1,184 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.kafka.core.KafkaOperations;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaProducerCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaProducerPropertiesCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaTopicCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PriorityTypeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IKafkaProducerPoolSRV;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pool di producer transazionali con transactional id distinti e stabili (vedi {@link KafkaProducerCFG#producerFactory(int)}).
+ * Un producer e' assegnato a una sola transazione alla volta e restituito al pool al termine.
+ * Con i topic indexer per priorita abilitati ogni priorita ha inoltre lane-pool-size producer riservati, cosi' le
+ * transazioni di una coda non attendono i producer occupati dalle altre.
+ */
+@Slf4j
+@Service
+public class KafkaProducerPoolSRV implements IKafkaProducerPoolSRV {
+
+	private static final String POOL_METRIC = "kafka.producer.pool";
+
+	@Autowired
+	private KafkaProducerCFG kafkaProducerCFG;
+
+	@Autowired
+	private KafkaProducerPropertiesCFG kafkaProducerPropCFG;
+
+	@Autowired
+	private KafkaTopicCFG kafkaTopicCFG;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private List<KafkaTemplate<String, byte[]>> templates;
+
+	private BlockingQueue<KafkaTemplate<String, byte[]>> available;
+
+	/**
+	 * Producer liberi riservati alle code di priorita indexer.
+	 */
+	private Map<PriorityTypeEnum, BlockingQueue<KafkaTemplate<String, byte[]>>> laneAvailable;
+
+	private int sharedSize;
+
+	private int laneSize;
+
+	private Timer leaseWait;
+
+	private Counter leaseTimeout;
+
+	@PostConstruct
+	public void postConstruct() {
+		sharedSize = Math.max(1, kafkaProducerPropCFG.getTransactionalPoolSize());
+		templates = new ArrayList<>(sharedSize);
+		available = new ArrayBlockingQueue<>(sharedSize);
+		for (int i = 0; i < sharedSize; i++) {
+			KafkaTemplate<String, byte[]> template = kafkaProducerCFG.txKafkaTemplate(i);
+			templates.add(template);
+			available.add(template);
+		}
+
+		laneAvailable = new EnumMap<>(PriorityTypeEnum.class);
+		if (kafkaTopicCFG.isDispatcherIndexerPriorityEnabled()) {
+			laneSize = Math.max(1, kafkaProducerPropCFG.getTransactionalLanePoolSize());
+			for (PriorityTypeEnum lane : PriorityTypeEnum.values()) {
+				final BlockingQueue<KafkaTemplate<String, byte[]>> queue = new ArrayBlockingQueue<>(laneSize);
+				for (int i = 0; i < laneSize; i++) {
+					KafkaTemplate<String, byte[]> template = kafkaProducerCFG.txKafkaTemplate(lane, i);
+					templates.add(template);
+					queue.add(template);
+				}
+				laneAvailable.put(lane, queue);
+				Gauge.builder(POOL_METRIC + ".lane.available", queue, BlockingQueue::size)
+					.description("Producer transazionali liberi della coda di priorita")
+					.tag("lane", lane.name().toLowerCase(Locale.ROOT))
+					.register(meterRegistry);
+			}
+		}
+
+		leaseWait = Timer.builder(POOL_METRIC + ".lease.wait")
+			.description("Attesa di un producer transazionale libero")
+			.register(meterRegistry);
+		leaseTimeout = Counter.builder(POOL_METRIC + ".lease.timeout")
+			.description("Transazioni non eseguite per assenza di producer liberi")
+			.register(meterRegistry);
+		Gauge.builder(POOL_METRIC + ".available", available, BlockingQueue::size)
+			.description("Producer transazionali liberi")
+			.register(meterRegistry);
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		for (KafkaTemplate<String, byte[]> template : templates) {
+			template.getProducerFactory().reset();
+		}
+	}
+
+	@Override
+	public <T> T executeInTransaction(final KafkaOperations.OperationsCallback<String, byte[], T> callback) {
+		return executeInTransaction(null, callback);
+	}
+
+	@Override
+	public <T> T executeInTransaction(final PriorityTypeEnum lane, final KafkaOperations.OperationsCallback<String, byte[], T> callback) {
+		final BlockingQueue<KafkaTemplate<String, byte[]>> queue = queue(lane);
+		final KafkaTemplate<String, byte[]> template = lease(queue);
+		try {
+			return template.executeInTransaction(callback);
+		} finally {
+			queue.add(template);
+		}
+	}
+
+	@Override
+	public int size() {
+		return sharedSize;
+	}
+
+	@Override
+	public int size(final PriorityTypeEnum lane) {
+		return lane != null && laneAvailable.containsKey(lane) ? laneSize : 0;
+	}
+
+	/**
+	 * Producer della coda di priorita, o del pool condiviso se la coda non ha producer riservati.
+	 */
+	private BlockingQueue<KafkaTemplate<String, byte[]>> queue(final PriorityTypeEnum lane) {
+		final BlockingQueue<KafkaTemplate<String, byte[]>> queue = lane != null ? laneAvailable.get(lane) : null;
+		return queue != null ? queue : available;
+	}
+
+	private KafkaTemplate<String, byte[]> lease(final BlockingQueue<KafkaTemplate<String, byte[]>> queue) {
+		final long start = System.nanoTime();
+		KafkaTemplate<String, byte[]> template = null;
+		try {
+			template = queue.poll(kafkaProducerPropCFG.getTransactionalLeaseTimeoutMs(), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			log.error("InterruptedException caught. Interrupting thread...");
+			Thread.currentThread().interrupt();
+			throw new BusinessException(e);
+		} finally {
+			leaseWait.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+
+		if (template == null) {
+			leaseTimeout.increment();
+			throw new BusinessException("Nessun producer transazionale kafka disponibile");
+		}
+		return template;
+	}
+
+}
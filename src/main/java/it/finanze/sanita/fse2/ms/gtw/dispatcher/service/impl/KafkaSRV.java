@@ -11,7 +11,20 @@
  */
 package it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
@@ -23,22 +36,38 @@ import org.springframework.kafka.support.SendResult;
 import org.springframework.stereotype.Service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaDeliveryProfileCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaProducerCFG;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaProducerPropertiesCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaSpillJournalCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaStatusCFG;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaTopicCFG;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.JWTPayloadDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.KafkaDeliveryProfileDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.KafkaStatusManagerDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.PublicationCreateReplaceMetadataDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.AttivitaClinicaEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.DestinationTypeEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.EventStatusEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.EventTypeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PriorityTypeEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.TipoDocAltoLivEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IKafkaGroupCommitSRV;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IKafkaSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IKafkaSpillJournalSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IStatusPublisherSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.JsonUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.MessageEncoderUtility;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -54,29 +83,292 @@ public class KafkaSRV implements IKafkaSRV {
 	@Value("${spring.application.name}")
 	private String msName;
 
-	/**
-	 * Transactional producer.
-	 */
-	@Autowired
-	@Qualifier("txkafkatemplate")
-	private KafkaTemplate<String, String> txKafkaTemplate;
-
 	/**
 	 * Not transactional producer.
 	 */
 	@Autowired
 	@Qualifier("notxkafkatemplate")
-	protected KafkaTemplate<String, String> notxKafkaTemplate;
+	protected KafkaTemplate<String, byte[]> notxKafkaTemplate;
 
 	@Autowired
 	private KafkaProducerPropertiesCFG kafkaProducerCFG;
 
+	@Autowired
+	private KafkaProducerCFG producerCFG;
+
+	@Autowired
+	private KafkaDeliveryProfileCFG kafkaDeliveryProfileCFG;
+
+	@Autowired
+	private KafkaStatusCFG kafkaStatusCFG;
+
+	@Autowired
+	private IStatusPublisherSRV statusPublisherSRV;
+
+	@Autowired
+	private IKafkaGroupCommitSRV groupCommitSRV;
+
+	@Autowired
+	private IKafkaSpillJournalSRV spillJournalSRV;
+
+	@Autowired
+	private KafkaSpillJournalCFG spillJournalCFG;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	/**
+	 * Record transazionali accumulati dalla richiesta in corso, inviati in un'unica transazione a fine richiesta.
+	 */
+	private static final ThreadLocal<List<ProducerRecord<String, byte[]>>> UNIT_OF_WORK = new ThreadLocal<>();
+
+	/**
+	 * Valore di kafka.status.async.await-event-types che rende atteso l'invio di tutti i tipi di evento.
+	 */
+	private static final String AWAIT_ALL_EVENT_TYPES = "*";
+
+	/**
+	 * Tipi di evento per cui l'invio del messaggio di stato e' atteso dalla richiesta.
+	 */
+	private Set<EventTypeEnum> awaitEventTypes;
+
+	private DistributionSummary unitOfWorkRecords;
+
+	/**
+	 * Producer non transazionali dei profili di invio, per nome del profilo.
+	 */
+	private Map<String, KafkaTemplate<String, byte[]>> profileTemplates;
+
+	/**
+	 * Producer non transazionali delle code di priorita indexer, per topic.
+	 */
+	private Map<String, KafkaTemplate<String, byte[]>> laneTemplates;
+
+	/**
+	 * Latenza di consegna delle notifiche indexer per priorita.
+	 */
+	private Map<PriorityTypeEnum, Timer> laneLatency;
+
+	@PostConstruct
+	public void postConstruct() {
+		awaitEventTypes = EnumSet.noneOf(EventTypeEnum.class);
+		if (kafkaStatusCFG.getAwaitEventTypes() != null) {
+			for (String eventType : kafkaStatusCFG.getAwaitEventTypes()) {
+				if (AWAIT_ALL_EVENT_TYPES.equals(eventType.trim())) {
+					awaitEventTypes = EnumSet.allOf(EventTypeEnum.class);
+				} else if (!StringUtility.isNullOrEmpty(eventType.trim())) {
+					awaitEventTypes.add(EventTypeEnum.valueOf(eventType.trim()));
+				}
+			}
+		}
+		unitOfWorkRecords = DistributionSummary.builder("kafka.unit-of-work.records")
+			.description("Record inviati nella transazione di fine richiesta")
+			.register(meterRegistry);
+
+		profileTemplates = new HashMap<>();
+		for (KafkaDeliveryProfileDTO profile : kafkaDeliveryProfileCFG.getProfiles().values()) {
+			if (!profile.isTransactional()) {
+				profileTemplates.put(profile.getName(), producerCFG.notxKafkaTemplate(profile));
+			}
+		}
+
+		laneTemplates = new HashMap<>();
+		laneLatency = new EnumMap<>(PriorityTypeEnum.class);
+		for (PriorityTypeEnum priority : PriorityTypeEnum.values()) {
+			laneLatency.put(priority, Timer.builder("kafka.indexer.lane.latency")
+				.description("Tempo tra la notifica indexer e la conferma del broker")
+				.tag("lane", laneName(priority))
+				.register(meterRegistry));
+
+			final String topic = kafkaTopicCFG.getDispatcherIndexerTopic(priority);
+			if (kafkaTopicCFG.isDispatcherIndexerPriorityEnabled() && !isTransactional(topic)) {
+				laneTemplates.put(topic, producerCFG.notxKafkaTemplate(laneProfile(topic, priority)));
+			}
+		}
+
+		spillJournalSRV.start(this::replay);
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		for (KafkaTemplate<String, byte[]> template : profileTemplates.values()) {
+			template.getProducerFactory().reset();
+		}
+		for (KafkaTemplate<String, byte[]> template : laneTemplates.values()) {
+			template.getProducerFactory().reset();
+		}
+	}
+
+	/**
+	 * Profilo del producer di una coda di priorita: eredita il profilo di invio del topic indexer, se presente.
+	 * La coda ad alta priorita non attende il riempimento del batch.
+	 */
+	private KafkaDeliveryProfileDTO laneProfile(final String topic, final PriorityTypeEnum priority) {
+		KafkaDeliveryProfileDTO profile = kafkaDeliveryProfileCFG.getProfile(kafkaTopicCFG.getProfile(topic));
+		KafkaDeliveryProfileDTO.KafkaDeliveryProfileDTOBuilder builder = profile != null ? profile.toBuilder() : KafkaDeliveryProfileDTO.builder();
+		builder.name("indexer-" + laneName(priority));
+		if (PriorityTypeEnum.HIGH.equals(priority)) {
+			builder.lingerMs(0);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Coda di priorita della transazione: quella del primo record indexer per priorita, {@code null} per il pool
+	 * condiviso.
+	 */
+	private PriorityTypeEnum lane(final List<ProducerRecord<String, byte[]>> records) {
+		for (ProducerRecord<String, byte[]> producerRecord : records) {
+			final PriorityTypeEnum priority = kafkaTopicCFG.getDispatcherIndexerPriority(producerRecord.topic());
+			if (priority != null) {
+				return priority;
+			}
+		}
+		return null;
+	}
+
+	private static String laneName(final PriorityTypeEnum priority) {
+		return PriorityTypeEnum.NULL.equals(priority) ? "medium" : priority.name().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Il record e' transazionale se e' configurato un transactional id e il profilo di invio del topic, se presente,
+	 * e' transazionale.
+	 */
+	private boolean isTransactional(final String topic) {
+		if (StringUtility.isNullOrEmpty(kafkaProducerCFG.getTransactionalId())) {
+			return false;
+		}
+		KafkaDeliveryProfileDTO profile = kafkaDeliveryProfileCFG.getProfile(kafkaTopicCFG.getProfile(topic));
+		return profile == null || profile.isTransactional();
+	}
+
+	/**
+	 * Producer non transazionale della coda di priorita o del profilo di invio del topic, o quello di default.
+	 */
+	private KafkaTemplate<String, byte[]> notxTemplate(final String topic) {
+		KafkaTemplate<String, byte[]> lane = laneTemplates.get(topic);
+		if (lane != null) {
+			return lane;
+		}
+		String profile = kafkaTopicCFG.getProfile(topic);
+		KafkaTemplate<String, byte[]> template = profile != null ? profileTemplates.get(profile) : null;
+		return template != null ? template : notxKafkaTemplate;
+	}
+
+	@Override
+	public void beginUnitOfWork() {
+		if (kafkaProducerCFG.isUnitOfWorkEnabled() && UNIT_OF_WORK.get() == null) {
+			UNIT_OF_WORK.set(new ArrayList<>());
+		}
+	}
+
+	@Override
+	public void commitUnitOfWork() {
+		final List<ProducerRecord<String, byte[]>> records = UNIT_OF_WORK.get();
+		UNIT_OF_WORK.remove();
+		if (records == null || records.isEmpty()) {
+			return;
+		}
+
+		log.debug("Commit of {} kafka records", records.size());
+		unitOfWorkRecords.record(records.size());
+		if (behindBacklog(records, true)) {
+			return;
+		}
+		final CompletableFuture<List<RecordMetadata>> commit = groupCommitSRV.submit(lane(records), records);
+		try {
+			awaitCommit(commit, transactionTimeoutMs());
+		} catch (BusinessException e) {
+			// Salvataggio nel journal solo se la richiesta e' stata annullata o la transazione e' fallita
+			if (!commit.isDone() || !spill(records, true)) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Salva i record nel journal locale, se abilitato, per il reinvio quando il broker torna disponibile.
+	 *
+	 * @return {@code true} se i record sono stati salvati
+	 */
+	private boolean spill(final List<ProducerRecord<String, byte[]>> records, final boolean trans) {
+		if (!spillJournalSRV.append(records, trans)) {
+			return false;
+		}
+		log.warn("{} record kafka salvati nel journal locale", records.size());
+		return true;
+	}
+
+	/**
+	 * Con record in attesa di reinvio i nuovi record li seguono nel journal. Se il journal e' pieno l'invio viene
+	 * rifiutato: un invio diretto supererebbe i record in attesa con la stessa chiave.
+	 * L'ordine non e' garantito per i record non transazionali falliti: sono salvati dalla callback di invio, quando
+	 * i record successivi possono essere gia' stati consegnati.
+	 *
+	 * @return {@code true} se i record sono stati salvati dietro quelli in attesa, {@code false} se non ci sono
+	 *         record in attesa
+	 */
+	private boolean behindBacklog(final List<ProducerRecord<String, byte[]>> records, final boolean trans) {
+		if (!spillJournalSRV.isPending()) {
+			return false;
+		}
+		if (!spill(records, trans)) {
+			throw new BusinessException("Journal kafka pieno con record in attesa di reinvio, invio rifiutato");
+		}
+		return true;
+	}
+
+	/**
+	 * Reinvio dei record salvati nel journal, nell'ordine di salvataggio.
+	 */
+	private CompletableFuture<?> replay(final List<ProducerRecord<String, byte[]>> records, final boolean trans) {
+		if (trans && !StringUtility.isNullOrEmpty(kafkaProducerCFG.getTransactionalId())) {
+			return groupCommitSRV.submit(lane(records), records);
+		}
+		final CompletableFuture<?>[] sent = new CompletableFuture<?>[records.size()];
+		for (int i = 0; i < sent.length; i++) {
+			sent[i] = notxTemplate(records.get(i).topic()).send(records.get(i));
+		}
+		return CompletableFuture.allOf(sent);
+	}
+
+	/**
+	 * Con il journal abilitato l'invio transazionale attende al piu' send-deadline-ms prima del salvataggio locale.
+	 */
+	private long transactionTimeoutMs() {
+		final long maxWait = kafkaProducerCFG.getGroupCommitMaxWaitMs();
+		return spillJournalSRV.isEnabled() ? Math.min(maxWait, spillJournalCFG.getSendDeadlineMs()) : maxWait;
+	}
+
+	/**
+	 * Con un'unita' di lavoro aperta il record transazionale viene accodato e inviato a fine richiesta.
+	 *
+	 * @return {@code true} se il record e' stato accodato
+	 */
+	private static boolean enlist(final ProducerRecord<String, byte[]> producerRecord, final boolean trans) {
+		final List<ProducerRecord<String, byte[]>> records = trans ? UNIT_OF_WORK.get() : null;
+		if (records != null) {
+			records.add(producerRecord);
+		}
+		return records != null;
+	}
+
 	@Override
 	public RecordMetadata sendMessage(String topic, String key, String value, boolean trans) {
+		return sendMessage(topic, key, value != null ? value.getBytes(StandardCharsets.UTF_8) : null, trans);
+	}
+
+	@Override
+	public RecordMetadata sendMessage(String topic, String key, byte[] value, boolean trans) {
+		return sendMessage(topic, key, value, trans, null);
+	}
+
+	private RecordMetadata sendMessage(String topic, String key, byte[] value, boolean trans, Timer latency) {
 		RecordMetadata out = null;
-		ProducerRecord<String, String> producerRecord = new ProducerRecord<>(topic, key, value);
+		ProducerRecord<String, byte[]> producerRecord = new ProducerRecord<>(topic, key, value);
 		try {
-			out = kafkaSend(producerRecord, trans);
+			out = kafkaSend(producerRecord, trans, latency);
 		} catch (Exception e) {
 			log.error("Send failed.", e);
 			throw new BusinessException(e);
@@ -84,46 +376,66 @@ public class KafkaSRV implements IKafkaSRV {
 		return out;
 	}
 
-	@SuppressWarnings("unchecked")
-	private RecordMetadata kafkaSend(ProducerRecord<String, String> producerRecord, boolean trans) {
+	/**
+	 * @param latency Timer della latenza di consegna, {@code null} se non rilevata; non e' rilevata per i record
+	 *                accodati all'unita' di lavoro o salvati nel journal
+	 */
+	private RecordMetadata kafkaSend(ProducerRecord<String, byte[]> producerRecord, boolean trans, Timer latency) {
 		RecordMetadata out = null;
-		Object result = null;
+		final long start = System.nanoTime();
+
+		if (enlist(producerRecord, trans)) {
+			return out;
+		}
+
+		final List<ProducerRecord<String, byte[]>> records = List.of(producerRecord);
+		if (behindBacklog(records, trans)) {
+			return out;
+		}
 
 		if (trans) {
-			result = txKafkaTemplate.executeInTransaction(t -> {
-				try {
-					return t.send(producerRecord).get();
-				} catch (InterruptedException e) {
-					log.error("InterruptedException caught. Interrupting thread...");
-					Thread.currentThread().interrupt();
-					throw new BusinessException(e);
-				} catch (Exception e) {
-					throw new BusinessException(e);
+			final CompletableFuture<List<RecordMetadata>> commit = groupCommitSRV.submit(lane(records), records);
+			try {
+				out = awaitCommit(commit, transactionTimeoutMs()).get(0);
+				log.debug("Message sent successfully");
+				record(latency, start);
+			} catch (BusinessException e) {
+				if (!commit.isDone() || !spill(records, true)) {
+					throw e;
 				}
-			});
+			}
 		} else {
-			notxKafkaTemplate.send(producerRecord);
+			notxTemplate(producerRecord.topic()).send(producerRecord).whenComplete((result, ex) -> {
+				if (ex == null) {
+					record(latency, start);
+				} else if (!spill(records, false)) {
+					log.error("Send failed.", ex);
+				}
+			});
 		}
+		return out;
+	}
 
-		if (result != null) {
-			SendResult<String, String> sendResult = (SendResult<String, String>) result;
-			out = sendResult.getRecordMetadata();
-			log.debug("Message sent successfully");
+	private static void record(final Timer latency, final long start) {
+		if (latency != null) {
+			latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
 		}
-		return out;
 	}
 
 	@Override
-	public void notifyChannel(final String key, final String kafkaValue, TipoDocAltoLivEnum documentType, DestinationTypeEnum destinationType) {
+	public void notifyChannel(final String key, final String kafkaValue, final PriorityTypeEnum priorityType, TipoDocAltoLivEnum documentType, DestinationTypeEnum destinationType) {
 		log.debug("Destination: {}", destinationType.name());
 		try {
+			final PriorityTypeEnum priority = priorityType != null ? priorityType : PriorityTypeEnum.NULL;
+			final String topic = kafkaTopicCFG.getDispatcherIndexerTopic(priority);
+			final byte[] value = kafkaValue != null ? kafkaValue.getBytes(StandardCharsets.UTF_8) : null;
 
-			if (StringUtility.isNullOrEmpty(kafkaProducerCFG.getTransactionalId())) {
+			if (!isTransactional(topic)) {
 				log.info("PRODUCER NON TRANSAZIONALE");
-				sendMessage(kafkaTopicCFG.getDispatcherIndexerTopic(), key, kafkaValue, false);
+				sendMessage(topic, key, value, false, laneLatency.get(priority));
 			} else {
 				log.info("PRODUCER TRANSAZIONALE");
-				sendMessage(kafkaTopicCFG.getDispatcherIndexerTopic(), key, kafkaValue, true);
+				sendMessage(topic, key, value, true, laneLatency.get(priority));
 			}
 		} catch (Exception e) {
 			log.error("Error sending kafka message", e);
@@ -221,7 +533,7 @@ public class KafkaSRV implements IKafkaSRV {
 		String json;
 		// Try to deserialize message
 		try {
-			json = new ObjectMapper().writeValueAsString(o);
+			json = JsonUtility.getWriter().writeValueAsString(o);
 		} catch (JsonProcessingException e) {
 			json = "Unable to deserialize content request";
 		}
@@ -231,7 +543,7 @@ public class KafkaSRV implements IKafkaSRV {
 	private void sendIndexerRetryMessage(final String workflowInstanceId, final String json,
 			final String topic) {
 
-		if (StringUtility.isNullOrEmpty(kafkaProducerCFG.getTransactionalId())) {
+		if (!isTransactional(topic)) {
 			log.info("PRODUCER NON TRANSAZIONALE");
 			sendMessage(topic, workflowInstanceId, json, false);
 		} else {
@@ -249,15 +561,10 @@ public class KafkaSRV implements IKafkaSRV {
                     .message(message).identificativoDocumento(documentId).tipoAttivita(tipoAttivita)
                     .microserviceName(msName).build();
 
-            String json = truncateMessageIfNecessary(statusManagerMessage);
+            byte[] json = MessageEncoderUtility.encode(statusManagerMessage,
+                    MessageEncoderUtility.maxPayloadSize(kafkaProducerCFG.getMaxRequestSize()));
 
-            if (StringUtility.isNullOrEmpty(kafkaProducerCFG.getTransactionalId())) {
-                log.info("PRODUCER NON TRANSAZIONALE");
-                sendMessage(kafkaTopicCFG.getStatusManagerTopic(), workflowInstanceId, json, false);
-            } else {
-                log.info("PRODUCER TRANSAZIONALE");
-                sendMessage(kafkaTopicCFG.getStatusManagerTopic(), workflowInstanceId, json, true);
-            }
+            publishStatus(workflowInstanceId, eventType, json);
         } catch (Exception ex) {
             log.error("Error while send status message : ", ex);
             throw new BusinessException(ex);
@@ -276,15 +583,10 @@ public class KafkaSRV implements IKafkaSRV {
 					.organizzazione(jwtClaimDTO != null ? jwtClaimDTO.getSubject_organization_id() : null)
 					.microserviceName(msName).build();
 
-			String json = truncateMessageIfNecessary(statusManagerMessage);
+			byte[] json = MessageEncoderUtility.encode(statusManagerMessage,
+					MessageEncoderUtility.maxPayloadSize(kafkaProducerCFG.getMaxRequestSize()));
 
-			if (StringUtility.isNullOrEmpty(kafkaProducerCFG.getTransactionalId())) {
-				log.info("PRODUCER NON TRANSAZIONALE");
-				sendMessage(kafkaTopicCFG.getStatusManagerTopic(), workflowInstanceId, json, false);
-			} else {
-				log.info("PRODUCER TRANSAZIONALE");
-				sendMessage(kafkaTopicCFG.getStatusManagerTopic(), workflowInstanceId, json, true);
-			}
+			publishStatus(workflowInstanceId, eventType, json);
 		} catch (Exception ex) {
 			log.error("Error while send status message : ", ex);
 			throw new BusinessException(ex);
@@ -292,23 +594,80 @@ public class KafkaSRV implements IKafkaSRV {
 	}
 
 	/**
-	 * tronca il campo message di KafkaStatusManagerDTO se risulta maggiore di 1 MB
-	 * (max
-	 * kafka producer request size)
-	 * 
-	 * @param dto
-	 * @return
+	 * Accoda il messaggio di stato sulla coda del workflow, o nell'unita' di lavoro della richiesta se aperta.
+	 * Il chiamante attende la consegna solo per i tipi di evento configurati come critici o se l'invio asincrono
+	 * e' disabilitato.
 	 */
-	private String truncateMessageIfNecessary(KafkaStatusManagerDTO dto) {
-		String json = StringUtility.toJSONJackson(dto);
-		int maxProducerSize = kafkaProducerCFG.getMaxRequestSize();
-		if (json.length() >= maxProducerSize) {
-			int newTruncatedSize = maxProducerSize / 1024;
-			String truncatedMessage = dto.getMessage().substring(0, newTruncatedSize);
-			dto.setMessage(truncatedMessage);
-			json = StringUtility.toJSONJackson(dto);
+	private void publishStatus(final String workflowInstanceId, final EventTypeEnum eventType, final byte[] json) {
+		final boolean trans = isTransactional(kafkaTopicCFG.getStatusManagerTopic());
+		final ProducerRecord<String, byte[]> producerRecord = new ProducerRecord<>(kafkaTopicCFG.getStatusManagerTopic(), workflowInstanceId, json);
+		if (enlist(producerRecord, trans)) {
+			return;
+		}
+
+		final List<ProducerRecord<String, byte[]>> records = List.of(producerRecord);
+		if (behindBacklog(records, trans)) {
+			return;
+		}
+
+		final CompletableFuture<RecordMetadata> delivery = statusPublisherSRV.submit(workflowInstanceId,
+				() -> kafkaSendAsync(producerRecord, trans));
+		if (spillJournalSRV.isEnabled()) {
+			delivery.whenComplete((metadata, ex) -> {
+				if (ex != null && !spill(records, trans)) {
+					log.error("Messaggio di stato non salvato nel journal per il workflow {}", workflowInstanceId);
+				}
+			});
+		}
+
+		if (!kafkaStatusCFG.isAsyncEnabled() || awaitEventTypes.contains(eventType)) {
+			try {
+				await(delivery, kafkaStatusCFG.getAwaitTimeoutMs());
+			} catch (BusinessException e) {
+				// Con il journal abilitato il messaggio non consegnato viene salvato per il reinvio
+				if (!spillJournalSRV.isEnabled()) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	private CompletableFuture<RecordMetadata> kafkaSendAsync(ProducerRecord<String, byte[]> producerRecord, boolean trans) {
+		if (trans) {
+			return groupCommitSRV.submit(lane(List.of(producerRecord)), List.of(producerRecord)).thenApply(metadata -> metadata.get(0));
+		}
+		return notxTemplate(producerRecord.topic()).send(producerRecord).thenApply(SendResult::getRecordMetadata);
+	}
+
+	/**
+	 * Attesa del commit di gruppo. Scaduto il timeout la richiesta viene annullata se il thread di commit non l'ha
+	 * ancora presa in carico; altrimenti si attende l'esito della transazione, cosi' i record non vengono salvati nel
+	 * journal mentre la loro transazione puo' ancora essere confermata.
+	 */
+	private static List<RecordMetadata> awaitCommit(final CompletableFuture<List<RecordMetadata>> commit, final long timeoutMs) {
+		try {
+			return await(commit, timeoutMs);
+		} catch (BusinessException e) {
+			if (!(e.getCause() instanceof TimeoutException) || commit.cancel(false)) {
+				throw e;
+			}
+		}
+		log.warn("Transazione kafka in corso oltre {} ms, attesa dell'esito", timeoutMs);
+		return await(commit, Long.MAX_VALUE);
+	}
+
+	private static <T> T await(final CompletableFuture<T> delivery, final long timeoutMs) {
+		try {
+			return delivery.get(timeoutMs, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			log.error("InterruptedException caught. Interrupting thread...");
+			Thread.currentThread().interrupt();
+			throw new BusinessException(e);
+		} catch (ExecutionException e) {
+			throw new BusinessException(e);
+		} catch (TimeoutException e) {
+			throw new BusinessException("Timeout nella consegna del messaggio kafka", e);
 		}
-		return json;
 	}
 
 }
@@ -0,0 +1,568 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaSpillJournalCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IKafkaSpillJournalSRV;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Journal su file mappati in memoria, diviso in segmenti di dimensione fissa.
+ * Ogni elemento e' preceduto da lunghezza e CRC32C; il file di checkpoint registra segmento e offset del primo
+ * elemento non ancora reinviato. All'avvio i segmenti sono riletti dal checkpoint e la scrittura riprende dopo
+ * l'ultimo elemento integro, scartando un'eventuale scrittura interrotta. I segmenti reinviati sono cancellati.
+ * Gli elementi consecutivi dello stesso tipo sono reinviati insieme, fino a replay-batch-size, e il reinvio attende
+ * sempre l'esito dell'invio prima di ritentare. Il reinvio e' comunque almeno una volta: un record puo' essere
+ * consegnato due volte se il crash avviene tra invio e checkpoint, o se il producer segnala come fallita una
+ * transazione il cui commit e' stato invece registrato dal broker.
+ * Con force-interval-ms maggiore di zero la scrittura su disco e' raggruppata: un crash della macchina (non del solo
+ * processo) puo' perdere gli elementi salvati nell'ultimo intervallo.
+ */
+@Slf4j
+@Service
+public class KafkaSpillJournalSRV implements IKafkaSpillJournalSRV {
+
+	private static final String JOURNAL_METRIC = "kafka.spill-journal";
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private static final String CHECKPOINT_FILE = "checkpoint";
+
+	/**
+	 * Lunghezza e CRC di ogni elemento.
+	 */
+	private static final int HEADER_SIZE = 8;
+
+	/**
+	 * Segmento e offset del checkpoint.
+	 */
+	private static final int CHECKPOINT_SIZE = 12;
+
+	private static final long SHUTDOWN_TIMEOUT_MS = 10_000;
+
+	@Autowired
+	private KafkaSpillJournalCFG journalCFG;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private final Object lock = new Object();
+
+	/**
+	 * Segmenti dal piu' vecchio (lettura) al piu' recente (scrittura).
+	 */
+	private final Deque<Segment> segments = new ArrayDeque<>();
+
+	/**
+	 * Offset del primo elemento da reinviare nel segmento piu' vecchio.
+	 */
+	private int readOffset;
+
+	private volatile int pending;
+
+	private Path directory;
+
+	private FileChannel checkpoint;
+
+	private Thread drainer;
+
+	private volatile boolean running;
+
+	/**
+	 * Ultima scrittura su disco del segmento in scrittura.
+	 */
+	private long lastForce;
+
+	private Counter appended;
+
+	private Counter replayed;
+
+	private Counter rejected;
+
+	private Counter corrupted;
+
+	private Counter replayFailures;
+
+	private Timer replayDelay;
+
+	@PostConstruct
+	public void postConstruct() {
+		appended = Counter.builder(JOURNAL_METRIC + ".appended")
+			.description("Record salvati nel journal")
+			.register(meterRegistry);
+		replayed = Counter.builder(JOURNAL_METRIC + ".replayed")
+			.description("Record reinviati dal journal")
+			.register(meterRegistry);
+		rejected = Counter.builder(JOURNAL_METRIC + ".rejected")
+			.description("Record non salvati per journal pieno")
+			.register(meterRegistry);
+		corrupted = Counter.builder(JOURNAL_METRIC + ".corrupted")
+			.description("Elementi del journal scartati per CRC non valido")
+			.register(meterRegistry);
+		replayFailures = Counter.builder(JOURNAL_METRIC + ".replay.failures")
+			.description("Tentativi di reinvio falliti")
+			.register(meterRegistry);
+		replayDelay = Timer.builder(JOURNAL_METRIC + ".replay.delay")
+			.description("Tempo tra salvataggio nel journal e reinvio")
+			.register(meterRegistry);
+		Gauge.builder(JOURNAL_METRIC + ".pending", this, journal -> journal.pending)
+			.description("Elementi in attesa di reinvio")
+			.register(meterRegistry);
+		Gauge.builder(JOURNAL_METRIC + ".size", this, KafkaSpillJournalSRV::size)
+			.description("Occupazione su disco del journal in byte")
+			.register(meterRegistry);
+
+		if (journalCFG.isEnabled()) {
+			try {
+				recover();
+			} catch (IOException e) {
+				throw new BusinessException("Errore nell'apertura del journal kafka", e);
+			}
+		}
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		running = false;
+		if (drainer != null) {
+			drainer.interrupt();
+			try {
+				drainer.join(SHUTDOWN_TIMEOUT_MS);
+			} catch (InterruptedException e) {
+				log.error("InterruptedException caught. Interrupting thread...");
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (lock) {
+			for (Segment segment : segments) {
+				force(segment);
+				close(segment.channel);
+			}
+			segments.clear();
+			close(checkpoint);
+		}
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return journalCFG.isEnabled();
+	}
+
+	@Override
+	public boolean isPending() {
+		return pending > 0;
+	}
+
+	@Override
+	public boolean append(final List<ProducerRecord<String, byte[]>> records, final boolean trans) {
+		if (!journalCFG.isEnabled()) {
+			return false;
+		}
+
+		final byte[] payload = encode(records, trans);
+		final int size = HEADER_SIZE + payload.length;
+		final CRC32C crc = new CRC32C();
+		crc.update(payload);
+
+		synchronized (lock) {
+			Segment tail = segments.peekLast();
+			if (tail == null || tail.end + size > tail.capacity) {
+				if (segments.size() >= maxSegments() || size > journalCFG.getSegmentSize()) {
+					log.error("Journal kafka pieno, {} record non salvati", records.size());
+					rejected.increment(records.size());
+					return false;
+				}
+				try {
+					if (tail != null) {
+						force(tail);
+					}
+					tail = open(tail != null ? tail.id + 1 : 0, journalCFG.getSegmentSize());
+				} catch (IOException e) {
+					log.error("Errore nella creazione del segmento del journal kafka", e);
+					rejected.increment(records.size());
+					return false;
+				}
+				segments.addLast(tail);
+			}
+
+			final int offset = tail.end;
+			tail.buffer.putInt(offset, payload.length);
+			tail.buffer.putInt(offset + 4, (int) crc.getValue());
+			tail.buffer.put(offset + HEADER_SIZE, payload);
+			if (offset + size + 4 <= tail.capacity) {
+				// Terminatore: una scrittura successiva interrotta non viene confusa con dati precedenti
+				tail.buffer.putInt(offset + size, 0);
+			}
+			tail.end += size;
+			if (System.currentTimeMillis() - lastForce >= journalCFG.getForceIntervalMs()) {
+				force(tail);
+			}
+			pending++;
+			appended.increment(records.size());
+			lock.notifyAll();
+		}
+		return true;
+	}
+
+	@Override
+	public void start(final Replayer replayer) {
+		if (!journalCFG.isEnabled() || drainer != null) {
+			return;
+		}
+		running = true;
+		drainer = new Thread(() -> drain(replayer), "kafka-spill-journal");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	private void drain(final Replayer replayer) {
+		while (running) {
+			try {
+				final List<Entry> batch = next();
+				if (batch.isEmpty()) {
+					continue;
+				}
+				final List<ProducerRecord<String, byte[]>> records = new ArrayList<>();
+				for (Entry entry : batch) {
+					records.addAll(entry.records);
+				}
+				try {
+					// Nessun timeout: un nuovo tentativo mentre l'invio precedente e' in corso duplicherebbe i record
+					replayer.replay(records, batch.get(0).trans).get();
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					replayFailures.increment();
+					log.warn("Reinvio dal journal kafka fallito, nuovo tentativo tra {} ms", journalCFG.getRetryIntervalMs(), e);
+					Thread.sleep(journalCFG.getRetryIntervalMs());
+					continue;
+				}
+				ack(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (IOException e) {
+				log.error("Errore nell'aggiornamento del checkpoint del journal kafka", e);
+			}
+		}
+	}
+
+	/**
+	 * @return Elementi consecutivi dello stesso tipo da reinviare, vuoto se il journal e' vuoto dopo l'attesa
+	 */
+	private List<Entry> next() throws InterruptedException, IOException {
+		synchronized (lock) {
+			skipDrained();
+			final Segment tail = segments.peekLast();
+			if (tail != null && System.currentTimeMillis() - lastForce >= journalCFG.getForceIntervalMs()) {
+				// Salvataggi non ancora scritti su disco con force-interval-ms
+				force(tail);
+			}
+			final Segment head = segments.peekFirst();
+			if (head == null || readOffset >= head.end) {
+				lock.wait(journalCFG.getRetryIntervalMs());
+				return List.of();
+			}
+
+			final List<Entry> out = new ArrayList<>();
+			int offset = readOffset;
+			while (offset < head.end && out.size() < Math.max(1, journalCFG.getReplayBatchSize())) {
+				final int length = head.buffer.getInt(offset);
+				final Entry entry = decode(head.buffer.slice(offset + HEADER_SIZE, length), HEADER_SIZE + length);
+				if (!out.isEmpty() && entry.trans != out.get(0).trans) {
+					break;
+				}
+				out.add(entry);
+				offset += entry.size;
+			}
+			return out;
+		}
+	}
+
+	private void ack(final List<Entry> batch) throws IOException {
+		synchronized (lock) {
+			// Metriche aggiornate prima di pending: chi attende lo svuotamento del journal le trova gia' registrate
+			final long now = System.currentTimeMillis();
+			for (Entry entry : batch) {
+				replayed.increment(entry.records.size());
+				replayDelay.record(Math.max(0, now - entry.timestamp), TimeUnit.MILLISECONDS);
+				readOffset += entry.size;
+			}
+			pending -= batch.size();
+			skipDrained();
+			writeCheckpoint();
+		}
+	}
+
+	/**
+	 * Scrive su disco la parte del segmento salvata dall'ultima scrittura, incluso il terminatore.
+	 */
+	private void force(final Segment segment) {
+		if (segment.forced < segment.end) {
+			segment.buffer.force(segment.forced, Math.min(segment.end + 4, segment.capacity) - segment.forced);
+			segment.forced = segment.end;
+			lastForce = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Cancella i segmenti gia' reinviati, tranne quello in scrittura.
+	 */
+	private void skipDrained() throws IOException {
+		boolean moved = false;
+		while (segments.size() > 1 && readOffset >= segments.peekFirst().end) {
+			Segment drained = segments.removeFirst();
+			readOffset = 0;
+			moved = true;
+			close(drained.channel);
+			Files.deleteIfExists(drained.path);
+		}
+		if (moved) {
+			writeCheckpoint();
+		}
+	}
+
+	private void writeCheckpoint() throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_SIZE);
+		buffer.putLong(segments.isEmpty() ? 0 : segments.peekFirst().id).putInt(readOffset).flip();
+		checkpoint.write(buffer, 0);
+		checkpoint.force(false);
+	}
+
+	private void recover() throws IOException {
+		directory = Paths.get(journalCFG.getDirectory());
+		Files.createDirectories(directory);
+		checkpoint = FileChannel.open(directory.resolve(CHECKPOINT_FILE), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		long checkpointSegment = -1;
+		int checkpointOffset = 0;
+		final ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_SIZE);
+		if (checkpoint.read(buffer, 0) == CHECKPOINT_SIZE) {
+			buffer.flip();
+			checkpointSegment = buffer.getLong();
+			checkpointOffset = buffer.getInt();
+		}
+
+		final List<Path> files;
+		try (Stream<Path> list = Files.list(directory)) {
+			files = list.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+		}
+
+		synchronized (lock) {
+			for (Path file : files) {
+				final String name = file.getFileName().toString();
+				final long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+				if (id < checkpointSegment) {
+					Files.delete(file);
+					continue;
+				}
+				final Segment segment = open(id, 0);
+				final int start = id == checkpointSegment ? checkpointOffset : 0;
+				if (segments.isEmpty()) {
+					readOffset = start;
+				}
+				segment.end = scan(segment, start);
+				segment.forced = segment.end;
+				segments.addLast(segment);
+			}
+		}
+		if (pending > 0) {
+			log.warn("Journal kafka: {} elementi da reinviare", pending);
+		}
+	}
+
+	/**
+	 * Conta gli elementi integri a partire dall'offset indicato.
+	 *
+	 * @return Offset successivo all'ultimo elemento integro
+	 */
+	private int scan(final Segment segment, final int start) {
+		int offset = start;
+		while (offset + HEADER_SIZE <= segment.capacity) {
+			final int length = segment.buffer.getInt(offset);
+			if (length == 0) {
+				break;
+			}
+			if (length < 0 || length > segment.capacity - offset - HEADER_SIZE || !valid(segment, offset, length)) {
+				log.warn("Journal kafka: elemento non valido nel segmento {} all'offset {}, dati successivi scartati", segment.id, offset);
+				corrupted.increment();
+				break;
+			}
+			offset += HEADER_SIZE + length;
+			pending++;
+		}
+		return offset;
+	}
+
+	private static boolean valid(final Segment segment, final int offset, final int length) {
+		final CRC32C crc = new CRC32C();
+		crc.update(segment.buffer.slice(offset + HEADER_SIZE, length));
+		return (int) crc.getValue() == segment.buffer.getInt(offset + 4);
+	}
+
+	/**
+	 * Apre il segmento, creandolo della dimensione indicata se non esiste.
+	 */
+	private Segment open(final long id, final int size) throws IOException {
+		final Path path = directory.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+		final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		final int capacity = (int) Math.max(channel.size(), size);
+		final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		return new Segment(id, path, channel, buffer, capacity, 0, 0);
+	}
+
+	private long maxSegments() {
+		return Math.max(1, journalCFG.getMaxSize() / Math.max(1, journalCFG.getSegmentSize()));
+	}
+
+	private double size() {
+		synchronized (lock) {
+			long out = 0;
+			for (Segment segment : segments) {
+				out += segment.capacity;
+			}
+			return out;
+		}
+	}
+
+	private static byte[] encode(final List<ProducerRecord<String, byte[]>> records, final boolean trans) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeBoolean(trans);
+			out.writeLong(System.currentTimeMillis());
+			out.writeInt(records.size());
+			for (ProducerRecord<String, byte[]> producerRecord : records) {
+				writeBytes(out, producerRecord.topic().getBytes(StandardCharsets.UTF_8));
+				writeBytes(out, producerRecord.key() != null ? producerRecord.key().getBytes(StandardCharsets.UTF_8) : null);
+				writeBytes(out, producerRecord.value());
+			}
+		} catch (IOException e) {
+			throw new BusinessException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeBytes(final DataOutputStream out, final byte[] value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(value.length);
+			out.write(value);
+		}
+	}
+
+	private static Entry decode(final ByteBuffer payload, final int size) {
+		final boolean trans = payload.get() != 0;
+		final long timestamp = payload.getLong();
+		final int count = payload.getInt();
+		final List<ProducerRecord<String, byte[]>> records = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			final String topic = new String(readBytes(payload), StandardCharsets.UTF_8);
+			final byte[] key = readBytes(payload);
+			final byte[] value = readBytes(payload);
+			records.add(new ProducerRecord<>(topic, key != null ? new String(key, StandardCharsets.UTF_8) : null, value));
+		}
+		return new Entry(records, trans, timestamp, size);
+	}
+
+	private static byte[] readBytes(final ByteBuffer payload) {
+		final int length = payload.getInt();
+		if (length < 0) {
+			return null;
+		}
+		final byte[] out = new byte[length];
+		payload.get(out);
+		return out;
+	}
+
+	private static void close(final FileChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.warn("Errore nella chiusura del journal kafka", e);
+			}
+		}
+	}
+
+	@AllArgsConstructor
+	private static final class Segment {
+
+		private final long id;
+
+		private final Path path;
+
+		private final FileChannel channel;
+
+		private final MappedByteBuffer buffer;
+
+		private final int capacity;
+
+		/**
+		 * Offset successivo all'ultimo elemento scritto.
+		 */
+		private int end;
+
+		/**
+		 * Offset fino al quale il segmento e' stato scritto su disco.
+		 */
+		private int forced;
+
+	}
+
+	@AllArgsConstructor
+	private static final class Entry {
+
+		private final List<ProducerRecord<String, byte[]>> records;
+
+		private final boolean trans;
+
+		private final long timestamp;
+
+		private final int size;
+
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.PdfCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PdfExtractionStrategyEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IPdfExtractionOrderSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
+
+/**
+ * Tabella in memoria dei punteggi delle strategie di estrazione per issuer.
+ * Ad ogni successo i punteggi della voce decadono e la strategia vincente guadagna un punto, cosi' un
+ * cambio di modalita' dell'issuer viene recepito dopo poche richieste. Le voci sono limitate in numero
+ * ed eliminate in ordine di ultimo utilizzo.
+ */
+@Service
+public class PdfExtractionOrderSRV implements IPdfExtractionOrderSRV {
+
+	private static final PdfExtractionStrategyEnum[] STRATEGIES = PdfExtractionStrategyEnum.values();
+
+	@Autowired
+	private PdfCFG pdfCFG;
+
+	private final Map<String, double[]> scores = new LinkedHashMap<String, double[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, double[]> eldest) {
+			return size() > pdfCFG.getExtractionOrderMaxEntries();
+		}
+	};
+
+	@Override
+	public List<PdfExtractionStrategyEnum> order(final String issuer, final String content, final List<PdfExtractionStrategyEnum> strategies) {
+		if (StringUtility.isNullOrEmpty(issuer) || strategies.size() < 2) {
+			return strategies;
+		}
+
+		final double[] current;
+		synchronized (scores) {
+			double[] entry = scores.get(key(issuer, content));
+			current = entry != null ? entry.clone() : null;
+		}
+		if (current == null) {
+			return strategies;
+		}
+
+		// Ordinamento stabile: a parita' di punteggio resta l'ordine di default
+		List<PdfExtractionStrategyEnum> out = new ArrayList<>(strategies);
+		out.sort(Comparator.comparingDouble((PdfExtractionStrategyEnum s) -> current[s.ordinal()]).reversed());
+		return out;
+	}
+
+	@Override
+	public void success(final String issuer, final String content, final PdfExtractionStrategyEnum strategy) {
+		if (StringUtility.isNullOrEmpty(issuer)) {
+			return;
+		}
+
+		final double decay = pdfCFG.getExtractionOrderDecay();
+		synchronized (scores) {
+			double[] entry = scores.computeIfAbsent(key(issuer, content), k -> new double[STRATEGIES.length]);
+			for (int i = 0; i < entry.length; i++) {
+				entry[i] *= decay;
+			}
+			entry[strategy.ordinal()] += 1;
+		}
+	}
+
+	@Override
+	public Map<String, Map<String, Double>> snapshot() {
+		Map<String, Map<String, Double>> out = new TreeMap<>();
+		synchronized (scores) {
+			for (Map.Entry<String, double[]> entry : scores.entrySet()) {
+				Map<String, Double> values = new LinkedHashMap<>();
+				for (PdfExtractionStrategyEnum strategy : STRATEGIES) {
+					values.put(strategy.getTag(), entry.getValue()[strategy.ordinal()]);
+				}
+				out.put(entry.getKey(), values);
+			}
+		}
+		return out;
+	}
+
+	private static String key(final String issuer, final String content) {
+		return content + ":" + issuer;
+	}
+
+}
@@ -0,0 +1,273 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl;
+
+import static it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PdfExtractionStrategyEnum.ATTACHMENT;
+import static it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PdfExtractionStrategyEnum.TEXT;
+import static it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PdfExtractionStrategyEnum.XFA;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.CDACFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.FHIRCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.PdfCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.InjectionModeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PdfExtractionStrategyEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IPdfExtractionOrderSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IPdfSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.FhirUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PDFUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PdfEnvelope;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Budget di memoria per il parsing dei pdf.
+ * I pdf entro la soglia sono caricati interamente in heap; oltre la soglia, o quando il budget
+ * globale e' esaurito, PDFBox appoggia i buffer di lavoro su file temporaneo.
+ * Gli upload oltre la soglia non sono mai copiati in heap: il contenuto resta su file e viene letto ad accesso casuale.
+ * Gestisce inoltre l'estrazione di CDA e Bundle FHIR, registrando la strategia che ha avuto successo.
+ */
+@Slf4j
+@Service
+public class PdfSRV implements IPdfSRV {
+
+	private static final String SPILL_METRIC = "pdf.parse.spill";
+
+	private static final String CDA_CONTENT = "cda";
+
+	private static final String FHIR_CONTENT = "fhir";
+
+	private static final List<PdfExtractionStrategyEnum> ATTACHMENT_STRATEGIES = List.of(ATTACHMENT);
+
+	private static final List<PdfExtractionStrategyEnum> CDA_RESOURCE_STRATEGIES = List.of(XFA);
+
+	private static final List<PdfExtractionStrategyEnum> CDA_ALL_STRATEGIES = List.of(XFA, ATTACHMENT);
+
+	private static final List<PdfExtractionStrategyEnum> FHIR_RESOURCE_STRATEGIES = List.of(XFA, TEXT);
+
+	private static final List<PdfExtractionStrategyEnum> FHIR_ALL_STRATEGIES = List.of(ATTACHMENT, XFA, TEXT);
+
+	@Autowired
+	private PdfCFG pdfCFG;
+
+	@Autowired
+	private CDACFG cdaCFG;
+
+	@Autowired
+	private FHIRCFG fhirCFG;
+
+	@Autowired
+	private IPdfExtractionOrderSRV extractionOrderSRV;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	/**
+	 * Byte di heap attualmente riservati dai pdf aperti.
+	 */
+	private final AtomicLong reservedBytes = new AtomicLong();
+
+	private Counter thresholdSpill;
+
+	private Counter globalCapSpill;
+
+	@PostConstruct
+	public void postConstruct() {
+		Gauge.builder("pdf.parse.reserved.bytes", reservedBytes, AtomicLong::get)
+			.description("Heap riservato dal parsing dei pdf in corso")
+			.baseUnit("bytes")
+			.register(meterRegistry);
+		thresholdSpill = Counter.builder(SPILL_METRIC).tag("reason", "threshold")
+			.description("Pdf caricati con buffer su file temporaneo").register(meterRegistry);
+		globalCapSpill = Counter.builder(SPILL_METRIC).tag("reason", "global_cap")
+			.description("Pdf caricati con buffer su file temporaneo").register(meterRegistry);
+	}
+
+	@Override
+	public PdfEnvelope open(final byte[] pdf) {
+		return open(pdf.length, (memUsageSetting, onClose) -> new PdfEnvelope(pdf, memUsageSetting, onClose));
+	}
+
+	@Override
+	public PdfEnvelope open(final MultipartFile file) throws IOException {
+		if (file.getSize() <= pdfCFG.getMemoryThresholdBytes()) {
+			return open(file.getBytes());
+		}
+
+		final File tmp = createTempFile();
+		try {
+			// Se la parte e' gia' su disco il container la sposta senza copiarla in heap
+			file.transferTo(tmp);
+			return open(tmp.length(), (memUsageSetting, onClose) -> new PdfEnvelope(tmp, null, memUsageSetting, () -> {
+				if (onClose != null) {
+					onClose.run();
+				}
+				delete(tmp);
+			}));
+		} catch (IOException | RuntimeException e) {
+			delete(tmp);
+			throw e;
+		}
+	}
+
+	private PdfEnvelope open(final long size, final BiFunction<MemoryUsageSetting, Runnable, PdfEnvelope> factory) {
+		if (size <= pdfCFG.getMemoryThresholdBytes() && reserve(size)) {
+			return factory.apply(MemoryUsageSetting.setupMainMemoryOnly(), () -> release(size));
+		}
+
+		final long mainMemory = Math.min(size, pdfCFG.getMaxMainMemoryBytes());
+		if (size > pdfCFG.getMemoryThresholdBytes() && reserve(mainMemory)) {
+			thresholdSpill.increment();
+			log.debug("Pdf di {} byte oltre la soglia, parsing con buffer misti", size);
+			return factory.apply(withTempDir(MemoryUsageSetting.setupMixed(mainMemory)), () -> release(mainMemory));
+		}
+
+		globalCapSpill.increment();
+		log.info("Budget di memoria pdf esaurito ({} byte riservati), parsing su file temporaneo", reservedBytes.get());
+		return factory.apply(withTempDir(MemoryUsageSetting.setupTempFileOnly()), null);
+	}
+
+	@Override
+	public String extractCda(final PdfEnvelope pdf, final InjectionModeEnum mode, final String issuer) {
+		List<PdfExtractionStrategyEnum> strategies = CDA_ALL_STRATEGIES;
+		if (InjectionModeEnum.ATTACHMENT.equals(mode)) {
+			strategies = ATTACHMENT_STRATEGIES;
+		} else if (InjectionModeEnum.RESOURCE.equals(mode)) {
+			strategies = CDA_RESOURCE_STRATEGIES;
+		}
+		return extract(CDA_CONTENT, issuer, strategies, strategy -> extractCda(pdf, strategy));
+	}
+
+	@Override
+	public String extractFhir(final PdfEnvelope pdf, final InjectionModeEnum mode, final String issuer) {
+		List<PdfExtractionStrategyEnum> strategies = FHIR_ALL_STRATEGIES;
+		if (InjectionModeEnum.ATTACHMENT.equals(mode)) {
+			strategies = ATTACHMENT_STRATEGIES;
+		} else if (InjectionModeEnum.RESOURCE.equals(mode)) {
+			strategies = FHIR_RESOURCE_STRATEGIES;
+		}
+		return extract(FHIR_CONTENT, issuer, strategies, strategy -> extractFhir(pdf, strategy));
+	}
+
+	/**
+	 * Prova le strategie nell'ordine appreso per l'issuer. Un errore di una strategia non blocca le successive
+	 * e viene rilanciato solo se nessuna ha successo.
+	 */
+	private String extract(final String content, final String issuer, final List<PdfExtractionStrategyEnum> strategies,
+			final Function<PdfExtractionStrategyEnum, String> extractor) {
+		RuntimeException error = null;
+		for (PdfExtractionStrategyEnum strategy : extractionOrderSRV.order(issuer, content, strategies)) {
+			try {
+				String out = extractor.apply(strategy);
+				if (!StringUtility.isNullOrEmpty(out)) {
+					extractionOrderSRV.success(issuer, content, strategy);
+					countExtraction(content, strategy.getTag());
+					return out;
+				}
+			} catch (RuntimeException e) {
+				log.debug("Estrazione {} con strategia {} fallita", content, strategy, e);
+				if (error == null) {
+					error = e;
+				}
+			}
+		}
+		countExtraction(content, "none");
+		if (error != null) {
+			throw error;
+		}
+		return null;
+	}
+
+	private String extractCda(final PdfEnvelope pdf, final PdfExtractionStrategyEnum strategy) {
+		switch (strategy) {
+		case ATTACHMENT:
+			return PDFUtility.extractContentFromAttachments(pdf, cdaCFG.getCdaAttachmentName());
+		case XFA:
+			return PDFUtility.unenvelopeA2(pdf);
+		default:
+			return null;
+		}
+	}
+
+	private String extractFhir(final PdfEnvelope pdf, final PdfExtractionStrategyEnum strategy) {
+		switch (strategy) {
+		case ATTACHMENT:
+			return PDFUtility.extractContentFromAttachments(pdf, fhirCFG.getFhirAttachmentName());
+		case XFA:
+			return FhirUtility.extractJsonFromXfa(pdf);
+		case TEXT:
+			return FhirUtility.extractJsonFromText(pdf, pdfCFG.getFhirMaxTextPages());
+		default:
+			return null;
+		}
+	}
+
+	private void countExtraction(final String content, final String strategy) {
+		meterRegistry.counter("pdf." + content + ".extraction", "strategy", strategy).increment();
+	}
+
+	private boolean reserve(final long bytes) {
+		final long max = pdfCFG.getGlobalMaxBytes();
+		long current;
+		do {
+			current = reservedBytes.get();
+			if (current + bytes > max) {
+				return false;
+			}
+		} while (!reservedBytes.compareAndSet(current, current + bytes));
+		return true;
+	}
+
+	private void release(final long bytes) {
+		reservedBytes.addAndGet(-bytes);
+	}
+
+	private File createTempFile() throws IOException {
+		if (!StringUtility.isNullOrEmpty(pdfCFG.getTempDir())) {
+			return Files.createTempFile(Paths.get(pdfCFG.getTempDir()), "upload", ".pdf").toFile();
+		}
+		return Files.createTempFile("upload", ".pdf").toFile();
+	}
+
+	private static void delete(final File file) {
+		try {
+			Files.deleteIfExists(file.toPath());
+		} catch (IOException e) {
+			log.warn("Errore in fase di cancellazione del file temporaneo {}", file, e);
+		}
+	}
+
+	private MemoryUsageSetting withTempDir(final MemoryUsageSetting setting) {
+		if (!StringUtility.isNullOrEmpty(pdfCFG.getTempDir())) {
+			setting.setTempDir(new File(pdfCFG.getTempDir()));
+		}
+		return setting;
+	}
+
+}
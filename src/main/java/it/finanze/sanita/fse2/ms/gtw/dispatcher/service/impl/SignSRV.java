@@ -11,23 +11,86 @@
  */
 package it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.PdfCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.SignatureInfoDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.SignatureValidationDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.response.ErrorResponseDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.ErrorInstanceEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.EventTypeEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.ValidationException;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.ISignSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.ISignatureCacheSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PdfEnvelope;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.SignerUtility;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
+/**
+ * Verifica PAdES. Con pdf.sign.verify.threads maggiore di 0 i campi firma di uno stesso pdf
+ * sono verificati in parallelo su un pool limitato; a coda piena la verifica avviene nel thread della richiesta.
+ * Gli esiti sono riutilizzati per i pdf identici (stesso SHA-256) gia' verificati.
+ */
 @Service
 public class SignSRV implements ISignSRV{
 
+	private static final String VERIFICATION_METRIC = "pdf.sign.verification";
+
+	@Autowired
+	private PdfCFG pdfCFG;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private ISignatureCacheSRV signatureCacheSRV;
+
+	private ThreadPoolExecutor executor;
+
+	@PostConstruct
+	public void postConstruct() {
+		final int threads = pdfCFG.getSignVerifyThreads();
+		if (threads > 0) {
+			final AtomicInteger count = new AtomicInteger();
+			executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<>(pdfCFG.getSignVerifyQueueSize()),
+					r -> {
+						Thread thread = new Thread(r, "sign-verify-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					},
+					new ThreadPoolExecutor.CallerRunsPolicy());
+			executor.allowCoreThreadTimeOut(true);
+		}
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
 	
 	@Override
 	public String checkPades(final byte[] pdf,final EventTypeEnum eventTypeEnum) {
+		try (PdfEnvelope envelope = new PdfEnvelope(pdf)) {
+			return checkPades(envelope, eventTypeEnum);
+		}
+	}
+
+	@Override
+	public String checkPades(final PdfEnvelope pdf,final EventTypeEnum eventTypeEnum) {
 		String out = "";
 		
  
@@ -36,7 +99,13 @@ public class SignSRV implements ISignSRV{
 			out = "Il pdf non risulta firmato";
 		}
 
-		SignatureValidationDTO esitoSign = SignerUtility.validate(pdf);
+		final String sha256 = pdf.getDigest().getSha256();
+		SignatureValidationDTO esitoSign = signatureCacheSRV.get(sha256);
+		if (esitoSign == null) {
+			esitoSign = SignerUtility.validate(pdf, executor);
+			recordTimings(esitoSign);
+			signatureCacheSRV.put(sha256, esitoSign);
+		}
 		if(StringUtility.isNullOrEmpty(out) && Boolean.FALSE.equals(esitoSign.getStatus())) {
 			out = "La firma del pdf non risulta valida";
 		}
@@ -53,4 +122,16 @@ public class SignSRV implements ISignSRV{
 		return out;
 	}
 
+	private void recordTimings(final SignatureValidationDTO esitoSign) {
+		for (SignatureInfoDTO signature : esitoSign.getSignatures()) {
+			if (signature.getVerificationNanos() != null) {
+				Timer.builder(VERIFICATION_METRIC)
+					.description("Tempo di lettura e verifica di un campo firma")
+					.tag("valid", String.valueOf(signature.getValid()))
+					.register(meterRegistry)
+					.record(signature.getVerificationNanos(), TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
 }
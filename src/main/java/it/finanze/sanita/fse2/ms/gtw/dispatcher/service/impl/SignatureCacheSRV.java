@@ -0,0 +1,169 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl;
+
+import java.time.Clock;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.PdfCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.SignatureInfoDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.SignatureValidationDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.ISignatureCacheSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
+import jakarta.annotation.PostConstruct;
+import lombok.AllArgsConstructor;
+
+/**
+ * Cache in memoria degli esiti della verifica PAdES. Le voci scadono dopo il TTL configurato e
+ * sono eliminate in ordine di ultimo utilizzo quando la dimensione stimata supera il limite in byte.
+ */
+@Service
+public class SignatureCacheSRV implements ISignatureCacheSRV {
+
+	private static final String CACHE_METRIC = "pdf.sign.cache";
+
+	/**
+	 * Stima dell'occupazione di una voce e di una firma, esclusi i campi testuali.
+	 */
+	private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+	private static final long SIGNATURE_OVERHEAD_BYTES = 256;
+
+	@Autowired
+	private PdfCFG pdfCFG;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private Clock clock = Clock.systemUTC();
+
+	private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final AtomicLong sizeBytes = new AtomicLong();
+
+	private Counter hits;
+
+	private Counter misses;
+
+	@PostConstruct
+	public void postConstruct() {
+		Gauge.builder(CACHE_METRIC + ".size", sizeBytes, AtomicLong::get)
+			.description("Dimensione stimata della cache degli esiti di verifica firma")
+			.baseUnit("bytes")
+			.register(meterRegistry);
+		hits = Counter.builder(CACHE_METRIC).tag("result", "hit")
+			.description("Accessi alla cache degli esiti di verifica firma").register(meterRegistry);
+		misses = Counter.builder(CACHE_METRIC).tag("result", "miss")
+			.description("Accessi alla cache degli esiti di verifica firma").register(meterRegistry);
+	}
+
+	@Override
+	public SignatureValidationDTO get(final String sha256) {
+		if (!isEnabled() || StringUtility.isNullOrEmpty(sha256)) {
+			return null;
+		}
+
+		SignatureValidationDTO out = null;
+		synchronized (entries) {
+			Entry entry = entries.get(sha256);
+			if (entry != null && entry.expiresAt <= clock.millis()) {
+				remove(sha256);
+			} else if (entry != null) {
+				out = entry.validation;
+			}
+		}
+
+		if (out != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+		}
+		return out;
+	}
+
+	@Override
+	public void put(final String sha256, final SignatureValidationDTO validation) {
+		if (!isEnabled() || StringUtility.isNullOrEmpty(sha256) || validation == null) {
+			return;
+		}
+
+		final long weight = weight(sha256, validation);
+		if (weight > pdfCFG.getSignCacheMaxBytes()) {
+			return;
+		}
+
+		final long now = clock.millis();
+		synchronized (entries) {
+			remove(sha256);
+			entries.put(sha256, new Entry(validation, now + pdfCFG.getSignCacheTtlSeconds() * 1000L, weight));
+			sizeBytes.addAndGet(weight);
+
+			// Dalla meno usata: elimina le voci scadute e quelle oltre il limite di dimensione
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while (it.hasNext()) {
+				Entry eldest = it.next().getValue();
+				if (eldest.expiresAt > now && sizeBytes.get() <= pdfCFG.getSignCacheMaxBytes()) {
+					break;
+				}
+				it.remove();
+				sizeBytes.addAndGet(-eldest.weight);
+			}
+		}
+	}
+
+	private boolean isEnabled() {
+		return pdfCFG.getSignCacheTtlSeconds() > 0 && pdfCFG.getSignCacheMaxBytes() > 0;
+	}
+
+	private void remove(final String sha256) {
+		Entry removed = entries.remove(sha256);
+		if (removed != null) {
+			sizeBytes.addAndGet(-removed.weight);
+		}
+	}
+
+	private static long weight(final String sha256, final SignatureValidationDTO validation) {
+		long out = ENTRY_OVERHEAD_BYTES + 2L * sha256.length();
+		if (validation.getSignatures() != null) {
+			for (SignatureInfoDTO signature : validation.getSignatures()) {
+				out += SIGNATURE_OVERHEAD_BYTES
+						+ length(signature.getPrincipal() != null ? signature.getPrincipal().getName() : null)
+						+ length(signature.getFieldType()) + length(signature.getFullyQualifiedName())
+						+ length(signature.getLocation()) + length(signature.getContactInfo())
+						+ length(signature.getName()) + length(signature.getReason())
+						+ length(signature.getDigestAlgOID()) + length(signature.getEncrypAlgOID());
+			}
+		}
+		return out;
+	}
+
+	private static long length(final String value) {
+		return value != null ? 2L * value.length() : 0;
+	}
+
+	@AllArgsConstructor
+	private static final class Entry {
+		private final SignatureValidationDTO validation;
+		private final long expiresAt;
+		private final long weight;
+	}
+
+}
@@ -0,0 +1,203 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaStatusCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IStatusPublisherSRV;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Invio dei messaggi di stato su code a thread singolo: la chiave determina la coda, quindi i messaggi di uno stesso
+ * workflowInstanceId restano ordinati mentre workflow diversi procedono in parallelo. Le code sono limitate e a coda
+ * piena il chiamante attende fino al timeout configurato. Con kafka.status.async.enabled=false l'invio avviene
+ * nel thread del chiamante.
+ */
+@Slf4j
+@Service
+public class StatusPublisherSRV implements IStatusPublisherSRV {
+
+	private static final String PUBLISH_METRIC = "kafka.status.publish";
+
+	/**
+	 * Attesa massima per lo svuotamento delle code alla chiusura.
+	 */
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+	@Autowired
+	private KafkaStatusCFG kafkaStatusCFG;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private ThreadPoolExecutor[] lanes;
+
+	private Counter delivered;
+
+	private Counter failed;
+
+	private Counter rejected;
+
+	private Timer latency;
+
+	@PostConstruct
+	public void postConstruct() {
+		delivered = Counter.builder(PUBLISH_METRIC).tag("result", "success")
+			.description("Messaggi di stato inviati").register(meterRegistry);
+		failed = Counter.builder(PUBLISH_METRIC).tag("result", "failure")
+			.description("Messaggi di stato inviati").register(meterRegistry);
+		rejected = Counter.builder(PUBLISH_METRIC).tag("result", "rejected")
+			.description("Messaggi di stato inviati").register(meterRegistry);
+		latency = Timer.builder(PUBLISH_METRIC + ".latency")
+			.description("Tempo tra accodamento e conferma del messaggio di stato").register(meterRegistry);
+
+		if (kafkaStatusCFG.isAsyncEnabled()) {
+			lanes = new ThreadPoolExecutor[Math.max(1, kafkaStatusCFG.getLanes())];
+			final RejectedExecutionHandler backpressure = waitForSpace(kafkaStatusCFG.getEnqueueTimeoutMs());
+			for (int i = 0; i < lanes.length; i++) {
+				final String name = "status-publisher-" + (i + 1);
+				lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<>(Math.max(1, kafkaStatusCFG.getQueueSize())),
+						r -> {
+							Thread thread = new Thread(r, name);
+							thread.setDaemon(true);
+							return thread;
+						},
+						backpressure);
+			}
+			Gauge.builder(PUBLISH_METRIC + ".pending", this, StatusPublisherSRV::pending)
+				.description("Messaggi di stato in attesa di invio")
+				.register(meterRegistry);
+		}
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		if (lanes == null) {
+			return;
+		}
+		for (ThreadPoolExecutor lane : lanes) {
+			lane.shutdown();
+		}
+		try {
+			for (ThreadPoolExecutor lane : lanes) {
+				if (!lane.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+					log.warn("Messaggi di stato non inviati alla chiusura: {}", lane.getQueue().size());
+				}
+			}
+		} catch (InterruptedException e) {
+			log.error("InterruptedException caught. Interrupting thread...");
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public CompletableFuture<RecordMetadata> submit(final String key, final Supplier<CompletableFuture<RecordMetadata>> send) {
+		final CompletableFuture<RecordMetadata> out = new CompletableFuture<>();
+		final long start = System.nanoTime();
+
+		final Runnable task = () -> send(send, (metadata, ex) -> {
+			// Metriche registrate prima del completamento, cosi' chi attende la consegna le trova aggiornate
+			record(key, start, ex);
+			if (ex != null) {
+				out.completeExceptionally(ex);
+			} else {
+				out.complete(metadata);
+			}
+		});
+		if (lanes == null) {
+			task.run();
+			return out;
+		}
+
+		try {
+			lanes[lane(key)].execute(task);
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+			record(key, start, e);
+			out.completeExceptionally(e);
+		}
+		return out;
+	}
+
+	private static void send(final Supplier<CompletableFuture<RecordMetadata>> send,
+			final BiConsumer<RecordMetadata, Throwable> done) {
+		try {
+			send.get().whenComplete(done);
+		} catch (Exception e) {
+			done.accept(null, e);
+		}
+	}
+
+	private void record(final String key, final long start, final Throwable ex) {
+		if (ex == null) {
+			delivered.increment();
+			latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		} else if (!(ex instanceof RejectedExecutionException)) {
+			failed.increment();
+			log.error("Invio del messaggio di stato fallito per il workflow {}", key, ex);
+		} else {
+			log.error("Messaggio di stato scartato per il workflow {}: coda piena", key);
+		}
+	}
+
+	private int lane(final String key) {
+		return key == null ? 0 : Math.floorMod(key.hashCode(), lanes.length);
+	}
+
+	private double pending() {
+		long out = 0;
+		for (ThreadPoolExecutor lane : lanes) {
+			out += lane.getQueue().size();
+		}
+		return out;
+	}
+
+	/**
+	 * A coda piena il chiamante attende che si liberi un posto; l'ordine di accodamento resta quello di arrivo
+	 * perche' il task non viene mai eseguito fuori dalla sua coda.
+	 */
+	private static RejectedExecutionHandler waitForSpace(final long timeoutMs) {
+		return (r, executor) -> {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Status publisher chiuso");
+			}
+			try {
+				if (!executor.getQueue().offer(r, timeoutMs, TimeUnit.MILLISECONDS)) {
+					throw new RejectedExecutionException("Coda dei messaggi di stato piena");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Accodamento interrotto", e);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,243 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ *
+ * Copyright (C) 2023 Ministero della Salute
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.utility;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.CdaHeaderDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.CdaHeaderDTO.Code;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.CdaHeaderDTO.Identifier;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Estrazione in streaming dei metadati dell'header CDA.
+ * La lettura si interrompe al primo ClinicalDocument/component, quindi il costo non dipende dalla dimensione del body.
+ * I CDA che il parser StAX rifiuta (DTD, nomi con maiuscole diverse, XML non ben formato) sono letti con Jsoup come in
+ * precedenza, cosi' da accettare gli stessi documenti.
+ */
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class CdaHeaderUtility {
+
+	private static final String CLINICAL_DOCUMENT = "ClinicalDocument";
+	private static final String COMPONENT = "component";
+	private static final String ID = "id";
+	private static final String ROOT = "root";
+	private static final String EXTENSION = "extension";
+
+	private static final XMLInputFactory FACTORY = createFactory();
+
+	private static XMLInputFactory createFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		return factory;
+	}
+
+	/**
+	 * Legge i metadati dall'header del CDA senza costruire il DOM; se il CDA non e' XML ben formato li legge dal
+	 * documento Jsoup.
+	 *
+	 * @param cda CDA in formato stringa
+	 * @return Metadati dell'header
+	 */
+	public static CdaHeaderDTO extract(final String cda) {
+		XMLStreamReader reader = null;
+		try {
+			reader = FACTORY.createXMLStreamReader(new StringReader(StringUtils.removeStart(cda, "\uFEFF")));
+			return read(reader);
+		} catch (XMLStreamException ex) {
+			log.warn("Streaming header extraction failed, falling back to Jsoup: {}", ex.getMessage());
+			return extract(Jsoup.parse(cda));
+		} finally {
+			close(reader);
+		}
+	}
+
+	/**
+	 * Legge i metadati dall'header di un CDA gia' parsato.
+	 *
+	 * @param doc Documento Jsoup del CDA
+	 * @return Metadati dell'header
+	 */
+	public static CdaHeaderDTO extract(final Document doc) {
+		List<Identifier> orderIds = new ArrayList<>();
+		for (Element order : doc.select("ClinicalDocument > inFulfillmentOf > order > id")) {
+			orderIds.add(identifier(order));
+		}
+		Element code = doc.selectFirst("ClinicalDocument > code");
+		Element confidentiality = doc.selectFirst("ClinicalDocument > confidentialityCode");
+		Element template = doc.selectFirst("ClinicalDocument > templateId");
+		Element title = doc.selectFirst("ClinicalDocument > title");
+
+		return CdaHeaderDTO.builder()
+				.patientId(identifier(doc.selectFirst("ClinicalDocument > recordTarget > patientRole > id")))
+				.authorId(identifier(doc.selectFirst("ClinicalDocument > author > assignedAuthor > id")))
+				.orderIds(orderIds)
+				.confidentialityCode(confidentiality != null ? confidentiality.attr("code") : null)
+				.code(code != null ? new Code(code.attr("code"), code.attr("displayName")) : null)
+				.templateId(template != null ? template.attr(ROOT) : null)
+				.effectiveTime(doc.select("ClinicalDocument > effectiveTime").val())
+				.title(title != null ? title.text() : null)
+				.build();
+	}
+
+	private static Identifier identifier(final Element element) {
+		return element != null ? new Identifier(element.attr(ROOT), element.attr(EXTENSION)) : null;
+	}
+
+	private static CdaHeaderDTO read(final XMLStreamReader reader) throws XMLStreamException {
+		CdaHeaderDTO.CdaHeaderDTOBuilder header = CdaHeaderDTO.builder().effectiveTime("");
+		List<Identifier> orderIds = new ArrayList<>();
+		header.orderIds(orderIds);
+
+		// Percorso dell'elemento corrente a partire da ClinicalDocument (profondita' massima utile: 4)
+		String[] path = new String[4];
+		int depth = 0;
+		boolean patientFound = false;
+		boolean authorFound = false;
+		boolean confidentialityFound = false;
+		boolean codeFound = false;
+		boolean templateFound = false;
+		boolean effectiveTimeFound = false;
+		boolean titleFound = false;
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+				continue;
+			}
+			if (event != XMLStreamConstants.START_ELEMENT) {
+				continue;
+			}
+
+			String name = reader.getLocalName();
+			depth++;
+			if (depth <= path.length) {
+				path[depth - 1] = name;
+			}
+
+			if (depth == 1) {
+				if (!CLINICAL_DOCUMENT.equals(name)) {
+					break;
+				}
+			} else if (depth == 2) {
+				if (COMPONENT.equals(name)) {
+					break;
+				}
+				switch (name) {
+				case "confidentialityCode":
+					if (!confidentialityFound) {
+						confidentialityFound = true;
+						header.confidentialityCode(attr(reader, "code"));
+					}
+					break;
+				case "code":
+					if (!codeFound) {
+						codeFound = true;
+						header.code(new Code(attr(reader, "code"), attr(reader, "displayName")));
+					}
+					break;
+				case "templateId":
+					if (!templateFound) {
+						templateFound = true;
+						header.templateId(attr(reader, ROOT));
+					}
+					break;
+				case "effectiveTime":
+					if (!effectiveTimeFound) {
+						effectiveTimeFound = true;
+						header.effectiveTime(attr(reader, "value"));
+					}
+					break;
+				case "title":
+					if (!titleFound) {
+						titleFound = true;
+						header.title(StringUtils.normalizeSpace(readText(reader)));
+						depth--;
+					}
+					break;
+				default:
+					break;
+				}
+			} else if (depth == 4 && ID.equals(name)) {
+				if (!patientFound && "recordTarget".equals(path[1]) && "patientRole".equals(path[2])) {
+					patientFound = true;
+					header.patientId(identifier(reader));
+				} else if (!authorFound && "author".equals(path[1]) && "assignedAuthor".equals(path[2])) {
+					authorFound = true;
+					header.authorId(identifier(reader));
+				} else if ("inFulfillmentOf".equals(path[1]) && "order".equals(path[2])) {
+					orderIds.add(identifier(reader));
+				}
+			}
+		}
+
+		return header.build();
+	}
+
+	/**
+	 * Concatena il testo dell'elemento corrente e dei suoi discendenti, posizionando il reader sulla chiusura dell'elemento.
+	 */
+	private static String readText(final XMLStreamReader reader) throws XMLStreamException {
+		StringBuilder text = new StringBuilder();
+		int level = 1;
+		while (level > 0 && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				level++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				level--;
+			} else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+					|| event == XMLStreamConstants.SPACE) {
+				text.append(reader.getText());
+			}
+		}
+		return text.toString();
+	}
+
+	private static Identifier identifier(final XMLStreamReader reader) {
+		return new Identifier(attr(reader, ROOT), attr(reader, EXTENSION));
+	}
+
+	private static String attr(final XMLStreamReader reader, final String name) {
+		String value = reader.getAttributeValue(null, name);
+		return value == null ? "" : value;
+	}
+
+	private static void close(final XMLStreamReader reader) {
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (XMLStreamException ex) {
+				log.warn("Error while closing cda reader", ex);
+			}
+		}
+	}
+
+}
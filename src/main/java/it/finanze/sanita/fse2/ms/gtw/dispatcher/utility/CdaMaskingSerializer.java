@@ -0,0 +1,652 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.utility;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.jsoup.Jsoup;
+import org.jsoup.parser.ParseSettings;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.Tag;
+
+import lombok.AllArgsConstructor;
+
+/**
+ * Serializzazione in streaming del CDA con il LegalAuthenticator mascherato, identica carattere per carattere a
+ * quella del parser XML di Jsoup sul documento mascherato, senza costruire il DOM del CDA: in memoria e' trattenuto
+ * il solo sottoalbero del LegalAuthenticator, il resto viene scritto man mano.
+ * Il documento e' letto due volte: la prima passata raccoglie i nomi degli elementi chiusi con {@code />}, che per
+ * Jsoup decidono la forma di tutti gli elementi vuoti con lo stesso nome.
+ * I costrutti che Jsoup corregge in modo permissivo (DOCTYPE, entita' HTML, markup non ben formato, caratteri di
+ * controllo) non sono riprodotti e sollevano {@link UnsupportedMarkupException}.
+ */
+public final class CdaMaskingSerializer {
+
+	private static final String PLACEHOLDER = "PLACEHOLDER";
+
+	private static final String LEGAL_AUTHENTICATOR = "legalauthenticator";
+
+	private static final String SIGNATURE = "signature";
+
+	/**
+	 * Tag per cui Jsoup preserva gli spazi nel calcolo del testo dell'elemento.
+	 */
+	private static final Set<String> PRESERVE_WHITESPACE = Set.of("pre", "plaintext", "title", "textarea");
+
+	private final String cda;
+
+	private final boolean removeSignature;
+
+	private final Set<String> selfClosed = new HashSet<>();
+
+	private final Map<String, Boolean> childlessSelfClosing = new HashMap<>();
+
+	private final StringBuilder buffer = new StringBuilder();
+
+	private final Deque<String> open = new ArrayDeque<>();
+
+	private Writer out;
+
+	private int pos;
+
+	/**
+	 * Elemento di cui e' stato scritto il tag di apertura senza il carattere di chiusura, in attesa di sapere se e' vuoto.
+	 */
+	private String pending;
+
+	private boolean authenticatorFound;
+
+	private Deque<MaskElement> mask;
+
+	private CdaMaskingSerializer(final String cda, final boolean removeSignature) {
+		this.cda = cda;
+		this.removeSignature = removeSignature;
+	}
+
+	/**
+	 * Scrive il CDA con il LegalAuthenticator mascherato.
+	 *
+	 * @param cda             CDA in formato stringa
+	 * @param removeSignature {@code true} per rimuovere l'elemento Signature dal LegalAuthenticator
+	 * @param writer          Destinazione della serializzazione
+	 * @return {@code true} se il LegalAuthenticator e' presente
+	 * @throws UnsupportedMarkupException se il CDA contiene costrutti non riprodotti
+	 */
+	public static boolean write(final String cda, final boolean removeSignature, final Writer writer) throws IOException, UnsupportedMarkupException {
+		CdaMaskingSerializer serializer = new CdaMaskingSerializer(cda, removeSignature);
+		serializer.run(null);
+		serializer.run(writer);
+		return serializer.authenticatorFound;
+	}
+
+	private void run(final Writer writer) throws IOException, UnsupportedMarkupException {
+		out = writer;
+		pos = 0;
+		open.clear();
+		pending = null;
+		authenticatorFound = false;
+		mask = null;
+		while (pos < cda.length()) {
+			if (cda.charAt(pos) == '<') {
+				markup();
+			} else {
+				text();
+			}
+		}
+		if (!open.isEmpty()) {
+			throw new UnsupportedMarkupException("Unclosed element " + open.peek());
+		}
+	}
+
+	private void text() throws IOException, UnsupportedMarkupException {
+		int end = cda.indexOf('<', pos);
+		if (end < 0) {
+			end = cda.length();
+		}
+		buffer.setLength(0);
+		decode(pos, end);
+		pos = end;
+		if (out == null) {
+			return;
+		}
+		if (mask != null) {
+			mask.peek().children.add(new MaskNode(MaskNode.TEXT, buffer.toString()));
+		} else {
+			closePending();
+			escape(buffer, false);
+		}
+	}
+
+	private void markup() throws IOException, UnsupportedMarkupException {
+		if (cda.startsWith("<!--", pos)) {
+			final int end = cda.indexOf("-->", pos + 4);
+			final String data = end < 0 ? null : cda.substring(pos + 4, end);
+			if (data == null || data.startsWith(">") || data.startsWith("->") || data.endsWith("-") || data.contains("--") || data.indexOf('\0') >= 0) {
+				throw new UnsupportedMarkupException("Unsupported comment");
+			}
+			pos = end + 3;
+			raw(MaskNode.RAW, "<!--" + data + "-->");
+		} else if (cda.startsWith("<![CDATA[", pos)) {
+			final int end = cda.indexOf("]]>", pos + 9);
+			final String data = end < 0 ? null : cda.substring(pos + 9, end);
+			if (data == null || data.indexOf('\0') >= 0) {
+				throw new UnsupportedMarkupException("Unsupported CDATA section");
+			}
+			pos = end + 3;
+			raw(MaskNode.CDATA, data);
+		} else if (cda.startsWith("<?", pos)) {
+			final int end = cda.indexOf('>', pos);
+			if (end < 0) {
+				throw new UnsupportedMarkupException("Unterminated processing instruction");
+			}
+			final String chunk = cda.substring(pos, end + 1);
+			pos = end + 1;
+			// Dichiarazioni e processing instruction sono poche e brevi: la forma di output e' quella di Jsoup
+			raw(MaskNode.RAW, out != null ? Jsoup.parse(chunk, "", Parser.xmlParser()).html() : chunk);
+		} else if (cda.startsWith("</", pos)) {
+			endTag();
+		} else if (pos + 1 < cda.length() && isAsciiLetter(cda.charAt(pos + 1))) {
+			startTag();
+		} else {
+			throw new UnsupportedMarkupException("Unsupported markup at " + pos);
+		}
+	}
+
+	private void startTag() throws IOException, UnsupportedMarkupException {
+		pos++;
+		final String name = name();
+		final List<String[]> attributes = new ArrayList<>();
+		boolean selfClosing = false;
+		while (true) {
+			final boolean spaced = skipWhitespace();
+			if (cda.startsWith("/>", pos)) {
+				pos += 2;
+				selfClosing = true;
+				break;
+			} else if (cda.startsWith(">", pos)) {
+				pos++;
+				break;
+			} else if (!spaced || pos >= cda.length()) {
+				throw new UnsupportedMarkupException("Malformed start tag " + name);
+			}
+			attributes.add(attribute(attributes));
+		}
+
+		if (out == null) {
+			if (selfClosing) {
+				selfClosed.add(name);
+			} else {
+				open.push(name);
+			}
+			return;
+		}
+
+		if (mask != null || (!authenticatorFound && LEGAL_AUTHENTICATOR.equals(name.toLowerCase(Locale.ROOT)))) {
+			startMasked(name, attributes, selfClosing);
+			return;
+		}
+
+		closePending();
+		out.write('<');
+		out.write(name);
+		for (String[] attribute : attributes) {
+			out.write(' ');
+			out.write(attribute[0]);
+			out.write("=\"");
+			escape(attribute[1], true);
+			out.write('"');
+		}
+		if (selfClosing) {
+			closeChildless(name);
+		} else {
+			pending = name;
+			open.push(name);
+		}
+	}
+
+	private void startMasked(final String name, final List<String[]> attributes, final boolean selfClosing) throws IOException, UnsupportedMarkupException {
+		if (PRESERVE_WHITESPACE.contains(name.toLowerCase(Locale.ROOT))) {
+			throw new UnsupportedMarkupException("Whitespace preserving element " + name);
+		}
+		final MaskElement element = new MaskElement(name, attributes);
+		if (mask == null) {
+			for (String ancestor : open) {
+				if (PRESERVE_WHITESPACE.contains(ancestor.toLowerCase(Locale.ROOT))) {
+					throw new UnsupportedMarkupException("Whitespace preserving element " + ancestor);
+				}
+			}
+			authenticatorFound = true;
+			closePending();
+			mask = new ArrayDeque<>();
+		} else {
+			mask.peek().children.add(element);
+		}
+		if (selfClosing) {
+			if (mask.isEmpty()) {
+				finishMask(element);
+			}
+		} else {
+			mask.push(element);
+			open.push(name);
+		}
+	}
+
+	private void endTag() throws IOException, UnsupportedMarkupException {
+		pos += 2;
+		if (pos >= cda.length() || !isAsciiLetter(cda.charAt(pos))) {
+			throw new UnsupportedMarkupException("Malformed end tag at " + pos);
+		}
+		final String name = name();
+		skipWhitespace();
+		if (!cda.startsWith(">", pos) || !name.equals(open.peek())) {
+			throw new UnsupportedMarkupException("Unexpected end tag " + name);
+		}
+		pos++;
+		open.pop();
+
+		if (out == null) {
+			return;
+		}
+		if (mask != null) {
+			final MaskElement element = mask.pop();
+			if (mask.isEmpty()) {
+				finishMask(element);
+			}
+		} else if (name.equals(pending)) {
+			pending = null;
+			closeChildless(name);
+		} else {
+			out.write("</");
+			out.write(name);
+			out.write('>');
+		}
+	}
+
+	private String[] attribute(final List<String[]> previous) throws UnsupportedMarkupException {
+		final int start = pos;
+		if (pos >= cda.length() || !isNameStart(cda.charAt(pos))) {
+			throw new UnsupportedMarkupException("Malformed attribute at " + pos);
+		}
+		while (pos < cda.length() && isNameChar(cda.charAt(pos))) {
+			pos++;
+		}
+		final String key = cda.substring(start, pos);
+		for (String[] attribute : previous) {
+			if (attribute[0].equals(key)) {
+				throw new UnsupportedMarkupException("Duplicate attribute " + key);
+			}
+		}
+		skipWhitespace();
+		if (!cda.startsWith("=", pos)) {
+			throw new UnsupportedMarkupException("Attribute without value " + key);
+		}
+		pos++;
+		skipWhitespace();
+		final char quote = pos < cda.length() ? cda.charAt(pos) : 0;
+		final int end = quote == '"' || quote == '\'' ? cda.indexOf(quote, pos + 1) : -1;
+		if (end < 0) {
+			throw new UnsupportedMarkupException("Unquoted attribute " + key);
+		}
+		buffer.setLength(0);
+		decode(pos + 1, end);
+		pos = end + 1;
+		return new String[] {key, buffer.toString()};
+	}
+
+	private String name() throws UnsupportedMarkupException {
+		final int start = pos;
+		while (pos < cda.length() && isNameChar(cda.charAt(pos))) {
+			pos++;
+		}
+		if (pos >= cda.length() || !(isWhitespace(cda.charAt(pos)) || cda.charAt(pos) == '/' || cda.charAt(pos) == '>')) {
+			throw new UnsupportedMarkupException("Unsupported element name at " + start);
+		}
+		return cda.substring(start, pos);
+	}
+
+	/**
+	 * Decodifica testo o valore di attributo in {@link #buffer}. Sono accettati solo i riferimenti a carattere
+	 * numerici e le cinque entita' XML.
+	 */
+	private void decode(final int start, final int end) throws UnsupportedMarkupException {
+		int i = start;
+		while (i < end) {
+			final char c = cda.charAt(i);
+			if (c == '&') {
+				final int semicolon = cda.indexOf(';', i);
+				if (semicolon < 0 || semicolon >= end || semicolon - i > 10) {
+					throw new UnsupportedMarkupException("Unsupported reference at " + i);
+				}
+				appendReference(cda.substring(i + 1, semicolon));
+				i = semicolon + 1;
+			} else if (c < 0x20 && c != '\t' && c != '\n' && c != '\r') {
+				throw new UnsupportedMarkupException("Control character at " + i);
+			} else if (Character.isHighSurrogate(c)) {
+				if (i + 1 >= end || !Character.isLowSurrogate(cda.charAt(i + 1))) {
+					throw new UnsupportedMarkupException("Unpaired surrogate at " + i);
+				}
+				buffer.append(c).append(cda.charAt(i + 1));
+				i += 2;
+			} else if (Character.isLowSurrogate(c)) {
+				throw new UnsupportedMarkupException("Unpaired surrogate at " + i);
+			} else {
+				buffer.append(c);
+				i++;
+			}
+		}
+	}
+
+	private void appendReference(final String reference) throws UnsupportedMarkupException {
+		switch (reference) {
+		case "amp":
+			buffer.append('&');
+			return;
+		case "lt":
+			buffer.append('<');
+			return;
+		case "gt":
+			buffer.append('>');
+			return;
+		case "quot":
+			buffer.append('"');
+			return;
+		case "apos":
+			buffer.append('\'');
+			return;
+		default:
+			break;
+		}
+		int codePoint = -1;
+		try {
+			if (reference.startsWith("#x") || reference.startsWith("#X")) {
+				codePoint = reference.length() > 2 && isHex(reference, 2) ? Integer.parseInt(reference.substring(2), 16) : -1;
+			} else if (reference.startsWith("#")) {
+				codePoint = reference.length() > 1 && isDigits(reference, 1) ? Integer.parseInt(reference.substring(1)) : -1;
+			}
+		} catch (NumberFormatException ex) {
+			codePoint = -1;
+		}
+		final boolean valid = codePoint == '\t' || codePoint == '\n' || codePoint == '\r'
+				|| (codePoint >= 0x20 && codePoint < 0x7F) || (codePoint >= 0xA0 && codePoint <= 0xD7FF)
+				|| (codePoint >= 0xE000 && codePoint <= 0xFFFD) || (codePoint >= 0x10000 && codePoint <= 0x10FFFF);
+		if (!valid) {
+			throw new UnsupportedMarkupException("Unsupported reference &" + reference + ";");
+		}
+		buffer.appendCodePoint(codePoint);
+	}
+
+	private void raw(final int type, final String data) throws IOException {
+		if (out == null) {
+			return;
+		}
+		if (mask != null) {
+			mask.peek().children.add(new MaskNode(type, data));
+		} else {
+			closePending();
+			writeNode(new MaskNode(type, data));
+		}
+	}
+
+	/**
+	 * Applica il mascheramento al LegalAuthenticator chiuso e lo scrive.
+	 */
+	private void finishMask(final MaskElement authenticator) throws IOException {
+		mask = null;
+		if (removeSignature) {
+			removeFirst(authenticator, SIGNATURE);
+		}
+		maskElement(authenticator);
+		writeNode(authenticator);
+	}
+
+	private static boolean removeFirst(final MaskElement element, final String normalName) {
+		for (int i = 0; i < element.children.size(); i++) {
+			if (element.children.get(i) instanceof MaskElement) {
+				MaskElement child = (MaskElement) element.children.get(i);
+				if (normalName.equals(child.name.toLowerCase(Locale.ROOT))) {
+					element.children.remove(i);
+					return true;
+				}
+				if (removeFirst(child, normalName)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static void maskElement(final MaskElement element) {
+		for (String[] attribute : element.attributes) {
+			attribute[1] = PLACEHOLDER;
+		}
+		boolean leaf = true;
+		for (MaskNode child : element.children) {
+			if (child instanceof MaskElement) {
+				leaf = false;
+				maskElement((MaskElement) child);
+			}
+		}
+		if (leaf && hasText(element)) {
+			element.children.clear();
+			element.children.add(new MaskNode(MaskNode.TEXT, PLACEHOLDER));
+		}
+	}
+
+	/**
+	 * Equivalente a {@code !element.text().isEmpty()} di Jsoup per un elemento senza elementi figli: gli spazi,
+	 * incluso il non-breaking space, e i caratteri invisibili non contano fuori dalle sezioni CDATA.
+	 */
+	private static boolean hasText(final MaskElement element) {
+		for (MaskNode child : element.children) {
+			if (child.type == MaskNode.TEXT || child.type == MaskNode.CDATA) {
+				for (int i = 0; i < child.data.length(); i++) {
+					final char c = child.data.charAt(i);
+					if (c > ' ' && (child.type == MaskNode.CDATA || (c != 0xA0 && c != 0x200B && c != 0xAD))) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private void writeNode(final MaskNode node) throws IOException {
+		switch (node.type) {
+		case MaskNode.TEXT:
+			escape(node.data, false);
+			break;
+		case MaskNode.CDATA:
+			out.write("<![CDATA[");
+			out.write(node.data);
+			out.write("]]>");
+			break;
+		case MaskNode.RAW:
+			out.write(node.data);
+			break;
+		default:
+			final MaskElement element = (MaskElement) node;
+			out.write('<');
+			out.write(element.name);
+			for (String[] attribute : element.attributes) {
+				out.write(' ');
+				out.write(attribute[0]);
+				out.write("=\"");
+				escape(attribute[1], true);
+				out.write('"');
+			}
+			if (element.children.isEmpty()) {
+				closeChildless(element.name);
+			} else {
+				out.write('>');
+				for (MaskNode child : element.children) {
+					writeNode(child);
+				}
+				out.write("</");
+				out.write(element.name);
+				out.write('>');
+			}
+			break;
+		}
+	}
+
+	private void closePending() throws IOException {
+		if (pending != null) {
+			out.write('>');
+			pending = null;
+		}
+	}
+
+	/**
+	 * Chiusura di un elemento senza figli: {@code " />"} per i tag vuoti di Jsoup e per i tag non HTML che compaiono
+	 * almeno una volta nella forma {@code <tag/>}, altrimenti il tag di chiusura esplicito.
+	 */
+	private void closeChildless(final String name) throws IOException {
+		final boolean selfClosing = childlessSelfClosing.computeIfAbsent(name, n -> {
+			final Tag tag = Tag.valueOf(n, ParseSettings.preserveCase);
+			return tag.isEmpty() || (!tag.isKnownTag() && selfClosed.contains(n));
+		});
+		if (selfClosing) {
+			out.write(" />");
+		} else {
+			out.write("></");
+			out.write(name);
+			out.write('>');
+		}
+	}
+
+	private void escape(final CharSequence value, final boolean attribute) throws IOException {
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				out.write("&amp;");
+				break;
+			case 0xA0:
+				out.write("&#xa0;");
+				break;
+			case '<':
+				out.write("&lt;");
+				break;
+			case '>':
+				if (attribute) {
+					out.write(c);
+				} else {
+					out.write("&gt;");
+				}
+				break;
+			case '"':
+				if (attribute) {
+					out.write("&quot;");
+				} else {
+					out.write(c);
+				}
+				break;
+			default:
+				out.write(c);
+				break;
+			}
+		}
+	}
+
+	private boolean skipWhitespace() {
+		final int start = pos;
+		while (pos < cda.length() && isWhitespace(cda.charAt(pos))) {
+			pos++;
+		}
+		return pos > start;
+	}
+
+	private static boolean isWhitespace(final char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+	}
+
+	private static boolean isAsciiLetter(final char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isNameStart(final char c) {
+		return isAsciiLetter(c) || c == '_' || c == ':';
+	}
+
+	private static boolean isNameChar(final char c) {
+		return isNameStart(c) || (c >= '0' && c <= '9') || c == '-' || c == '.';
+	}
+
+	private static boolean isHex(final String value, final int start) {
+		for (int i = start; i < value.length(); i++) {
+			if (Character.digit(value.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isDigits(final String value, final int start) {
+		for (int i = start; i < value.length(); i++) {
+			if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Nodo del sottoalbero del LegalAuthenticator; {@code data} e' il testo decodificato per TEXT e CDATA e
+	 * l'output gia' serializzato per RAW.
+	 */
+	@AllArgsConstructor
+	private static class MaskNode {
+		private static final int ELEMENT = 0;
+		private static final int TEXT = 1;
+		private static final int CDATA = 2;
+		private static final int RAW = 3;
+
+		private final int type;
+		private final String data;
+	}
+
+	private static final class MaskElement extends MaskNode {
+		private final String name;
+		private final List<String[]> attributes;
+		private final List<MaskNode> children = new ArrayList<>();
+
+		private MaskElement(final String name, final List<String[]> attributes) {
+			super(MaskNode.ELEMENT, null);
+			this.name = name;
+			this.attributes = attributes;
+		}
+	}
+
+	/**
+	 * Il CDA contiene costrutti che la serializzazione in streaming non riproduce.
+	 */
+	public static final class UnsupportedMarkupException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		public UnsupportedMarkupException(final String message) {
+			super(message);
+		}
+
+	}
+
+}
@@ -12,6 +12,7 @@
 package it.finanze.sanita.fse2.ms.gtw.dispatcher.utility;
 
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.ParsedCdaDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.response.ErrorResponseDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.DocumentTypeEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.RestExecutionResultEnum;
@@ -20,7 +21,17 @@ import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.ValidationException;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 
 import static it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.ErrorInstanceEnum.INVALID_ID_ERROR;
 import static it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.ErrorInstanceEnum.INVALID_REQ_ID_ERROR;
@@ -42,6 +53,20 @@ public final class CdaUtility {
 		return encodeSHA256Hex(idDoc) + WIF_SEPARATOR + generateWii() + WIF_SUFFIX;
 	}
 
+	/**
+	 * Parse the CDA once; the returned holder is meant to be shared by every step of the request.
+	 *
+	 * @param cda The CDA extracted from the PDF
+	 * @return The parsed CDA
+	 */
+	public static ParsedCdaDTO parse(final String cda) {
+		return new ParsedCdaDTO(cda, Jsoup.parse(cda));
+	}
+
+	public static String getWorkflowInstanceId(final ParsedCdaDTO parsedCda) {
+		return getWorkflowInstanceId(parsedCda.getDocument());
+	}
+
 	public static String getWorkflowInstanceId(final org.jsoup.nodes.Document docT) {
 
 		try {
@@ -71,6 +96,16 @@ public final class CdaUtility {
 		return out;
 	}
 
+	public static String getDocumentType(final ParsedCdaDTO parsedCda) {
+		if (parsedCda == null) {
+			return Constants.App.MISSING_DOC_TYPE_PLACEHOLDER;
+		}
+		if (parsedCda.getDocumentType() == null) {
+			parsedCda.setDocumentType(getDocumentType(parsedCda.getDocument()));
+		}
+		return parsedCda.getDocumentType();
+	}
+
 	public static String getDocumentType(final Document cdaDocument) {
 		String docType = Constants.App.MISSING_DOC_TYPE_PLACEHOLDER;
 		if (cdaDocument != null) {
@@ -85,6 +120,74 @@ public final class CdaUtility {
 	}
 
 
+	/**
+	 * Calcola l'hash (SHA-256, Base64) del CDA con il LegalAuthenticator mascherato.
+	 * Il risultato coincide con {@code encodeSHA256B64(doc.toString())} sul documento Jsoup mascherato; la
+	 * serializzazione e' prodotta in streaming da {@link CdaMaskingSerializer} e scritta direttamente nel digest.
+	 * Solo i CDA con costrutti che il serializzatore non riproduce (DOCTYPE, entita' HTML, markup non ben formato)
+	 * sono mascherati sul DOM.
+	 *
+	 * @param cda             CDA in formato stringa
+	 * @param removeSignature {@code true} per rimuovere l'elemento Signature dal LegalAuthenticator
+	 * @return Hash del CDA
+	 */
+	public static String hashWithoutLegalAuthenticator(final String cda, final boolean removeSignature) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance(Constants.App.SHA_ALGORITHM);
+			boolean found;
+			try (Writer writer = digestWriter(digest)) {
+				found = CdaMaskingSerializer.write(cda, removeSignature, writer);
+			} catch (CdaMaskingSerializer.UnsupportedMarkupException ex) {
+				log.debug("Streaming cda-hash not applicable, masking the parsed document: {}", ex.getMessage());
+				return hashParsed(cda, removeSignature);
+			}
+			if (!found) {
+				log.warn("Unable to calculate cda-hash correctly because LegalAuthenticator doesn't exists");
+			}
+			return encodeBase64(digest.digest());
+		} catch (final Exception e) {
+			log.error("Errore in fase di calcolo sha", e);
+			throw new BusinessException(Constants.App.SHA_ERROR, e);
+		}
+	}
+
+	private static String hashParsed(final String cda, final boolean removeSignature) throws Exception {
+		Document doc = Jsoup.parse(cda, "", Parser.xmlParser());
+		maskLegalAuthenticator(doc, removeSignature);
+
+		final MessageDigest digest = MessageDigest.getInstance(Constants.App.SHA_ALGORITHM);
+		try (Writer writer = digestWriter(digest)) {
+			doc.html(writer);
+		}
+		return encodeBase64(digest.digest());
+	}
+
+	private static Writer digestWriter(final MessageDigest digest) {
+		return new OutputStreamWriter(new DigestOutputStream(OutputStream.nullOutputStream(), digest), Charset.defaultCharset());
+	}
+
+	private static void maskLegalAuthenticator(final Document doc, final boolean removeSignature) {
+		Element authenticator = doc.selectFirst("LegalAuthenticator");
+
+		if (authenticator != null) {
+			if (removeSignature) {
+				Element signature = authenticator.selectFirst("Signature");
+				if (signature != null) {
+					signature.remove();
+				}
+			}
+
+			authenticator.forEach(e -> {
+				e.attributes().forEach(a -> a.setValue("PLACEHOLDER"));
+				if (e.children().isEmpty() && !e.text().isEmpty()) {
+					e.text("PLACEHOLDER");
+				}
+			});
+		} else {
+			log.warn("Unable to calculate cda-hash correctly because LegalAuthenticator doesn't exists");
+		}
+	}
+
 	/**
 	 * Evaluate an identifier and validate it
 	 *
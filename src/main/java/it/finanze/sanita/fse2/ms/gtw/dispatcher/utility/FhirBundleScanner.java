@@ -0,0 +1,81 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.utility;
+
+/**
+ * Ricerca incrementale di un Bundle FHIR in un testo fornito a blocchi (ad esempio pagina per pagina).
+ * Ogni oggetto JSON bilanciato viene valutato appena si chiude; la ricerca termina al primo Bundle.
+ */
+public class FhirBundleScanner {
+
+	private final StringBuilder candidate = new StringBuilder();
+
+	private int braceCount;
+
+	private boolean objectFound;
+
+	private String bundle;
+
+	/**
+	 * @param text Blocco di testo successivo
+	 * @return {@code true} se il Bundle e' stato trovato
+	 */
+	public boolean feed(final CharSequence text) {
+		for (int i = 0; i < text.length() && bundle == null; i++) {
+			char ch = text.charAt(i);
+			if (braceCount == 0 && ch != '{') {
+				continue;
+			}
+
+			candidate.append(ch);
+			if (ch == '{') braceCount++;
+			else if (ch == '}') braceCount--;
+
+			if (braceCount == 0) {
+				String json = candidate.toString();
+				candidate.setLength(0);
+				if (isBundle(json)) {
+					bundle = json;
+				} else {
+					objectFound = true;
+				}
+			}
+		}
+		return bundle != null;
+	}
+
+	/**
+	 * @return Bundle trovato, {@code null} altrimenti
+	 */
+	public String getBundle() {
+		return bundle;
+	}
+
+	/**
+	 * @return {@code true} se un oggetto JSON e' stato aperto e non ancora chiuso
+	 */
+	public boolean isOpen() {
+		return braceCount > 0;
+	}
+
+	/**
+	 * @return {@code true} se e' stato chiuso almeno un oggetto JSON che non e' un Bundle
+	 */
+	public boolean isObjectFound() {
+		return objectFound;
+	}
+
+	private static boolean isBundle(final String json) {
+		return json.contains("\"resourceType\"") && json.contains("Bundle");
+	}
+
+}
@@ -10,15 +10,16 @@ import static it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility.isN
 import static org.apache.commons.lang3.StringUtils.isWhitespace;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.text.PDFTextStripper;
 import org.jsoup.nodes.Document;
+import org.jsoup.parser.Parser;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.response.ErrorResponseDTO;
@@ -34,8 +35,6 @@ import lombok.extern.slf4j.Slf4j;
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public final class FhirUtility {
 	
-	private static final ObjectMapper objectMapper = new ObjectMapper();
-
 	private static final String MASTER_ID_SEPARATOR = "^";
 
 	private static final String WIF_SUFFIX = "^^^^urn:ihe:iti:xdw:2013:workflowInstanceId";
@@ -141,7 +140,7 @@ public final class FhirUtility {
 	    if (bundleJson == null || bundleJson.isBlank()) return results;
 
 	    try {
-	        JsonNode root = objectMapper.readTree(bundleJson);
+	        JsonNode root = JsonUtility.getReader().readTree(bundleJson);
 
 	        // Caso speciale: estrazione dal root se il tipo è "Bundle"
 	        if ("Bundle".equalsIgnoreCase(entryResourceType)) {
@@ -233,41 +232,82 @@ public final class FhirUtility {
 
  
     public static String extractJsonFromPdf(byte[] pdfData) {
-		try (PDDocument document = PDDocument.load(pdfData)) {
+		try (PdfEnvelope pdf = new PdfEnvelope(pdfData)) {
+			return extractJsonFromPdf(pdf);
+		}
+	}
+
+    public static String extractJsonFromPdf(PdfEnvelope pdf) {
+		return extractJsonFromText(pdf, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Estrae il Bundle dal testo del pdf pagina per pagina, fermandosi al primo Bundle chiuso.
+	 *
+	 * @param pdf      Pdf della richiesta
+	 * @param maxPages Numero massimo di pagine analizzate
+	 * @return Bundle trovato, stringa vuota se il testo non contiene json
+	 */
+	public static String extractJsonFromText(PdfEnvelope pdf, int maxPages) {
+		try {
+			PDDocument document = pdf.getDocument();
+			int lastPage = Math.min(document.getNumberOfPages(), maxPages);
 			PDFTextStripper stripper = new PDFTextStripper();
-			String fullText = stripper.getText(document);
+			FhirBundleScanner scanner = new FhirBundleScanner();
 
-			int startIndex = fullText.indexOf('{');
-			if (startIndex == -1) { 
-				return "";
+			boolean found = false;
+			for (int page = 1; page <= lastPage && !found; page++) {
+				stripper.setStartPage(page);
+				stripper.setEndPage(page);
+				found = scanner.feed(stripper.getText(document));
 			}
 
-			int braceCount = 0;
-			int endIndex = -1;
-			for (int i = startIndex; i < fullText.length(); i++) {
-				char ch = fullText.charAt(i);
-				if (ch == '{') braceCount++;
-				else if (ch == '}') braceCount--;
+			if (found) {
+				return scanner.getBundle();
+			}
 
-				if (braceCount == 0) {
-					endIndex = i + 1; // incluso
-					break;
-				}
+			if (lastPage < document.getNumberOfPages()) {
+				log.warn("Bundle non trovato nelle prime {} pagine del PDF.", lastPage);
+				return "";
 			}
 
-			if (endIndex == -1) {
+			if (scanner.isOpen()) {
 				throw new IOException("JSON non bilanciato nel testo del PDF.");
 			}
 
-			String jsonCandidate = fullText.substring(startIndex, endIndex);
-
-			if (!jsonCandidate.contains("\"resourceType\"") || !jsonCandidate.contains("Bundle")) {
+			if (scanner.isObjectFound()) {
 				throw new IOException("Il contenuto estratto non sembra essere un Bundle FHIR.");
 			}
 
-			return jsonCandidate;
+			return "";
 		} catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
-}
\ No newline at end of file
+
+	/**
+	 * Estrae il Bundle dal dataset XFA del pdf.
+	 *
+	 * @param pdf Pdf della richiesta
+	 * @return Bundle trovato, stringa vuota se assente
+	 */
+	public static String extractJsonFromXfa(PdfEnvelope pdf) {
+		String out = "";
+		try {
+			byte[] datasets = pdf.getXfaDatasets();
+			if (datasets != null) {
+				String content = new String(datasets, StandardCharsets.UTF_8);
+				if (content.indexOf('&') != -1) {
+					content = Parser.unescapeEntities(content, false);
+				}
+				FhirBundleScanner scanner = new FhirBundleScanner();
+				if (scanner.feed(content)) {
+					out = scanner.getBundle();
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Errore in fase di lettura del dataset XFA.", e);
+		}
+		return out;
+	}
+}
@@ -11,10 +11,31 @@
  */
 package it.finanze.sanita.fse2.ms.gtw.dispatcher.utility;
 
+import java.text.SimpleDateFormat;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.gson.Gson;
 
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.DocumentEntryDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.IndexerValueDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.KafkaStatusManagerDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.LogDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.PublicationCreationReqDTO;
 import lombok.extern.slf4j.Slf4j;
  
+/**
+ * Mapper JSON condivisi dall'applicazione. Gson, ObjectMapper, ObjectReader e ObjectWriter sono thread-safe
+ * una volta configurati: vengono creati una sola volta e i reader/writer sono memorizzati per tipo. All'esterno
+ * sono esposti solo ObjectReader e ObjectWriter, immutabili, cosi' che nessun chiamante possa riconfigurare i mapper.
+ */
 @Slf4j
 public class JsonUtility {
 
@@ -26,7 +47,80 @@ public class JsonUtility {
 	 */
 	private JsonUtility() {}
 
-	private static ObjectMapper mapper = new ObjectMapper(); 
+	private static final ObjectMapper mapper = new ObjectMapper(); 
+
+	/**
+	 * Reader e writer immutabili del mapper di default: il mapper condiviso non viene esposto.
+	 */
+	private static final ObjectReader reader = mapper.reader();
+
+	private static final ObjectWriter writer = mapper.writer();
+
+	/**
+	 * Mapper con date in formato ISO con offset e senza campi nulli.
+	 */
+	private static final ObjectMapper timeMapper = createTimeMapper();
+
+	private static final Gson gson = new Gson();
+
+	private static final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+
+	private static final Map<Class<?>, ObjectWriter> timeWriters = new ConcurrentHashMap<>();
+
+	static {
+		// Riscaldamento dei tipi piu' usati, per non pagare l'introspezione sulla prima richiesta
+		readerFor(PublicationCreationReqDTO.class);
+		timeWriterFor(KafkaStatusManagerDTO.class);
+		gson.getAdapter(LogDTO.class);
+		gson.getAdapter(IndexerValueDTO.class);
+		gson.getAdapter(DocumentEntryDTO.class);
+	}
+
+	private static ObjectMapper createTimeMapper() {
+		final ObjectMapper out = new ObjectMapper(); 
+		out.registerModule(new JavaTimeModule());
+		out.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+		// Jackson clona il DateFormat per ogni serializzazione, l'istanza condivisa non viene mai usata in concorrenza
+		out.setDateFormat(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ"));
+		out.setTimeZone(TimeZone.getDefault());
+		out.setSerializationInclusion(Include.NON_NULL);
+		return out;
+	}
+
+	/**
+	 * @return Reader non tipizzato (es. {@code readTree}) con la configurazione di default
+	 */
+	public static ObjectReader getReader() {
+		return reader;
+	}
+
+	/**
+	 * @return Writer con la configurazione di default
+	 */
+	public static ObjectWriter getWriter() {
+		return writer;
+	}
+
+	/**
+	 * @return Gson con la configurazione di default
+	 */
+	public static Gson getGson() {
+		return gson;
+	}
+
+	/**
+	 * @return Reader per il tipo, con la configurazione di default
+	 */
+	public static ObjectReader readerFor(final Class<?> clazz) {
+		return readers.computeIfAbsent(clazz, mapper::readerFor);
+	}
+
+	/**
+	 * @return Writer per il tipo, con date in formato ISO con offset e senza campi nulli
+	 */
+	public static ObjectWriter timeWriterFor(final Class<?> clazz) {
+		return timeWriters.computeIfAbsent(clazz, timeMapper::writerFor);
+	}
 
 	/**
 	 * Methods that converts an Object to a JSON string.
@@ -0,0 +1,339 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.utility;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Date;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.KafkaStatusManagerDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.LogDTO;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+/**
+ * Encoder JSON diretti per i messaggi di stato ({@link KafkaStatusManagerDTO}) e per i log di controllo ({@link LogDTO}).
+ * Il JSON prodotto coincide con quello dei mapper condivisi (Jackson per lo stato, Gson per i log) ma viene scritto
+ * in UTF-8 in un buffer riutilizzato per thread, senza introspezione. Se il payload supera la dimensione massima
+ * il campo message viene troncato in base ai byte effettivi, senza serializzare una seconda volta.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class MessageEncoderUtility {
+
+	/**
+	 * Margine riservato a chiave, header e overhead del record rispetto a max.request.size.
+	 */
+	public static final int RECORD_OVERHEAD = 1024;
+
+	private static final int INITIAL_CAPACITY = 4 * 1024;
+
+	/**
+	 * Oltre questa dimensione il buffer non viene trattenuto dal thread.
+	 */
+	private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+	private static final DateTimeFormatter EVENT_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+			.withZone(ZoneId.systemDefault());
+
+	private static final byte[] HEX_UPPER = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HEX_LOWER = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private static final char LINE_SEPARATOR = 0x2028;
+	private static final char PARAGRAPH_SEPARATOR = 0x2029;
+
+	private static final ThreadLocal<JsonBuffer> BUFFER = ThreadLocal.withInitial(JsonBuffer::new);
+
+	/**
+	 * @param maxRequestSize max.request.size del producer
+	 * @return Dimensione massima in byte del valore di un record
+	 */
+	public static int maxPayloadSize(final int maxRequestSize) {
+		return Math.max(0, maxRequestSize - RECORD_OVERHEAD);
+	}
+
+	/**
+	 * Serializza il messaggio di stato come farebbe {@link StringUtility#toJSONJackson(Object)}.
+	 *
+	 * @param dto      Messaggio di stato
+	 * @param maxBytes Dimensione massima del payload, oltre la quale il campo message viene troncato
+	 * @return Payload UTF-8
+	 */
+	public static byte[] encode(final KafkaStatusManagerDTO dto, final int maxBytes) {
+		JsonBuffer out = BUFFER.get().begin(false);
+		out.field("traceId", dto.getTraceId());
+		out.field("eventType", dto.getEventType() != null ? dto.getEventType().name() : null);
+		out.field("eventDate", formatEventDate(dto.getEventDate()));
+		out.field("eventStatus", dto.getEventStatus() != null ? dto.getEventStatus().name() : null);
+		out.message(dto.getMessage());
+		out.field("identificativoDocumento", dto.getIdentificativoDocumento());
+		out.field("subject", dto.getSubject());
+		out.field("subjectRole", dto.getSubjectRole());
+		out.field("tipoAttivita", dto.getTipoAttivita() != null ? dto.getTipoAttivita().name() : null);
+		out.field("organizzazione", dto.getOrganizzazione());
+		out.field("issuer", dto.getIssuer());
+		out.field("microserviceName", dto.getMicroserviceName());
+		return out.end(maxBytes).toByteArray();
+	}
+
+	/**
+	 * Serializza il log di controllo come farebbe {@link StringUtility#toJSON(Object)}.
+	 *
+	 * @param dto      Log di controllo
+	 * @param maxBytes Dimensione massima in byte UTF-8, oltre la quale il campo message viene troncato
+	 * @return JSON del log
+	 */
+	public static String encode(final LogDTO dto, final int maxBytes) {
+		JsonBuffer out = BUFFER.get().begin(true);
+		out.field("log_type", dto.getLog_type());
+		out.message(dto.getMessage());
+		out.field("operation", dto.getOperation());
+		out.field("op_result", dto.getOp_result());
+		out.field("op_timestamp_start", dto.getOp_timestamp_start());
+		out.field("op_timestamp_end", dto.getOp_timestamp_end());
+		out.field("op_error", dto.getOp_error());
+		out.field("op_error_description", dto.getOp_error_description());
+		out.field("op_issuer", dto.getOp_issuer());
+		out.field("op_locality", dto.getOp_locality());
+		out.field("op_document_type", dto.getOp_document_type());
+		out.field("op_role", dto.getOp_role());
+		out.field("op_fiscal_code", dto.getOp_fiscal_code());
+		out.field("gateway_name", dto.getGateway_name());
+		out.field("microservice_name", dto.getMicroservice_name());
+		out.field("op_application_id", dto.getOp_application_id());
+		out.field("op_application_vendor", dto.getOp_application_vendor());
+		out.field("op_application_version", dto.getOp_application_version());
+		out.field("workflow_instance_id", dto.getWorkflow_instance_id());
+		out.field("typeIdExtension", dto.getTypeIdExtension());
+		return out.end(maxBytes).toUtf8String();
+	}
+
+	private static String formatEventDate(final Date date) {
+		return date != null ? EVENT_DATE_FORMAT.format(date.toInstant()) : null;
+	}
+
+	/**
+	 * Buffer UTF-8 di un singolo thread. Con gson=true applica l'escaping di Gson (caratteri HTML, U+2028/U+2029,
+	 * esadecimale minuscolo), altrimenti quello di Jackson.
+	 */
+	private static final class JsonBuffer {
+
+		private byte[] buf = new byte[INITIAL_CAPACITY];
+		private int len;
+		private boolean gson;
+		private boolean first;
+
+		private String message;
+		private int messageStart;
+		private int messageEnd;
+
+		JsonBuffer begin(final boolean gsonEscaping) {
+			gson = gsonEscaping;
+			len = 0;
+			first = true;
+			message = null;
+			ensure(1);
+			buf[len++] = '{';
+			return this;
+		}
+
+		void field(final String name, final String value) {
+			if (value != null) {
+				name(name);
+				string(value);
+			}
+		}
+
+		void message(final String value) {
+			if (value != null) {
+				name("message");
+				message = value;
+				messageStart = len + 1;
+				string(value);
+				messageEnd = len - 1;
+			}
+		}
+
+		JsonBuffer end(final int maxBytes) {
+			ensure(1);
+			buf[len++] = '}';
+			if (maxBytes > 0 && len > maxBytes && message != null) {
+				truncateMessage(maxBytes);
+			}
+			return this;
+		}
+
+		byte[] toByteArray() {
+			byte[] out = Arrays.copyOf(buf, len);
+			release();
+			return out;
+		}
+
+		String toUtf8String() {
+			String out = new String(buf, 0, len, StandardCharsets.UTF_8);
+			release();
+			return out;
+		}
+
+		/**
+		 * Mantiene il prefisso del message che rientra nel budget, senza spezzare sequenze di escape o caratteri
+		 * multibyte, e sposta il resto del JSON subito dopo.
+		 */
+		private void truncateMessage(final int maxBytes) {
+			int budget = maxBytes - (len - (messageEnd - messageStart));
+			int kept = 0;
+			int i = 0;
+			while (i < message.length()) {
+				char c = message.charAt(i);
+				int units = isSurrogatePair(message, i) ? 2 : 1;
+				int size = units == 2 ? 4 : escapedLength(c);
+				if (kept + size > budget) {
+					break;
+				}
+				kept += size;
+				i += units;
+			}
+			int cut = messageStart + kept;
+			System.arraycopy(buf, messageEnd, buf, cut, len - messageEnd);
+			len -= messageEnd - cut;
+		}
+
+		private void name(final String name) {
+			ensure(name.length() + 4);
+			if (!first) {
+				buf[len++] = ',';
+			}
+			first = false;
+			buf[len++] = '"';
+			for (int i = 0; i < name.length(); i++) {
+				buf[len++] = (byte) name.charAt(i);
+			}
+			buf[len++] = '"';
+			buf[len++] = ':';
+		}
+
+		private void string(final String value) {
+			// Al massimo 6 byte per carattere (escape unicode)
+			ensure(value.length() * 6 + 2);
+			buf[len++] = '"';
+			int i = 0;
+			while (i < value.length()) {
+				char c = value.charAt(i);
+				if (isSurrogatePair(value, i)) {
+					int cp = Character.toCodePoint(c, value.charAt(i + 1));
+					buf[len++] = (byte) (0xF0 | (cp >> 18));
+					buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					buf[len++] = (byte) (0x80 | (cp & 0x3F));
+					i += 2;
+				} else {
+					character(c);
+					i++;
+				}
+			}
+			buf[len++] = '"';
+		}
+
+		private void character(final char c) {
+			if (c == '"' || c == '\\') {
+				buf[len++] = '\\';
+				buf[len++] = (byte) c;
+			} else if (c < 0x20) {
+				char shortEscape = shortEscape(c);
+				if (shortEscape != 0) {
+					buf[len++] = '\\';
+					buf[len++] = (byte) shortEscape;
+				} else {
+					unicodeEscape(c);
+				}
+			} else if (gson && isGsonEscaped(c)) {
+				unicodeEscape(c);
+			} else if (c < 0x80) {
+				buf[len++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[len++] = (byte) (0xC0 | (c >> 6));
+				buf[len++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// Surrogato isolato: come String.getBytes(UTF_8)
+				buf[len++] = '?';
+			} else {
+				buf[len++] = (byte) (0xE0 | (c >> 12));
+				buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[len++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+
+		private int escapedLength(final char c) {
+			if (c == '"' || c == '\\') {
+				return 2;
+			} else if (c < 0x20) {
+				return shortEscape(c) != 0 ? 2 : 6;
+			} else if (gson && isGsonEscaped(c)) {
+				return 6;
+			} else if (c < 0x80 || Character.isSurrogate(c)) {
+				return 1;
+			}
+			return c < 0x800 ? 2 : 3;
+		}
+
+		private void unicodeEscape(final char c) {
+			byte[] hex = gson ? HEX_LOWER : HEX_UPPER;
+			buf[len++] = '\\';
+			buf[len++] = 'u';
+			buf[len++] = hex[(c >> 12) & 0xF];
+			buf[len++] = hex[(c >> 8) & 0xF];
+			buf[len++] = hex[(c >> 4) & 0xF];
+			buf[len++] = hex[c & 0xF];
+		}
+
+		private void ensure(final int additional) {
+			if (len + additional > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + additional));
+			}
+		}
+
+		private void release() {
+			if (buf.length > MAX_RETAINED_CAPACITY) {
+				buf = new byte[INITIAL_CAPACITY];
+			}
+			message = null;
+		}
+
+		private static boolean isSurrogatePair(final String value, final int i) {
+			return Character.isHighSurrogate(value.charAt(i)) && i + 1 < value.length()
+					&& Character.isLowSurrogate(value.charAt(i + 1));
+		}
+
+		private static char shortEscape(final char c) {
+			switch (c) {
+			case '\b':
+				return 'b';
+			case '\t':
+				return 't';
+			case '\n':
+				return 'n';
+			case '\f':
+				return 'f';
+			case '\r':
+				return 'r';
+			default:
+				return 0;
+			}
+		}
+
+		private static boolean isGsonEscaped(final char c) {
+			return c == '<' || c == '>' || c == '&' || c == '=' || c == '\'' || c == LINE_SEPARATOR || c == PARAGRAPH_SEPARATOR;
+		}
+	}
+
+}
@@ -0,0 +1,401 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ *
+ * Copyright (C) 2023 Ministero della Salute
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher.utility;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentNameDictionary;
+import org.apache.pdfbox.pdmodel.PDEmbeddedFilesNameTreeNode;
+import org.apache.pdfbox.pdmodel.common.PDNameTreeNode;
+import org.apache.pdfbox.pdmodel.common.filespecification.PDComplexFileSpecification;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.AttachmentDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.DocumentDigestDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * PDF caricato una sola volta per richiesta.
+ * Le viste (firme, allegati, dataset XFA, testo) sono calcolate alla prima richiesta e riutilizzate.
+ * L'istanza non e' thread-safe e deve essere chiusa al termine della richiesta.
+ */
+@Slf4j
+public class PdfEnvelope implements Closeable {
+
+	private static final COSName XFA_RESOURCES = COSName.getPDFName("XFAResources");
+	private static final String XFA_DATASETS = "datasets";
+
+	/**
+	 * Profondita' massima del name tree degli allegati, protegge da alberi malformati o ciclici.
+	 */
+	private static final int MAX_NAME_TREE_DEPTH = 32;
+
+	private static final int PDF_HEADER_LENGTH = 5;
+
+	/**
+	 * Contenuto del PDF quando e' tenuto in heap, {@code null} se il PDF e' su file.
+	 */
+	private final byte[] bytes;
+
+	/**
+	 * File con il contenuto del PDF, {@code null} se il PDF e' in heap.
+	 */
+	private final File file;
+
+	@Getter
+	private final long size;
+
+	private final MemoryUsageSetting memUsageSetting;
+
+	private Runnable onClose;
+
+	private DocumentDigestDTO digest;
+
+	private PDDocument document;
+
+	private List<PDSignature> signatures;
+
+	private Map<String, AttachmentDTO> attachments;
+
+	private final Map<String, AttachmentDTO> lookups = new HashMap<>();
+
+	private byte[] xfaDatasets;
+
+	private boolean xfaLoaded;
+
+	private String text;
+
+	public PdfEnvelope(final byte[] bytes) {
+		this(bytes, MemoryUsageSetting.setupMainMemoryOnly(), null);
+	}
+
+	/**
+	 * @param bytes           Contenuto del PDF
+	 * @param memUsageSetting Buffer di lavoro usati da PDFBox durante il parsing
+	 * @param onClose         Azione eseguita una sola volta alla chiusura, puo' essere {@code null}
+	 */
+	public PdfEnvelope(final byte[] bytes, final MemoryUsageSetting memUsageSetting, final Runnable onClose) {
+		this.bytes = bytes;
+		this.file = null;
+		this.size = bytes.length;
+		this.memUsageSetting = memUsageSetting;
+		this.onClose = onClose;
+	}
+
+	/**
+	 * PDF letto da file: PDFBox accede al file in modo casuale senza copiarlo in heap.
+	 * Il file non viene rimosso dall'envelope, la pulizia e' a carico di {@code onClose}.
+	 *
+	 * @param file            File con il contenuto del PDF
+	 * @param digest          Digest gia' calcolati sul contenuto, {@code null} per calcolarli alla prima richiesta
+	 * @param memUsageSetting Buffer di lavoro usati da PDFBox durante il parsing
+	 * @param onClose         Azione eseguita una sola volta alla chiusura, puo' essere {@code null}
+	 */
+	public PdfEnvelope(final File file, final DocumentDigestDTO digest, final MemoryUsageSetting memUsageSetting, final Runnable onClose) {
+		this.bytes = null;
+		this.file = file;
+		this.size = file.length();
+		this.digest = digest;
+		this.memUsageSetting = memUsageSetting;
+		this.onClose = onClose;
+	}
+
+	/**
+	 * Nuovo stream sul contenuto originale del PDF, da chiudere a cura del chiamante.
+	 * Usato dove serve l'intervallo firmato senza materializzare l'intero documento.
+	 */
+	public InputStream openStream() throws IOException {
+		if (file != null) {
+			return new BufferedInputStream(Files.newInputStream(file.toPath()));
+		}
+		return new ByteArrayInputStream(bytes);
+	}
+
+	/**
+	 * @return Verifica del magic number sui primi byte del contenuto
+	 */
+	public boolean isPdf() {
+		if (file == null) {
+			return PDFUtility.isPdf(bytes);
+		}
+		try (InputStream is = openStream()) {
+			return PDFUtility.isPdf(is.readNBytes(PDF_HEADER_LENGTH));
+		} catch (IOException e) {
+			log.warn("Errore in fase di lettura dell'header del pdf", e);
+			return false;
+		}
+	}
+
+	/**
+	 * SHA-256 e SHA-1 del contenuto originale, calcolati una sola volta.
+	 */
+	public DocumentDigestDTO getDigest() {
+		if (digest == null) {
+			if (file == null) {
+				digest = StringUtility.encodeSHA256AndSHA1(bytes);
+			} else {
+				try (InputStream is = openStream()) {
+					digest = StringUtility.encodeSHA256AndSHA1(is);
+				} catch (IOException e) {
+					log.error("Errore in fase di calcolo del digest del pdf", e);
+					throw new BusinessException("Errore in fase di calcolo del digest del pdf", e);
+				}
+			}
+		}
+		return digest;
+	}
+
+	/**
+	 * @return Documento PDFBox, caricato alla prima invocazione
+	 * @throws IOException Se il PDF non puo' essere letto
+	 */
+	public PDDocument getDocument() throws IOException {
+		if (document == null) {
+			if (file != null) {
+				document = PDDocument.load(file, "", null, null, memUsageSetting);
+			} else {
+				document = PDDocument.load(bytes, "", null, null, memUsageSetting);
+			}
+		}
+		return document;
+	}
+
+	public List<PDSignature> getSignatureDictionaries() throws IOException {
+		if (signatures == null) {
+			signatures = getDocument().getSignatureDictionaries();
+		}
+		return signatures;
+	}
+
+	/**
+	 * Allegati del PDF indicizzati per nome (in minuscolo).
+	 */
+	public Map<String, AttachmentDTO> getAttachments() throws IOException {
+		if (attachments == null) {
+			Map<String, AttachmentDTO> out = new HashMap<>();
+			PDEmbeddedFilesNameTreeNode embeddedFiles = getEmbeddedFiles();
+
+			if (embeddedFiles != null) {
+				Map<String, PDComplexFileSpecification> embeddedFileNames = embeddedFiles.getNames();
+				if (embeddedFileNames != null) {
+					putFiles(out, embeddedFileNames);
+				} else if (embeddedFiles.getKids() != null) {
+					for (PDNameTreeNode<PDComplexFileSpecification> kid : embeddedFiles.getKids()) {
+						Map<String, PDComplexFileSpecification> kidFiles = kid.getNames();
+						if (kidFiles != null) {
+							putFiles(out, kidFiles);
+						}
+					}
+				}
+			}
+			attachments = Collections.unmodifiableMap(out);
+		}
+		return attachments;
+	}
+
+	/**
+	 * Cerca un singolo allegato per nome nel name tree oppure per nome file, decodificando solo quello trovato.
+	 * La discesa per nome usa i limiti dei nodi; se fallisce si scorre l'albero fermandosi alla prima corrispondenza.
+	 *
+	 * @param name Nome dell'allegato
+	 * @return Allegato, {@code null} se assente
+	 */
+	public AttachmentDTO findAttachment(final String name) throws IOException {
+		if (!lookups.containsKey(name)) {
+			AttachmentDTO out = null;
+			PDEmbeddedFilesNameTreeNode embeddedFiles = getEmbeddedFiles();
+			if (embeddedFiles != null) {
+				Map.Entry<String, PDComplexFileSpecification> match = findByKey(embeddedFiles, name, 0);
+				if (match == null) {
+					match = findByKeyOrFileName(embeddedFiles, name, 0);
+				}
+				if (match != null) {
+					out = toAttachment(match.getKey(), match.getValue());
+				}
+			}
+			lookups.put(name, out);
+		}
+		return lookups.get(name);
+	}
+
+	/**
+	 * Contenuto decodificato del dataset XFA (Names/XFAResources), {@code null} se assente.
+	 */
+	public byte[] getXfaDatasets() throws IOException {
+		if (!xfaLoaded) {
+			xfaDatasets = readXfaDatasets();
+			xfaLoaded = true;
+		}
+		return xfaDatasets;
+	}
+
+	/**
+	 * Testo estratto da tutte le pagine del documento.
+	 */
+	public String getText() throws IOException {
+		if (text == null) {
+			text = new PDFTextStripper().getText(getDocument());
+		}
+		return text;
+	}
+
+	@Override
+	public void close() {
+		if (document != null) {
+			try {
+				document.close();
+			} catch (IOException e) {
+				log.warn("Errore in fase di chiusura del pdf", e);
+			}
+			document = null;
+		}
+		if (onClose != null) {
+			onClose.run();
+			onClose = null;
+		}
+	}
+
+	private PDEmbeddedFilesNameTreeNode getEmbeddedFiles() throws IOException {
+		PDDocumentNameDictionary names = getDocument().getDocumentCatalog().getNames();
+		return names != null ? names.getEmbeddedFiles() : null;
+	}
+
+	private static void putFiles(final Map<String, AttachmentDTO> out, final Map<String, PDComplexFileSpecification> files) throws IOException {
+		for (Map.Entry<String, PDComplexFileSpecification> entry : files.entrySet()) {
+			out.put(entry.getKey().toLowerCase(), toAttachment(entry.getKey(), entry.getValue()));
+		}
+	}
+
+	private static AttachmentDTO toAttachment(final String name, final PDComplexFileSpecification fileSpec) throws IOException {
+		return AttachmentDTO.builder()
+				.fileName(fileSpec.getFilename())
+				.name(name)
+				.mimeType(fileSpec.getEmbeddedFile().getSubtype())
+				.content(fileSpec.getEmbeddedFile().toByteArray())
+				.build();
+	}
+
+	private static Map.Entry<String, PDComplexFileSpecification> findByKey(final PDNameTreeNode<PDComplexFileSpecification> node,
+			final String name, final int depth) throws IOException {
+		if (depth > MAX_NAME_TREE_DEPTH || !couldContain(node, name)) {
+			return null;
+		}
+		Map<String, PDComplexFileSpecification> names = node.getNames();
+		if (names != null) {
+			PDComplexFileSpecification fileSpec = names.get(name);
+			return fileSpec != null ? Map.entry(name, fileSpec) : null;
+		}
+		List<PDNameTreeNode<PDComplexFileSpecification>> kids = node.getKids();
+		if (kids != null) {
+			for (PDNameTreeNode<PDComplexFileSpecification> kid : kids) {
+				Map.Entry<String, PDComplexFileSpecification> match = findByKey(kid, name, depth + 1);
+				if (match != null) {
+					return match;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static Map.Entry<String, PDComplexFileSpecification> findByKeyOrFileName(final PDNameTreeNode<PDComplexFileSpecification> node,
+			final String name, final int depth) throws IOException {
+		if (depth > MAX_NAME_TREE_DEPTH) {
+			return null;
+		}
+		Map<String, PDComplexFileSpecification> names = node.getNames();
+		if (names != null) {
+			for (Map.Entry<String, PDComplexFileSpecification> entry : names.entrySet()) {
+				if (name.equals(entry.getKey()) || name.equals(entry.getValue().getFilename())) {
+					return entry;
+				}
+			}
+		}
+		List<PDNameTreeNode<PDComplexFileSpecification>> kids = node.getKids();
+		if (kids != null) {
+			for (PDNameTreeNode<PDComplexFileSpecification> kid : kids) {
+				Map.Entry<String, PDComplexFileSpecification> match = findByKeyOrFileName(kid, name, depth + 1);
+				if (match != null) {
+					return match;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * I limiti sono assenti sulla radice e su alberi non conformi: in quel caso il nodo va esplorato.
+	 */
+	private static boolean couldContain(final PDNameTreeNode<PDComplexFileSpecification> node, final String name) {
+		String lower = node.getLowerLimit();
+		String upper = node.getUpperLimit();
+		return lower == null || upper == null || (lower.compareTo(name) <= 0 && upper.compareTo(name) >= 0);
+	}
+
+	private byte[] readXfaDatasets() throws IOException {
+		COSDictionary names = getDocument().getDocumentCatalog().getCOSObject().getCOSDictionary(COSName.NAMES);
+		if (names == null) {
+			log.debug("Names dictionary inside catalog is null");
+			return null;
+		}
+
+		COSBase xfaResources = names.getDictionaryObject(XFA_RESOURCES);
+		if (!(xfaResources instanceof COSDictionary)) {
+			log.debug("XFAResources inside Names is null");
+			return null;
+		}
+
+		COSBase datasetArray = ((COSDictionary) xfaResources).getDictionaryObject(COSName.NAMES);
+		if (!(datasetArray instanceof COSArray) || ((COSArray) datasetArray).size() < 2) {
+			log.debug("XFAResources Names array is missing or has less than 2 elements");
+			return null;
+		}
+
+		COSArray array = (COSArray) datasetArray;
+		COSBase name = array.getObject(0);
+		if (!(name instanceof COSString) || !XFA_DATASETS.equals(((COSString) name).getString())) {
+			log.debug("XFAResources Names [element 0] is not equals datasets");
+			return null;
+		}
+
+		COSBase stream = array.getObject(1);
+		if (!(stream instanceof COSStream)) {
+			log.debug("XFAResources Names [element 1] is not a stream");
+			return null;
+		}
+
+		try (InputStream is = ((COSStream) stream).createInputStream()) {
+			return is.readAllBytes();
+		}
+	}
+
+}
@@ -11,12 +11,18 @@
  */
 package it.finanze.sanita.fse2.ms.gtw.dispatcher.utility;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Provider;
+import java.security.Security;
+import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
-import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
 import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
 import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
@@ -24,64 +30,95 @@ import org.apache.pdfbox.pdmodel.interactive.form.PDField;
 import org.apache.pdfbox.pdmodel.interactive.form.PDSignatureField;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSProcessableByteArray;
 import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.cms.SignerInformation;
 import org.bouncycastle.cms.SignerInformationVerifier;
 import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.OperatorCreationException;
 
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.SignatureInfoDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.SignatureValidationDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
+import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class SignerUtility {
 
+	/**
+	 * Provider registrato una sola volta e condiviso da tutte le verifiche.
+	 */
+	private static final Provider PROVIDER = registerProvider();
+
+	/**
+	 * Builder e converter sono privi di stato per singola verifica e possono essere condivisi tra thread.
+	 */
+	private static final JcaSimpleSignerInfoVerifierBuilder VERIFIER_BUILDER = new JcaSimpleSignerInfoVerifierBuilder().setProvider(PROVIDER);
+
+	private static final JcaX509CertificateConverter CERTIFICATE_CONVERTER = new JcaX509CertificateConverter();
+
+	private static Provider registerProvider() {
+		Provider provider = Security.getProvider(BouncyCastleProvider.PROVIDER_NAME);
+		if (provider == null) {
+			provider = new BouncyCastleProvider();
+			Security.addProvider(provider);
+		}
+		return provider;
+	}
+
 	/******************************************************
 	*	VALIDATE PADES SIGNATURE
 	*******************************************************/
-	@SuppressWarnings("unchecked")
 	public static SignatureValidationDTO validate(byte[] file) {
+		try (PdfEnvelope pdf = new PdfEnvelope(file)) {
+			return validate(pdf);
+		}
+	}
+
+	public static SignatureValidationDTO validate(PdfEnvelope pdf) {
+		return validate(pdf, null);
+	}
+
+	/**
+	 * Verifica le firme del pdf. Il contenuto dei campi firma e' letto dal documento nel thread chiamante,
+	 * la verifica crittografica dei campi puo' essere distribuita sull'executor indicato.
+	 *
+	 * @param pdf      Pdf da verificare
+	 * @param executor Executor per la verifica in parallelo dei campi firma, {@code null} per la verifica sequenziale
+	 * @return Esito della verifica, lo stato e' quello dell'ultimo campo firma
+	 */
+	public static SignatureValidationDTO validate(PdfEnvelope pdf, Executor executor) {
 		SignatureValidationDTO output = null;
 		Boolean status = true;
 		List<SignatureInfoDTO> signatures = new ArrayList<>();
 		try {
-			PDDocument documentCDA = PDDocument.load(new ByteArrayInputStream(file));
-			PDDocumentCatalog docCatalog = documentCDA.getDocumentCatalog();
+			PDDocumentCatalog docCatalog = pdf.getDocument().getDocumentCatalog();
 			PDAcroForm acroForm = docCatalog.getAcroForm();
 			
 			if(acroForm!=null && acroForm.getFields()!=null) {
+				List<SignedField> fields = new ArrayList<>();
 				for (PDField field:acroForm.getFields()) {
 					if (field instanceof PDSignatureField) {
-						PDSignatureField pf = (PDSignatureField)field;
-						
-						PDSignature signature = pf.getSignature();
-						byte[] signatureAsBytes = signature.getContents(file);
-						byte[] signedContentAsBytes = signature.getSignedContent(file);
-						
-						CMSSignedData cms = new CMSSignedData(new CMSProcessableByteArray(signedContentAsBytes), signatureAsBytes);
-						SignerInformation signerInfo = (SignerInformation) cms.getSignerInfos().getSigners().iterator().next();
-						
-						X509CertificateHolder certHolder = (X509CertificateHolder) cms.getCertificates().getMatches(signerInfo.getSID()).iterator().next();
-						SignerInformationVerifier verifier = new JcaSimpleSignerInfoVerifierBuilder().setProvider(new BouncyCastleProvider()).build(certHolder);
-						X509Certificate cert = new JcaX509CertificateConverter().getCertificate(certHolder);
-						SignatureInfoDTO info = SignatureInfoDTO.builder().
-								principal(cert.getIssuerX500Principal()).
-								notBefore(cert.getNotBefore()).
-								notAfter(cert.getNotAfter()).
-								contactInfo(pf.getSignature().getContactInfo()).
-								fieldType(field.getFieldType()).
-								fullyQualifiedName(field.getFullyQualifiedName()).
-								location(pf.getSignature().getLocation()).
-								name(pf.getSignature().getName()).
-								reason(pf.getSignature().getReason()).
-								signDate(pf.getSignature().getSignDate().getTime()).
-								encrypAlgOID(signerInfo.getEncryptionAlgOID()).
-								digestAlgOID(signerInfo.getDigestAlgOID()).
-								valid(signerInfo.verify(verifier)).
-								build();
+						fields.add(read(pdf, (PDSignatureField)field));
+					}
+				}
+
+				if (executor == null || fields.size() < 2) {
+					for (SignedField field : fields) {
+						SignatureInfoDTO info = verify(field);
+						signatures.add(info);
+						status = info.getValid();
+					}
+				} else {
+					List<CompletableFuture<SignatureInfoDTO>> futures = new ArrayList<>();
+					for (SignedField field : fields) {
+						futures.add(CompletableFuture.supplyAsync(() -> verifyAsync(field), executor));
+					}
+					for (CompletableFuture<SignatureInfoDTO> future : futures) {
+						SignatureInfoDTO info = join(future);
 						signatures.add(info);
 						status = info.getValid();
 					}
@@ -96,11 +133,94 @@ public class SignerUtility {
 		output = SignatureValidationDTO.builder().status(status).signatures(signatures).build(); 
         return output;
 	}
+
+	/**
+	 * Legge dal documento tutto cio' che serve alla verifica, PDFBox non e' thread-safe.
+	 */
+	private static SignedField read(PdfEnvelope pdf, PDSignatureField field) throws IOException {
+		final long start = System.nanoTime();
+		PDSignature signature = field.getSignature();
+		byte[] signatureAsBytes;
+		try (InputStream file = pdf.openStream()) {
+			signatureAsBytes = signature.getContents(file);
+		}
+		byte[] signedContentAsBytes;
+		try (InputStream file = pdf.openStream()) {
+			signedContentAsBytes = signature.getSignedContent(file);
+		}
+
+		SignatureInfoDTO.SignatureInfoDTOBuilder info = SignatureInfoDTO.builder().
+				contactInfo(signature.getContactInfo()).
+				fieldType(field.getFieldType()).
+				fullyQualifiedName(field.getFullyQualifiedName()).
+				location(signature.getLocation()).
+				name(signature.getName()).
+				reason(signature.getReason()).
+				signDate(signature.getSignDate().getTime());
+		return new SignedField(signatureAsBytes, signedContentAsBytes, info, System.nanoTime() - start);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SignatureInfoDTO verify(SignedField field) throws CMSException, CertificateException, OperatorCreationException {
+		final long start = System.nanoTime();
+		CMSSignedData cms = new CMSSignedData(new CMSProcessableByteArray(field.signedContent), field.signature);
+		SignerInformation signerInfo = cms.getSignerInfos().getSigners().iterator().next();
+		
+		X509CertificateHolder certHolder = (X509CertificateHolder) cms.getCertificates().getMatches(signerInfo.getSID()).iterator().next();
+		SignerInformationVerifier verifier = VERIFIER_BUILDER.build(certHolder);
+		X509Certificate cert = CERTIFICATE_CONVERTER.getCertificate(certHolder);
+		boolean valid = signerInfo.verify(verifier);
+		return field.info.
+				principal(cert.getIssuerX500Principal()).
+				notBefore(cert.getNotBefore()).
+				notAfter(cert.getNotAfter()).
+				encrypAlgOID(signerInfo.getEncryptionAlgOID()).
+				digestAlgOID(signerInfo.getDigestAlgOID()).
+				valid(valid).
+				verificationNanos(field.readNanos + System.nanoTime() - start).
+				build();
+	}
+
+	private static SignatureInfoDTO verifyAsync(SignedField field) {
+		try {
+			return verify(field);
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	private static SignatureInfoDTO join(CompletableFuture<SignatureInfoDTO> future) throws Exception {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Campo firma letto dal documento, in attesa della verifica crittografica.
+	 */
+	@AllArgsConstructor
+	private static final class SignedField {
+		private final byte[] signature;
+		private final byte[] signedContent;
+		private final SignatureInfoDTO.SignatureInfoDTOBuilder info;
+		private final long readNanos;
+	}
      
 	public static boolean isSigned(byte[] pdf) {
+		try (PdfEnvelope envelope = new PdfEnvelope(pdf)) {
+			return isSigned(envelope);
+		}
+	}
+
+	public static boolean isSigned(PdfEnvelope pdf) {
 		boolean hasAnySignature = false;
-		try(PDDocument document = PDDocument.load(pdf);) {
-			hasAnySignature = !document.getSignatureDictionaries().isEmpty();
+		try {
+			hasAnySignature = !pdf.getSignatureDictionaries().isEmpty();
 		} catch (Exception e) {
 			log.error("Error while searching signature for file with name", e);
 			throw new BusinessException("Error while searching signature for file with name", e);
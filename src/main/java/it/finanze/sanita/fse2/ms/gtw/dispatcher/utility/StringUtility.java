@@ -11,25 +11,21 @@
  */
 package it.finanze.sanita.fse2.ms.gtw.dispatcher.utility;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
-import java.util.TimeZone;
 import java.util.UUID;
 
 import org.apache.commons.codec.binary.Hex;
 
-import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.exc.UnrecognizedPropertyException;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import com.google.gson.Gson;
 
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.DocumentDigestDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.response.ErrorResponseDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.ErrorInstanceEnum;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.RestExecutionResultEnum;
@@ -41,7 +37,14 @@ import lombok.extern.slf4j.Slf4j;
 public final class StringUtility {
 
 	private static final String ERROR_MSG = "Errore in fase di calcolo sha";
-	private static final ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * Dimensione dei blocchi passati a entrambi i digest: il blocco resta in cache tra i due aggiornamenti.
+	 */
+	private static final int DIGEST_CHUNK_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<MessageDigest> SHA256_DIGEST = ThreadLocal.withInitial(() -> newDigest(Constants.App.SHA_ALGORITHM));
+	private static final ThreadLocal<MessageDigest> SHA1_DIGEST = ThreadLocal.withInitial(() -> newDigest(Constants.App.SHA1_ALGORITHM));
 
 	/**
 	 * Private constructor to avoid instantiation.
@@ -92,6 +95,57 @@ public final class StringUtility {
 		}
 	}
 
+	/**
+	 * Returns the hex encoded SHA-256 and SHA-1 of the byte array, computed in a single pass.
+	 * Equivalent to {@link #encodeSHA256(byte[])} and {@link #encodeSHA1(byte[])}.
+	 * 
+	 * @param objectToEncode Bytes to encode.
+	 * @return Both digests.
+	 */
+	public static DocumentDigestDTO encodeSHA256AndSHA1(final byte[] objectToEncode) {
+		final MessageDigest sha256 = SHA256_DIGEST.get();
+		final MessageDigest sha1 = SHA1_DIGEST.get();
+		sha256.reset();
+		sha1.reset();
+		for (int offset = 0; offset < objectToEncode.length; offset += DIGEST_CHUNK_SIZE) {
+			final int length = Math.min(DIGEST_CHUNK_SIZE, objectToEncode.length - offset);
+			sha256.update(objectToEncode, offset, length);
+			sha1.update(objectToEncode, offset, length);
+		}
+		return new DocumentDigestDTO(Hex.encodeHexString(sha256.digest()), Hex.encodeHexString(sha1.digest()));
+	}
+
+	/**
+	 * Returns the hex encoded SHA-256 and SHA-1 of the stream content, computed in a single pass.
+	 * Equivalent to {@link #encodeSHA256AndSHA1(byte[])} without holding the content in memory.
+	 * 
+	 * @param objectToEncode Stream to encode, not closed.
+	 * @return Both digests.
+	 * @throws IOException If the stream cannot be read.
+	 */
+	public static DocumentDigestDTO encodeSHA256AndSHA1(final InputStream objectToEncode) throws IOException {
+		final MessageDigest sha256 = SHA256_DIGEST.get();
+		final MessageDigest sha1 = SHA1_DIGEST.get();
+		sha256.reset();
+		sha1.reset();
+		final byte[] buffer = new byte[DIGEST_CHUNK_SIZE];
+		int read;
+		while ((read = objectToEncode.read(buffer)) != -1) {
+			sha256.update(buffer, 0, read);
+			sha1.update(buffer, 0, read);
+		}
+		return new DocumentDigestDTO(Hex.encodeHexString(sha256.digest()), Hex.encodeHexString(sha1.digest()));
+	}
+
+	private static MessageDigest newDigest(final String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (final Exception e) {
+			log.error(ERROR_MSG, e);
+			throw new BusinessException(Constants.App.SHA_ERROR, e);
+		}
+	}
+
 	/**
 	 * Returns the encoded String of the SHA-256 algorithm represented in base 64.
 	 * 
@@ -164,7 +218,7 @@ public final class StringUtility {
 	 * @return		object
 	 */
 	public static <T> T fromJSON(final String json, final Class<T> cls) {
-		return new Gson().fromJson(json, cls);
+		return JsonUtility.getGson().fromJson(json, cls);
 	}
 
 	/**
@@ -174,7 +228,7 @@ public final class StringUtility {
 	 * @return		json
 	 */
 	public static String toJSON(final Object obj) {
-		return new Gson().toJson(obj);
+		return JsonUtility.getGson().toJson(obj);
 	}
 
 	/**
@@ -186,13 +240,7 @@ public final class StringUtility {
 	public static String toJSONJackson(final Object obj) {
 		String out = "";
 		try {
-			final ObjectMapper objectMapper = new ObjectMapper(); 
-			objectMapper.registerModule(new JavaTimeModule());
-			objectMapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
-			objectMapper.setDateFormat(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ"));
-			objectMapper.setTimeZone(TimeZone.getDefault());
-			objectMapper.setSerializationInclusion(Include.NON_NULL);
-			out = objectMapper.writeValueAsString(obj);
+			out = JsonUtility.timeWriterFor(obj != null ? obj.getClass() : Object.class).writeValueAsString(obj);
 		} catch(final Exception ex) {
 			log.error("Error while running to json jackson");
 			throw new BusinessException(ex);
@@ -205,8 +253,7 @@ public final class StringUtility {
 		T out = null;
 
 		try {
-			final ObjectMapper mapper = new ObjectMapper();
-			out = mapper.readValue(json, clazz);
+			out = JsonUtility.readerFor(clazz).readValue(json);
 		} catch (UnrecognizedPropertyException ue) {
 			final ErrorResponseDTO error = ErrorResponseDTO.builder()
 					.type(RestExecutionResultEnum.MANDATORY_ELEMENT_ERROR.getType())
@@ -0,0 +1,152 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ *
+ * Copyright (C) 2023 Ministero della Salute
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.CdaMaskingSerializer;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.CdaMaskingSerializer.UnsupportedMarkupException;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.CdaUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.FileUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PDFUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
+
+class CdaHashTest {
+
+	private static final String[] PDF_FILES = {
+		"Files/attachment/CDA_OK_SIGNED.pdf", "Files/attachment/LAB_OK.pdf", "Files/attachment/LDO_OK.pdf",
+		"Files/attachment/RAD_OK.pdf", "Files/attachment/RSA_OK.pdf", "Files/attachment/VPS_OK.pdf",
+		"Files/accreditamento/SIGNED_LAB1.pdf", "Files/accreditamento/SIGNED_PSS1.pdf", "Files/accreditamento/SIGNED_VPS1.pdf"
+	};
+
+	@Test
+	@DisplayName("Masked hash is unchanged with respect to the string based computation")
+	void hashCompatibilityTest() {
+		for (String cda : samples()) {
+			assertEquals(StringUtility.encodeSHA256B64(legacyMasked(cda, true)), CdaUtility.hashWithoutLegalAuthenticator(cda, true));
+			assertEquals(StringUtility.encodeSHA256B64(legacyMasked(cda, false)), CdaUtility.hashWithoutLegalAuthenticator(cda, false));
+		}
+	}
+
+	@Test
+	@DisplayName("Masked hash ignores the LegalAuthenticator content")
+	void hashMaskingTest() {
+		final String cda = "\n  <ClinicalDocument><legalAuthenticator><time value=\"20220101\"/><assignedEntity><id extension=\"AAA\"/>"
+				+ "<name>Mario</name></assignedEntity></legalAuthenticator><title>Referto</title></ClinicalDocument>  \n";
+		final String other = cda.replace("20220101", "20230101").replace("AAA", "BBB").replace("Mario", "Luigi");
+
+		assertEquals(CdaUtility.hashWithoutLegalAuthenticator(cda, true), CdaUtility.hashWithoutLegalAuthenticator(other, true));
+		assertEquals(StringUtility.encodeSHA256B64(legacyMasked(cda, true)), CdaUtility.hashWithoutLegalAuthenticator(cda, true));
+		assertNotEquals(CdaUtility.hashWithoutLegalAuthenticator(cda, true), CdaUtility.hashWithoutLegalAuthenticator(cda.replace("Referto", "Lettera"), true));
+	}
+
+	@Test
+	@DisplayName("Streaming serialization matches the masked Jsoup document character by character")
+	void streamingSerializationTest() throws Exception {
+		List<String> documents = samples();
+		documents.add("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n<?xml-stylesheet type='text/xsl' href=\"CDA.xsl\"?>\r\n"
+				+ "<ClinicalDocument xmlns=\"urn:hl7-org:v3\" xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'>\r\n<!-- header -->\n"
+				+ "<title>Referto &amp; esame &#233; &lt;x&gt; \"q\" &apos;a' &#160;\u00a0</title>\n"
+				+ "<code code=\"1\"/><foo></foo><foo/><Title></Title><Title/><br></br><section/><id a = \"1\r\n2\t>3<\" b='\"'/>\n"
+				+ "<legalAuthenticator>\n <time value=\"2022\"/>\n <signatureCode code=\"S\"/>\n <assignedEntity classCode=\"ASSIGNED\">\n"
+				+ "  <id root=\"2.16\" extension=\"CF\"/>\n  <assignedPerson><name><family>Rossi</family><given> </given>"
+				+ "<prefix>&#160;</prefix><suffix><![CDATA[ x ]]></suffix><!-- c --><empty></empty></name></assignedPerson>\n"
+				+ " </assignedEntity>\n <Signature xmlns=\"http://www.w3.org/2000/09/xmldsig#\"><SignedInfo>abc</SignedInfo></Signature>\n"
+				+ "</legalAuthenticator >\n<legalAuthenticator><time value=\"x\"/></legalAuthenticator>\n"
+				+ "<component><structuredBody><text>a<br/>b\u00e9 &#x1F600; x&gt;y]]></text></structuredBody></component>\n</ClinicalDocument>\n");
+		documents.add("\uFEFF<ClinicalDocument><legalAuthenticator/><empty/></ClinicalDocument>");
+		documents.add("<ClinicalDocument><code/></ClinicalDocument>");
+		documents.add("<a><LegalAuthenticator>text<!--c--></LegalAuthenticator></a>");
+		documents.add("<a><legalAuthenticator><x><signature>1</signature></x><Signature>2</Signature></legalAuthenticator></a>");
+		documents.add("<a><legalAuthenticator><x>\u200b\u00ad</x><y>\u00a0 </y><z><![CDATA[\u00a0]]></z><w><![CDATA[ ]]></w></legalAuthenticator></a>");
+		documents.add("<a><hl7:legalAuthenticator xmlns:hl7=\"urn:hl7-org:v3\"><b c=\"d\">e</b></hl7:legalAuthenticator></a>");
+
+		for (String cda : documents) {
+			for (boolean removeSignature : new boolean[] {true, false}) {
+				assertEquals(legacyMasked(cda, removeSignature), stream(cda, removeSignature));
+				assertEquals(StringUtility.encodeSHA256B64(legacyMasked(cda, removeSignature)), CdaUtility.hashWithoutLegalAuthenticator(cda, removeSignature));
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Markup corrected by Jsoup falls back to the parsed document with the same hash")
+	void unsupportedMarkupTest() {
+		final String[] documents = {
+			"<!DOCTYPE a><a><legalAuthenticator><b>c</b></legalAuthenticator></a>",
+			"<a>&eacute;<legalAuthenticator><b>c</b></legalAuthenticator></a>",
+			"<a><legalAuthenticator><b>c</legalAuthenticator></a>",
+			"<a>x < y<legalAuthenticator/></a>",
+			"<a b=1/>",
+			"<a>&#128;&amp</a>",
+			"<a>\u0001</a>",
+			"<a><pre><legalAuthenticator><b> </b></legalAuthenticator></pre></a>",
+			"<a><!-- a -- b --></a>"
+		};
+		for (String cda : documents) {
+			assertThrows(UnsupportedMarkupException.class, () -> stream(cda, true));
+			assertEquals(StringUtility.encodeSHA256B64(legacyMasked(cda, true)), CdaUtility.hashWithoutLegalAuthenticator(cda, true));
+		}
+	}
+
+	private static String stream(final String cda, final boolean removeSignature) throws IOException, UnsupportedMarkupException {
+		StringWriter writer = new StringWriter();
+		CdaMaskingSerializer.write(cda, removeSignature, writer);
+		return writer.toString();
+	}
+
+	private static List<String> samples() {
+		List<String> out = new ArrayList<>();
+		out.add(new String(FileUtility.getFileFromInternalResources("Files/Esempio CDA2_Referto Medicina di Laboratorio v6_OK.xml"), StandardCharsets.UTF_8));
+		for (String file : PDF_FILES) {
+			String cda = PDFUtility.extractContentFromAttachments(FileUtility.getFileFromInternalResources(file), "cda.xml");
+			if (cda != null) {
+				out.add(cda);
+			}
+		}
+		return out;
+	}
+
+	private static String legacyMasked(final String cda, final boolean removeSignature) {
+		Document doc = Jsoup.parse(cda, "", Parser.xmlParser());
+		Element authenticator = doc.selectFirst("LegalAuthenticator");
+		if (authenticator != null) {
+			Element signature = removeSignature ? authenticator.selectFirst("Signature") : null;
+			if (signature != null) {
+				signature.remove();
+			}
+			authenticator.forEach(e -> {
+				e.attributes().forEach(a -> a.setValue("PLACEHOLDER"));
+				if (e.children().isEmpty() && !e.text().isEmpty()) {
+					e.text("PLACEHOLDER");
+				}
+			});
+		}
+		return doc.toString();
+	}
+
+}
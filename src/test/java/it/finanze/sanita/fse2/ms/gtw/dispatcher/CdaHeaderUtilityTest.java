@@ -0,0 +1,106 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ *
+ * Copyright (C) 2023 Ministero della Salute
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.CdaHeaderDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.CdaHeaderUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.FileUtility;
+
+class CdaHeaderUtilityTest {
+
+	private static final String CDA_PATH = "Files/Esempio CDA2_Referto Medicina di Laboratorio v6_OK.xml";
+
+	@Test
+	@DisplayName("Header extraction matches the Jsoup selectors")
+	void extractMatchesJsoupTest() {
+		final String cda = new String(FileUtility.getFileFromInternalResources(CDA_PATH), StandardCharsets.UTF_8);
+		final Document doc = Jsoup.parse(cda);
+
+		CdaHeaderDTO header = CdaHeaderUtility.extract(cda);
+
+		Element patient = doc.selectFirst("ClinicalDocument > recordTarget > patientRole > id");
+		assertEquals(patient.attr("root"), header.getPatientId().getRoot());
+		assertEquals(patient.attr("extension"), header.getPatientId().getExtension());
+
+		Element author = doc.selectFirst("ClinicalDocument > author > assignedAuthor > id");
+		assertEquals(author.attr("root"), header.getAuthorId().getRoot());
+		assertEquals(author.attr("extension"), header.getAuthorId().getExtension());
+
+		assertEquals(doc.select("ClinicalDocument > inFulfillmentOf > order > id").size(), header.getOrderIds().size());
+		assertEquals(doc.selectFirst("ClinicalDocument > confidentialityCode").attr("code"), header.getConfidentialityCode());
+		assertEquals(doc.selectFirst("ClinicalDocument > code").attr("code"), header.getCode().getCode());
+		assertEquals(doc.selectFirst("ClinicalDocument > code").attr("displayName"), header.getCode().getDisplayName());
+		assertEquals(doc.selectFirst("ClinicalDocument > templateId").attr("root"), header.getTemplateId());
+		assertEquals(doc.select("ClinicalDocument > effectiveTime").val(), header.getEffectiveTime());
+		assertEquals(doc.selectFirst("ClinicalDocument > title").text(), header.getTitle());
+	}
+
+	@Test
+	@DisplayName("Header extraction stops before the body")
+	void extractStopsAtBodyTest() {
+		final String cda = "<ClinicalDocument xmlns=\"urn:hl7-org:v3\">"
+				+ "<code code=\"11502-2\" displayName=\"Referto\"/>"
+				+ "<title>  Referto \n di   laboratorio </title>"
+				+ "<inFulfillmentOf><order><id root=\"2.16.840.1.113883.2.9.4.3.9\" extension=\"NRE1\"/></order></inFulfillmentOf>"
+				+ "<inFulfillmentOf><order><id root=\"2.16.840.1.113883.2.9.4.3.9\" extension=\"NRE2\"/></order></inFulfillmentOf>"
+				+ "<component><structuredBody><unclosed></structuredBody></component>"
+				+ "</ClinicalDocument>";
+
+		CdaHeaderDTO header = CdaHeaderUtility.extract(cda);
+
+		assertEquals("11502-2", header.getCode().getCode());
+		assertEquals("Referto di laboratorio", header.getTitle());
+		assertEquals(2, header.getOrderIds().size());
+		assertEquals("NRE2", header.getOrderIds().get(1).getExtension());
+		assertEquals("", header.getEffectiveTime());
+		assertNull(header.getPatientId());
+		assertNull(header.getConfidentialityCode());
+	}
+
+	@Test
+	@DisplayName("Malformed header falls back to the Jsoup extraction")
+	void extractFallbackTest() {
+		CdaHeaderDTO header = CdaHeaderUtility.extract("<ClinicalDocument><code code=\"11502-2\"/>"
+				+ "<title>Referto</title></clinicaldocument>");
+		assertEquals("11502-2", header.getCode().getCode());
+		assertEquals("Referto", header.getTitle());
+	}
+
+	@Test
+	@DisplayName("Extraction from the parsed document matches the streaming extraction")
+	void extractFromDocumentTest() {
+		final String cda = new String(FileUtility.getFileFromInternalResources(CDA_PATH), StandardCharsets.UTF_8);
+		CdaHeaderDTO streamed = CdaHeaderUtility.extract(cda);
+		CdaHeaderDTO parsed = CdaHeaderUtility.extract(Jsoup.parse(cda));
+
+		assertEquals(streamed.getPatientId().getExtension(), parsed.getPatientId().getExtension());
+		assertEquals(streamed.getAuthorId().getRoot(), parsed.getAuthorId().getRoot());
+		assertEquals(streamed.getOrderIds().size(), parsed.getOrderIds().size());
+		assertEquals(streamed.getConfidentialityCode(), parsed.getConfidentialityCode());
+		assertEquals(streamed.getCode().getDisplayName(), parsed.getCode().getDisplayName());
+		assertEquals(streamed.getTemplateId(), parsed.getTemplateId());
+		assertEquals(streamed.getEffectiveTime(), parsed.getEffectiveTime());
+		assertEquals(streamed.getTitle(), parsed.getTitle());
+	}
+
+}
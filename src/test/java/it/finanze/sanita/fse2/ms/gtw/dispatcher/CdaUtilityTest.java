@@ -12,6 +12,8 @@
 package it.finanze.sanita.fse2.ms.gtw.dispatcher;
 
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.ParsedCdaDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.CdaUtility;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.ValidationException;
 import org.jsoup.nodes.Document;
 import org.junit.jupiter.api.DisplayName;
@@ -52,4 +54,22 @@ class CdaUtilityTest {
         assertTrue(isValidMasterId("abcd"));
         assertTrue(isValidMasterId("2.16.840.4^UAT_GTW_ID162"));
     }
+
+    @Test
+    @DisplayName("CdaUtility - Parsed CDA shared across the request")
+    void parsedCdaTest() {
+        final String cda = "<ClinicalDocument><id root=\"2.16.840.1.113883.2.9.2.120\" extension=\"ABC\"/>"
+            + "<code code=\"11502-2\" codeSystem=\"2.16.840.1.113883.6.1\"/></ClinicalDocument>";
+        ParsedCdaDTO parsedCda = CdaUtility.parse(cda);
+
+        assertSame(cda, parsedCda.getCda());
+        assertNotNull(parsedCda.getDocument());
+        assertNull(parsedCda.getDocumentType());
+
+        String documentType = CdaUtility.getDocumentType(parsedCda);
+        assertEquals(CdaUtility.getDocumentType(parsedCda.getDocument()), documentType);
+        assertSame(documentType, parsedCda.getDocumentType());
+        assertTrue(getWorkflowInstanceId(parsedCda).startsWith("2.16.840.1.113883.2.9.2.120."));
+        assertEquals(Constants.App.MISSING_DOC_TYPE_PLACEHOLDER, CdaUtility.getDocumentType((ParsedCdaDTO) null));
+    }
 }
@@ -3,6 +3,7 @@ package it.finanze.sanita.fse2.ms.gtw.dispatcher;
 import static it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants.Profile.TEST;
 import static it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.ConfigItemTypeEnum.GENERIC;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.Mockito.when;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 
@@ -19,12 +20,14 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.client.IConfigClient;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.client.routes.ConfigClientRoutes;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.ConfigItemDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.ConfigItemTypeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -73,6 +76,15 @@ class ConfigClientTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    @DisplayName("Get prop with gtw-config not reachable")
+    void getPropTestNotReachable(){
+        // Mock the it-gtw-config status
+        when(client.getForEntity(Mockito.anyString(), Mockito.eq(String.class))).thenThrow(new ResourceAccessException("unreachable"));
+
+        assertThrows(BusinessException.class, () -> config.getProps("prop_name", "false", specific));
+    }
+
     @Test
     void getAllPropsTest(){
         ConfigItemDTO expected = request();
@@ -0,0 +1,131 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static it.finanze.sanita.fse2.ms.gtw.dispatcher.client.routes.base.ClientRoutes.Config.PROPS_NAME_AUDIT_ENABLED;
+import static it.finanze.sanita.fse2.ms.gtw.dispatcher.client.routes.base.ClientRoutes.Config.PROPS_NAME_CONTROL_LOG_ENABLED;
+import static it.finanze.sanita.fse2.ms.gtw.dispatcher.client.routes.base.ClientRoutes.Config.PROPS_NAME_ISSUER_CF;
+import static it.finanze.sanita.fse2.ms.gtw.dispatcher.client.routes.base.ClientRoutes.Config.PROPS_NAME_REMOVE_EDS_ENABLE;
+import static it.finanze.sanita.fse2.ms.gtw.dispatcher.client.routes.base.ClientRoutes.Config.PROPS_NAME_SUBJECT;
+import static it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.ConfigItemTypeEnum.GENERIC;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestClientException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.client.IConfigClient;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.ConfigItemDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.ConfigSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.ProfileUtility;
+
+class ConfigSRVTest {
+
+	private final IConfigClient client = mock(IConfigClient.class);
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	private ConfigSRV config;
+
+	@AfterEach
+	void tearDown() {
+		config.preDestroy();
+	}
+
+	private ConfigSRV create() {
+		ConfigItemDTO.ConfigDataItemDTO generic = new ConfigItemDTO.ConfigDataItemDTO();
+		generic.setKey(GENERIC.name());
+		generic.setItems(new HashMap<>());
+		for (String name : new String[] {PROPS_NAME_REMOVE_EDS_ENABLE, PROPS_NAME_AUDIT_ENABLED, PROPS_NAME_CONTROL_LOG_ENABLED,
+				PROPS_NAME_SUBJECT, PROPS_NAME_ISSUER_CF}) {
+			generic.getItems().put(name, "false");
+		}
+		List<ConfigItemDTO.ConfigDataItemDTO> values = new ArrayList<>();
+		values.add(generic);
+		ConfigItemDTO items = new ConfigItemDTO();
+		items.setConfigurationItems(values);
+		when(client.getConfigurationItems(any())).thenReturn(items);
+
+		ProfileUtility profiles = mock(ProfileUtility.class);
+		when(profiles.isTestProfile()).thenReturn(false);
+
+		config = new ConfigSRV();
+		ReflectionTestUtils.setField(config, "client", client);
+		ReflectionTestUtils.setField(config, "profiles", profiles);
+		ReflectionTestUtils.setField(config, "meterRegistry", registry);
+		ReflectionTestUtils.setField(config, "refreshRate", 3_600_000L);
+		config.postConstruct();
+		return config;
+	}
+
+	@Test
+	@DisplayName("Reads use the snapshot without calling gtw-config")
+	void snapshotReadTest() {
+		create();
+		for (int i = 0; i < 100; i++) {
+			assertFalse(config.isControlLogPersistenceEnable());
+			assertFalse(config.isAuditIniEnable());
+		}
+		verify(client, never()).getProps(anyString(), any(), any());
+	}
+
+	@Test
+	@DisplayName("Refresh swaps the snapshot and a failed refresh keeps the last good one")
+	void refreshTest() {
+		create();
+		when(client.getProps(anyString(), any(), any())).thenReturn("false");
+		when(client.getProps(eq(PROPS_NAME_AUDIT_ENABLED), any(), any())).thenReturn("true");
+		config.refresh();
+		assertTrue(config.isAuditEnable());
+		assertFalse(config.isRemoveEds());
+
+		when(client.getProps(eq(PROPS_NAME_REMOVE_EDS_ENABLE), any(), any())).thenReturn("true");
+		when(client.getProps(eq(PROPS_NAME_SUBJECT), any(), any())).thenThrow(new RestClientException("unavailable"));
+		config.refresh();
+		assertTrue(config.isAuditEnable());
+		assertFalse(config.isRemoveEds());
+
+		assertEquals(1, registry.get("config.snapshot.refresh.failures").counter().count());
+		assertEquals(2, registry.get("config.snapshot.refresh").timer().count());
+		assertTrue(registry.get("config.snapshot.age").gauge().value() >= 0);
+	}
+
+	@Test
+	@DisplayName("An unreachable gtw-config counts as a failed refresh and keeps the snapshot load time")
+	void unreachableTest() {
+		create();
+		Object before = ReflectionTestUtils.getField(config, "snapshot");
+		when(client.getProps(anyString(), any(), any())).thenThrow(new BusinessException("gtw-config is not reachable"));
+		config.refresh();
+		assertSame(before, ReflectionTestUtils.getField(config, "snapshot"));
+		assertEquals(1, registry.get("config.snapshot.refresh.failures").counter().count());
+	}
+
+}
@@ -0,0 +1,75 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.ControlLogSamplingCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.logging.ControlLogSampler;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.logging.ControlLogSampler.SuppressedCount;
+
+class ControlLogSamplerTest {
+
+	@Test
+	@DisplayName("One success in N is kept per operation and issuer")
+	void samplingTest() {
+		ControlLogSamplingCFG cfg = new ControlLogSamplingCFG();
+		cfg.setSuccessOneIn(4);
+		ControlLogSampler sampler = new ControlLogSampler(cfg, new SimpleMeterRegistry());
+
+		int acceptedA = 0;
+		int acceptedB = 0;
+		for (int i = 0; i < 40; i++) {
+			acceptedA += sampler.accept("PUB", "issuer-a") ? 1 : 0;
+			acceptedB += sampler.accept("PUB", "issuer-b") ? 1 : 0;
+		}
+		assertEquals(10, acceptedA);
+		assertEquals(10, acceptedB);
+		assertTrue(sampler.accept("VAL", "issuer-a"));
+
+		Map<String, SuppressedCount> suppressed = sampler.drainSuppressed();
+		assertEquals(1, suppressed.size());
+		assertEquals(60, suppressed.get("PUB").getSampled());
+		assertEquals(0, suppressed.get("PUB").getRateLimited());
+		assertTrue(sampler.drainSuppressed().isEmpty());
+	}
+
+	@Test
+	@DisplayName("Token bucket per operation limits successes and counts the suppressed ones")
+	void rateLimitTest() {
+		ControlLogSamplingCFG cfg = new ControlLogSamplingCFG();
+		cfg.setSuccessOneIn(1);
+		cfg.setRateLimitPerSecond(0.001);
+		cfg.setRateLimitBurst(5);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		ControlLogSampler sampler = new ControlLogSampler(cfg, registry);
+
+		int accepted = 0;
+		for (int i = 0; i < 20; i++) {
+			accepted += sampler.accept("PUB", "issuer-" + i) ? 1 : 0;
+		}
+		assertEquals(5, accepted);
+		assertTrue(sampler.accept("VAL", null));
+
+		assertEquals(15, sampler.drainSuppressed().get("PUB").getRateLimited());
+		assertEquals(15, registry.get("logger.control.suppressed").tag("operation", "PUB").tag("reason", "rate-limited")
+				.counter().count());
+	}
+
+}
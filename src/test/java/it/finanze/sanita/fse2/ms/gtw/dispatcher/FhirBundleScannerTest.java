@@ -0,0 +1,50 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.FhirBundleScanner;
+
+class FhirBundleScannerTest {
+
+	@Test
+	@DisplayName("Bundle split across chunks is found as soon as it closes")
+	void chunkedBundleTest() {
+		FhirBundleScanner scanner = new FhirBundleScanner();
+		assertFalse(scanner.feed("Pagina 1 {\"resourceType\": "));
+		assertTrue(scanner.isOpen());
+		assertTrue(scanner.feed("\"Bundle\", \"entry\": [{}]} trailing {"));
+		assertEquals("{\"resourceType\": \"Bundle\", \"entry\": [{}]}", scanner.getBundle());
+	}
+
+	@Test
+	@DisplayName("Objects that are not a Bundle are skipped")
+	void skipNonBundleTest() {
+		FhirBundleScanner scanner = new FhirBundleScanner();
+		assertTrue(scanner.feed("{\"a\": 1} testo {\"resourceType\": \"Bundle\"}"));
+		assertEquals("{\"resourceType\": \"Bundle\"}", scanner.getBundle());
+
+		scanner = new FhirBundleScanner();
+		assertFalse(scanner.feed("nessun json {\"a\": {\"b\": 2}}"));
+		assertTrue(scanner.isObjectFound());
+		assertFalse(scanner.isOpen());
+		assertNull(scanner.getBundle());
+	}
+
+}
@@ -12,17 +12,41 @@
 package it.finanze.sanita.fse2.ms.gtw.dispatcher;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
 
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.ActiveProfiles;
 
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.gson.Gson;
+
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.DocumentEntryDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.IndexerValueDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.KafkaStatusManagerDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.LogDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.request.PublicationCreationReqDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.AttivitaClinicaEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.EventStatusEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.EventTypeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.InjectionModeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.ProcessorOperationEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.TipoDocAltoLivEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.ValidationException;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.JsonUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
 
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
 @ActiveProfiles(Constants.Profile.TEST)
@@ -54,4 +78,43 @@ class JsonUtilityTest {
         input.put("key", "value");
         assertEquals("{\"key\":\"value\"}", JsonUtility.objectToJson(input));
     }
+
+    @Test
+    @DisplayName("Shared mappers produce the same output as per call mappers")
+    void sharedMappersCompatibilityTest() throws Exception {
+        KafkaStatusManagerDTO status = KafkaStatusManagerDTO.builder().traceId("trace").eventType(EventTypeEnum.PUBLICATION)
+                .eventDate(new Date(1_700_000_000_123L)).eventStatus(EventStatusEnum.SUCCESS).message("msg \u00e8 \"quoted\"")
+                .tipoAttivita(AttivitaClinicaEnum.CON).issuer("issuer").build();
+        assertEquals(legacyTimeMapper().writeValueAsString(status), StringUtility.toJSONJackson(status));
+        assertEquals(legacyTimeMapper().writeValueAsString(null), StringUtility.toJSONJackson(null));
+
+        LogDTO log = LogDTO.builder().log_type("control").message("msg").op_result("OK").workflow_instance_id("wii").build();
+        IndexerValueDTO indexer = new IndexerValueDTO("wii", null, ProcessorOperationEnum.PUBLISH);
+        DocumentEntryDTO entry = new DocumentEntryDTO();
+        entry.setHash("hash");
+        entry.setSize(10);
+        entry.setAdministrativeRequest(List.of("SSN"));
+        for (Object dto : new Object[] {log, indexer, entry}) {
+            assertEquals(new Gson().toJson(dto), StringUtility.toJSON(dto));
+        }
+
+        PublicationCreationReqDTO publication = new PublicationCreationReqDTO();
+        publication.setIdentificativoDoc("2.16.840.1.113883.2.9.2.120.4.4^290700");
+        publication.setMode(InjectionModeEnum.ATTACHMENT);
+        publication.setTipoDocumentoLivAlto(TipoDocAltoLivEnum.REF);
+        publication.setTipoAttivitaClinica(AttivitaClinicaEnum.CON);
+        final String json = new ObjectMapper().writeValueAsString(publication);
+        assertEquals(json, new ObjectMapper().writeValueAsString(StringUtility.fromJSONJackson(json, PublicationCreationReqDTO.class)));
+        assertThrows(ValidationException.class, () -> StringUtility.fromJSONJackson("{\"unknown\":1}", PublicationCreationReqDTO.class));
+    }
+
+    private static ObjectMapper legacyTimeMapper() {
+        final ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.registerModule(new JavaTimeModule());
+        objectMapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+        objectMapper.setDateFormat(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ"));
+        objectMapper.setTimeZone(TimeZone.getDefault());
+        objectMapper.setSerializationInclusion(Include.NON_NULL);
+        return objectMapper;
+    }
 }
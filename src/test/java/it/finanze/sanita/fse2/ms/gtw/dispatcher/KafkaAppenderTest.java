@@ -0,0 +1,161 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import io.micrometer.core.instrument.Metrics;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.logging.KafkaAppender;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.logging.LogEventBuffer;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.logging.OverflowPolicy;
+
+class KafkaAppenderTest {
+
+	private final LoggerContext context = new LoggerContext();
+
+	private final MockProducer<byte[], byte[]> producer = new MockProducer<>(true, new ByteArraySerializer(), new ByteArraySerializer());
+
+	private volatile boolean brokerAvailable;
+
+	private KafkaAppender<ILoggingEvent> appender;
+
+	@AfterEach
+	void tearDown() {
+		if (appender != null) {
+			appender.stop();
+		}
+	}
+
+	@Test
+	@DisplayName("Full buffer applies the overflow policy")
+	void overflowPolicyTest() throws InterruptedException {
+		LogEventBuffer<String> oldest = new LogEventBuffer<>(2, OverflowPolicy.DROP_OLDEST, 0, e -> e.startsWith("debug"));
+		assertNull(oldest.offer("a", true));
+		assertNull(oldest.offer("b", true));
+		assertEquals("a", oldest.offer("c", true));
+		assertEquals(List.of("b", "c"), drain(oldest));
+
+		LogEventBuffer<String> debugFirst = new LogEventBuffer<>(3, OverflowPolicy.DROP_DEBUG_FIRST, 0, e -> e.startsWith("debug"));
+		debugFirst.offer("info-1", true);
+		debugFirst.offer("debug-1", true);
+		debugFirst.offer("info-2", true);
+		assertEquals("debug-1", debugFirst.offer("warn-1", true));
+		assertEquals("debug-2", debugFirst.offer("debug-2", true));
+		assertEquals("info-1", debugFirst.offer("error-1", true));
+		assertEquals(List.of("info-2", "warn-1", "error-1"), drain(debugFirst));
+
+		LogEventBuffer<String> block = new LogEventBuffer<>(1, OverflowPolicy.BLOCK, 50, e -> false);
+		block.offer("a", true);
+		final long start = System.nanoTime();
+		assertEquals("b", block.offer("b", true));
+		assertTrue(System.nanoTime() - start >= 50_000_000L);
+		// I thread che non possono attendere ripiegano su DROP_OLDEST
+		assertEquals("a", block.offer("c", false));
+		assertEquals(List.of("c"), drain(block));
+	}
+
+	@Test
+	@DisplayName("Events buffered while the broker is down are shipped once the producer is available")
+	void deferredEventsTest() throws InterruptedException {
+		appender = create(3, OverflowPolicy.DROP_OLDEST);
+
+		for (int i = 1; i <= 5; i++) {
+			appender.doAppend(event(Level.INFO, "event-" + i));
+		}
+		assertEquals(5, appender.getDeferredCount());
+		assertEquals(2, appender.getDroppedCount());
+		assertEquals(2, Metrics.globalRegistry.get("kafka.log.appender.dropped").tag("appender", "test").functionCounter().count());
+
+		brokerAvailable = true;
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (producer.history().size() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		List<String> sent = new ArrayList<>();
+		producer.history().forEach(r -> sent.add(new String(r.value(), StandardCharsets.UTF_8)));
+		assertEquals(List.of("event-3", "event-4", "event-5"), sent);
+		assertEquals(0, appender.getFailedCount());
+	}
+
+	@Test
+	@DisplayName("The default producer config builds a real kafka producer")
+	void defaultProducerConfigTest() {
+		KafkaAppender<ILoggingEvent> defaults = new KafkaAppender<>();
+		defaults.addProducerConfigValue(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+		try (KafkaProducer<byte[], byte[]> real = new KafkaProducer<>(new HashMap<>(defaults.getProducerConfig()))) {
+			assertNotNull(real);
+		}
+	}
+
+	private KafkaAppender<ILoggingEvent> create(final int bufferSize, final OverflowPolicy policy) {
+		context.setMDCAdapter(new LogbackMDCAdapter());
+		PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+		encoder.setContext(context);
+		encoder.setPattern("%msg");
+		encoder.start();
+
+		KafkaAppender<ILoggingEvent> out = new KafkaAppender<>() {
+			@Override
+			protected Producer<byte[], byte[]> createProducer() {
+				if (!brokerAvailable) {
+					throw new BusinessException("broker down");
+				}
+				return producer;
+			}
+		};
+		out.setContext(context);
+		out.setName("test");
+		out.setTopic("log");
+		out.setEncoder(encoder);
+		out.addProducerConfigValue(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+		out.setBufferSize(bufferSize);
+		out.setOverflowPolicy(policy);
+		out.setBatchSize(2);
+		out.start();
+		return out;
+	}
+
+	private LoggingEvent event(final Level level, final String message) {
+		return new LoggingEvent(KafkaAppenderTest.class.getName(), context.getLogger("kafka-logger"), level, message, null, null);
+	}
+
+	private static List<String> drain(final LogEventBuffer<String> buffer) throws InterruptedException {
+		List<String> out = new ArrayList<>();
+		buffer.drainTo(out, Integer.MAX_VALUE, 0);
+		return out;
+	}
+
+}
@@ -0,0 +1,231 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaOperations;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaProducerCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaProducerPropertiesCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaTopicCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.KafkaGroupCommitSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.KafkaProducerPoolSRV;
+
+class KafkaGroupCommitSRVTest {
+
+	private static final String INVALID = "invalid";
+
+	private static final String SLOW = "slow";
+
+	/**
+	 * Invio del record {@link #SLOW} iniziato, e suo rilascio.
+	 */
+	private final CountDownLatch started = new CountDownLatch(1);
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	/**
+	 * Record confermati, per transazione.
+	 */
+	private final List<List<String>> transactions = Collections.synchronizedList(new ArrayList<>());
+
+	private MeterRegistry registry;
+
+	private KafkaGroupCommitSRV groupCommitSRV;
+
+	@SuppressWarnings("unchecked")
+	private KafkaGroupCommitSRV create(final boolean enabled, final int batchSize, final long lingerMs) {
+		KafkaProducerPropertiesCFG cfg = new KafkaProducerPropertiesCFG();
+		cfg.setGroupCommitEnabled(enabled);
+		cfg.setGroupCommitBatchSize(batchSize);
+		cfg.setGroupCommitLingerMs(lingerMs);
+		cfg.setGroupCommitMaxWaitMs(5000);
+		cfg.setTransactionalPoolSize(2);
+		cfg.setTransactionalLeaseTimeoutMs(5000);
+		cfg.setGroupCommitQueueSize(1000);
+
+		KafkaTemplate<String, byte[]> template = mock(KafkaTemplate.class);
+		when(template.executeInTransaction(any())).thenAnswer(inv -> {
+			final List<String> records = new ArrayList<>();
+			KafkaOperations<String, byte[]> operations = mock(KafkaOperations.class);
+			when(operations.send(any(ProducerRecord.class))).thenAnswer(send -> {
+				ProducerRecord<String, byte[]> producerRecord = send.getArgument(0);
+				records.add(producerRecord.key());
+				if (SLOW.equals(producerRecord.key())) {
+					started.countDown();
+					await(release);
+				}
+				if (INVALID.equals(producerRecord.key())) {
+					return CompletableFuture.failedFuture(new IllegalStateException("record too large"));
+				}
+				RecordMetadata metadata = new RecordMetadata(new TopicPartition(producerRecord.topic(), 0), records.size(), 0, 0, 0, 0);
+				return CompletableFuture.completedFuture(new SendResult<>(producerRecord, metadata));
+			});
+			Object out = ((KafkaOperations.OperationsCallback<String, byte[], ?>) inv.getArgument(0)).doInOperations(operations);
+			// La transazione e' confermata solo se il callback termina senza errori
+			transactions.add(records);
+			return out;
+		});
+
+		registry = new SimpleMeterRegistry();
+		KafkaProducerCFG kafkaProducerCFG = mock(KafkaProducerCFG.class);
+		when(kafkaProducerCFG.txKafkaTemplate(anyInt())).thenReturn(template);
+		KafkaProducerPoolSRV producerPoolSRV = new KafkaProducerPoolSRV();
+		ReflectionTestUtils.setField(producerPoolSRV, "kafkaProducerCFG", kafkaProducerCFG);
+		ReflectionTestUtils.setField(producerPoolSRV, "kafkaProducerPropCFG", cfg);
+		ReflectionTestUtils.setField(producerPoolSRV, "kafkaTopicCFG", new KafkaTopicCFG());
+		ReflectionTestUtils.setField(producerPoolSRV, "meterRegistry", registry);
+		producerPoolSRV.postConstruct();
+
+		groupCommitSRV = new KafkaGroupCommitSRV();
+		ReflectionTestUtils.setField(groupCommitSRV, "producerPoolSRV", producerPoolSRV);
+		ReflectionTestUtils.setField(groupCommitSRV, "kafkaProducerCFG", cfg);
+		ReflectionTestUtils.setField(groupCommitSRV, "meterRegistry", registry);
+		groupCommitSRV.postConstruct();
+		return groupCommitSRV;
+	}
+
+	@AfterEach
+	void tearDown() {
+		if (groupCommitSRV != null) {
+			groupCommitSRV.preDestroy();
+		}
+	}
+
+	@Test
+	@DisplayName("Concurrent submissions share the same transaction")
+	void groupCommitTest() throws Exception {
+		create(true, 50, 50);
+		final int callers = 40;
+		final CountDownLatch start = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(callers);
+		final List<CompletableFuture<List<RecordMetadata>>> futures = Collections.synchronizedList(new ArrayList<>());
+		try {
+			for (int i = 0; i < callers; i++) {
+				final String key = "wii-" + i;
+				executor.execute(() -> {
+					await(start);
+					futures.add(groupCommitSRV.submit(List.of(record(key + "-indexer"), record(key + "-status"))));
+				});
+			}
+			start.countDown();
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+
+		for (CompletableFuture<List<RecordMetadata>> future : futures) {
+			assertEquals(2, future.get(10, TimeUnit.SECONDS).size());
+		}
+		assertTrue(transactions.size() < callers);
+		assertEquals(callers * 2, transactions.stream().mapToInt(List::size).sum());
+		for (List<String> transaction : transactions) {
+			assertTrue(transaction.size() <= 50 + 1);
+			// I record di una stessa richiesta restano contigui e ordinati
+			for (int i = 0; i < transaction.size(); i += 2) {
+				assertEquals(transaction.get(i).replace("-indexer", "-status"), transaction.get(i + 1));
+			}
+		}
+		assertEquals(callers * 2, registry.get("kafka.group-commit.records").summary().totalAmount());
+		assertEquals(callers, registry.get("kafka.group-commit.wait").timer().count());
+	}
+
+	@Test
+	@DisplayName("A failing submission does not fail the others in the group")
+	void failureIsolationTest() throws Exception {
+		create(true, 100, 200);
+
+		CompletableFuture<List<RecordMetadata>> first = groupCommitSRV.submit(List.of(record("a")));
+		CompletableFuture<List<RecordMetadata>> invalid = groupCommitSRV.submit(List.of(record(INVALID)));
+		CompletableFuture<List<RecordMetadata>> last = groupCommitSRV.submit(List.of(record("b")));
+
+		assertEquals(1, first.get(5, TimeUnit.SECONDS).size());
+		assertEquals(1, last.get(5, TimeUnit.SECONDS).size());
+		assertThrows(ExecutionException.class, () -> invalid.get(5, TimeUnit.SECONDS));
+		assertTrue(transactions.contains(List.of("a")));
+		assertTrue(transactions.contains(List.of("b")));
+	}
+
+	@Test
+	@DisplayName("A cancelled submission is skipped, a claimed one cannot be cancelled")
+	void cancelTest() throws Exception {
+		create(true, 100, 200);
+
+		CompletableFuture<List<RecordMetadata>> cancelled = groupCommitSRV.submit(List.of(record("a")));
+		assertTrue(cancelled.cancel(false));
+
+		CompletableFuture<List<RecordMetadata>> slow = groupCommitSRV.submit(List.of(record(SLOW)));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		// Transazione in corso: la richiesta non puo' piu' essere annullata
+		assertFalse(slow.cancel(false));
+		release.countDown();
+
+		assertEquals(1, slow.get(5, TimeUnit.SECONDS).size());
+		assertTrue(cancelled.isCancelled());
+		assertEquals(List.of(List.of(SLOW)), transactions);
+	}
+
+	@Test
+	@DisplayName("With group commit disabled each submission is committed on the caller thread")
+	void disabledTest() throws Exception {
+		create(false, 100, 200);
+
+		CompletableFuture<List<RecordMetadata>> out = groupCommitSRV.submit(List.of(record("a"), record("b")));
+
+		assertTrue(out.isDone());
+		assertEquals(2, out.get().size());
+		assertEquals(List.of(List.of("a", "b")), transactions);
+	}
+
+	private static ProducerRecord<String, byte[]> record(final String key) {
+		return new ProducerRecord<>("status", key, new byte[0]);
+	}
+
+	private static void await(final CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,242 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.MicrometerProducerListener;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaDeliveryProfileCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaProducerCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaProducerPropertiesCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaPropertiesCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaTopicCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.KafkaDeliveryProfileDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PriorityTypeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.KafkaProducerPoolSRV;
+
+class KafkaProducerPoolSRVTest {
+
+	@Test
+	@DisplayName("Transactions run concurrently up to the pool size")
+	@SuppressWarnings("unchecked")
+	void leaseTest() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final KafkaProducerCFG kafkaProducerCFG = mock(KafkaProducerCFG.class);
+		for (int i = 0; i < 2; i++) {
+			final String name = "producer-" + i;
+			KafkaTemplate<String, byte[]> template = mock(KafkaTemplate.class);
+			when(template.executeInTransaction(any())).thenAnswer(inv -> {
+				entered.countDown();
+				release.await(5, TimeUnit.SECONDS);
+				return name;
+			});
+			when(kafkaProducerCFG.txKafkaTemplate(i)).thenReturn(template);
+		}
+
+		final MeterRegistry registry = new SimpleMeterRegistry();
+		final KafkaProducerPoolSRV pool = create(kafkaProducerCFG, registry, 2);
+
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> first = executor.submit(() -> pool.executeInTransaction(t -> null));
+			Future<String> second = executor.submit(() -> pool.executeInTransaction(t -> null));
+
+			// Entrambe le transazioni sono in corso, ciascuna sul proprio producer
+			assertTrue(entered.await(5, TimeUnit.SECONDS));
+			assertEquals(0, registry.get("kafka.producer.pool.available").gauge().value());
+			assertThrows(BusinessException.class, () -> pool.executeInTransaction(t -> null));
+			assertEquals(1, registry.get("kafka.producer.pool.lease.timeout").counter().count());
+
+			release.countDown();
+			assertNotEquals(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(2, registry.get("kafka.producer.pool.available").gauge().value());
+		assertEquals(3, registry.get("kafka.producer.pool.lease.wait").timer().count());
+	}
+
+	@Test
+	@DisplayName("Each producer has a distinct transactional id, stable across restarts")
+	void transactionalIdTest() throws Exception {
+		final String host = InetAddress.getLocalHost().getHostName();
+
+		KafkaProducerCFG kafkaProducerCFG = producerCFG("dispatcher-tx");
+		DefaultKafkaProducerFactory<String, byte[]> first = kafkaProducerCFG.producerFactory(0);
+		DefaultKafkaProducerFactory<String, byte[]> second = kafkaProducerCFG.producerFactory(1);
+		assertEquals("dispatcher-tx-0-" + host, first.getTransactionIdPrefix());
+		assertEquals("dispatcher-tx-1-" + host, second.getTransactionIdPrefix());
+		assertNotEquals(first.getConfigurationProperties().get(ProducerConfig.CLIENT_ID_CONFIG),
+				second.getConfigurationProperties().get(ProducerConfig.CLIENT_ID_CONFIG));
+
+		// Una nuova istanza riutilizza gli stessi id ed esclude quindi i producer dell'istanza precedente
+		assertEquals(first.getTransactionIdPrefix(), producerCFG("dispatcher-tx").producerFactory(0).getTransactionIdPrefix());
+		assertEquals("gtw-dispatcher-0-" + host, producerCFG("").producerFactory(0).getTransactionIdPrefix());
+	}
+
+	@Test
+	@DisplayName("Delivery profile settings override the default producer configuration")
+	void deliveryProfileTest() {
+		KafkaDeliveryProfileDTO profile = KafkaDeliveryProfileDTO.builder().name("status").acks("1").lingerMs(20)
+			.batchSize(131072).compressionType("zstd").build();
+
+		KafkaTemplate<String, byte[]> template = producerCFG("").notxKafkaTemplate(profile);
+
+		Map<String, Object> props = template.getProducerFactory().getConfigurationProperties();
+		assertEquals("1", props.get(ProducerConfig.ACKS_CONFIG));
+		assertEquals(20, props.get(ProducerConfig.LINGER_MS_CONFIG));
+		assertEquals(131072, props.get(ProducerConfig.BATCH_SIZE_CONFIG));
+		assertEquals("zstd", props.get(ProducerConfig.COMPRESSION_TYPE_CONFIG));
+		assertEquals("gtw-dispatcher-noTx-status", props.get(ProducerConfig.CLIENT_ID_CONFIG));
+		assertFalse(props.containsKey(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG));
+		assertFalse(template.isTransactional());
+	}
+
+	@Test
+	@DisplayName("Transactional producers use the transactional delivery profile and export its metrics")
+	void transactionalProfileTest() {
+		KafkaProducerCFG kafkaProducerCFG = producerCFG("dispatcher-tx", "durable");
+
+		DefaultKafkaProducerFactory<String, byte[]> factory = kafkaProducerCFG.producerFactory(0);
+
+		Map<String, Object> props = factory.getConfigurationProperties();
+		assertEquals("all", props.get(ProducerConfig.ACKS_CONFIG));
+		assertEquals(10, props.get(ProducerConfig.LINGER_MS_CONFIG));
+		assertEquals("lz4", props.get(ProducerConfig.COMPRESSION_TYPE_CONFIG));
+		assertEquals(1, factory.getListeners().size());
+		assertTrue(factory.getListeners().get(0) instanceof MicrometerProducerListener);
+	}
+
+	@Test
+	@DisplayName("Priority lanes lease their own transactional producers")
+	@SuppressWarnings("unchecked")
+	void laneTest() throws Exception {
+		final KafkaProducerCFG kafkaProducerCFG = mock(KafkaProducerCFG.class);
+		final KafkaTemplate<String, byte[]> shared = mock(KafkaTemplate.class);
+		when(shared.executeInTransaction(any())).thenReturn("shared");
+		when(kafkaProducerCFG.txKafkaTemplate(0)).thenReturn(shared);
+		for (PriorityTypeEnum lane : PriorityTypeEnum.values()) {
+			KafkaTemplate<String, byte[]> template = mock(KafkaTemplate.class);
+			when(template.executeInTransaction(any())).thenReturn(lane.name());
+			when(kafkaProducerCFG.txKafkaTemplate(lane, 0)).thenReturn(template);
+		}
+
+		final MeterRegistry registry = new SimpleMeterRegistry();
+		final KafkaProducerPoolSRV pool = create(kafkaProducerCFG, registry, 1, true);
+
+		assertEquals(1, pool.size());
+		assertEquals(1, pool.size(PriorityTypeEnum.HIGH));
+		assertEquals("HIGH", pool.executeInTransaction(PriorityTypeEnum.HIGH, t -> null));
+		assertEquals("LOW", pool.executeInTransaction(PriorityTypeEnum.LOW, t -> null));
+		assertEquals("shared", pool.executeInTransaction(null, t -> null));
+		assertEquals(1, registry.get("kafka.producer.pool.lane.available").tag("lane", "high").gauge().value());
+
+		// Senza topic per priorita tutte le transazioni usano il pool condiviso
+		final KafkaProducerPoolSRV disabled = create(kafkaProducerCFG, new SimpleMeterRegistry(), 1, false);
+		assertEquals(0, disabled.size(PriorityTypeEnum.HIGH));
+		assertEquals("shared", disabled.executeInTransaction(PriorityTypeEnum.HIGH, t -> null));
+	}
+
+	@Test
+	@DisplayName("Lane producers have their own transactional id")
+	void laneTransactionalIdTest() throws Exception {
+		final String host = InetAddress.getLocalHost().getHostName();
+
+		DefaultKafkaProducerFactory<String, byte[]> factory = producerCFG("dispatcher-tx").producerFactory(PriorityTypeEnum.HIGH, 0);
+
+		assertEquals("dispatcher-tx-high-0-" + host, factory.getTransactionIdPrefix());
+	}
+
+	private static KafkaProducerPoolSRV create(final KafkaProducerCFG kafkaProducerCFG, final MeterRegistry registry, final int size) {
+		return create(kafkaProducerCFG, registry, size, false);
+	}
+
+	private static KafkaProducerPoolSRV create(final KafkaProducerCFG kafkaProducerCFG, final MeterRegistry registry, final int size,
+			final boolean priorityLanes) {
+		KafkaProducerPropertiesCFG cfg = new KafkaProducerPropertiesCFG();
+		cfg.setTransactionalPoolSize(size);
+		cfg.setTransactionalLanePoolSize(1);
+		cfg.setTransactionalLeaseTimeoutMs(100);
+
+		KafkaTopicCFG topicCFG = new KafkaTopicCFG();
+		topicCFG.setDispatcherIndexerPriorityEnabled(priorityLanes);
+
+		KafkaProducerPoolSRV pool = new KafkaProducerPoolSRV();
+		ReflectionTestUtils.setField(pool, "kafkaProducerCFG", kafkaProducerCFG);
+		ReflectionTestUtils.setField(pool, "kafkaProducerPropCFG", cfg);
+		ReflectionTestUtils.setField(pool, "kafkaTopicCFG", topicCFG);
+		ReflectionTestUtils.setField(pool, "meterRegistry", registry);
+		pool.postConstruct();
+		return pool;
+	}
+
+	private static KafkaProducerCFG producerCFG(final String transactionalId) {
+		return producerCFG(transactionalId, null);
+	}
+
+	private static KafkaProducerCFG producerCFG(final String transactionalId, final String transactionalProfile) {
+		KafkaProducerPropertiesCFG cfg = new KafkaProducerPropertiesCFG();
+		cfg.setClientId("gtw-dispatcher");
+		cfg.setTransactionalId(transactionalId);
+		cfg.setProducerBootstrapServers("localhost:9092");
+		cfg.setKeySerializer("org.apache.kafka.common.serialization.StringSerializer");
+		cfg.setRetries(1);
+		cfg.setAck("all");
+		cfg.setIdempotence(true);
+		cfg.setTransactionalProfile(transactionalProfile);
+
+		KafkaDeliveryProfileCFG profileCFG = new KafkaDeliveryProfileCFG();
+		profileCFG.setEnvironment(new MockEnvironment()
+			.withProperty("kafka.producer.profile.durable.transactional", "true")
+			.withProperty("kafka.producer.profile.durable.acks", "all")
+			.withProperty("kafka.producer.profile.durable.linger-ms", "10")
+			.withProperty("kafka.producer.profile.durable.compression-type", "lz4"));
+		profileCFG.setNames(new String[] {"durable"});
+		profileCFG.afterInit();
+
+		KafkaProducerCFG kafkaProducerCFG = new KafkaProducerCFG();
+		ReflectionTestUtils.setField(kafkaProducerCFG, "kafkaPropCFG", new KafkaPropertiesCFG());
+		ReflectionTestUtils.setField(kafkaProducerCFG, "kafkaProducerPropCFG", cfg);
+		ReflectionTestUtils.setField(kafkaProducerCFG, "kafkaDeliveryProfileCFG", profileCFG);
+		ReflectionTestUtils.setField(kafkaProducerCFG, "meterRegistry", new SimpleMeterRegistry());
+		return kafkaProducerCFG;
+	}
+
+}
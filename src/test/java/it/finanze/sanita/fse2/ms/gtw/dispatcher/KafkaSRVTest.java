@@ -0,0 +1,490 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.support.PropertiesLoaderUtils;
+import org.springframework.kafka.core.KafkaOperations;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StringUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaDeliveryProfileCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaProducerCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaProducerPropertiesCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaSpillJournalCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaStatusCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaTopicCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.JWTPayloadDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.KafkaDeliveryProfileDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.DestinationTypeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.EventStatusEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.EventTypeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PriorityTypeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.KafkaGroupCommitSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.KafkaProducerPoolSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.KafkaSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.KafkaSpillJournalSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.StatusPublisherSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.ProfileUtility;
+
+class KafkaSRVTest {
+
+	private static final String STATUS_TOPIC = "status";
+	private static final String INDEXER_TOPIC = "indexer";
+
+	private KafkaTemplate<String, byte[]> txTemplate;
+
+	private KafkaTemplate<String, byte[]> notxTemplate;
+
+	private KafkaTemplate<String, byte[]> profileTemplate;
+
+	private KafkaDeliveryProfileCFG profileCFG;
+
+	/**
+	 * Producer e profili creati per le code di priorita indexer, per nome del profilo.
+	 */
+	private final Map<String, KafkaTemplate<String, byte[]>> laneTemplates = new HashMap<>();
+
+	private final Map<String, KafkaDeliveryProfileDTO> laneProfiles = new HashMap<>();
+
+	/**
+	 * Producer transazionali riservati alle code di priorita.
+	 */
+	private final Map<PriorityTypeEnum, KafkaTemplate<String, byte[]>> txLaneTemplates = new EnumMap<>(PriorityTypeEnum.class);
+
+	private boolean priorityLanes;
+
+	/**
+	 * Tipi di evento attesi con il publisher asincrono, {@code null} per il publisher sincrono.
+	 */
+	private String[] awaitEventTypes;
+
+	private KafkaSpillJournalSRV journal;
+
+	/**
+	 * Directory del journal, {@code null} per il journal disabilitato.
+	 */
+	private Path journalDirectory;
+
+	private volatile boolean brokerDown;
+
+	/**
+	 * Record inviati, per transazione.
+	 */
+	private final List<List<ProducerRecord<String, byte[]>>> transactions = Collections.synchronizedList(new ArrayList<>());
+
+	private MeterRegistry registry;
+
+	private StatusPublisherSRV publisher;
+
+	private KafkaGroupCommitSRV groupCommitSRV;
+
+	private KafkaSRV kafkaSRV;
+
+	private KafkaSRV create(final String transactionalId) {
+		return create(transactionalId, new MockEnvironment(), null, null);
+	}
+
+	private KafkaSRV create(final String transactionalId, final MockEnvironment environment, final String statusProfile,
+			final String indexerProfile) {
+		KafkaTopicCFG topicCFG = new KafkaTopicCFG();
+		topicCFG.setStatusManagerTopic(STATUS_TOPIC);
+		topicCFG.setDispatcherIndexerTopic(INDEXER_TOPIC);
+		topicCFG.setDispatcherIndexerRetryDeleteTopic("delete-retry");
+		topicCFG.setDispatcherIndexerRetryUpdateTopic("update-retry");
+		topicCFG.setStatusManagerProfile(statusProfile);
+		topicCFG.setDispatcherIndexerProfile(indexerProfile);
+		topicCFG.setDispatcherIndexerPriorityEnabled(priorityLanes);
+		topicCFG.setProfileUtility(mock(ProfileUtility.class));
+		topicCFG.afterInit();
+
+		profileCFG = new KafkaDeliveryProfileCFG();
+		profileCFG.setEnvironment(environment);
+		profileCFG.setNames(environment.getProperty("kafka.producer.profiles", String[].class));
+		profileCFG.afterInit();
+
+		KafkaProducerPropertiesCFG producerCFG = new KafkaProducerPropertiesCFG();
+		producerCFG.setTransactionalId(transactionalId);
+		producerCFG.setMaxRequestSize(1048576);
+		producerCFG.setUnitOfWorkEnabled(true);
+		producerCFG.setGroupCommitEnabled(false);
+		producerCFG.setGroupCommitMaxWaitMs(5000);
+		producerCFG.setTransactionalPoolSize(1);
+		producerCFG.setTransactionalLeaseTimeoutMs(5000);
+
+		KafkaStatusCFG statusCFG = new KafkaStatusCFG();
+		statusCFG.setAsyncEnabled(awaitEventTypes != null);
+		statusCFG.setAwaitEventTypes(awaitEventTypes != null ? awaitEventTypes : new String[0]);
+		statusCFG.setLanes(1);
+		statusCFG.setQueueSize(10);
+		statusCFG.setEnqueueTimeoutMs(1000);
+		statusCFG.setAwaitTimeoutMs(200);
+
+		registry = new SimpleMeterRegistry();
+		publisher = new StatusPublisherSRV();
+		ReflectionTestUtils.setField(publisher, "kafkaStatusCFG", statusCFG);
+		ReflectionTestUtils.setField(publisher, "meterRegistry", registry);
+		publisher.postConstruct();
+
+		txTemplate = transactional();
+		notxTemplate = template();
+		when(notxTemplate.send(anyRecord())).thenAnswer(send -> sent(send.getArgument(0)));
+
+		KafkaProducerCFG kafkaProducerCFG = mock(KafkaProducerCFG.class);
+		when(kafkaProducerCFG.txKafkaTemplate(anyInt())).thenReturn(txTemplate);
+		when(kafkaProducerCFG.txKafkaTemplate(any(PriorityTypeEnum.class), anyInt())).thenAnswer(inv -> {
+			KafkaTemplate<String, byte[]> lane = transactional();
+			txLaneTemplates.put(inv.getArgument(0), lane);
+			return lane;
+		});
+		profileTemplate = template();
+		when(profileTemplate.send(anyRecord())).thenAnswer(send -> sent(send.getArgument(0)));
+		when(kafkaProducerCFG.notxKafkaTemplate(any(KafkaDeliveryProfileDTO.class))).thenAnswer(inv -> {
+			KafkaDeliveryProfileDTO profile = inv.getArgument(0);
+			if (!profile.getName().startsWith("indexer-")) {
+				return profileTemplate;
+			}
+			KafkaTemplate<String, byte[]> lane = template();
+			when(lane.send(anyRecord())).thenAnswer(send -> sent(send.getArgument(0)));
+			laneTemplates.put(profile.getName(), lane);
+			laneProfiles.put(profile.getName(), profile);
+			return lane;
+		});
+		KafkaProducerPoolSRV producerPoolSRV = new KafkaProducerPoolSRV();
+		ReflectionTestUtils.setField(producerPoolSRV, "kafkaProducerCFG", kafkaProducerCFG);
+		ReflectionTestUtils.setField(producerPoolSRV, "kafkaProducerPropCFG", producerCFG);
+		ReflectionTestUtils.setField(producerPoolSRV, "kafkaTopicCFG", topicCFG);
+		ReflectionTestUtils.setField(producerPoolSRV, "meterRegistry", registry);
+		producerPoolSRV.postConstruct();
+
+		groupCommitSRV = new KafkaGroupCommitSRV();
+		ReflectionTestUtils.setField(groupCommitSRV, "producerPoolSRV", producerPoolSRV);
+		ReflectionTestUtils.setField(groupCommitSRV, "kafkaProducerCFG", producerCFG);
+		ReflectionTestUtils.setField(groupCommitSRV, "meterRegistry", registry);
+		groupCommitSRV.postConstruct();
+
+		KafkaSpillJournalCFG journalCFG = new KafkaSpillJournalCFG();
+		journalCFG.setEnabled(journalDirectory != null);
+		journalCFG.setDirectory(journalDirectory != null ? journalDirectory.toString() : null);
+		journalCFG.setSegmentSize(4096);
+		journalCFG.setMaxSize(1 << 20);
+		journalCFG.setSendDeadlineMs(1000);
+		journalCFG.setRetryIntervalMs(10);
+		journal = new KafkaSpillJournalSRV();
+		ReflectionTestUtils.setField(journal, "journalCFG", journalCFG);
+		ReflectionTestUtils.setField(journal, "meterRegistry", registry);
+		journal.postConstruct();
+
+		kafkaSRV = new KafkaSRV();
+		ReflectionTestUtils.setField(kafkaSRV, "kafkaTopicCFG", topicCFG);
+		ReflectionTestUtils.setField(kafkaSRV, "msName", "gtw-dispatcher");
+		ReflectionTestUtils.setField(kafkaSRV, "notxKafkaTemplate", notxTemplate);
+		ReflectionTestUtils.setField(kafkaSRV, "kafkaProducerCFG", producerCFG);
+		ReflectionTestUtils.setField(kafkaSRV, "producerCFG", kafkaProducerCFG);
+		ReflectionTestUtils.setField(kafkaSRV, "kafkaDeliveryProfileCFG", profileCFG);
+		ReflectionTestUtils.setField(kafkaSRV, "kafkaStatusCFG", statusCFG);
+		ReflectionTestUtils.setField(kafkaSRV, "statusPublisherSRV", publisher);
+		ReflectionTestUtils.setField(kafkaSRV, "groupCommitSRV", groupCommitSRV);
+		ReflectionTestUtils.setField(kafkaSRV, "spillJournalSRV", journal);
+		ReflectionTestUtils.setField(kafkaSRV, "spillJournalCFG", journalCFG);
+		ReflectionTestUtils.setField(kafkaSRV, "meterRegistry", registry);
+		kafkaSRV.postConstruct();
+		return kafkaSRV;
+	}
+
+	@AfterEach
+	void tearDown() {
+		// Nessuna unita' di lavoro deve restare aperta sul thread di test
+		if (kafkaSRV != null) {
+			kafkaSRV.commitUnitOfWork();
+		}
+		if (publisher != null) {
+			publisher.preDestroy();
+		}
+		if (journal != null) {
+			journal.preDestroy();
+		}
+	}
+
+	@Test
+	@DisplayName("Records of a request are committed in a single transaction")
+	void unitOfWorkTest() {
+		create("tx");
+
+		kafkaSRV.beginUnitOfWork();
+		kafkaSRV.notifyChannel("idDoc", "{\"idDoc\":\"idDoc\"}", PriorityTypeEnum.NULL, null, DestinationTypeEnum.INDEXER);
+		kafkaSRV.sendValidationStatus("trace", "wii", EventStatusEnum.SUCCESS, "ok", new JWTPayloadDTO(), EventTypeEnum.VALIDATION_FOR_PUBLICATION);
+		kafkaSRV.sendDeleteStatus("trace", "wii", "idDoc", "deleted", EventStatusEnum.SUCCESS, new JWTPayloadDTO(), EventTypeEnum.EDS_DELETE);
+		verify(txTemplate, never()).executeInTransaction(any());
+
+		kafkaSRV.commitUnitOfWork();
+		verify(txTemplate, times(1)).executeInTransaction(any());
+		assertEquals(1, transactions.size());
+		List<ProducerRecord<String, byte[]>> records = transactions.get(0);
+		assertEquals(List.of(INDEXER_TOPIC, STATUS_TOPIC, STATUS_TOPIC), records.stream().map(ProducerRecord::topic).toList());
+		assertEquals(3, registry.get("kafka.unit-of-work.records").summary().totalAmount());
+
+		// L'unita' di lavoro e' chiusa: gli invii successivi usano una transazione ciascuno
+		kafkaSRV.commitUnitOfWork();
+		kafkaSRV.sendEdsUarStatus("wii", EventStatusEnum.SUCCESS, "uar");
+		assertEquals(2, transactions.size());
+	}
+
+	@Test
+	@DisplayName("Without a unit of work every transactional record has its own transaction")
+	void noUnitOfWorkTest() {
+		create("tx");
+
+		kafkaSRV.notifyChannel("idDoc", "{}", PriorityTypeEnum.NULL, null, DestinationTypeEnum.INDEXER);
+		kafkaSRV.sendValidationStatus("trace", "wii", EventStatusEnum.SUCCESS, "ok", null);
+
+		assertEquals(2, transactions.size());
+		assertEquals(INDEXER_TOPIC, transactions.get(0).get(0).topic());
+		assertEquals(STATUS_TOPIC, transactions.get(1).get(0).topic());
+	}
+
+	@Test
+	@DisplayName("Non transactional records are sent immediately")
+	void nonTransactionalTest() {
+		create("");
+
+		kafkaSRV.beginUnitOfWork();
+		kafkaSRV.notifyChannel("idDoc", "{}", PriorityTypeEnum.NULL, null, DestinationTypeEnum.INDEXER);
+		kafkaSRV.sendValidationStatus("trace", "wii", EventStatusEnum.SUCCESS, "ok", null);
+		verify(notxTemplate, times(2)).send(anyRecord());
+
+		kafkaSRV.commitUnitOfWork();
+		verify(txTemplate, never()).executeInTransaction(any());
+	}
+
+	@Test
+	@DisplayName("With the async publisher the request waits only for the configured event types, none by default")
+	void asyncStatusTest() throws IOException {
+		Properties properties = PropertiesLoaderUtils.loadProperties(new ClassPathResource("application.properties"));
+		awaitEventTypes = StringUtils.commaDelimitedListToStringArray(properties.getProperty("kafka.status.async.await-event-types"));
+		assertEquals(0, awaitEventTypes.length);
+		create("");
+		CompletableFuture<SendResult<String, byte[]>> pending = new CompletableFuture<>();
+		doReturn(pending).when(notxTemplate).send(anyRecord());
+
+		// La consegna non si conclude mai: la richiesta prosegue comunque
+		kafkaSRV.sendValidationStatus("trace", "wii", EventStatusEnum.SUCCESS, "ok", new JWTPayloadDTO(), EventTypeEnum.VALIDATION_FOR_PUBLICATION);
+		verify(notxTemplate, timeout(1000)).send(anyRecord());
+		assertFalse(pending.isDone());
+		pending.complete(null);
+		publisher.preDestroy();
+
+		awaitEventTypes = new String[] {EventTypeEnum.VALIDATION_FOR_PUBLICATION.name()};
+		create("");
+		doReturn(new CompletableFuture<>()).when(notxTemplate).send(anyRecord());
+		assertThrows(BusinessException.class, () -> kafkaSRV.sendValidationStatus("trace", "wii", EventStatusEnum.SUCCESS, "ok",
+				new JWTPayloadDTO(), EventTypeEnum.VALIDATION_FOR_PUBLICATION));
+	}
+
+	@Test
+	@DisplayName("Records are routed to the producer of the topic delivery profile")
+	void deliveryProfileTest() {
+		MockEnvironment environment = new MockEnvironment()
+			.withProperty("kafka.producer.profiles", "status,durable")
+			.withProperty("kafka.producer.profile.status.transactional", "false")
+			.withProperty("kafka.producer.profile.status.linger-ms", "20")
+			.withProperty("kafka.producer.profile.status.compression-type", "lz4")
+			.withProperty("kafka.producer.profile.durable.transactional", "true");
+		create("tx", environment, "status", "durable");
+
+		kafkaSRV.beginUnitOfWork();
+		kafkaSRV.notifyChannel("idDoc", "{}", PriorityTypeEnum.NULL, null, DestinationTypeEnum.INDEXER);
+		kafkaSRV.sendValidationStatus("trace", "wii", EventStatusEnum.SUCCESS, "ok", null);
+		kafkaSRV.sendDeleteRequest("wii", "{}");
+		kafkaSRV.commitUnitOfWork();
+
+		// Lo stato segue il profilo non transazionale, i topic indexer restano nella transazione
+		verify(profileTemplate, times(1)).send(anyRecord());
+		verify(notxTemplate, never()).send(anyRecord());
+		assertEquals(1, transactions.size());
+		assertEquals(List.of(INDEXER_TOPIC, "delete-retry"), transactions.get(0).stream().map(ProducerRecord::topic).toList());
+
+		KafkaDeliveryProfileDTO status = profileCFG.getProfile("status");
+		assertEquals(20, status.getLingerMs());
+		assertEquals("lz4", status.getCompressionType());
+		assertNull(status.getBatchSize());
+	}
+
+	@Test
+	@DisplayName("Indexer notifications are routed to the topic and producer of their priority")
+	void priorityLaneTest() {
+		assertEquals(PriorityTypeEnum.HIGH, PriorityTypeEnum.fromPriorita(true));
+		assertEquals(PriorityTypeEnum.LOW, PriorityTypeEnum.fromPriorita(false));
+		assertEquals(PriorityTypeEnum.NULL, PriorityTypeEnum.fromPriorita(null));
+
+		priorityLanes = true;
+		MockEnvironment environment = new MockEnvironment()
+			.withProperty("kafka.producer.profiles", "bulk")
+			.withProperty("kafka.producer.profile.bulk.linger-ms", "50")
+			.withProperty("kafka.producer.profile.bulk.compression-type", "lz4");
+		create("", environment, null, "bulk");
+
+		kafkaSRV.notifyChannel("urgent", "{}", PriorityTypeEnum.HIGH, null, DestinationTypeEnum.INDEXER);
+		kafkaSRV.notifyChannel("normal", "{}", PriorityTypeEnum.NULL, null, DestinationTypeEnum.INDEXER);
+		kafkaSRV.notifyChannel("bulk", "{}", PriorityTypeEnum.LOW, null, DestinationTypeEnum.INDEXER);
+		kafkaSRV.notifyChannel("none", "{}", null, null, DestinationTypeEnum.INDEXER);
+
+		// Ogni priorita ha il proprio producer, derivato dal profilo del topic indexer
+		assertEquals(3, laneTemplates.size());
+		assertEquals(List.of(INDEXER_TOPIC + Constants.Misc.HIGH_PRIORITY), sentTopics(laneTemplates.get("indexer-high"), 1));
+		assertEquals(List.of(INDEXER_TOPIC + Constants.Misc.MEDIUM_PRIORITY, INDEXER_TOPIC + Constants.Misc.MEDIUM_PRIORITY), sentTopics(laneTemplates.get("indexer-medium"), 2));
+		assertEquals(List.of(INDEXER_TOPIC + Constants.Misc.LOW_PRIORITY), sentTopics(laneTemplates.get("indexer-low"), 1));
+		verify(notxTemplate, never()).send(anyRecord());
+		verify(profileTemplate, never()).send(anyRecord());
+
+		assertEquals(0, laneProfiles.get("indexer-high").getLingerMs());
+		assertEquals(50, laneProfiles.get("indexer-low").getLingerMs());
+		assertEquals("lz4", laneProfiles.get("indexer-high").getCompressionType());
+
+		assertEquals(1, registry.get("kafka.indexer.lane.latency").tag("lane", "high").timer().count());
+		assertEquals(2, registry.get("kafka.indexer.lane.latency").tag("lane", "medium").timer().count());
+		assertEquals(1, registry.get("kafka.indexer.lane.latency").tag("lane", "low").timer().count());
+
+		// Con il producer transazionale ogni priorita ha i propri producer transazionali
+		laneTemplates.clear();
+		create("tx");
+		kafkaSRV.notifyChannel("urgent", "{}", PriorityTypeEnum.HIGH, null, DestinationTypeEnum.INDEXER);
+		kafkaSRV.sendValidationStatus("trace", "wii", EventStatusEnum.SUCCESS, "ok", null);
+		assertTrue(laneTemplates.isEmpty());
+		assertEquals(INDEXER_TOPIC + Constants.Misc.HIGH_PRIORITY, transactions.get(0).get(0).topic());
+		assertEquals(3, txLaneTemplates.size());
+		verify(txLaneTemplates.get(PriorityTypeEnum.HIGH), times(1)).executeInTransaction(any());
+		verify(txLaneTemplates.get(PriorityTypeEnum.LOW), never()).executeInTransaction(any());
+		// Il messaggio di stato, senza priorita, usa il pool condiviso
+		verify(txTemplate, times(1)).executeInTransaction(any());
+		assertEquals(1, registry.get("kafka.indexer.lane.latency").tag("lane", "high").timer().count());
+	}
+
+	private static List<String> sentTopics(final KafkaTemplate<String, byte[]> template, final int count) {
+		ArgumentCaptor<ProducerRecord<String, byte[]>> captor = ArgumentCaptor.captor();
+		verify(template, times(count)).send(captor.capture());
+		return captor.getAllValues().stream().map(ProducerRecord::topic).toList();
+	}
+
+	@Test
+	@DisplayName("With the broker down records are spilled to the journal and replayed in order")
+	void spillJournalTest(@TempDir final Path directory) throws Exception {
+		journalDirectory = directory;
+		brokerDown = true;
+		create("tx");
+
+		kafkaSRV.beginUnitOfWork();
+		kafkaSRV.notifyChannel("idDoc", "{}", PriorityTypeEnum.NULL, null, DestinationTypeEnum.INDEXER);
+		kafkaSRV.sendValidationStatus("trace", "wii", EventStatusEnum.SUCCESS, "ok", null);
+		kafkaSRV.commitUnitOfWork();
+		assertTrue(journal.isPending());
+
+		// Il journal non e' vuoto: i nuovi record lo seguono senza tentare l'invio
+		kafkaSRV.sendDeleteRequest("wii", "{}");
+		assertEquals(3, registry.get("kafka.spill-journal.appended").counter().count());
+		assertTrue(transactions.isEmpty());
+
+		brokerDown = false;
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (journal.isPending() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(2, transactions.size());
+		assertEquals(List.of(INDEXER_TOPIC, STATUS_TOPIC), transactions.get(0).stream().map(ProducerRecord::topic).toList());
+		assertEquals("delete-retry", transactions.get(1).get(0).topic());
+	}
+
+	/**
+	 * Producer transazionale che registra i record di ogni transazione confermata.
+	 */
+	private KafkaTemplate<String, byte[]> transactional() {
+		KafkaTemplate<String, byte[]> template = template();
+		when(template.executeInTransaction(any())).thenAnswer(inv -> {
+			if (brokerDown) {
+				throw new KafkaException("broker down");
+			}
+			final List<ProducerRecord<String, byte[]>> records = new ArrayList<>();
+			KafkaOperations<String, byte[]> operations = operations();
+			when(operations.send(anyRecord())).thenAnswer(send -> {
+				records.add(send.getArgument(0));
+				return sent(send.getArgument(0));
+			});
+			KafkaOperations.OperationsCallback<String, byte[], ?> callback = inv.getArgument(0);
+			Object out = callback.doInOperations(operations);
+			transactions.add(records);
+			return out;
+		});
+		return template;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static KafkaTemplate<String, byte[]> template() {
+		return mock(KafkaTemplate.class);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static KafkaOperations<String, byte[]> operations() {
+		return mock(KafkaOperations.class);
+	}
+
+	private static ProducerRecord<String, byte[]> anyRecord() {
+		return any();
+	}
+
+	private static CompletableFuture<SendResult<String, byte[]>> sent(final ProducerRecord<String, byte[]> producerRecord) {
+		RecordMetadata metadata = new RecordMetadata(new TopicPartition(producerRecord.topic(), 0), 0, 0, 0, 0, 0);
+		return CompletableFuture.completedFuture(new SendResult<>(producerRecord, metadata));
+	}
+
+}
@@ -0,0 +1,235 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaSpillJournalCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IKafkaSpillJournalSRV.Replayer;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.KafkaSpillJournalSRV;
+
+class KafkaSpillJournalSRVTest {
+
+	@TempDir
+	Path directory;
+
+	private MeterRegistry registry;
+
+	private final List<KafkaSpillJournalSRV> journals = new ArrayList<>();
+
+	/**
+	 * Chiavi reinviate, nell'ordine di reinvio.
+	 */
+	private final List<String> replayed = Collections.synchronizedList(new ArrayList<>());
+
+	private KafkaSpillJournalSRV create(final int segmentSize, final long maxSize) {
+		KafkaSpillJournalCFG cfg = new KafkaSpillJournalCFG();
+		cfg.setEnabled(true);
+		cfg.setDirectory(directory.toString());
+		cfg.setSegmentSize(segmentSize);
+		cfg.setMaxSize(maxSize);
+		cfg.setSendDeadlineMs(1000);
+		cfg.setRetryIntervalMs(10);
+		cfg.setReplayBatchSize(10);
+
+		registry = new SimpleMeterRegistry();
+		KafkaSpillJournalSRV journal = new KafkaSpillJournalSRV();
+		ReflectionTestUtils.setField(journal, "journalCFG", cfg);
+		ReflectionTestUtils.setField(journal, "meterRegistry", registry);
+		journal.postConstruct();
+		journals.add(journal);
+		return journal;
+	}
+
+	@AfterEach
+	void tearDown() {
+		journals.forEach(KafkaSpillJournalSRV::preDestroy);
+	}
+
+	@Test
+	@DisplayName("Entries are replayed in order and not replayed again after a restart")
+	void replayTest() throws Exception {
+		KafkaSpillJournalSRV journal = create(4096, 1 << 20);
+		assertTrue(journal.append(List.of(record("a1"), record("a2")), true));
+		assertTrue(journal.append(List.of(record("b")), false));
+		assertTrue(journal.isPending());
+
+		final List<Boolean> transactions = Collections.synchronizedList(new ArrayList<>());
+		journal.start((records, trans) -> {
+			transactions.add(trans);
+			return recorder().replay(records, trans);
+		});
+		awaitDrained(journal);
+
+		assertEquals(List.of("a1", "a2", "b"), replayed);
+		assertEquals(List.of(true, false), transactions);
+		assertEquals(3, registry.get("kafka.spill-journal.appended").counter().count());
+		assertEquals(3, registry.get("kafka.spill-journal.replayed").counter().count());
+		assertEquals(2, registry.get("kafka.spill-journal.replay.delay").timer().count());
+		journal.preDestroy();
+
+		KafkaSpillJournalSRV restarted = create(4096, 1 << 20);
+		assertFalse(restarted.isPending());
+	}
+
+	@Test
+	@DisplayName("Consecutive entries of the same kind are replayed together")
+	void batchTest() throws Exception {
+		KafkaSpillJournalSRV journal = create(4096, 1 << 20);
+		journal.append(List.of(record("a")), true);
+		journal.append(List.of(record("b1"), record("b2")), true);
+		journal.append(List.of(record("c")), false);
+		journal.append(List.of(record("d")), true);
+
+		final List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+		journal.start((records, trans) -> {
+			batches.add(records.size());
+			return recorder().replay(records, trans);
+		});
+		awaitDrained(journal);
+
+		assertEquals(List.of("a", "b1", "b2", "c", "d"), replayed);
+		assertEquals(List.of(3, 1, 1), batches);
+		assertEquals(4, registry.get("kafka.spill-journal.replay.delay").timer().count());
+	}
+
+	@Test
+	@DisplayName("Recovery keeps the valid entries and drops a torn write")
+	void recoveryTest() throws Exception {
+		KafkaSpillJournalSRV journal = create(4096, 1 << 20);
+		journal.append(List.of(record("a")), false);
+		journal.append(List.of(record("b")), false);
+		journal.append(List.of(record("c")), false);
+		journal.preDestroy();
+
+		// Scrittura interrotta: l'ultimo elemento ha un payload che non corrisponde al CRC
+		final Path segment = segments().get(0);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] {'X'}), lastValueOffset(channel));
+		}
+
+		KafkaSpillJournalSRV recovered = create(4096, 1 << 20);
+		assertEquals(1, registry.get("kafka.spill-journal.corrupted").counter().count());
+		assertEquals(2, registry.get("kafka.spill-journal.pending").gauge().value());
+		recovered.append(List.of(record("d")), false);
+
+		recovered.start(recorder());
+		awaitDrained(recovered);
+		assertEquals(List.of("a", "b", "d"), replayed);
+	}
+
+	@Test
+	@DisplayName("The journal is bounded and drained segments are deleted")
+	void boundTest() throws Exception {
+		KafkaSpillJournalSRV journal = create(256, 512);
+		int accepted = 0;
+		while (journal.append(List.of(record("k" + accepted)), false)) {
+			accepted++;
+		}
+		assertTrue(accepted > 2);
+		assertEquals(1, registry.get("kafka.spill-journal.rejected").counter().count());
+		assertEquals(512, registry.get("kafka.spill-journal.size").gauge().value());
+
+		journal.start(recorder());
+		awaitDrained(journal);
+		assertEquals(accepted, replayed.size());
+		assertEquals(1, segments().size());
+		assertTrue(journal.append(List.of(record("next")), false));
+	}
+
+	@Test
+	@DisplayName("A failed replay is retried without skipping the entry")
+	void retryTest() throws Exception {
+		KafkaSpillJournalSRV journal = create(4096, 1 << 20);
+		journal.append(List.of(record("a")), false);
+		journal.append(List.of(record("b")), false);
+
+		final AtomicInteger attempts = new AtomicInteger();
+		journal.start((records, trans) -> {
+			if (attempts.incrementAndGet() <= 2) {
+				return CompletableFuture.failedFuture(new IllegalStateException("broker down"));
+			}
+			return recorder().replay(records, trans);
+		});
+		awaitDrained(journal);
+
+		assertEquals(List.of("a", "b"), replayed);
+		assertEquals(2, registry.get("kafka.spill-journal.replay.failures").counter().count());
+	}
+
+	private Replayer recorder() {
+		return (records, trans) -> {
+			records.forEach(r -> replayed.add(r.key()));
+			return CompletableFuture.completedFuture(null);
+		};
+	}
+
+	private static void awaitDrained(final KafkaSpillJournalSRV journal) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (journal.isPending() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertFalse(journal.isPending());
+	}
+
+	private List<Path> segments() throws Exception {
+		try (Stream<Path> list = Files.list(directory)) {
+			return list.filter(path -> path.toString().endsWith(".seg")).sorted().toList();
+		}
+	}
+
+	/**
+	 * Offset del valore dell'ultimo record scritto nel segmento.
+	 */
+	private static long lastValueOffset(final FileChannel channel) throws Exception {
+		final ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+		channel.read(data, 0);
+		final byte[] bytes = data.array();
+		final byte[] value = "value-c".getBytes(StandardCharsets.UTF_8);
+		for (int i = bytes.length - value.length; i >= 0; i--) {
+			if (Arrays.equals(bytes, i, i + value.length, value, 0, value.length)) {
+				return i;
+			}
+		}
+		throw new IllegalStateException("value not found");
+	}
+
+	private static ProducerRecord<String, byte[]> record(final String key) {
+		return new ProducerRecord<>("status", key, ("value-" + key).getBytes(StandardCharsets.UTF_8));
+	}
+
+}
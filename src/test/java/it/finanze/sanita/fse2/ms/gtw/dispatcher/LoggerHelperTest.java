@@ -0,0 +1,275 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.client.IConfigClient;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.ControlLogSamplingCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaProducerPropertiesCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.JWTPayloadDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.OperationLogEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.ResultLogEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.logging.LoggerHelper;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.IConfigSRV;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+class LoggerHelperTest {
+
+	private final Logger kafkaLogger = (Logger) LoggerFactory.getLogger("kafka-logger");
+
+	private final Logger helperLogger = (Logger) LoggerFactory.getLogger(LoggerHelper.class);
+
+	/**
+	 * Appender di test: fissa thread e MDC dell'evento al momento della scrittura, come gli appender asincroni.
+	 */
+	private final ListAppender<ILoggingEvent> appender = new ListAppender<>() {
+		@Override
+		protected void append(final ILoggingEvent e) {
+			e.prepareForDeferredProcessing();
+			super.append(e);
+		}
+	};
+
+	private IConfigSRV configSRV;
+
+	private ControlLogSamplingCFG samplingCFG;
+
+	private LoggerHelper helper;
+
+	@BeforeEach
+	void setUp() {
+		appender.start();
+		kafkaLogger.addAppender(appender);
+		kafkaLogger.setAdditive(false);
+		kafkaLogger.setLevel(Level.INFO);
+		helperLogger.setLevel(Level.OFF);
+	}
+
+	@AfterEach
+	void tearDown() {
+		if (helper != null) {
+			helper.preDestroy();
+		}
+		kafkaLogger.detachAppender(appender);
+		kafkaLogger.setAdditive(true);
+		kafkaLogger.setLevel(null);
+		helperLogger.setLevel(null);
+	}
+
+	private LoggerHelper create(final boolean async, final boolean controlLogEnabled) {
+		return create(async, controlLogEnabled, false);
+	}
+
+	/**
+	 * @param stubOnly configurazione senza registrazione delle invocazioni, per non falsare le misure
+	 */
+	private LoggerHelper create(final boolean async, final boolean controlLogEnabled, final boolean stubOnly) {
+		configSRV = stubOnly ? mock(IConfigSRV.class, withSettings().stubOnly()) : mock(IConfigSRV.class);
+		when(configSRV.isControlLogPersistenceEnable()).thenReturn(controlLogEnabled);
+		when(configSRV.isSubjectNotAllowed()).thenReturn(true);
+		when(configSRV.isCfOnIssuerNotAllowed()).thenReturn(false);
+		IConfigClient configClient = mock(IConfigClient.class);
+		when(configClient.getGatewayName()).thenReturn("gtw");
+		KafkaProducerPropertiesCFG producerCFG = new KafkaProducerPropertiesCFG();
+		producerCFG.setMaxRequestSize(1048576);
+
+		helper = new LoggerHelper();
+		ReflectionTestUtils.setField(helper, "configSRV", configSRV);
+		ReflectionTestUtils.setField(helper, "configClient", configClient);
+		ReflectionTestUtils.setField(helper, "kafkaProducerCFG", producerCFG);
+		ReflectionTestUtils.setField(helper, "kafkaLogEnable", true);
+		ReflectionTestUtils.setField(helper, "msName", "gtw-dispatcher");
+		ReflectionTestUtils.setField(helper, "asyncEnabled", async);
+		ReflectionTestUtils.setField(helper, "queueSize", 100_000);
+		ReflectionTestUtils.setField(helper, "meterRegistry", new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(helper, "samplingCFG", samplingCFG);
+		helper.postConstruct();
+		return helper;
+	}
+
+	@Test
+	@DisplayName("Disabled levels and disabled control log skip the configuration lookups")
+	void enabledCheckTest() {
+		create(true, false);
+
+		helper.debug("type", "wii", "message", OperationLogEnum.PUB_CDA2, ResultLogEnum.OK, new Date(), null);
+		verify(configSRV, never()).isControlLogPersistenceEnable();
+
+		helper.info("type", "wii", "message", OperationLogEnum.PUB_CDA2, ResultLogEnum.OK, new Date(), "doc", null, null);
+		verify(configSRV, times(1)).isControlLogPersistenceEnable();
+		verify(configSRV, never()).isSubjectNotAllowed();
+		assertTrue(events().isEmpty());
+	}
+
+	@Test
+	@DisplayName("Control logs are written by the background writer with the caller's dates and MDC")
+	void asyncWriterTest() throws Exception {
+		create(true, true);
+		final int threads = 8;
+		final int perThread = 500;
+		final long base = 1_700_000_000_000L;
+
+		List<Thread> callers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			Thread caller = new Thread(() -> {
+				MDC.put("trace_id", "trace-" + id);
+				for (int i = 0; i < perThread; i++) {
+					final long start = base + id * 1_000_000L + i * 7L;
+					helper.error("type", "wii-" + start, "message", OperationLogEnum.PUB_CDA2, ResultLogEnum.KO, new Date(start),
+							OperationLogEnum.PUB_CDA2, "doc", null);
+				}
+				MDC.clear();
+			});
+			callers.add(caller);
+			caller.start();
+		}
+		for (Thread caller : callers) {
+			caller.join();
+		}
+		List<ILoggingEvent> events = await(threads * perThread);
+
+		ObjectMapper mapper = new ObjectMapper();
+		SimpleDateFormat format = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss.SSS");
+		for (ILoggingEvent event : events) {
+			assertEquals("control-log-writer", event.getThreadName());
+			Map<?, ?> json = mapper.readValue(event.getFormattedMessage(), Map.class);
+			final long start = Long.parseLong(((String) json.get("workflow_instance_id")).substring(4));
+			assertEquals(format.format(new Date(start)), json.get("op_timestamp_start"));
+			assertEquals("trace-" + (start - base) / 1_000_000L, event.getMDCPropertyMap().get("trace_id"));
+			assertEquals("gtw", json.get("gateway_name"));
+		}
+	}
+
+	@Test
+	@DisplayName("Sampled successes, errors always written and suppressed counts reported on shutdown")
+	void samplingTest() throws Exception {
+		samplingCFG = new ControlLogSamplingCFG();
+		samplingCFG.setEnabled(true);
+		samplingCFG.setSuccessOneIn(10);
+		samplingCFG.setReportIntervalMs(60_000);
+		create(false, true);
+
+		for (String issuer : new String[] {"issuer-a", "issuer-b"}) {
+			JWTPayloadDTO jwt = new JWTPayloadDTO();
+			ReflectionTestUtils.setField(jwt, "iss", issuer);
+			for (int i = 0; i < 100; i++) {
+				helper.info("type", "wii", "message", OperationLogEnum.PUB_CDA2, ResultLogEnum.OK, new Date(), "doc", jwt, null);
+			}
+		}
+		for (int i = 0; i < 5; i++) {
+			helper.error("type", "wii", "message", OperationLogEnum.PUB_CDA2, ResultLogEnum.KO, new Date(),
+					OperationLogEnum.PUB_CDA2, "doc", null);
+		}
+		assertEquals(25, events().size());
+
+		helper.preDestroy();
+		helper = null;
+		List<ILoggingEvent> events = await(26);
+		Map<?, ?> summary = new ObjectMapper().readValue(events.get(25).getFormattedMessage(), Map.class);
+		assertEquals("control-log-summary", summary.get("log_type"));
+		assertEquals(OperationLogEnum.PUB_CDA2.getCode(), summary.get("operation"));
+		assertEquals("suppressed=180 sampled=180 rate_limited=0", summary.get("message"));
+	}
+
+	/**
+	 * Confronto del costo per chiamata nel thread chiamante tra elaborazione sincrona (comportamento precedente) e
+	 * scrittura in background, a 1k, 10k e 50k eventi/s. Escluso dalla build: mvn test -Dtest.excludedGroups= -Dgroups=benchmark
+	 */
+	@Test
+	@Tag("benchmark")
+	@DisplayName("Caller cost at 1k, 10k and 50k events/s, synchronous and background writer")
+	void benchmarkTest() {
+		// Riscaldamento del JIT su entrambi i percorsi prima delle misure
+		for (boolean async : new boolean[] {false, true}) {
+			create(async, true, true);
+			for (int i = 0; i < 5_000; i++) {
+				helper.info("type", "wii", "message", OperationLogEnum.PUB_CDA2, ResultLogEnum.OK, new Date(), "doc", null, null);
+			}
+			helper.preDestroy();
+		}
+
+		for (boolean async : new boolean[] {false, true}) {
+			for (int rate : new int[] {1_000, 10_000, 50_000}) {
+				synchronized (appender) {
+					appender.list.clear();
+				}
+				create(async, true, true);
+				final int count = rate / 5;
+				final long interval = 1_000_000_000L / rate;
+				long callerNanos = 0;
+				long next = System.nanoTime();
+				for (int i = 0; i < count; i++) {
+					while (System.nanoTime() < next) {
+						Thread.onSpinWait();
+					}
+					final long start = System.nanoTime();
+					helper.info("type", "wii", "message", OperationLogEnum.PUB_CDA2, ResultLogEnum.OK, new Date(), "doc", null, null);
+					callerNanos += System.nanoTime() - start;
+					next += interval;
+				}
+				await(count);
+				helper.preDestroy();
+				log.info("Control log {} at {} events/s: {} ns per call", async ? "async" : "sync", rate, callerNanos / count);
+			}
+		}
+	}
+
+	private List<ILoggingEvent> events() {
+		synchronized (appender) {
+			return new ArrayList<>(appender.list);
+		}
+	}
+
+	private List<ILoggingEvent> await(final int count) {
+		final long deadline = System.currentTimeMillis() + 10_000;
+		List<ILoggingEvent> out = events();
+		while (out.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.onSpinWait();
+			out = events();
+		}
+		assertEquals(count, out.size());
+		return out;
+	}
+
+}
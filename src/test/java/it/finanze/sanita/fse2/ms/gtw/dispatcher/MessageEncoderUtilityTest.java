@@ -0,0 +1,109 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.KafkaStatusManagerDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.LogDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.AttivitaClinicaEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.EventStatusEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.EventTypeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.JsonUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.MessageEncoderUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
+
+class MessageEncoderUtilityTest {
+
+	private static final String[] MESSAGES = {
+		"", "Validazione eseguita", "quote \" backslash \\ slash / tab\t nl\n cr\r bs\b ff\f nul\u0000 esc\u001b del\u007f",
+		"html <a href='x'>&amp;</a> a=b", "accenti àèìòù €     😀 emoji", "lone \ud83d surrogate \ude00"
+	};
+
+	@Test
+	@DisplayName("Status message matches the Jackson serialization")
+	void statusMessageCompatibilityTest() {
+		for (String message : MESSAGES) {
+			KafkaStatusManagerDTO dto = KafkaStatusManagerDTO.builder().traceId("trace").eventType(EventTypeEnum.PUBLICATION)
+					.eventDate(new Date()).eventStatus(EventStatusEnum.SUCCESS).message(message).identificativoDocumento("2.16.840^^^doc")
+					.subject("RSSMRA22A01A399Z^^^&2.16.840.1.113883.2.9.4.3.2&ISO").tipoAttivita(AttivitaClinicaEnum.PHR)
+					.organizzazione("120").issuer("integrity:S1#TEST").microserviceName("gtw-dispatcher").build();
+			assertArrayEquals(StringUtility.toJSONJackson(dto).getBytes(StandardCharsets.UTF_8), MessageEncoderUtility.encode(dto, 0));
+		}
+
+		KafkaStatusManagerDTO empty = KafkaStatusManagerDTO.builder().build();
+		assertArrayEquals(StringUtility.toJSONJackson(empty).getBytes(StandardCharsets.UTF_8), MessageEncoderUtility.encode(empty, 0));
+	}
+
+	@Test
+	@DisplayName("Control log matches the Gson serialization")
+	void logMessageCompatibilityTest() {
+		for (String message : MESSAGES) {
+			LogDTO dto = LogDTO.builder().log_type("control-structured-log").message(message).operation("PUB-REQ")
+					.op_result("OK").op_timestamp_start("01-01-2024 10:00:00.000").op_timestamp_end("01-01-2024 10:00:01.000")
+					.op_error("ERR").op_error_description("Errore <generico> & 'altro'").op_issuer("integrity:S1#TEST")
+					.op_fiscal_code("RSSMRA22A01A399Z").gateway_name("gtw").microservice_name("gtw-dispatcher")
+					.workflow_instance_id("wii").typeIdExtension("1.3").build();
+			// I surrogati isolati diventano '?' come nella codifica UTF-8 del logger
+			assertEquals(utf8(StringUtility.toJSON(dto)), MessageEncoderUtility.encode(dto, 0));
+		}
+
+		LogDTO empty = LogDTO.builder().build();
+		assertEquals(StringUtility.toJSON(empty), MessageEncoderUtility.encode(empty, 0));
+	}
+
+	@Test
+	@DisplayName("Truncation is byte accurate and keeps the JSON valid")
+	void truncationTest() throws Exception {
+		final String unit = "a\"è€😀\n<";
+		final String message = unit.repeat(5000);
+
+		for (int maxBytes = 200; maxBytes < 260; maxBytes++) {
+			KafkaStatusManagerDTO dto = KafkaStatusManagerDTO.builder().traceId("trace").eventType(EventTypeEnum.VALIDATION)
+					.eventStatus(EventStatusEnum.BLOCKING_ERROR).message(message).microserviceName("gtw-dispatcher").build();
+			byte[] encoded = MessageEncoderUtility.encode(dto, maxBytes);
+			assertTrue(encoded.length <= maxBytes);
+			assertTruncated(JsonUtility.getReader().readTree(encoded), message, "gtw-dispatcher");
+			// Nessun troncamento se il messaggio rientra
+			assertArrayEquals(StringUtility.toJSONJackson(dto).getBytes(StandardCharsets.UTF_8), MessageEncoderUtility.encode(dto, 10 * maxBytes * message.length()));
+
+			LogDTO log = LogDTO.builder().log_type("control-structured-log").message(message).workflow_instance_id("wii").build();
+			String json = MessageEncoderUtility.encode(log, maxBytes);
+			assertTrue(json.getBytes(StandardCharsets.UTF_8).length <= maxBytes);
+			JsonNode node = JsonUtility.getReader().readTree(json);
+			assertTrue(message.startsWith(node.get("message").asText()));
+			assertEquals("wii", node.get("workflow_instance_id").asText());
+		}
+	}
+
+	private static void assertTruncated(final JsonNode node, final String message, final String microserviceName) {
+		String truncated = node.get("message").asText();
+		assertTrue(message.startsWith(truncated));
+		assertTrue(truncated.length() > 0);
+		assertEquals(microserviceName, node.get("microserviceName").asText());
+	}
+
+	private static String utf8(final String value) {
+		return new String(value.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ *
+ * Copyright (C) 2023 Ministero della Salute
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentNameDictionary;
+import org.apache.pdfbox.pdmodel.PDEmbeddedFilesNameTreeNode;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDNameTreeNode;
+import org.apache.pdfbox.pdmodel.common.filespecification.PDComplexFileSpecification;
+import org.apache.pdfbox.pdmodel.common.filespecification.PDEmbeddedFile;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.AttachmentDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.FileUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PDFUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PdfEnvelope;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.SignerUtility;
+
+class PdfEnvelopeTest {
+
+	private static final String RESOURCE_PDF = "Files/resource/CDA_RESOURCE.pdf";
+	private static final String ATTACHMENT_PDF = "Files/attachment/LAB_OK_INI.pdf";
+
+	@Test
+	@DisplayName("Envelope views match the byte based extraction")
+	void envelopeMatchesBytesTest() {
+		for (String file : new String[] {RESOURCE_PDF, ATTACHMENT_PDF}) {
+			final byte[] bytes = FileUtility.getFileFromInternalResources(file);
+			try (PdfEnvelope pdf = new PdfEnvelope(bytes)) {
+				assertEquals(PDFUtility.unenvelopeA2(bytes), PDFUtility.unenvelopeA2(pdf));
+				assertEquals(PDFUtility.extractContentFromAttachments(bytes, "cda.xml"), PDFUtility.extractContentFromAttachments(pdf, "cda.xml"));
+				assertEquals(SignerUtility.isSigned(bytes), SignerUtility.isSigned(pdf));
+				assertEquals(SignerUtility.validate(bytes).getStatus(), SignerUtility.validate(pdf).getStatus());
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Envelope loads the document once and caches its views")
+	void envelopeCachesViewsTest() throws IOException {
+		try (PdfEnvelope pdf = new PdfEnvelope(FileUtility.getFileFromInternalResources(RESOURCE_PDF))) {
+			assertSame(pdf.getDocument(), pdf.getDocument());
+			assertSame(pdf.getAttachments(), pdf.getAttachments());
+			assertSame(pdf.getSignatureDictionaries(), pdf.getSignatureDictionaries());
+			assertSame(pdf.getXfaDatasets(), pdf.getXfaDatasets());
+			assertNotNull(pdf.getXfaDatasets());
+			assertTrue(SignerUtility.isSigned(pdf));
+		}
+
+		try (PdfEnvelope pdf = new PdfEnvelope(FileUtility.getFileFromInternalResources(ATTACHMENT_PDF))) {
+			assertNull(pdf.getXfaDatasets());
+			assertFalse(pdf.getAttachments().isEmpty());
+		}
+	}
+
+	@Test
+	@DisplayName("Attachment lookup descends the name tree and matches the full extraction")
+	void findAttachmentTest() throws IOException {
+		try (PdfEnvelope pdf = new PdfEnvelope(FileUtility.getFileFromInternalResources(ATTACHMENT_PDF))) {
+			AttachmentDTO cda = pdf.findAttachment("cda.xml");
+			assertArrayEquals(pdf.getAttachments().get("cda.xml").getContent(), cda.getContent());
+			assertSame(cda, pdf.findAttachment("cda.xml"));
+			assertNull(pdf.findAttachment("missing.xml"));
+		}
+
+		final byte[] bytes = pdfWithKids();
+		try (PdfEnvelope pdf = new PdfEnvelope(bytes)) {
+			assertEquals("b", new String(pdf.findAttachment("b.txt").getContent(), StandardCharsets.UTF_8));
+			assertEquals("c", new String(pdf.findAttachment("c-file.txt").getContent(), StandardCharsets.UTF_8));
+			assertNull(pdf.findAttachment("d.txt"));
+		}
+		assertEquals("a", PDFUtility.extractContentFromAttachments(bytes, "a.txt"));
+	}
+
+	private static byte[] pdfWithKids() throws IOException {
+		try (PDDocument doc = new PDDocument(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+			doc.addPage(new PDPage());
+			List<PDNameTreeNode<PDComplexFileSpecification>> kids = new ArrayList<>();
+			kids.add(leaf(doc, "a.txt", "a.txt", "b.txt", "b.txt"));
+			kids.add(leaf(doc, "c.txt", "c-file.txt", null, null));
+
+			PDEmbeddedFilesNameTreeNode root = new PDEmbeddedFilesNameTreeNode();
+			root.setKids(kids);
+			PDDocumentNameDictionary names = new PDDocumentNameDictionary(doc.getDocumentCatalog());
+			names.setEmbeddedFiles(root);
+			doc.getDocumentCatalog().setNames(names);
+			doc.save(out);
+			return out.toByteArray();
+		}
+	}
+
+	private static PDEmbeddedFilesNameTreeNode leaf(final PDDocument doc, final String key1, final String file1,
+			final String key2, final String file2) throws IOException {
+		Map<String, PDComplexFileSpecification> files = new TreeMap<>();
+		files.put(key1, fileSpec(doc, file1));
+		if (key2 != null) {
+			files.put(key2, fileSpec(doc, file2));
+		}
+		PDEmbeddedFilesNameTreeNode leaf = new PDEmbeddedFilesNameTreeNode();
+		leaf.setNames(files);
+		return leaf;
+	}
+
+	private static PDComplexFileSpecification fileSpec(final PDDocument doc, final String fileName) throws IOException {
+		PDEmbeddedFile file = new PDEmbeddedFile(doc, new ByteArrayInputStream(fileName.substring(0, 1).getBytes(StandardCharsets.UTF_8)));
+		file.setSubtype("text/plain");
+		PDComplexFileSpecification fileSpec = new PDComplexFileSpecification();
+		fileSpec.setFile(fileName);
+		fileSpec.setEmbeddedFile(file);
+		return fileSpec;
+	}
+
+}
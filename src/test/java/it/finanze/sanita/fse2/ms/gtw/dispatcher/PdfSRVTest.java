@@ -0,0 +1,244 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ *
+ * Copyright (C) 2023 Ministero della Salute
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.CDACFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.FHIRCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.PdfCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.DocumentDigestDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.InjectionModeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.PdfExtractionStrategyEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.PdfExtractionOrderSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.PdfSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.FileUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PDFUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PdfEnvelope;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.SignerUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
+
+class PdfSRVTest {
+
+	private static final String PDF = "Files/attachment/LAB_OK.pdf";
+
+	private PdfCFG cfg;
+
+	private MeterRegistry registry;
+
+	private PdfExtractionOrderSRV extractionOrderSRV;
+
+	private PdfSRV pdfSRV;
+
+	@BeforeEach
+	void setup() {
+		cfg = new PdfCFG();
+		ReflectionTestUtils.setField(cfg, "memoryThresholdBytes", 1024L * 1024L);
+		ReflectionTestUtils.setField(cfg, "maxMainMemoryBytes", 64L * 1024L);
+		ReflectionTestUtils.setField(cfg, "globalMaxBytes", 4L * 1024L * 1024L);
+		ReflectionTestUtils.setField(cfg, "tempDir", "");
+		ReflectionTestUtils.setField(cfg, "fhirMaxTextPages", 10);
+
+		FHIRCFG fhirCFG = new FHIRCFG();
+		ReflectionTestUtils.setField(fhirCFG, "fhirAttachmentName", "bundle.json");
+
+		ReflectionTestUtils.setField(cfg, "extractionOrderMaxEntries", 2);
+		ReflectionTestUtils.setField(cfg, "extractionOrderDecay", 0.5d);
+
+		CDACFG cdaCFG = new CDACFG();
+		ReflectionTestUtils.setField(cdaCFG, "cdaAttachmentName", "cda.xml");
+
+		extractionOrderSRV = new PdfExtractionOrderSRV();
+		ReflectionTestUtils.setField(extractionOrderSRV, "pdfCFG", cfg);
+
+		registry = new SimpleMeterRegistry();
+		pdfSRV = new PdfSRV();
+		ReflectionTestUtils.setField(pdfSRV, "pdfCFG", cfg);
+		ReflectionTestUtils.setField(pdfSRV, "cdaCFG", cdaCFG);
+		ReflectionTestUtils.setField(pdfSRV, "fhirCFG", fhirCFG);
+		ReflectionTestUtils.setField(pdfSRV, "extractionOrderSRV", extractionOrderSRV);
+		ReflectionTestUtils.setField(pdfSRV, "meterRegistry", registry);
+		pdfSRV.postConstruct();
+	}
+
+	@Test
+	@DisplayName("Small pdf reserves heap until closed")
+	void mainMemoryTest() {
+		final byte[] pdf = FileUtility.getFileFromInternalResources(PDF);
+		try (PdfEnvelope envelope = pdfSRV.open(pdf)) {
+			assertEquals(pdf.length, reserved());
+			assertNotNull(PDFUtility.extractContentFromAttachments(envelope, "cda.xml"));
+		}
+		assertEquals(0, reserved());
+		assertEquals(0, spill("threshold") + spill("global_cap"));
+	}
+
+	@Test
+	@DisplayName("Pdf over threshold or budget are parsed with temp file buffers")
+	void spillTest() {
+		final byte[] pdf = FileUtility.getFileFromInternalResources(PDF);
+		final String expected = PDFUtility.extractContentFromAttachments(pdf, "cda.xml");
+
+		ReflectionTestUtils.setField(cfg, "memoryThresholdBytes", 1024L);
+		ReflectionTestUtils.setField(cfg, "maxMainMemoryBytes", 4096L);
+		try (PdfEnvelope envelope = pdfSRV.open(pdf)) {
+			assertEquals(4096L, reserved());
+			assertEquals(expected, PDFUtility.extractContentFromAttachments(envelope, "cda.xml"));
+		}
+		assertEquals(1, spill("threshold"));
+
+		ReflectionTestUtils.setField(cfg, "globalMaxBytes", 1024L);
+		try (PdfEnvelope envelope = pdfSRV.open(pdf)) {
+			assertEquals(0, reserved());
+			assertEquals(expected, PDFUtility.extractContentFromAttachments(envelope, "cda.xml"));
+		}
+		assertEquals(1, spill("global_cap"));
+		assertEquals(0, reserved());
+	}
+
+	@Test
+	@DisplayName("Uploads over threshold are read from a temp file removed on close")
+	void uploadTest(@TempDir final Path tempDir) throws IOException {
+		final byte[] pdf = FileUtility.getFileFromInternalResources("Files/attachment/CDA_OK_SIGNED.pdf");
+		final DocumentDigestDTO expected = StringUtility.encodeSHA256AndSHA1(pdf);
+
+		ReflectionTestUtils.setField(cfg, "memoryThresholdBytes", 1024L);
+		ReflectionTestUtils.setField(cfg, "tempDir", tempDir.toString());
+		try (PdfEnvelope envelope = pdfSRV.open(new MockMultipartFile("file", pdf))) {
+			try (Stream<Path> files = Files.list(tempDir)) {
+				assertEquals(1, files.count());
+			}
+			assertTrue(envelope.isPdf());
+			assertEquals(pdf.length, envelope.getSize());
+			assertEquals(expected.getSha256(), envelope.getDigest().getSha256());
+			assertEquals(expected.getSha1(), envelope.getDigest().getSha1());
+			assertEquals(PDFUtility.extractContentFromAttachments(pdf, "cda.xml"), PDFUtility.extractContentFromAttachments(envelope, "cda.xml"));
+			assertEquals(SignerUtility.validate(pdf).getStatus(), SignerUtility.validate(envelope).getStatus());
+		}
+		try (Stream<Path> files = Files.list(tempDir)) {
+			assertEquals(0, files.count());
+		}
+		assertEquals(0, reserved());
+
+		try (PdfEnvelope envelope = pdfSRV.open(new MockMultipartFile("file", "{\"resourceType\": \"Bundle\"}".getBytes()))) {
+			assertFalse(envelope.isPdf());
+		}
+	}
+
+	@Test
+	@DisplayName("Bundle split across pages is extracted from the text layer")
+	void extractFhirFromTextTest() throws IOException {
+		final byte[] pdf = textPdf("{\"resourceType\": ", "\"Bundle\", \"type\": \"transaction\"}");
+		try (PdfEnvelope envelope = pdfSRV.open(pdf)) {
+			String bundle = pdfSRV.extractFhir(envelope, null, null);
+			assertTrue(bundle.startsWith("{\"resourceType\":"));
+			assertTrue(bundle.endsWith("\"transaction\"}"));
+		}
+		try (PdfEnvelope envelope = pdfSRV.open(pdf)) {
+			assertNull(pdfSRV.extractFhir(envelope, InjectionModeEnum.ATTACHMENT, null));
+		}
+
+		ReflectionTestUtils.setField(cfg, "fhirMaxTextPages", 1);
+		try (PdfEnvelope envelope = pdfSRV.open(pdf)) {
+			assertNull(pdfSRV.extractFhir(envelope, InjectionModeEnum.RESOURCE, null));
+		}
+
+		assertEquals(1, extraction("text"));
+		assertEquals(2, extraction("none"));
+	}
+
+	@Test
+	@DisplayName("Extraction order is learned per issuer")
+	void adaptiveOrderTest() {
+		final byte[] attachment = FileUtility.getFileFromInternalResources(PDF);
+		final byte[] resource = FileUtility.getFileFromInternalResources("Files/resource/CDA_RESOURCE.pdf");
+		final List<PdfExtractionStrategyEnum> defaults = List.of(PdfExtractionStrategyEnum.XFA, PdfExtractionStrategyEnum.ATTACHMENT);
+
+		try (PdfEnvelope envelope = pdfSRV.open(attachment)) {
+			assertNotNull(pdfSRV.extractCda(envelope, null, "issuer-a"));
+		}
+		assertEquals(List.of(PdfExtractionStrategyEnum.ATTACHMENT, PdfExtractionStrategyEnum.XFA), extractionOrderSRV.order("issuer-a", "cda", defaults));
+		assertEquals(defaults, extractionOrderSRV.order("issuer-b", "cda", defaults));
+		assertEquals(defaults, extractionOrderSRV.order(null, "cda", defaults));
+
+		// Dopo un cambio di modalita' il decadimento riporta avanti la nuova strategia
+		for (int i = 0; i < 2; i++) {
+			try (PdfEnvelope envelope = pdfSRV.open(resource)) {
+				assertNotNull(pdfSRV.extractCda(envelope, null, "issuer-a"));
+			}
+		}
+		assertEquals(defaults, extractionOrderSRV.order("issuer-a", "cda", defaults));
+		assertEquals(1, registry.get("pdf.cda.extraction").tag("strategy", "attachment").counter().count());
+		assertEquals(2, registry.get("pdf.cda.extraction").tag("strategy", "xfa").counter().count());
+
+		// La tabella e' limitata: le voci meno usate vengono eliminate
+		extractionOrderSRV.success("issuer-b", "cda", PdfExtractionStrategyEnum.ATTACHMENT);
+		extractionOrderSRV.success("issuer-c", "cda", PdfExtractionStrategyEnum.ATTACHMENT);
+		assertEquals(2, extractionOrderSRV.snapshot().size());
+		assertFalse(extractionOrderSRV.snapshot().containsKey("cda:issuer-a"));
+	}
+
+	private double extraction(final String strategy) {
+		return registry.get("pdf.fhir.extraction").tag("strategy", strategy).counter().count();
+	}
+
+	private static byte[] textPdf(final String... pages) throws IOException {
+		try (PDDocument doc = new PDDocument(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+			for (String text : pages) {
+				PDPage page = new PDPage();
+				doc.addPage(page);
+				try (PDPageContentStream content = new PDPageContentStream(doc, page)) {
+					content.beginText();
+					content.setFont(PDType1Font.HELVETICA, 12);
+					content.newLineAtOffset(50, 700);
+					content.showText(text);
+					content.endText();
+				}
+			}
+			doc.save(out);
+			return out.toByteArray();
+		}
+	}
+
+	private double reserved() {
+		return registry.get("pdf.parse.reserved.bytes").gauge().value();
+	}
+
+	private double spill(final String reason) {
+		return registry.get("pdf.parse.spill").tag("reason", reason).counter().count();
+	}
+
+}
@@ -0,0 +1,249 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ *
+ * Copyright (C) 2023 Ministero della Salute
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.SignatureInterface;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.PdfCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.SignatureValidationDTO;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.enums.EventTypeEnum;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.ValidationException;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.SignSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.SignatureCacheSRV;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.FileUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.PdfEnvelope;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.SignerUtility;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
+
+class SignSRVTest {
+
+	private static final String[] PDF_FILES = {
+		"Files/resource/CDA_RESOURCE.pdf", "Files/attachment/CDA_OK_SIGNED.pdf", "Files/attachment/LAB_OK.pdf",
+		"Files/accreditamento/SIGNED_LAB1.pdf"
+	};
+
+	private MeterRegistry registry;
+
+	private PdfCFG cfg;
+
+	private SignatureCacheSRV signatureCacheSRV;
+
+	private SignSRV signSRV;
+
+	@BeforeEach
+	void setup() {
+		cfg = new PdfCFG();
+		ReflectionTestUtils.setField(cfg, "signVerifyThreads", 2);
+		ReflectionTestUtils.setField(cfg, "signVerifyQueueSize", 4);
+		ReflectionTestUtils.setField(cfg, "signCacheTtlSeconds", 60L);
+		ReflectionTestUtils.setField(cfg, "signCacheMaxBytes", 4096L);
+
+		registry = new SimpleMeterRegistry();
+		signatureCacheSRV = new SignatureCacheSRV();
+		ReflectionTestUtils.setField(signatureCacheSRV, "pdfCFG", cfg);
+		ReflectionTestUtils.setField(signatureCacheSRV, "meterRegistry", registry);
+		signatureCacheSRV.postConstruct();
+
+		signSRV = new SignSRV();
+		ReflectionTestUtils.setField(signSRV, "pdfCFG", cfg);
+		ReflectionTestUtils.setField(signSRV, "meterRegistry", registry);
+		ReflectionTestUtils.setField(signSRV, "signatureCacheSRV", signatureCacheSRV);
+		signSRV.postConstruct();
+	}
+
+	@AfterEach
+	void teardown() {
+		signSRV.preDestroy();
+	}
+
+	@Test
+	@DisplayName("Parallel verification matches the sequential one")
+	void parallelVerificationTest() {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for (String file : PDF_FILES) {
+				try (PdfEnvelope pdf = new PdfEnvelope(FileUtility.getFileFromInternalResources(file))) {
+					SignatureValidationDTO sequential = SignerUtility.validate(pdf);
+					SignatureValidationDTO parallel = SignerUtility.validate(pdf, executor);
+					assertEquals(sequential.getStatus(), parallel.getStatus());
+					assertEquals(sequential.getSignatures().size(), parallel.getSignatures().size());
+					for (int i = 0; i < sequential.getSignatures().size(); i++) {
+						assertEquals(sequential.getSignatures().get(i).getValid(), parallel.getSignatures().get(i).getValid());
+						assertEquals(sequential.getSignatures().get(i).getFullyQualifiedName(), parallel.getSignatures().get(i).getFullyQualifiedName());
+						assertNotNull(parallel.getSignatures().get(i).getVerificationNanos());
+					}
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	@DisplayName("Every signature field is verified in order on the pool")
+	void multipleSignaturesTest() throws Exception {
+		final byte[] bytes = signedTwice();
+		try (PdfEnvelope pdf = new PdfEnvelope(bytes)) {
+			assertEquals(2, pdf.getSignatureDictionaries().size());
+			assertEquals("", signSRV.checkPades(pdf, EventTypeEnum.PUBLICATION));
+
+			SignatureValidationDTO sequential = SignerUtility.validate(pdf);
+			assertTrue(sequential.getStatus());
+			assertEquals(2, sequential.getSignatures().size());
+			assertEquals("signer-0", sequential.getSignatures().get(0).getName());
+			assertEquals("signer-1", sequential.getSignatures().get(1).getName());
+		}
+		assertEquals(2, registry.get("pdf.sign.verification").tag("valid", "true").timer().count());
+	}
+
+	@Test
+	@DisplayName("Pades check records the verification time of each signature")
+	void checkPadesTest() {
+		try (PdfEnvelope pdf = new PdfEnvelope(FileUtility.getFileFromInternalResources("Files/resource/CDA_RESOURCE.pdf"))) {
+			assertEquals("", signSRV.checkPades(pdf, EventTypeEnum.PUBLICATION));
+		}
+		assertEquals(1, registry.get("pdf.sign.verification").tag("valid", "true").timer().count());
+
+		try (PdfEnvelope pdf = new PdfEnvelope(FileUtility.getFileFromInternalResources("Files/attachment/LAB_OK.pdf"))) {
+			assertThrows(ValidationException.class, () -> signSRV.checkPades(pdf, EventTypeEnum.PUBLICATION));
+		}
+	}
+
+	@Test
+	@DisplayName("Verification outcome is reused for the same pdf until it expires")
+	void cacheTest() {
+		final byte[] bytes = FileUtility.getFileFromInternalResources("Files/resource/CDA_RESOURCE.pdf");
+		for (int i = 0; i < 2; i++) {
+			try (PdfEnvelope pdf = new PdfEnvelope(bytes)) {
+				assertEquals("", signSRV.checkPades(pdf, EventTypeEnum.PUBLICATION));
+			}
+		}
+		assertEquals(1, registry.get("pdf.sign.verification").timer().count());
+		assertEquals(1, cache("hit"));
+		assertEquals(1, cache("miss"));
+
+		final Instant now = Instant.now();
+		ReflectionTestUtils.setField(signatureCacheSRV, "clock", Clock.fixed(now.plusSeconds(61), ZoneOffset.UTC));
+		try (PdfEnvelope pdf = new PdfEnvelope(bytes)) {
+			signSRV.checkPades(pdf, EventTypeEnum.PUBLICATION);
+		}
+		assertEquals(2, registry.get("pdf.sign.verification").timer().count());
+		assertEquals(2, cache("miss"));
+	}
+
+	@Test
+	@DisplayName("Cache size is bounded in bytes")
+	void cacheSizeTest() {
+		final SignatureValidationDTO validation = SignatureValidationDTO.builder().status(true).signatures(new ArrayList<>()).build();
+		ReflectionTestUtils.setField(cfg, "signCacheMaxBytes", 1024L);
+		for (int i = 0; i < 10; i++) {
+			signatureCacheSRV.put(StringUtility.encodeSHA256(new byte[] {(byte) i}), validation);
+		}
+		final double size = registry.get("pdf.sign.cache.size").gauge().value();
+		assertTrue(size > 0 && size <= 1024);
+		assertNull(signatureCacheSRV.get(StringUtility.encodeSHA256(new byte[] {0})));
+		assertNotNull(signatureCacheSRV.get(StringUtility.encodeSHA256(new byte[] {9})));
+
+		ReflectionTestUtils.setField(cfg, "signCacheTtlSeconds", 0L);
+		assertNull(signatureCacheSRV.get(StringUtility.encodeSHA256(new byte[] {9})));
+	}
+
+	private double cache(final String result) {
+		return registry.get("pdf.sign.cache").tag("result", result).counter().count();
+	}
+
+	/**
+	 * Pdf con due firme aggiunte in salvataggi incrementali, con certificato autofirmato.
+	 */
+	private static byte[] signedTwice() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair keys = generator.generateKeyPair();
+		ContentSigner contentSigner = new JcaContentSignerBuilder("SHA256withRSA").build(keys.getPrivate());
+		X500Name subject = new X500Name("CN=test");
+		Date now = new Date();
+		X509CertificateHolder cert = new JcaX509v3CertificateBuilder(subject, BigInteger.ONE, now,
+				new Date(now.getTime() + 3_600_000L), subject, keys.getPublic()).build(contentSigner);
+
+		SignatureInterface signer = content -> {
+			try {
+				CMSSignedDataGenerator cms = new CMSSignedDataGenerator();
+				cms.addSignerInfoGenerator(new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+						.build(new JcaContentSignerBuilder("SHA256withRSA").build(keys.getPrivate()), cert));
+				cms.addCertificate(cert);
+				return cms.generate(new CMSProcessableByteArray(content.readAllBytes()), false).getEncoded();
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		};
+
+		byte[] pdf;
+		try (PDDocument doc = new PDDocument(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+			doc.addPage(new PDPage());
+			doc.save(out);
+			pdf = out.toByteArray();
+		}
+		for (int i = 0; i < 2; i++) {
+			try (PDDocument doc = PDDocument.load(pdf); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+				PDSignature signature = new PDSignature();
+				signature.setFilter(PDSignature.FILTER_ADOBE_PPKLITE);
+				signature.setSubFilter(PDSignature.SUBFILTER_ADBE_PKCS7_DETACHED);
+				signature.setName("signer-" + i);
+				signature.setSignDate(Calendar.getInstance());
+				doc.addSignature(signature, signer);
+				doc.saveIncremental(out);
+				pdf = out.toByteArray();
+			}
+		}
+		return pdf;
+	}
+
+}
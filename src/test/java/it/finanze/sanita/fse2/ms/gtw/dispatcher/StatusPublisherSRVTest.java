@@ -0,0 +1,186 @@
+/*
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ * 
+ * Copyright (C) 2023 Ministero della Salute
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.finanze.sanita.fse2.ms.gtw.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.kafka.KafkaStatusCFG;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.service.impl.StatusPublisherSRV;
+
+class StatusPublisherSRVTest {
+
+	private MeterRegistry registry;
+
+	private StatusPublisherSRV publisher;
+
+	private StatusPublisherSRV create(final boolean async, final int lanes, final int queueSize, final long enqueueTimeoutMs) {
+		KafkaStatusCFG cfg = new KafkaStatusCFG();
+		cfg.setAsyncEnabled(async);
+		cfg.setLanes(lanes);
+		cfg.setQueueSize(queueSize);
+		cfg.setEnqueueTimeoutMs(enqueueTimeoutMs);
+
+		registry = new SimpleMeterRegistry();
+		publisher = new StatusPublisherSRV();
+		ReflectionTestUtils.setField(publisher, "kafkaStatusCFG", cfg);
+		ReflectionTestUtils.setField(publisher, "meterRegistry", registry);
+		publisher.postConstruct();
+		return publisher;
+	}
+
+	@AfterEach
+	void tearDown() {
+		if (publisher != null) {
+			publisher.preDestroy();
+		}
+	}
+
+	@Test
+	@DisplayName("Messages with the same key are sent in submission order, off the caller thread")
+	void orderingTest() throws Exception {
+		create(true, 4, 10_000, 1000);
+		final Map<String, List<Integer>> sent = Collections.synchronizedMap(new HashMap<>());
+		final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+		final List<CompletableFuture<RecordMetadata>> futures = new ArrayList<>();
+
+		for (int i = 0; i < 2000; i++) {
+			final String key = "wii-" + (i % 20);
+			final int seq = i;
+			futures.add(publisher.submit(key, () -> {
+				threads.add(Thread.currentThread().getName());
+				if (ThreadLocalRandom.current().nextInt(50) == 0) {
+					sleep(1);
+				}
+				sent.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>())).add(seq);
+				return CompletableFuture.completedFuture(metadata());
+			}));
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+
+		assertEquals(20, sent.size());
+		for (List<Integer> sequence : sent.values()) {
+			for (int i = 1; i < sequence.size(); i++) {
+				assertTrue(sequence.get(i - 1) < sequence.get(i));
+			}
+		}
+		assertTrue(threads.stream().allMatch(name -> name.startsWith("status-publisher-")));
+		assertEquals(2000, registry.get("kafka.status.publish").tag("result", "success").counter().count());
+	}
+
+	@Test
+	@DisplayName("A full lane applies backpressure and then rejects")
+	void backpressureTest() throws Exception {
+		create(true, 1, 1, 50);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		CompletableFuture<RecordMetadata> blocking = publisher.submit("wii", () -> {
+			await(release);
+			return CompletableFuture.completedFuture(metadata());
+		});
+		// Attende che il primo invio occupi il thread della coda
+		while (registry.get("kafka.status.publish.pending").gauge().value() != 0) {
+			sleep(1);
+		}
+		CompletableFuture<RecordMetadata> queued = publisher.submit("wii", () -> CompletableFuture.completedFuture(metadata()));
+
+		long start = System.nanoTime();
+		CompletableFuture<RecordMetadata> rejected = publisher.submit("wii", () -> CompletableFuture.completedFuture(metadata()));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 40);
+		ExecutionException ex = assertThrows(ExecutionException.class, () -> rejected.get(1, TimeUnit.SECONDS));
+		assertInstanceOf(RejectedExecutionException.class, ex.getCause());
+		assertEquals(1, registry.get("kafka.status.publish").tag("result", "rejected").counter().count());
+
+		release.countDown();
+		blocking.get(5, TimeUnit.SECONDS);
+		queued.get(5, TimeUnit.SECONDS);
+		assertEquals(2, registry.get("kafka.status.publish").tag("result", "success").counter().count());
+	}
+
+	@Test
+	@DisplayName("Delivery failures complete the future and are counted")
+	void failureTest() {
+		create(true, 2, 10, 1000);
+
+		CompletableFuture<RecordMetadata> thrown = publisher.submit("a", () -> {
+			throw new IllegalStateException("broker down");
+		});
+		CompletableFuture<RecordMetadata> failed = publisher.submit("b",
+				() -> CompletableFuture.failedFuture(new IllegalStateException("timeout")));
+
+		assertThrows(ExecutionException.class, () -> thrown.get(5, TimeUnit.SECONDS));
+		assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+		assertEquals(2, registry.get("kafka.status.publish").tag("result", "failure").counter().count());
+	}
+
+	@Test
+	@DisplayName("With async disabled the send runs on the caller thread")
+	void synchronousTest() throws Exception {
+		create(false, 4, 10, 1000);
+		final String caller = Thread.currentThread().getName();
+		final List<String> threads = new ArrayList<>();
+
+		CompletableFuture<RecordMetadata> out = publisher.submit("wii", () -> {
+			threads.add(Thread.currentThread().getName());
+			return CompletableFuture.completedFuture(metadata());
+		});
+
+		assertTrue(out.isDone());
+		assertEquals(0, out.get().offset());
+		assertEquals(List.of(caller), threads);
+		assertEquals(1, registry.get("kafka.status.publish").tag("result", "success").counter().count());
+	}
+
+	private static RecordMetadata metadata() {
+		return new RecordMetadata(new TopicPartition("status", 0), 0, 0, 0, 0, 0);
+	}
+
+	private static void await(final CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void sleep(final long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
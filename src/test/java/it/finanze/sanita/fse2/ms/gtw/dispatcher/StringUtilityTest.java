@@ -13,6 +13,7 @@ package it.finanze.sanita.fse2.ms.gtw.dispatcher;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -20,9 +21,11 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.ActiveProfiles;
 
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.config.Constants;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.DocumentDigestDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.dto.ValidationInfoDTO;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.BusinessException;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.exceptions.ValidationException;
+import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.FileUtility;
 import it.finanze.sanita.fse2.ms.gtw.dispatcher.utility.StringUtility;
 
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
@@ -33,6 +36,18 @@ class StringUtilityTest {
         Assertions.assertThrows(BusinessException.class, () -> StringUtility.encodeSHA256(null));
     }
 
+    @Test
+    void encodeSHA256AndSHA1Test() {
+        byte[] pdf = FileUtility.getFileFromInternalResources("Files/attachment/LAB_OK.pdf");
+        byte[] large = new byte[3 * 64 * 1024 + 17];
+        new Random(42).nextBytes(large);
+        for (byte[] input : new byte[][] {pdf, large, new byte[0], pdf}) {
+            DocumentDigestDTO digest = StringUtility.encodeSHA256AndSHA1(input);
+            Assertions.assertEquals(StringUtility.encodeSHA256(input), digest.getSha256());
+            Assertions.assertEquals(StringUtility.encodeSHA1(input), digest.getSha1());
+        }
+    }
+
     @Test
     void encodeSHA256B64ErrorTest() {
         Assertions.assertThrows(BusinessException.class, () -> StringUtility.encodeSHA256B64(null));